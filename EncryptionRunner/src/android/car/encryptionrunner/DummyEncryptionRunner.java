@@ -22,6 +22,7 @@ import com.android.internal.annotations.VisibleForTesting;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.nio.ByteBuffer;
 
 /**
  * An encryption runner that doesn't actually do encryption. Useful for debugging. Do not use in
@@ -191,6 +192,31 @@ public class DummyEncryptionRunner implements EncryptionRunner {
             return encryptedData;
         }
 
+        @Override
+        public int getMaxEncryptedSize(int dataLength) {
+            return dataLength;
+        }
+
+        @Override
+        public ByteBuffer encryptData(ByteBuffer data, ByteBuffer output) {
+            ByteBuffer encryptedData = output.slice();
+            encryptedData.limit(data.remaining());
+            output.put(data);
+            return encryptedData;
+        }
+
+        @Override
+        public int getMaxDecryptedSize(int encryptedDataLength) {
+            return encryptedDataLength;
+        }
+
+        @Override
+        public int decryptData(ByteBuffer encryptedData, ByteBuffer output) {
+            int size = encryptedData.remaining();
+            output.put(encryptedData);
+            return size;
+        }
+
         @Override
         public byte[] getUniqueSession() {
             return KEY.getBytes();
@@ -81,6 +81,10 @@ import android.annotation.NonNull;
  * sendToClient(serverMessage.getNextMessage());}
  * {@code serverMessage.getHandshakeState()} should be FINISHED if reconnection handshake is done.
  *
+ * <p>To save a round trip, the server can instead send its authentication message first with
+ * {@code serverRunner.initReconnectAuthentication(previousKey)} while the client's is in flight.
+ * {@code authenticateReconnection()} then returns no next message.
+ *
  * Also see {@link EncryptionRunnerTest} for examples.
  */
 public interface EncryptionRunner {
@@ -178,4 +182,13 @@ public interface EncryptionRunner {
      * @param isReconnect {@code true} if it is a reconnect.
      */
     void setIsReconnect(boolean isReconnect);
+
+    /**
+     * Set the id of the device the handshake is with. Runners may use it to cache what they
+     * derive from the previously stored key of that device.
+     *
+     * @param deviceId the id of the remote device.
+     */
+    default void setDeviceId(@NonNull String deviceId) {
+    }
 }
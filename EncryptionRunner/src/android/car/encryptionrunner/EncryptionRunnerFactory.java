@@ -16,6 +16,8 @@
 
 package android.car.encryptionrunner;
 
+import android.annotation.NonNull;
+
 import com.android.internal.annotations.VisibleForTesting;
 
 /**
@@ -34,6 +36,19 @@ public class EncryptionRunnerFactory {
         return new Ukey2EncryptionRunner();
     }
 
+    /**
+     * Drops what the runners have cached about the stored key of the given device. Call whenever
+     * that key is replaced or removed.
+     */
+    public static void invalidateSavedSession(@NonNull String deviceId) {
+        Ukey2EncryptionRunner.invalidateSavedSession(deviceId);
+    }
+
+    /** Drops what the runners have cached about the stored keys of all devices. */
+    public static void clearSavedSessions() {
+        Ukey2EncryptionRunner.clearSavedSessions();
+    }
+
     /**
      * Creates a new {@link EncryptionRunner} one that doesn't actually do encryption but is useful
      * for testing.
@@ -18,6 +18,8 @@ package android.car.encryptionrunner;
 
 import android.annotation.NonNull;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.security.SignatureException;
 
@@ -50,6 +52,89 @@ public interface Key {
     @NonNull
     byte[] decryptData(@NonNull byte[] encryptedData) throws SignatureException;
 
+    /**
+     * Returns the most bytes that encrypting {@code dataLength} bytes with
+     * {@link #encryptData(ByteBuffer, ByteBuffer)} can produce.
+     *
+     * <p>The default implementation knows nothing about the encryption overhead and returns
+     * {@code dataLength}, so larger results come back in a new heap buffer.
+     */
+    default int getMaxEncryptedSize(int dataLength) {
+        return dataLength;
+    }
+
+    /**
+     * Encrypts the remaining bytes of {@code data} into {@code output}, starting at its position.
+     * The positions of both buffers are advanced past the bytes read and written.
+     *
+     * <p>If the encrypted data turns out larger than {@link #getMaxEncryptedSize(int)} reported,
+     * it is returned in a new heap buffer and {@code output} is left unchanged. Encrypting may
+     * consume state such as a sequence number, so the data can't simply be encrypted again.
+     *
+     * <p>The default implementation copies the data and encrypts it with
+     * {@link #encryptData(byte[])}.
+     *
+     * @param data the data to be encrypted
+     * @param output the buffer to write the encrypted data to
+     * @return a buffer whose remaining bytes are the encrypted data. It shares the backing array
+     *         of {@code output} when the encrypted data was written there.
+     * @throws BufferOverflowException if {@code output} has fewer remaining bytes than
+     *         {@link #getMaxEncryptedSize(int)} of the data. Nothing is encrypted in that case.
+     */
+    @NonNull
+    default ByteBuffer encryptData(@NonNull ByteBuffer data, @NonNull ByteBuffer output) {
+        if (output.remaining() < getMaxEncryptedSize(data.remaining())) {
+            throw new BufferOverflowException();
+        }
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        byte[] encryptedData = encryptData(bytes);
+        if (encryptedData.length > output.remaining()) {
+            return ByteBuffer.wrap(encryptedData);
+        }
+        ByteBuffer result = output.slice();
+        result.limit(encryptedData.length);
+        output.put(encryptedData);
+        return result;
+    }
+
+    /**
+     * Returns the most bytes that decrypting {@code encryptedDataLength} bytes with
+     * {@link #decryptData(ByteBuffer, ByteBuffer)} can produce.
+     *
+     * <p>The default implementation assumes decrypting does not grow the data and returns
+     * {@code encryptedDataLength}.
+     */
+    default int getMaxDecryptedSize(int encryptedDataLength) {
+        return encryptedDataLength;
+    }
+
+    /**
+     * Decrypts the remaining bytes of {@code encryptedData} into {@code output}, starting at its
+     * position. The positions of both buffers are advanced past the bytes read and written.
+     *
+     * <p>The default implementation copies the encrypted data and decrypts it with
+     * {@link #decryptData(byte[])}.
+     *
+     * @param encryptedData the encrypted data
+     * @param output the buffer to write the decrypted data to
+     * @return the number of bytes written to {@code output}.
+     * @throws SignatureException if encrypted data is not properly signed.
+     * @throws BufferOverflowException if {@code output} has fewer remaining bytes than
+     *         {@link #getMaxDecryptedSize(int)} of the encrypted data.
+     */
+    default int decryptData(@NonNull ByteBuffer encryptedData, @NonNull ByteBuffer output)
+            throws SignatureException {
+        if (output.remaining() < getMaxDecryptedSize(encryptedData.remaining())) {
+            throw new BufferOverflowException();
+        }
+        byte[] bytes = new byte[encryptedData.remaining()];
+        encryptedData.get(bytes);
+        byte[] data = decryptData(bytes);
+        output.put(data);
+        return data.length;
+    }
+
     /**
      * Returns a cryptographic digest of the key.
      *
@@ -29,15 +29,26 @@ import com.google.security.cryptauth.lib.securemessage.CryptoOps;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SignatureException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.crypto.spec.SecretKeySpec;
 
 /**
  * An {@link EncryptionRunner} that uses Ukey2 as the underlying implementation.
+ *
+ * <p>Reconnection authentication needs the unique sessions of the current and previously stored
+ * keys. Restoring a {@link D2DConnectionContext} from its saved bytes and digesting it is costly,
+ * so each runner computes them once and reuses them for both authentication messages. The unique
+ * session of a stored key is also kept for the most recently reconnected devices, as every
+ * connection gets a new runner. The restored context itself is not kept, since it carries the
+ * message sequence numbers of the session.
  */
 public class Ukey2EncryptionRunner implements EncryptionRunner {
 
@@ -48,6 +59,24 @@ public class Ukey2EncryptionRunner implements EncryptionRunner {
     private static final byte[] SERVER = "SERVER".getBytes();
     private static final byte[] CLIENT = "CLIENT".getBytes();
     private static final int AUTH_STRING_LENGTH = 6;
+    // Upper bound on what D2D encryption adds to a message, following the SecureMessage format:
+    // the DeviceToDeviceMessage sequence number and length fields (12 bytes), AES-CBC padding
+    // (16), the header with its schemes, 16 byte IV and GCM metadata (40), and the HeaderAndBody
+    // and SecureMessage framing around the 32 byte HMAC-SHA256 signature (50). Should the bound
+    // ever fall short, UKey2Key.encryptData returns the message in a heap buffer instead.
+    private static final int D2D_MESSAGE_OVERHEAD = 12 + 16 + 40 + 50;
+    private static final int MAX_CACHED_SESSIONS = 8;
+
+    // Unique sessions of stored keys by device id, least recently used first. Only accessed while
+    // holding the map's lock.
+    private static final Map<String, CachedSession> sPreviousUniqueSessions =
+            new LinkedHashMap<String, CachedSession>(
+                    MAX_CACHED_SESSIONS, /* loadFactor= */ 0.75f, /* accessOrder= */ true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedSession> eldest) {
+                    return size() > MAX_CACHED_SESSIONS;
+                }
+            };
 
     @IntDef({Mode.UNKNOWN, Mode.CLIENT, Mode.SERVER})
     private @interface Mode {
@@ -63,6 +92,7 @@ public class Ukey2EncryptionRunner implements EncryptionRunner {
     private byte[] mPrevUniqueSesion;
     private boolean mIsReconnect;
     private boolean mInitReconnectionVerification;
+    private String mDeviceId;
     @Mode
     private int mMode = Mode.UNKNOWN;
 
@@ -88,6 +118,25 @@ public class Ukey2EncryptionRunner implements EncryptionRunner {
         mIsReconnect = isReconnect;
     }
 
+    @Override
+    public void setDeviceId(@NonNull String deviceId) {
+        mDeviceId = deviceId;
+    }
+
+    /** Drops the cached unique session of the stored key of the given device. */
+    static void invalidateSavedSession(@NonNull String deviceId) {
+        synchronized (sPreviousUniqueSessions) {
+            sPreviousUniqueSessions.remove(deviceId);
+        }
+    }
+
+    /** Drops the cached unique sessions of all devices. */
+    static void clearSavedSessions() {
+        synchronized (sPreviousUniqueSessions) {
+            sPreviousUniqueSessions.clear();
+        }
+    }
+
     @Override
     public HandshakeMessage respondToInitRequest(byte[] initializationRequest)
             throws HandshakeException {
@@ -200,6 +249,56 @@ public class Ukey2EncryptionRunner implements EncryptionRunner {
             return mConnectionContext.decodeMessageFromPeer(encryptedData);
         }
 
+        @Override
+        public int getMaxEncryptedSize(int dataLength) {
+            // The exact size depends on the D2D framing, so reserve room for all of it.
+            return dataLength + D2D_MESSAGE_OVERHEAD;
+        }
+
+        @Override
+        public ByteBuffer encryptData(ByteBuffer data, ByteBuffer output) {
+            // Check before encrypting, which uses up the next sequence number of the session.
+            if (output.remaining() < getMaxEncryptedSize(data.remaining())) {
+                throw new BufferOverflowException();
+            }
+            byte[] encryptedData = mConnectionContext.encodeMessageToPeer(toByteArray(data));
+            if (encryptedData.length > output.remaining()) {
+                Log.w(TAG, "Encrypted message of " + encryptedData.length + " bytes exceeds its "
+                        + "size bound of " + output.remaining() + " bytes.");
+                return ByteBuffer.wrap(encryptedData);
+            }
+            ByteBuffer result = output.slice();
+            result.limit(encryptedData.length);
+            output.put(encryptedData);
+            return result;
+        }
+
+        @Override
+        public int getMaxDecryptedSize(int encryptedDataLength) {
+            return encryptedDataLength;
+        }
+
+        @Override
+        public int decryptData(ByteBuffer encryptedData, ByteBuffer output)
+                throws SignatureException {
+            byte[] data = mConnectionContext.decodeMessageFromPeer(toByteArray(encryptedData));
+            output.put(data);
+            return data.length;
+        }
+
+        /** Returns the remaining bytes of the buffer, avoiding a copy when they fill its array. */
+        @NonNull
+        private static byte[] toByteArray(@NonNull ByteBuffer buffer) {
+            if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+                    && buffer.remaining() == buffer.array().length) {
+                buffer.position(buffer.limit());
+                return buffer.array();
+            }
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            return bytes;
+        }
+
         @Override
         public byte[] getUniqueSession() throws NoSuchAlgorithmException {
             return mConnectionContext.getSessionUnique();
@@ -248,12 +347,7 @@ public class Ukey2EncryptionRunner implements EncryptionRunner {
             throw new HandshakeException("Failing because (message.length =" + message.length
                     + ") is not equal to " + RESUME_HMAC_LENGTH);
         }
-        try {
-            mCurrentUniqueSesion = mCurrentKey.getUniqueSession();
-            mPrevUniqueSesion = keyOf(previousKey).getUniqueSession();
-        } catch (NoSuchAlgorithmException e) {
-            throw new HandshakeException(e);
-        }
+        loadUniqueSessions(previousKey);
         switch (mMode) {
             case Mode.SERVER:
                 if (!MessageDigest.isEqual(
@@ -300,12 +394,7 @@ public class Ukey2EncryptionRunner implements EncryptionRunner {
             throw new HandshakeException("Current key is null, make sure verifyPin() is called.");
         }
         mInitReconnectionVerification = true;
-        try {
-            mCurrentUniqueSesion = mCurrentKey.getUniqueSession();
-            mPrevUniqueSesion = keyOf(previousKey).getUniqueSession();
-        } catch (NoSuchAlgorithmException e) {
-            throw new HandshakeException(e);
-        }
+        loadUniqueSessions(previousKey);
         switch (mMode) {
             case Mode.SERVER:
                 return HandshakeMessage.newBuilder()
@@ -323,6 +412,56 @@ public class Ukey2EncryptionRunner implements EncryptionRunner {
         }
     }
 
+    private void loadUniqueSessions(@NonNull byte[] previousKey) throws HandshakeException {
+        try {
+            if (mCurrentUniqueSesion == null) {
+                mCurrentUniqueSesion = mCurrentKey.getUniqueSession();
+            }
+            if (mPrevUniqueSesion == null) {
+                mPrevUniqueSesion = getPreviousUniqueSession(previousKey);
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new HandshakeException(e);
+        }
+    }
+
+    /**
+     * Returns the unique session of the given stored key, from the cache if it was computed for
+     * the same key of the same device before.
+     */
+    @NonNull
+    private byte[] getPreviousUniqueSession(@NonNull byte[] previousKey)
+            throws NoSuchAlgorithmException {
+        String deviceId = mDeviceId;
+        if (deviceId == null) {
+            return keyOf(previousKey).getUniqueSession();
+        }
+        // Only the digest of the stored key is kept to tell whether the entry still applies.
+        byte[] keyDigest = MessageDigest.getInstance("SHA-256").digest(previousKey);
+        synchronized (sPreviousUniqueSessions) {
+            CachedSession cachedSession = sPreviousUniqueSessions.get(deviceId);
+            if (cachedSession != null && MessageDigest.isEqual(cachedSession.mKeyDigest,
+                    keyDigest)) {
+                return cachedSession.mUniqueSession;
+            }
+        }
+        byte[] uniqueSession = keyOf(previousKey).getUniqueSession();
+        synchronized (sPreviousUniqueSessions) {
+            sPreviousUniqueSessions.put(deviceId, new CachedSession(keyDigest, uniqueSession));
+        }
+        return uniqueSession;
+    }
+
+    private static class CachedSession {
+        private final byte[] mKeyDigest;
+        private final byte[] mUniqueSession;
+
+        CachedSession(@NonNull byte[] keyDigest, @NonNull byte[] uniqueSession) {
+            mKeyDigest = keyDigest;
+            mUniqueSession = uniqueSession;
+        }
+    }
+
     @HandshakeMessage.HandshakeState
     private int getHandshakeState() {
         checkInitialized();
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.apps.common.imaging;
+
+import android.annotation.Nullable;
+import android.graphics.Bitmap;
+import android.util.LongSparseArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+
+/**
+ * Keeps unused mutable bitmaps, grouped by size and config, so that new images can be written
+ * into them instead of into newly allocated pixel buffers. The least recently added bitmaps are
+ * dropped when the pool grows beyond its maximum size.
+ */
+class BitmapPool {
+
+    private final long mMaxSizeBytes;
+
+    /** Bitmaps by {@link #getGroup}. */
+    private final LongSparseArray<ArrayDeque<Bitmap>> mGroups = new LongSparseArray<>();
+    /** All the bitmaps of the pool, in the order they were added. */
+    private final ArrayDeque<Bitmap> mBitmaps = new ArrayDeque<>();
+    private long mSizeBytes;
+
+    private int mHits;
+    private int mMisses;
+
+    BitmapPool(long maxSizeBytes) {
+        mMaxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Returns a bitmap of the given size and config, or null if the pool has none. The content of
+     * the bitmap is undefined.
+     */
+    @Nullable
+    synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        ArrayDeque<Bitmap> group = mGroups.get(getGroup(width, height, config));
+        Bitmap bitmap = (group != null) ? group.pollLast() : null;
+        if (bitmap == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        mBitmaps.removeLastOccurrence(bitmap);
+        mSizeBytes -= bitmap.getAllocationByteCount();
+        return bitmap;
+    }
+
+    /** Adds a bitmap nothing uses anymore. Immutable and hardware bitmaps are ignored. */
+    synchronized void put(Bitmap bitmap) {
+        if (bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() == null
+                || bitmap.getConfig() == Bitmap.Config.HARDWARE
+                || bitmap.getAllocationByteCount() > mMaxSizeBytes) {
+            return;
+        }
+        long key = getGroup(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayDeque<Bitmap> group = mGroups.get(key);
+        if (group == null) {
+            group = new ArrayDeque<>(2);
+            mGroups.put(key, group);
+        }
+        group.addLast(bitmap);
+        mBitmaps.addLast(bitmap);
+        mSizeBytes += bitmap.getAllocationByteCount();
+
+        while (mSizeBytes > mMaxSizeBytes) {
+            Bitmap eldest = mBitmaps.pollFirst();
+            mGroups.get(getGroup(eldest.getWidth(), eldest.getHeight(), eldest.getConfig()))
+                    .removeFirstOccurrence(eldest);
+            mSizeBytes -= eldest.getAllocationByteCount();
+        }
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.println("BitmapPool: size=" + mSizeBytes + "/" + mMaxSizeBytes
+                + " bitmaps=" + mBitmaps.size() + " hits=" + mHits + " misses=" + mMisses);
+    }
+
+    private static long getGroup(int width, int height, Bitmap.Config config) {
+        return ((long) width << 36) | ((long) height << 8) | config.ordinal();
+    }
+}
@@ -78,6 +78,10 @@ public class ImageBinder<T extends ImageBinder.ImageRef> {
     private ImageKey mCurrentKey;
     private BiConsumer<ImageKey, Drawable> mFetchReceiver;
     private Drawable mLoadingDrawable;
+    /** The drawable from the image fetcher that is displayed, if any. */
+    private Drawable mFetchedDrawable;
+    private boolean mIsHardwareAllowed;
+    private boolean mIsBitmapPoolingAllowed;
 
 
     public ImageBinder(@NonNull PlaceholderType type, @NonNull Size maxImageSize,
@@ -87,6 +91,10 @@ public class ImageBinder<T extends ImageBinder.ImageRef> {
         mClient = checkNotNull(consumer, "Cannot bind a null consumer");
     }
 
+    /**
+     * Subclasses override {@link #setDrawable}. When they allow bitmap pooling, they must stop
+     * using the drawable they were given once {@link #prepareForNewBinding} is called.
+     */
     protected ImageBinder(@NonNull PlaceholderType type, @NonNull Size maxImageSize) {
         mPlaceholderType = checkNotNull(type, "Need a type");
         mMaxImageSize = checkNotNull(maxImageSize, "Need a size");
@@ -99,6 +107,26 @@ public class ImageBinder<T extends ImageBinder.ImageRef> {
         }
     }
 
+    /**
+     * Allows the images of future {@link #setImage} calls to be hardware bitmaps. They use less
+     * memory but can't be drawn into a {@link android.graphics.Canvas} that isn't hardware
+     * accelerated, so only enable this for consumers that display the drawables as they are.
+     */
+    public void setHardwareBitmapsAllowed(boolean allowed) {
+        mIsHardwareAllowed = allowed;
+    }
+
+    /**
+     * Allows the bitmaps of the images of future {@link #setImage} calls to be reused for other
+     * images once this binder moves on to a new image, which overwrites their pixels. Only enable
+     * this when nothing keeps the drawables given to {@link #setDrawable} once {@link
+     * #prepareForNewBinding} is called. {@link ImageViewBinder} enables it. Binders built with a
+     * consumer never give their bitmaps back, so this does nothing for them.
+     */
+    public void setBitmapPoolingAllowed(boolean allowed) {
+        mIsBitmapPoolingAllowed = allowed;
+    }
+
     /** Fetches a new image if needed. */
     public void setImage(Context context, @Nullable T newRef) {
         if (isSameImage(context, newRef)) {
@@ -124,6 +152,12 @@ public class ImageBinder<T extends ImageBinder.ImageRef> {
                             (drawable == null && mPlaceholderType != PlaceholderType.NONE)
                                     ? mCurrentRef.getPlaceholder(context, mPlaceholderType)
                                     : drawable;
+                    if (drawable != null && mClient == null) {
+                        mFetchedDrawable = drawable;
+                    }
+                    // Keeps the bitmap from being reused while it's displayed. Drawables given to
+                    // a client are never released, as the client might keep them.
+                    getImageFetcher(context).acquireImage(drawable);
                     setDrawable(displayed);
                     onRequestFinished();
                 }
@@ -133,8 +167,10 @@ public class ImageBinder<T extends ImageBinder.ImageRef> {
                 mCurrentKey = null;
                 mFetchReceiver.accept(null, null);
             } else {
-                mCurrentKey = new ImageKey(mCurrentRef.getImageURI(), mMaxImageSize);
-                getImageFetcher(context).getImage(context, mCurrentKey, mFetchReceiver);
+                mCurrentKey = new ImageKey(mCurrentRef.getImageURI(), mMaxImageSize,
+                        mIsHardwareAllowed);
+                getImageFetcher(context).getImage(context, mCurrentKey, mFetchReceiver,
+                        mIsBitmapPoolingAllowed);
             }
         }
     }
@@ -159,6 +195,10 @@ public class ImageBinder<T extends ImageBinder.ImageRef> {
             onRequestFinished();
         }
         setDrawable(mPlaceholderType != PlaceholderType.NONE ? getLoadingDrawable(context) : null);
+        if (mFetchedDrawable != null) {
+            getImageFetcher(context).releaseImage(mFetchedDrawable);
+            mFetchedDrawable = null;
+        }
     }
 
     private void onRequestFinished() {
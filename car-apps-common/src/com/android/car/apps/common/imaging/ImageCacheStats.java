@@ -0,0 +1,43 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.apps.common.imaging;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Counts how the requests of {@link LocalImageFetcher} were served. */
+class ImageCacheStats {
+
+    /** Served from the memory cache entry of the same key, or of a larger key of its bucket. */
+    final AtomicInteger mMemoryHits = new AtomicInteger();
+    /** Served by scaling down the memory cache entry of a larger key. */
+    final AtomicInteger mScaledHits = new AtomicInteger();
+    /** Served from the disk cache. */
+    final AtomicInteger mDiskHits = new AtomicInteger();
+    /** Not found in any cache, loaded from the content provider. */
+    final AtomicInteger mMisses = new AtomicInteger();
+    /** Memory cache entries replaced by the entry of a larger key. */
+    final AtomicInteger mUpgrades = new AtomicInteger();
+
+    void dump(PrintWriter writer) {
+        writer.println("ImageCacheStats: memoryHits=" + mMemoryHits
+                + " scaledHits=" + mScaledHits
+                + " diskHits=" + mDiskHits
+                + " misses=" + mMisses
+                + " upgrades=" + mUpgrades);
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.apps.common.imaging;
+
+import android.annotation.Nullable;
+import android.annotation.WorkerThread;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A size bounded cache of decoded and downscaled bitmaps on disk.<p/>
+ * Bitmaps are stored as their raw pixels, behind a header holding their {@link ImageKey} and the
+ * version of the content they were decoded from. Reading an entry is a single file read followed
+ * by a copy into a pooled or new bitmap, without any decoding.<p/>
+ * Content can change while no process observes it, so entries are only returned for the version
+ * of the content they were stored for.<p/>
+ * The least recently used entries are deleted when the cache grows beyond its maximum size. The
+ * modification time of the files keeps track of their use across process restarts.
+ */
+class ImageDiskCache {
+
+    private static final String TAG = "ImageDiskCache";
+    private static final boolean L_DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    private static final int MAGIC = 0x494d4732; // "IMG2"
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+    private final long mMaxSizeBytes;
+    private final BitmapPool mBitmapPool;
+
+    /** Entries by file name, in access order. Null until the directory was first read. */
+    private LinkedHashMap<String, Entry> mEntries;
+    private long mSizeBytes;
+
+    ImageDiskCache(File directory, long maxSizeBytes, BitmapPool bitmapPool) {
+        mDirectory = directory;
+        mMaxSizeBytes = maxSizeBytes;
+        mBitmapPool = bitmapPool;
+    }
+
+    /**
+     * Returns the cached bitmap for the key, or null. An entry stored for another version of the
+     * content is deleted.
+     */
+    @WorkerThread
+    @Nullable
+    Bitmap get(ImageKey key, String contentVersion) {
+        String fileName = getFileName(key);
+        File file = new File(mDirectory, fileName);
+        synchronized (this) {
+            ensureIndexLoaded();
+            if (mEntries.get(fileName) == null) {
+                return null;
+            }
+            file.setLastModified(System.currentTimeMillis());
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            String uri = readHeaderUri(buffer);
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            Bitmap.Config config = Bitmap.Config.valueOf(readString(buffer));
+            if (!key.mImageUri.toString().equals(uri)
+                    || key.mMaxImageSize.getWidth() != width
+                    || key.mMaxImageSize.getHeight() != height) {
+                // A different key with the same file name.
+                return null;
+            }
+            if (!contentVersion.equals(readString(buffer))) {
+                if (L_DEBUG) {
+                    Log.d(TAG, "Dropped outdated " + uri);
+                }
+                remove(fileName);
+                return null;
+            }
+            int bitmapWidth = buffer.getInt();
+            int bitmapHeight = buffer.getInt();
+            Bitmap bitmap = mBitmapPool.get(bitmapWidth, bitmapHeight, config);
+            if (bitmap == null) {
+                bitmap = Bitmap.createBitmap(bitmapWidth, bitmapHeight, config);
+            }
+            bitmap.copyPixelsFromBuffer(buffer);
+            return bitmap;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Failed to read " + file + ": " + e);
+            remove(fileName);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the bitmap for the key. Hardware bitmaps are not stored.
+     *
+     * @param contentVersion version of the content the bitmap was decoded from.
+     * @param isStale checked under the lock of {@link #invalidate}, the bitmap isn't stored if it
+     *                returns true. Lets a load skip storing a bitmap decoded from content that
+     *                changed, even when the invalidation of its uri already ran.
+     */
+    @WorkerThread
+    void put(ImageKey key, Bitmap bitmap, String contentVersion, BooleanSupplier isStale) {
+        if (bitmap.getConfig() == null || bitmap.getConfig() == Bitmap.Config.HARDWARE) {
+            return;
+        }
+        byte[] uri = key.mImageUri.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] config = bitmap.getConfig().name().getBytes(StandardCharsets.UTF_8);
+        byte[] version = contentVersion.getBytes(StandardCharsets.UTF_8);
+        int headerSize = 8 * Integer.BYTES + uri.length + config.length + version.length;
+        ByteBuffer buffer = ByteBuffer.allocate(headerSize + bitmap.getByteCount());
+        buffer.putInt(MAGIC);
+        buffer.putInt(uri.length).put(uri);
+        buffer.putInt(key.mMaxImageSize.getWidth()).putInt(key.mMaxImageSize.getHeight());
+        buffer.putInt(config.length).put(config);
+        buffer.putInt(version.length).put(version);
+        buffer.putInt(bitmap.getWidth()).putInt(bitmap.getHeight());
+        bitmap.copyPixelsToBuffer(buffer);
+
+        String fileName = getFileName(key);
+        File file = new File(mDirectory, fileName);
+        File tmpFile = new File(mDirectory, fileName + TMP_SUFFIX);
+        synchronized (this) {
+            if (isStale.getAsBoolean()) {
+                if (L_DEBUG) {
+                    Log.d(TAG, "Skipped stale " + key.mImageUri);
+                }
+                return;
+            }
+            ensureIndexLoaded();
+            try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+                out.write(buffer.array(), 0, buffer.position());
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to write " + tmpFile + ": " + e);
+                tmpFile.delete();
+                return;
+            }
+            if (!tmpFile.renameTo(file)) {
+                tmpFile.delete();
+                return;
+            }
+            Entry previous = mEntries.put(fileName, new Entry(key.mImageUri.toString(),
+                    file.length()));
+            if (previous != null) {
+                mSizeBytes -= previous.mSizeBytes;
+            }
+            mSizeBytes += file.length();
+            trimToSize();
+        }
+    }
+
+    /** Deletes the entries of the uri and of the uris it is a parent of. */
+    @WorkerThread
+    synchronized void invalidate(Uri uri) {
+        ensureIndexLoaded();
+        String prefix = uri.toString();
+        Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> entry = it.next();
+            String entryUri = entry.getValue().mUri;
+            if (entryUri.equals(prefix) || entryUri.startsWith(prefix + "/")) {
+                if (L_DEBUG) {
+                    Log.d(TAG, "Invalidated " + entryUri);
+                }
+                it.remove();
+                mSizeBytes -= entry.getValue().mSizeBytes;
+                new File(mDirectory, entry.getKey()).delete();
+            }
+        }
+    }
+
+    private synchronized void remove(String fileName) {
+        Entry entry = mEntries.remove(fileName);
+        if (entry != null) {
+            mSizeBytes -= entry.mSizeBytes;
+        }
+        new File(mDirectory, fileName).delete();
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (mSizeBytes > mMaxSizeBytes && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            it.remove();
+            mSizeBytes -= eldest.getValue().mSizeBytes;
+            new File(mDirectory, eldest.getKey()).delete();
+        }
+    }
+
+    /** Reads the headers of the files left by a previous process. */
+    private void ensureIndexLoaded() {
+        if (mEntries != null) {
+            return;
+        }
+        mEntries = new LinkedHashMap<>(64, 0.75f, /* accessOrder= */ true);
+        mSizeBytes = 0;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "Can't create " + mDirectory);
+            return;
+        }
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            String uri = file.getName().endsWith(TMP_SUFFIX) ? null : readUri(file);
+            if (uri == null) {
+                file.delete();
+                continue;
+            }
+            mEntries.put(file.getName(), new Entry(uri, file.length()));
+            mSizeBytes += file.length();
+        }
+        trimToSize();
+    }
+
+    @Nullable
+    private static String readUri(File file) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            byte[] uri = new byte[in.readInt()];
+            in.readFully(uri);
+            return new String(uri, StandardCharsets.UTF_8);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static String readHeaderUri(ByteBuffer buffer) throws IOException {
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Unknown format");
+            }
+            return readString(buffer);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated header", e);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Keys with the same file name are told apart by the key stored in the header. */
+    private static String getFileName(ImageKey key) {
+        return Integer.toHexString(key.mImageUri.hashCode()) + "_"
+                + key.mMaxImageSize.getWidth() + "x" + key.mMaxImageSize.getHeight();
+    }
+
+    private static class Entry {
+        final String mUri;
+        final long mSizeBytes;
+
+        Entry(String uri, long sizeBytes) {
+            mUri = uri;
+            mSizeBytes = sizeBytes;
+        }
+    }
+}
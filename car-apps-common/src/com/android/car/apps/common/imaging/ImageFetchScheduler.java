@@ -0,0 +1,284 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.apps.common.imaging;
+
+import static java.lang.annotation.RetentionPolicy.SOURCE;
+
+import android.annotation.IntDef;
+import android.annotation.NonNull;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.lang.annotation.Retention;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the image loading tasks of all packages on a single bounded pool of worker threads.<p/>
+ * Pending tasks are queued per priority and per package. Workers take the next task of the
+ * highest priority that has one, and packages take turns within a priority so that one package
+ * with many requests can't starve the others. Idle workers are stopped after a timeout.<p/>
+ * When more tasks are pending than the maximum queue depth, the oldest task of the busiest
+ * package at the lowest priority is rejected: newer requests are more likely to be on screen.
+ */
+class ImageFetchScheduler {
+
+    private static final String TAG = "ImageFetchScheduler";
+
+    /** For images that are not displayed yet. */
+    static final int PRIORITY_LOW = 0;
+    /** For images of views that are currently displayed. */
+    static final int PRIORITY_HIGH = 1;
+
+    @IntDef({PRIORITY_LOW, PRIORITY_HIGH})
+    @Retention(SOURCE)
+    @interface Priority {}
+
+    private static final int PRIORITY_COUNT = 2;
+
+    private final Object mLock = new Object();
+
+    private final ThreadPoolExecutor mWorkers;
+    private final int mMaxQueueDepth;
+
+    /** Indexed by priority. Packages take turns in the iteration order of each map. */
+    private final Lane[] mLanes = new Lane[PRIORITY_COUNT];
+    private final Map<String, PackageStats> mStats = new HashMap<>();
+    private int mQueueDepth;
+    private int mRejectedCount;
+
+    ImageFetchScheduler(int poolSize, int maxQueueDepth, long idleTimeoutMs) {
+        mMaxQueueDepth = maxQueueDepth;
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            mLanes[i] = new Lane();
+        }
+        mWorkers = new ThreadPoolExecutor(poolSize, poolSize, idleTimeoutMs,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), new WorkerFactory());
+        mWorkers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues a task for the given package.
+     *
+     * @param onRejected run on the calling thread instead of the task if the task gets rejected
+     *                   because the queue is full. It can be run by a later call to this method.
+     * @return a handle to change the priority of the task while it waits.
+     */
+    @NonNull
+    PendingTask execute(@NonNull String packageName, @Priority int priority,
+            @NonNull Runnable task, @NonNull Runnable onRejected) {
+        PendingTask pendingTask = new PendingTask(packageName, priority, task, onRejected);
+        PendingTask rejected;
+        synchronized (mLock) {
+            mLanes[priority].add(pendingTask);
+            mQueueDepth++;
+            rejected = (mQueueDepth > mMaxQueueDepth) ? removeTaskToReject() : null;
+        }
+        // Every queued task gets one turn of a worker. Turns of rejected tasks run nothing.
+        mWorkers.execute(this::runNextTask);
+        if (rejected != null) {
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Queue full, rejected a task of " + rejected.mPackageName);
+            }
+            rejected.mOnRejected.run();
+        }
+        return pendingTask;
+    }
+
+    /** Changes the priority of a task that is still waiting. Does nothing otherwise. */
+    void setPriority(@NonNull PendingTask task, @Priority int priority) {
+        synchronized (mLock) {
+            if (task.mPriority != priority && mLanes[task.mPriority].remove(task)) {
+                task.mPriority = priority;
+                mLanes[priority].add(task);
+            }
+        }
+    }
+
+    /** Removes a task that is still waiting, so it doesn't count against the queue depth. */
+    void remove(@NonNull PendingTask task) {
+        synchronized (mLock) {
+            if (mLanes[task.mPriority].remove(task)) {
+                mQueueDepth--;
+            }
+        }
+    }
+
+    /** Returns the number of worker threads currently alive. */
+    int getPoolSize() {
+        return mWorkers.getPoolSize();
+    }
+
+    /** Returns the number of tasks waiting for a worker. */
+    int getQueueDepth() {
+        synchronized (mLock) {
+            return mQueueDepth;
+        }
+    }
+
+    /** Returns the average time tasks of the package waited for a worker. */
+    long getAverageWaitTimeMs(@NonNull String packageName) {
+        synchronized (mLock) {
+            PackageStats stats = mStats.get(packageName);
+            return (stats == null || stats.mStartedCount == 0)
+                    ? 0 : stats.mTotalWaitTimeMs / stats.mStartedCount;
+        }
+    }
+
+    /** Prints the metrics of the scheduler. */
+    void dump(@NonNull PrintWriter writer) {
+        synchronized (mLock) {
+            writer.println("ImageFetchScheduler: poolSize=" + getPoolSize()
+                    + " queueDepth=" + mQueueDepth + " rejected=" + mRejectedCount);
+            for (Map.Entry<String, PackageStats> entry : mStats.entrySet()) {
+                PackageStats stats = entry.getValue();
+                writer.println("  " + entry.getKey() + ": started=" + stats.mStartedCount
+                        + " avgWaitMs=" + getAverageWaitTimeMs(entry.getKey())
+                        + " maxWaitMs=" + stats.mMaxWaitTimeMs);
+            }
+        }
+    }
+
+    private void runNextTask() {
+        PendingTask next = null;
+        synchronized (mLock) {
+            for (int priority = PRIORITY_COUNT - 1; priority >= 0 && next == null; priority--) {
+                next = mLanes[priority].poll();
+            }
+            if (next == null) {
+                return;
+            }
+            mQueueDepth--;
+            long waitTimeMs = SystemClock.elapsedRealtime() - next.mEnqueueTimeMs;
+            PackageStats stats = mStats.computeIfAbsent(next.mPackageName,
+                    packageName -> new PackageStats());
+            stats.mStartedCount++;
+            stats.mTotalWaitTimeMs += waitTimeMs;
+            stats.mMaxWaitTimeMs = Math.max(stats.mMaxWaitTimeMs, waitTimeMs);
+        }
+        next.mTask.run();
+    }
+
+    private PendingTask removeTaskToReject() {
+        for (Lane lane : mLanes) {
+            PendingTask rejected = lane.removeOldestOfBusiestPackage();
+            if (rejected != null) {
+                mQueueDepth--;
+                mRejectedCount++;
+                return rejected;
+            }
+        }
+        return null;
+    }
+
+    /** The tasks of one priority, queued per package. */
+    private static class Lane {
+        private final LinkedHashMap<String, ArrayDeque<PendingTask>> mQueues =
+                new LinkedHashMap<>();
+
+        void add(PendingTask task) {
+            mQueues.computeIfAbsent(task.mPackageName, packageName -> new ArrayDeque<>())
+                    .add(task);
+        }
+
+        boolean remove(PendingTask task) {
+            ArrayDeque<PendingTask> queue = mQueues.get(task.mPackageName);
+            if (queue == null || !queue.remove(task)) {
+                return false;
+            }
+            if (queue.isEmpty()) {
+                mQueues.remove(task.mPackageName);
+            }
+            return true;
+        }
+
+        /** Takes the oldest task of the package whose turn it is, and ends that turn. */
+        PendingTask poll() {
+            Iterator<Map.Entry<String, ArrayDeque<PendingTask>>> it =
+                    mQueues.entrySet().iterator();
+            if (!it.hasNext()) {
+                return null;
+            }
+            Map.Entry<String, ArrayDeque<PendingTask>> entry = it.next();
+            ArrayDeque<PendingTask> queue = entry.getValue();
+            PendingTask task = queue.poll();
+            it.remove();
+            if (!queue.isEmpty()) {
+                mQueues.put(entry.getKey(), queue);
+            }
+            return task;
+        }
+
+        PendingTask removeOldestOfBusiestPackage() {
+            ArrayDeque<PendingTask> busiest = null;
+            for (ArrayDeque<PendingTask> queue : mQueues.values()) {
+                if (busiest == null || queue.size() > busiest.size()) {
+                    busiest = queue;
+                }
+            }
+            if (busiest == null) {
+                return null;
+            }
+            PendingTask task = busiest.poll();
+            if (busiest.isEmpty()) {
+                mQueues.remove(task.mPackageName);
+            }
+            return task;
+        }
+    }
+
+    /** A task waiting for a worker. */
+    static class PendingTask {
+        final String mPackageName;
+        final Runnable mTask;
+        final Runnable mOnRejected;
+        final long mEnqueueTimeMs = SystemClock.elapsedRealtime();
+        @Priority int mPriority;
+
+        PendingTask(String packageName, @Priority int priority, Runnable task,
+                Runnable onRejected) {
+            mPackageName = packageName;
+            mPriority = priority;
+            mTask = task;
+            mOnRejected = onRejected;
+        }
+    }
+
+    private static class PackageStats {
+        int mStartedCount;
+        long mTotalWaitTimeMs;
+        long mMaxWaitTimeMs;
+    }
+
+    private static class WorkerFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, TAG + " #" + mCount.incrementAndGet());
+        }
+    }
+}
@@ -24,17 +24,63 @@ import com.android.internal.util.Preconditions;
 
 import java.util.Objects;
 
-/** Class to identify image load requests. */
+/**
+ * Class to identify image load requests. Images are loaded at the max size of their key, and a
+ * cached image can serve the requests for smaller sizes of the same bucket, see {@link
+ * #isSameBucket}.
+ */
 @SuppressWarnings("WeakerAccess")
 class ImageKey {
     public final Uri mImageUri;
     public final Size mMaxImageSize;
+    /** Whether the image may be a hardware bitmap, which can't be drawn into a software canvas. */
+    public final boolean mIsHardwareAllowed;
 
     /** imageUri must NOT be {@link com.android.car.apps.common.UriUtils#isEmpty}*/
     ImageKey(Uri imageUri, Size maxImageSize) {
+        this(imageUri, maxImageSize, false);
+    }
+
+    /** imageUri must NOT be {@link com.android.car.apps.common.UriUtils#isEmpty}*/
+    ImageKey(Uri imageUri, Size maxImageSize, boolean isHardwareAllowed) {
         Preconditions.checkArgument(!UriUtils.isEmpty(imageUri), "Empty uri!");
         mImageUri = imageUri;
         mMaxImageSize = maxImageSize;
+        mIsHardwareAllowed = isHardwareAllowed;
+    }
+
+    /** Returns whether the image of this key can be scaled down to the image of the other key. */
+    boolean isLargerOrEqual(ImageKey other) {
+        return mImageUri.equals(other.mImageUri)
+                && mIsHardwareAllowed == other.mIsHardwareAllowed
+                && mMaxImageSize.getWidth() >= other.mMaxImageSize.getWidth()
+                && mMaxImageSize.getHeight() >= other.mMaxImageSize.getHeight();
+    }
+
+    /**
+     * Returns whether the max sizes of both keys round up to the same bucket. A larger image of the
+     * same bucket is at most 1.5 times larger than requested in each dimension, so it can be
+     * displayed as is instead of loading a new one.
+     */
+    boolean isSameBucket(ImageKey other) {
+        return toBucket(mMaxImageSize.getWidth()) == toBucket(other.mMaxImageSize.getWidth())
+                && toBucket(mMaxImageSize.getHeight()) == toBucket(other.mMaxImageSize.getHeight());
+    }
+
+    /**
+     * Rounds the dimension up to the next power of two or one and a half times a power of two
+     * (..., 64, 96, 128, 192, 256, ...).
+     */
+    static int toBucket(int dimension) {
+        if (dimension <= 2) {
+            return dimension;
+        }
+        int powerOfTwo = Integer.highestOneBit(dimension);
+        if (dimension == powerOfTwo) {
+            return dimension;
+        }
+        int oneAndHalf = powerOfTwo + powerOfTwo / 2;
+        return (dimension <= oneAndHalf) ? oneAndHalf : powerOfTwo * 2;
     }
 
     /** Auto generated. */
@@ -44,13 +90,14 @@ class ImageKey {
         if (o == null || getClass() != o.getClass()) return false;
         ImageKey imageKey = (ImageKey) o;
         return mImageUri.equals(imageKey.mImageUri)
-                && mMaxImageSize.equals(imageKey.mMaxImageSize);
+                && mMaxImageSize.equals(imageKey.mMaxImageSize)
+                && mIsHardwareAllowed == imageKey.mIsHardwareAllowed;
     }
 
     /** Auto generated. */
     @Override
     public int hashCode() {
-        return Objects.hash(mImageUri, mMaxImageSize);
+        return Objects.hash(mImageUri, mMaxImageSize, mIsHardwareAllowed);
     }
 
     /** Auto generated. */
@@ -59,6 +106,7 @@ class ImageKey {
         return "ImageKey{"
                 + "mImageUri=" + mImageUri
                 + ", mMaxImageSize=" + mMaxImageSize
+                + ", mIsHardwareAllowed=" + mIsHardwareAllowed
                 + '}';
     }
 }
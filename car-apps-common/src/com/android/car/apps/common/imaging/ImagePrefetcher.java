@@ -0,0 +1,158 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.apps.common.imaging;
+
+import static com.android.internal.util.Preconditions.checkNotNull;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.Context;
+import android.net.Uri;
+import android.util.Size;
+
+import androidx.annotation.VisibleForTesting;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.android.car.apps.common.UriUtils;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * Loads the images of the items about to scroll into view, so that they are ready when their
+ * {@link ImageBinder} requests them.<p/>
+ * The images of the next items in the scroll direction are prefetched at a low priority. Their
+ * {@link ImageBinder} raises the priority when they become visible, and prefetches of items that
+ * are no longer ahead of the visible ones are canceled.<p/>
+ * The size (and hardware setting) must match the ones of the binders to share their requests.
+ *
+ * @param <T> see {@link ImageBinder.ImageRef}.
+ */
+public class ImagePrefetcher<T extends ImageBinder.ImageRef> {
+
+    private final Size mMaxImageSize;
+    private final int mPrefetchCount;
+    private final Function<Context, LocalImageFetcher> mFetcherProvider;
+    private boolean mIsHardwareAllowed;
+
+    private final Set<ImageKey> mPrefetchedKeys = new HashSet<>();
+    private int mLastFirstVisible = RecyclerView.NO_POSITION;
+    private boolean mScrollingForward = true;
+
+    /**
+     * @param maxImageSize the max image size of the {@link ImageBinder}s of the items.
+     * @param prefetchCount how many items ahead of the visible ones to prefetch.
+     */
+    public ImagePrefetcher(@NonNull Size maxImageSize, int prefetchCount) {
+        this(maxImageSize, prefetchCount, LocalImageFetcher::getInstance);
+    }
+
+    @VisibleForTesting
+    ImagePrefetcher(@NonNull Size maxImageSize, int prefetchCount,
+            @NonNull Function<Context, LocalImageFetcher> fetcherProvider) {
+        mMaxImageSize = checkNotNull(maxImageSize, "Need a size");
+        mPrefetchCount = prefetchCount;
+        mFetcherProvider = fetcherProvider;
+    }
+
+    /** See {@link ImageBinder#setHardwareBitmapsAllowed}. */
+    public void setHardwareBitmapsAllowed(boolean allowed) {
+        mIsHardwareAllowed = allowed;
+    }
+
+    /**
+     * Prefetches the items ahead of the visible ones in the scroll direction, and cancels the
+     * prefetches of the other items. The scroll direction is deduced from previous calls.
+     *
+     * @param refAt returns the {@link ImageBinder.ImageRef} of the item at a position.
+     */
+    public void onVisibleRangeChanged(Context context, int firstVisible, int lastVisible,
+            int itemCount, @NonNull IntFunction<T> refAt) {
+        if (firstVisible == RecyclerView.NO_POSITION || lastVisible == RecyclerView.NO_POSITION) {
+            return;
+        }
+        if (mLastFirstVisible != RecyclerView.NO_POSITION && firstVisible != mLastFirstVisible) {
+            mScrollingForward = firstVisible > mLastFirstVisible;
+        }
+        mLastFirstVisible = firstVisible;
+
+        int start = mScrollingForward
+                ? lastVisible + 1 : Math.max(firstVisible - mPrefetchCount, 0);
+        int end = mScrollingForward
+                ? Math.min(lastVisible + mPrefetchCount, itemCount - 1) : firstVisible - 1;
+
+        LocalImageFetcher fetcher = mFetcherProvider.apply(context);
+        Set<ImageKey> keys = new HashSet<>();
+        for (int position = start; position <= end; position++) {
+            ImageKey key = getKey(refAt.apply(position));
+            if (key != null) {
+                keys.add(key);
+            }
+        }
+        for (ImageKey key : mPrefetchedKeys) {
+            if (!keys.contains(key)) {
+                fetcher.cancelPrefetch(key);
+            }
+        }
+        for (ImageKey key : keys) {
+            if (!mPrefetchedKeys.contains(key)) {
+                fetcher.prefetch(context, key);
+            }
+        }
+        mPrefetchedKeys.clear();
+        mPrefetchedKeys.addAll(keys);
+    }
+
+    /** Cancels all the prefetches, for instance when the list is hidden. */
+    public void cancelAll(Context context) {
+        LocalImageFetcher fetcher = mFetcherProvider.apply(context);
+        for (ImageKey key : mPrefetchedKeys) {
+            fetcher.cancelPrefetch(key);
+        }
+        mPrefetchedKeys.clear();
+        mLastFirstVisible = RecyclerView.NO_POSITION;
+    }
+
+    /**
+     * Returns a listener calling {@link #onVisibleRangeChanged} when a {@link RecyclerView} using a
+     * {@link LinearLayoutManager} (or a subclass) scrolls.
+     */
+    public RecyclerView.OnScrollListener createScrollListener(@NonNull IntFunction<T> refAt) {
+        return new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                RecyclerView.LayoutManager layoutManager = recyclerView.getLayoutManager();
+                RecyclerView.Adapter adapter = recyclerView.getAdapter();
+                if (layoutManager instanceof LinearLayoutManager && adapter != null) {
+                    LinearLayoutManager manager = (LinearLayoutManager) layoutManager;
+                    onVisibleRangeChanged(recyclerView.getContext(),
+                            manager.findFirstVisibleItemPosition(),
+                            manager.findLastVisibleItemPosition(), adapter.getItemCount(), refAt);
+                }
+            }
+        };
+    }
+
+    @Nullable
+    private ImageKey getKey(@Nullable T ref) {
+        Uri uri = (ref != null) ? ref.getImageURI() : null;
+        return UriUtils.isEmpty(uri) ? null : new ImageKey(uri, mMaxImageSize, mIsHardwareAllowed);
+    }
+}
@@ -35,6 +35,11 @@ import com.android.car.apps.common.R;
  * stopped loading images if the user keeps browsing. To prevent that, override:
  * {@link RecyclerView.Adapter#onViewDetachedFromWindow} and call {@link #maybeCancelLoading}
  * {@link RecyclerView.Adapter#onViewAttachedToWindow} and call {@link #maybeRestartLoading}.
+ * To load the images of the items about to scroll into view ahead of time, use an
+ * {@link ImagePrefetcher}.<p/>
+ * The image view lets go of its drawable before each new binding, so the bitmaps of its images
+ * are pooled for reuse (see {@link #setBitmapPoolingAllowed}). Subclasses that hand the drawables
+ * to anything else should turn pooling off.
  *
  * @param <T> see {@link ImageRef}.
  */
@@ -61,6 +66,7 @@ public class ImageViewBinder<T extends ImageBinder.ImageRef> extends ImageBinder
         super(type, maxImageSize);
         mImageView = imageView;
         mFlagBitmaps = flagBitmaps;
+        setBitmapPoolingAllowed(true);
     }
 
     @Override
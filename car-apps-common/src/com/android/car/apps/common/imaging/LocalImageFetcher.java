@@ -16,17 +16,29 @@
 
 package com.android.car.apps.common.imaging;
 
+import android.annotation.Nullable;
 import android.annotation.UiThread;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
+import android.database.ContentObserver;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.ImageDecoder;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
 import android.util.Log;
 import android.util.LruCache;
 
@@ -40,17 +52,22 @@ import libcore.io.IoUtils;
 
 import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.CancellationException;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiConsumer;
 
 
@@ -67,6 +84,11 @@ public class LocalImageFetcher {
     private static final int KB = 1024;
     private static final int MB = KB * KB;
 
+    private static final String DISK_CACHE_DIRECTORY = "local_image_fetcher";
+
+    /** Stands for the requests of {@link #prefetch} among the consumers of a key. */
+    private static final BiConsumer<ImageKey, Drawable> PREFETCH_CONSUMER = (key, drawable) -> {};
+
     /** Should not be reset to null once created. */
     private static LocalImageFetcher sInstance;
 
@@ -78,24 +100,60 @@ public class LocalImageFetcher {
         return sInstance;
     }
 
-    private final int mPoolSize;
-
-    private final LruCache<String, Executor> mThreadPools;
+    private final ImageFetchScheduler mScheduler;
 
     private final Map<ImageKey, HashSet<BiConsumer<ImageKey, Drawable>>> mConsumers =
             new HashMap<>(20);
     private final Map<ImageKey, ImageLoadingTask> mTasks = new HashMap<>(20);
 
     private final LruCache<ImageKey, Drawable> mMemoryCache;
+    /** The keys of the memory cache, by uri. */
+    private final Map<Uri, Set<ImageKey>> mCachedKeys = new HashMap<>();
+    private final ImageDiskCache mDiskCache;
+    private final ImageCacheStats mStats = new ImageCacheStats();
+    private final BitmapPool mBitmapPool;
+
+    /**
+     * Counts the memory cache entries, bound views and running tasks using each bitmap. Bitmaps
+     * are added to the pool when they are not used anymore. Weak, as consumers that never release
+     * their images keep their bitmaps out of the pool for good.
+     */
+    private final WeakHashMap<Bitmap, Integer> mBitmapUses = new WeakHashMap<>();
+    /**
+     * Bitmaps given to consumers that didn't allow pooling. They might be used after their release,
+     * so they are never added to the pool.
+     */
+    private final Set<Bitmap> mUnpoolableBitmaps = Collections.newSetFromMap(new WeakHashMap<>());
+    /** The waiting consumers that allowed the bitmap of their image to be pooled. */
+    private final Set<BiConsumer<ImageKey, Drawable>> mPoolingConsumers = new HashSet<>();
+
+    /**
+     * Incremented for an authority each time its content changes, so that the loads that started
+     * before the change don't cache what they read. Written on the UI thread only.
+     */
+    private final Map<String, Integer> mContentGenerations = new ConcurrentHashMap<>();
+
+    /** Authorities of the content uris whose changes invalidate the caches. */
+    private final Set<String> mObservedAuthorities = new HashSet<>();
+    private final ContentObserver mContentObserver =
+            new ContentObserver(new Handler(Looper.getMainLooper())) {
+                @Override
+                public void onChange(boolean selfChange, Uri uri) {
+                    if (uri != null) {
+                        onContentChanged(uri);
+                    }
+                }
+            };
 
     private final boolean mFlagRemoteImages;
 
     @UiThread
     private LocalImageFetcher(Context context) {
         Resources res = context.getResources();
-        int maxPools = res.getInteger(R.integer.image_fetcher_thread_pools_max_count);
-        mPoolSize = res.getInteger(R.integer.image_fetcher_thread_pool_size);
-        mThreadPools = new LruCache<>(maxPools);
+        mScheduler = new ImageFetchScheduler(
+                res.getInteger(R.integer.image_fetcher_thread_pool_size),
+                res.getInteger(R.integer.image_fetcher_max_queue_depth),
+                res.getInteger(R.integer.image_fetcher_idle_thread_timeout_ms));
 
         int cacheSizeMB = res.getInteger(R.integer.bitmap_memory_cache_max_size_mb);
         int drawableDefaultWeightKB = res.getInteger(R.integer.drawable_default_weight_kb);
@@ -110,26 +168,62 @@ public class LocalImageFetcher {
                     return drawableDefaultWeightKB * KB;
                 }
             }
+
+            @Override
+            protected void entryRemoved(boolean evicted, ImageKey key, Drawable oldValue,
+                    Drawable newValue) {
+                if (newValue == null) {
+                    Set<ImageKey> keys = mCachedKeys.get(key.mImageUri);
+                    if (keys != null && keys.remove(key) && keys.isEmpty()) {
+                        mCachedKeys.remove(key.mImageUri);
+                    }
+                }
+                if (oldValue != newValue) {
+                    releaseImage(oldValue);
+                }
+            }
         };
 
+        int poolSizeMB = res.getInteger(R.integer.bitmap_pool_max_size_mb);
+        mBitmapPool = new BitmapPool((long) poolSizeMB * MB);
+
+        int diskCacheSizeMB = res.getInteger(R.integer.image_disk_cache_max_size_mb);
+        mDiskCache = new ImageDiskCache(new File(context.getCacheDir(), DISK_CACHE_DIRECTORY),
+                (long) diskCacheSizeMB * MB, mBitmapPool);
+
         mFlagRemoteImages = CommonFlags.getInstance(context).shouldFlagImproperImageRefs();
     }
 
-    private Executor getThreadPool(String packageName) {
-        Executor result = mThreadPools.get(packageName);
-        if (result == null) {
-            result = Executors.newFixedThreadPool(mPoolSize);
-            mThreadPools.put(packageName, result);
-        }
-        return result;
+    /** Prints the metrics of the fetcher, for instance from {@link android.app.Activity#dump}. */
+    public void dump(PrintWriter writer) {
+        writer.println("LocalImageFetcher: pendingTasks=" + mTasks.size()
+                + " memoryCache=" + mMemoryCache);
+        mStats.dump(writer);
+        mBitmapPool.dump(writer);
+        mScheduler.dump(writer);
     }
 
     /** Fetches an image. The resulting drawable may be null. */
     @UiThread
     public void getImage(Context context, ImageKey key, BiConsumer<ImageKey, Drawable> consumer) {
-        Drawable cached = mMemoryCache.get(key);
+        getImage(context, key, consumer, /* isPoolingAllowed= */ false);
+    }
+
+    /**
+     * Fetches an image. The resulting drawable may be null.
+     *
+     * @param isPoolingAllowed whether the bitmap of the drawable can be reused for other images
+     *                         once {@link #releaseImage} was called for each {@link
+     *                         #acquireImage}. Its pixels are then overwritten, so the consumer
+     *                         must not use the drawable after releasing it.
+     */
+    @UiThread
+    void getImage(Context context, ImageKey key, BiConsumer<ImageKey, Drawable> consumer,
+            boolean isPoolingAllowed) {
+        Drawable cached = getCachedImage(key);
         if (cached != null) {
-            consumer.accept(key, cached);
+            mStats.mMemoryHits.incrementAndGet();
+            deliver(key, cached, consumer, isPoolingAllowed);
             return;
         }
 
@@ -144,25 +238,75 @@ public class LocalImageFetcher {
             mConsumers.put(key, consumers);
         }
         consumers.add(consumer);
+        if (isPoolingAllowed) {
+            mPoolingConsumers.add(consumer);
+        }
 
         if (task == null) {
-            String packageName = UriUtils.getPackageName(context, key.mImageUri);
-            if (packageName != null) {
-                task = new ImageLoadingTask(context, key, mFlagRemoteImages);
-                mTasks.put(key, task);
-                task.executeOnExecutor(getThreadPool(packageName));
-                if (L_DEBUG) {
-                    Log.d(TAG, "Added task " + key.mImageUri);
-                }
-            } else {
-                Log.e(TAG, "No package for " + key.mImageUri);
-            }
+            startTask(context, key, ImageFetchScheduler.PRIORITY_HIGH);
+        } else if (task.mPendingTask != null) {
+            // The image was prefetched, and is now needed on screen.
+            mScheduler.setPriority(task.mPendingTask, ImageFetchScheduler.PRIORITY_HIGH);
+        }
+    }
+
+    /**
+     * Starts loading an image that is likely to be requested soon, at a lower priority than the
+     * requests of {@link #getImage}. A later {@link #getImage} for the same key raises the
+     * priority of the load.
+     */
+    @UiThread
+    void prefetch(Context context, ImageKey key) {
+        if (getCachedImage(key) != null) {
+            return;
+        }
+        HashSet<BiConsumer<ImageKey, Drawable>> consumers =
+                mConsumers.computeIfAbsent(key, k -> new HashSet<>(3));
+        if (consumers.add(PREFETCH_CONSUMER) && !mTasks.containsKey(key)) {
+            startTask(context, key, ImageFetchScheduler.PRIORITY_LOW);
+        }
+    }
+
+    /**
+     * Cancels a request made via {@link #prefetch}. The load goes on if the image was requested
+     * via {@link #getImage} in the meantime.
+     */
+    @UiThread
+    void cancelPrefetch(ImageKey key) {
+        HashSet<BiConsumer<ImageKey, Drawable>> consumers = mConsumers.get(key);
+        if (consumers != null && consumers.contains(PREFETCH_CONSUMER)) {
+            cancelRequest(key, PREFETCH_CONSUMER);
+        }
+    }
+
+    @UiThread
+    private void startTask(Context context, ImageKey key,
+            @ImageFetchScheduler.Priority int priority) {
+        String packageName = UriUtils.getPackageName(context, key.mImageUri);
+        if (packageName == null) {
+            Log.e(TAG, "No package for " + key.mImageUri);
+            return;
+        }
+        observeContentChanges(context, key.mImageUri);
+        Bitmap larger = getLargerCachedBitmap(key);
+        if (larger != null) {
+            // Keeps the bitmap out of the pool while it is scaled down.
+            acquireBitmap(larger);
+        }
+        ImageLoadingTask task = new ImageLoadingTask(context, key, larger, mDiskCache,
+                mBitmapPool, mStats, mContentGenerations, mFlagRemoteImages);
+        mTasks.put(key, task);
+        task.executeOnExecutor(runnable -> task.mPendingTask = mScheduler.execute(packageName,
+                priority, runnable, () -> onTaskRejected(task)));
+        if (L_DEBUG) {
+            Log.d(TAG, "Added task " + key.mImageUri + " priority: " + priority);
         }
     }
 
     /** Cancels a request made via {@link #getImage}. */
     @UiThread
     public void cancelRequest(ImageKey key, BiConsumer<ImageKey, Drawable> consumer) {
+        mPoolingConsumers.remove(consumer);
         HashSet<BiConsumer<ImageKey, Drawable>> consumers = mConsumers.get(key);
         if (consumers != null) {
             boolean removed = consumers.remove(consumer);
@@ -172,6 +316,9 @@ public class LocalImageFetcher {
                 ImageLoadingTask task = mTasks.remove(key);
                 if (task != null) {
                     task.cancel(true);
+                    if (task.mPendingTask != null) {
+                        mScheduler.remove(task.mPendingTask);
+                    }
                     if (L_DEBUG) {
                         Log.d(TAG, "Canceled task " + key.mImageUri);
                     }
@@ -189,22 +336,192 @@ public class LocalImageFetcher {
     }
 
 
+    /**
+     * Signals that the consumer of a drawable from {@link #getImage} now uses it, to keep its
+     * bitmap from being reused. Consumers that don't call {@link #releaseImage} once they stop
+     * using the drawable keep it from being reused forever.
+     */
+    @UiThread
+    void acquireImage(@Nullable Drawable drawable) {
+        if (drawable instanceof BitmapDrawable) {
+            acquireBitmap(((BitmapDrawable) drawable).getBitmap());
+        }
+    }
+
+    /** Signals that the consumer of a drawable acquired with {@link #acquireImage} is done. */
+    @UiThread
+    void releaseImage(@Nullable Drawable drawable) {
+        if (drawable instanceof BitmapDrawable) {
+            releaseBitmap(((BitmapDrawable) drawable).getBitmap());
+        }
+    }
+
+    @UiThread
+    private void acquireBitmap(Bitmap bitmap) {
+        Integer uses = mBitmapUses.get(bitmap);
+        mBitmapUses.put(bitmap, (uses == null) ? 1 : uses + 1);
+    }
+
+    @UiThread
+    private void releaseBitmap(Bitmap bitmap) {
+        Integer uses = mBitmapUses.get(bitmap);
+        if (uses == null) {
+            return;
+        }
+        if (uses > 1) {
+            mBitmapUses.put(bitmap, uses - 1);
+        } else {
+            mBitmapUses.remove(bitmap);
+            if (!mUnpoolableBitmaps.contains(bitmap)) {
+                mBitmapPool.put(bitmap);
+            }
+        }
+    }
+
+    /** Gives the drawable to the consumer, and keeps its bitmap out of the pool if needed. */
+    @UiThread
+    private void deliver(ImageKey key, @Nullable Drawable drawable,
+            BiConsumer<ImageKey, Drawable> consumer, boolean isPoolingAllowed) {
+        if (!isPoolingAllowed && drawable instanceof BitmapDrawable) {
+            mUnpoolableBitmaps.add(((BitmapDrawable) drawable).getBitmap());
+        }
+        consumer.accept(key, drawable);
+    }
+
+    /**
+     * Returns the cached image of the key, or a larger cached image of the same bucket, or null.
+     */
+    @UiThread
+    @Nullable
+    private Drawable getCachedImage(ImageKey key) {
+        Drawable cached = mMemoryCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        Set<ImageKey> keys = mCachedKeys.get(key.mImageUri);
+        if (keys == null) {
+            return null;
+        }
+        for (ImageKey cachedKey : keys) {
+            if (cachedKey.isLargerOrEqual(key) && cachedKey.isSameBucket(key)) {
+                cached = mMemoryCache.get(cachedKey);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Returns a cached bitmap of the same uri that can be scaled down for the key, or null. */
+    @UiThread
+    private Bitmap getLargerCachedBitmap(ImageKey key) {
+        Set<ImageKey> keys = mCachedKeys.get(key.mImageUri);
+        if (keys == null) {
+            return null;
+        }
+        for (ImageKey cachedKey : keys) {
+            if (cachedKey.isLargerOrEqual(key)) {
+                Drawable drawable = mMemoryCache.get(cachedKey);
+                if (drawable instanceof BitmapDrawable) {
+                    Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+                    if (bitmap.getConfig() != Bitmap.Config.HARDWARE) {
+                        return bitmap;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Caches the drawable, replacing the entries of the uri that it can be scaled down to. */
+    @UiThread
+    private void putInMemoryCache(ImageKey key, Drawable drawable) {
+        Set<ImageKey> keys = mCachedKeys.computeIfAbsent(key.mImageUri, uri -> new HashSet<>(2));
+        if (drawable instanceof BitmapDrawable) {
+            for (ImageKey cachedKey : new ArrayList<>(keys)) {
+                if (!cachedKey.equals(key) && key.isLargerOrEqual(cachedKey)) {
+                    mStats.mUpgrades.incrementAndGet();
+                    mMemoryCache.remove(cachedKey);
+                }
+            }
+        }
+        keys.add(key);
+        acquireImage(drawable);
+        mMemoryCache.put(key, drawable);
+    }
+
+    @UiThread
+    private void observeContentChanges(Context context, Uri uri) {
+        if (!ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())
+                || !mObservedAuthorities.add(uri.getAuthority())) {
+            return;
+        }
+        Uri authorityUri = new Uri.Builder()
+                .scheme(ContentResolver.SCHEME_CONTENT)
+                .authority(uri.getAuthority())
+                .build();
+        try {
+            context.getApplicationContext().getContentResolver().registerContentObserver(
+                    authorityUri, /* notifyForDescendants= */ true, mContentObserver);
+        } catch (SecurityException e) {
+            Log.w(TAG, "Can't observe " + authorityUri + ": " + e);
+        }
+    }
+
+    /** Returns the number of changes seen so far for the authority of the uri. */
+    private static int getContentGeneration(Map<String, Integer> contentGenerations, Uri uri) {
+        String authority = uri.getAuthority();
+        return (authority == null) ? 0 : contentGenerations.getOrDefault(authority, 0);
+    }
+
+    /** Drops the cached images of the uri and of the uris it is a parent of. */
+    @UiThread
+    private void onContentChanged(Uri uri) {
+        // Before the invalidation is scheduled, so that running loads can't store their image
+        // in the disk cache after it.
+        String authority = uri.getAuthority();
+        if (authority != null) {
+            mContentGenerations.merge(authority, 1, Integer::sum);
+        }
+        String prefix = uri.toString();
+        for (ImageKey key : mMemoryCache.snapshot().keySet()) {
+            String keyUri = key.mImageUri.toString();
+            if (keyUri.equals(prefix) || keyUri.startsWith(prefix + "/")) {
+                mMemoryCache.remove(key);
+            }
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> mDiskCache.invalidate(uri));
+    }
+
+    /** Rejected tasks are treated like failed ones, so their consumers stop waiting. */
+    @UiThread
+    private void onTaskRejected(ImageLoadingTask task) {
+        task.cancel(false);
+        fulfilRequests(task, null);
+    }
+
     @UiThread
     private void fulfilRequests(ImageLoadingTask task, Drawable drawable) {
         ImageKey key = task.mImageKey;
         ImageLoadingTask pendingTask = mTasks.get(key);
         if (pendingTask == task) {
-            if (drawable != null) {
-                mMemoryCache.put(key, drawable);
+            // The cache could evict the drawable right away, keep it until consumers have it.
+            acquireImage(drawable);
+            if (drawable != null && !task.isContentChanged()) {
+                putInMemoryCache(key, drawable);
             }
 
             HashSet<BiConsumer<ImageKey, Drawable>> consumers = mConsumers.remove(key);
             mTasks.remove(key);
             if (consumers != null) {
                 for (BiConsumer<ImageKey, Drawable> consumer : consumers) {
-                    consumer.accept(key, drawable);
+                    boolean isPoolingAllowed = mPoolingConsumers.remove(consumer)
+                            || consumer == PREFETCH_CONSUMER;
+                    deliver(key, drawable, consumer, isPoolingAllowed);
                 }
             }
+            releaseImage(drawable);
         } else if (L_WARN) {
             // This case would possible if a running task was canceled, a new one was restarted
             // right away for the same key, and the canceled task still managed to call
@@ -218,16 +535,44 @@ public class LocalImageFetcher {
 
         private final WeakReference<Context> mWeakContext;
         private final ImageKey mImageKey;
+        private final Bitmap mLargerBitmap;
+        private final ImageDiskCache mDiskCache;
+        private final BitmapPool mBitmapPool;
+        private final ImageCacheStats mStats;
+        private final Map<String, Integer> mContentGenerations;
+        /** The generation of the content of the uri when the task was created. */
+        private final int mContentGeneration;
         private final boolean mFlagRemoteImages;
+        /** Set on the UI thread when the task is queued. */
+        private ImageFetchScheduler.PendingTask mPendingTask;
 
 
+        /**
+         * @param largerBitmap when not null, the image is scaled down from it instead of loaded.
+         */
         @UiThread
-        ImageLoadingTask(Context context, ImageKey request, boolean flagRemoteImages) {
+        ImageLoadingTask(Context context, ImageKey request, Bitmap largerBitmap,
+                ImageDiskCache diskCache, BitmapPool bitmapPool, ImageCacheStats stats,
+                Map<String, Integer> contentGenerations, boolean flagRemoteImages) {
             mWeakContext = new WeakReference<>(context.getApplicationContext());
             mImageKey = request;
+            mLargerBitmap = largerBitmap;
+            mDiskCache = diskCache;
+            mBitmapPool = bitmapPool;
+            mAllocatorMode = request.mIsHardwareAllowed
+                    ? ImageDecoder.ALLOCATOR_DEFAULT : ImageDecoder.ALLOCATOR_SOFTWARE;
+            mStats = stats;
+            mContentGenerations = contentGenerations;
+            mContentGeneration = getContentGeneration(contentGenerations, request.mImageUri);
             mFlagRemoteImages = flagRemoteImages;
         }
 
+        /** Returns whether the content of the uri changed since the task was created. */
+        private boolean isContentChanged() {
+            return getContentGeneration(mContentGenerations, mImageKey.mImageUri)
+                    != mContentGeneration;
+        }
+
         /** Runs in the background. */
         private final ImageDecoder.OnHeaderDecodedListener mOnHeaderDecodedListener =
                 new ImageDecoder.OnHeaderDecodedListener() {
@@ -236,6 +581,8 @@ public class LocalImageFetcher {
                     ImageDecoder.Source source) {
                 if (isCancelled()) throw new CancellationException();
                 decoder.setAllocator(mAllocatorMode);
+                // Software bitmaps are made mutable so they can be reused once evicted.
+                decoder.setMutableRequired(mAllocatorMode == ImageDecoder.ALLOCATOR_SOFTWARE);
                 int maxW = mImageKey.mMaxImageSize.getWidth();
                 int maxH = mImageKey.mMaxImageSize.getHeight();
                 int imgW = info.getSize().getWidth();
@@ -247,8 +594,9 @@ public class LocalImageFetcher {
             }
         };
 
-        // ALLOCATOR_HARDWARE causes crashes on some emulators (in media center's queue).
-        private @ImageDecoder.Allocator int mAllocatorMode = ImageDecoder.ALLOCATOR_SOFTWARE;
+        // ALLOCATOR_HARDWARE causes crashes on some emulators (in media center's queue), so
+        // hardware bitmaps are only used when requested.
+        private @ImageDecoder.Allocator int mAllocatorMode;
 
         @Override
         protected Drawable doInBackground(Void... voids) {
@@ -259,6 +607,11 @@ public class LocalImageFetcher {
                 Context context = mWeakContext.get();
                 if (context == null) return null;
 
+                if (mLargerBitmap != null) {
+                    mStats.mScaledHits.incrementAndGet();
+                    return new BitmapDrawable(context.getResources(), scaleDown(mLargerBitmap));
+                }
+
                 if (UriUtils.isAndroidResourceUri(imageUri)) {
                     // ImageDecoder doesn't support all resources via the content provider...
                     return UriUtils.getDrawable(context,
@@ -267,15 +620,43 @@ public class LocalImageFetcher {
                     ContentResolver resolver = context.getContentResolver();
 
                     // TODO(b/140959390): Remove the check once the bug is fixed in framework.
-                    if (!hasFile(resolver, imageUri)) {
+                    String contentVersion = getContentVersion(resolver, imageUri);
+                    if (contentVersion == null) {
                         if (L_WARN) {
                             Log.w(TAG, "File not found in uri: " + imageUri);
                         }
                         return null;
                     }
 
+                    // Files can change without notification, only content uris are cached. The
+                    // content can also change while this process isn't observing it, so entries
+                    // are tied to the version of the content they were decoded from.
+                    boolean useDiskCache =
+                            ContentResolver.SCHEME_CONTENT.equals(imageUri.getScheme())
+                                    && !contentVersion.isEmpty();
+                    if (useDiskCache) {
+                        Bitmap cached = mDiskCache.get(mImageKey, contentVersion);
+                        if (cached != null) {
+                            mStats.mDiskHits.incrementAndGet();
+                            if (mImageKey.mIsHardwareAllowed) {
+                                Bitmap hardware = cached.copy(Bitmap.Config.HARDWARE, false);
+                                if (hardware != null) {
+                                    mBitmapPool.put(cached);
+                                    cached = hardware;
+                                }
+                            }
+                            return new BitmapDrawable(context.getResources(), cached);
+                        }
+                    }
+                    mStats.mMisses.incrementAndGet();
+
                     ImageDecoder.Source src = ImageDecoder.createSource(resolver, imageUri);
-                    return ImageDecoder.decodeDrawable(src, mOnHeaderDecodedListener);
+                    Drawable drawable = ImageDecoder.decodeDrawable(src, mOnHeaderDecodedListener);
+                    if (useDiskCache && drawable instanceof BitmapDrawable) {
+                        mDiskCache.put(mImageKey, ((BitmapDrawable) drawable).getBitmap(),
+                                contentVersion, this::isContentChanged);
+                    }
+                    return drawable;
 
                 } else if (mFlagRemoteImages) {
                     mAllocatorMode = ImageDecoder.ALLOCATOR_SOFTWARE; // Needed for canvas drawing.
@@ -300,7 +681,37 @@ public class LocalImageFetcher {
             return null;
         }
 
-        private boolean hasFile(ContentResolver resolver, Uri uri) {
+        /** Scales the bitmap down to fit in the max size of the key. */
+        private Bitmap scaleDown(Bitmap bitmap) {
+            int maxW = mImageKey.mMaxImageSize.getWidth();
+            int maxH = mImageKey.mMaxImageSize.getHeight();
+            int imgW = bitmap.getWidth();
+            int imgH = bitmap.getHeight();
+            if (imgW <= maxW && imgH <= maxH) {
+                return bitmap;
+            }
+            float scale = Math.min(maxW / (float) imgW, maxH / (float) imgH);
+            int width = Math.round(scale * imgW);
+            int height = Math.round(scale * imgH);
+            Bitmap scaled = mBitmapPool.get(width, height, bitmap.getConfig());
+            if (scaled == null) {
+                scaled = Bitmap.createBitmap(width, height, bitmap.getConfig());
+            } else {
+                scaled.eraseColor(Color.TRANSPARENT);
+            }
+            new Canvas(scaled).drawBitmap(bitmap, null, new Rect(0, 0, width, height),
+                    new Paint(Paint.FILTER_BITMAP_FLAG));
+            return scaled;
+        }
+
+        /**
+         * Returns a version of the content of the uri that changes whenever the content does:
+         * the range of the file it is served from, and that file's identity, size and
+         * modification time. Returns an empty string if the content exists but isn't served from
+         * a regular file, so no version is known, and null if there is no content.
+         */
+        @Nullable
+        private String getContentVersion(ContentResolver resolver, Uri uri) {
             AssetFileDescriptor assetFd = null;
             try {
                 if (uri.getScheme() == ContentResolver.SCHEME_CONTENT) {
@@ -315,17 +726,28 @@ public class LocalImageFetcher {
                     InputStream is = resolver.openInputStream(uri);
                     if (is != null) {
                         IoUtils.closeQuietly(is);
-                        return true;
+                        return "";
                     }
                 } catch (IOException exception) {
-                    return false;
+                    return null;
                 }
             }
-            if (assetFd != null) {
+            if (assetFd == null) {
+                return null;
+            }
+            try {
+                StructStat stat = Os.fstat(assetFd.getFileDescriptor());
+                if (!OsConstants.S_ISREG(stat.st_mode)) {
+                    return "";
+                }
+                return assetFd.getStartOffset() + "+" + assetFd.getLength() + "@" + stat.st_dev
+                        + ":" + stat.st_ino + ":" + stat.st_size + ":" + stat.st_mtim.tv_sec
+                        + "." + stat.st_mtim.tv_nsec;
+            } catch (ErrnoException e) {
+                return "";
+            } finally {
                 IoUtils.closeQuietly(assetFd);
-                return true;
             }
-            return false;
         }
 
         @UiThread
@@ -342,6 +764,20 @@ public class LocalImageFetcher {
                     Log.e(TAG, "ImageLoadingTask#onPostExecute: LocalImageFetcher was reset !");
                 }
             }
+            releaseLargerBitmap();
+        }
+
+        @UiThread
+        @Override
+        protected void onCancelled(Drawable drawable) {
+            releaseLargerBitmap();
+        }
+
+        @UiThread
+        private void releaseLargerBitmap() {
+            if (mLargerBitmap != null && sInstance != null) {
+                sInstance.releaseBitmap(mLargerBitmap);
+            }
         }
     }
 }
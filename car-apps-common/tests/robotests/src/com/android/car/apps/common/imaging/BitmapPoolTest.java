@@ -0,0 +1,107 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.apps.common.imaging;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import com.android.car.apps.common.TestConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** {@link Bitmap.Config#HARDWARE} needs P. */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = TestConfig.MANIFEST_PATH, sdk = Build.VERSION_CODES.P)
+public class BitmapPoolTest {
+    private static final int SIZE = 10;
+    /** Fits two 10x10 ARGB_8888 bitmaps. */
+    private static final long MAX_SIZE_BYTES = 2 * SIZE * SIZE * 4;
+
+    private final BitmapPool mPool = new BitmapPool(MAX_SIZE_BYTES);
+
+    @Test
+    public void get_sameSizeAndConfig_returnsPooledBitmap() {
+        Bitmap bitmap = newBitmap(SIZE, SIZE);
+        mPool.put(bitmap);
+
+        assertThat(mPool.get(SIZE, SIZE, Bitmap.Config.ARGB_8888)).isSameAs(bitmap);
+        assertThat(mPool.get(SIZE, SIZE, Bitmap.Config.ARGB_8888)).isNull();
+    }
+
+    @Test
+    public void get_otherSizeOrConfig_returnsNull() {
+        mPool.put(newBitmap(SIZE, SIZE));
+
+        assertThat(mPool.get(SIZE, SIZE + 1, Bitmap.Config.ARGB_8888)).isNull();
+        assertThat(mPool.get(SIZE + 1, SIZE, Bitmap.Config.ARGB_8888)).isNull();
+        assertThat(mPool.get(SIZE, SIZE, Bitmap.Config.RGB_565)).isNull();
+    }
+
+    @Test
+    public void put_overMaxSize_evictsOldest() {
+        Bitmap first = newBitmap(SIZE, SIZE);
+        Bitmap second = newBitmap(SIZE, SIZE);
+        Bitmap third = newBitmap(SIZE, SIZE);
+        mPool.put(first);
+        mPool.put(second);
+
+        mPool.put(third);
+
+        assertThat(mPool.get(SIZE, SIZE, Bitmap.Config.ARGB_8888)).isSameAs(third);
+        assertThat(mPool.get(SIZE, SIZE, Bitmap.Config.ARGB_8888)).isSameAs(second);
+        assertThat(mPool.get(SIZE, SIZE, Bitmap.Config.ARGB_8888)).isNull();
+    }
+
+    @Test
+    public void put_overMaxSize_evictsOldestOfAnyGroup() {
+        Bitmap oldest = newBitmap(SIZE, SIZE);
+        Bitmap other = newBitmap(SIZE / 2, SIZE / 2);
+        mPool.put(oldest);
+        mPool.put(other);
+
+        mPool.put(newBitmap(SIZE, SIZE));
+
+        assertThat(mPool.get(SIZE / 2, SIZE / 2, Bitmap.Config.ARGB_8888)).isSameAs(other);
+        assertThat(mPool.get(SIZE, SIZE, Bitmap.Config.ARGB_8888)).isNotSameAs(oldest);
+        assertThat(mPool.get(SIZE, SIZE, Bitmap.Config.ARGB_8888)).isNull();
+    }
+
+    @Test
+    public void put_largerThanPool_isIgnored() {
+        mPool.put(newBitmap(SIZE * 2, SIZE * 2));
+
+        assertThat(mPool.get(SIZE * 2, SIZE * 2, Bitmap.Config.ARGB_8888)).isNull();
+    }
+
+    @Test
+    public void put_immutable_isIgnored() {
+        Bitmap immutable = newBitmap(SIZE, SIZE).copy(Bitmap.Config.ARGB_8888,
+                /* isMutable= */ false);
+        mPool.put(immutable);
+
+        assertThat(mPool.get(SIZE, SIZE, Bitmap.Config.ARGB_8888)).isNull();
+    }
+
+    private static Bitmap newBitmap(int width, int height) {
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+}
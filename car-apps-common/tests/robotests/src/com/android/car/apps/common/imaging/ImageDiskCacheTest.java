@@ -0,0 +1,174 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.apps.common.imaging;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Size;
+
+import com.android.car.apps.common.TestConfig;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/** Bitmap configs and {@link android.graphics.ImageDecoder} need P. */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = TestConfig.MANIFEST_PATH, sdk = Build.VERSION_CODES.P)
+public class ImageDiskCacheTest {
+    private static final Size MAX_SIZE = new Size(16, 16);
+    private static final int BITMAP_SIZE = 10;
+    private static final String VERSION = "0+100@1:2:100:3.0";
+    /** The entries of the tests are a 10x10 ARGB_8888 bitmap behind a header of ~80 bytes. */
+    private static final long MAX_CACHE_SIZE_BYTES = 1000;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDirectory;
+    private ImageDiskCache mCache;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = mFolder.newFolder();
+        mCache = newCache();
+    }
+
+    @Test
+    public void get_afterPut_returnsSamePixels() {
+        ImageKey key = newKey("content://com.example/a");
+        mCache.put(key, newBitmap(Color.RED), VERSION, () -> false);
+
+        Bitmap cached = mCache.get(key, VERSION);
+
+        assertThat(cached).isNotNull();
+        assertThat(cached.getWidth()).isEqualTo(BITMAP_SIZE);
+        assertThat(cached.getHeight()).isEqualTo(BITMAP_SIZE);
+        assertThat(cached.getConfig()).isEqualTo(Bitmap.Config.ARGB_8888);
+        assertThat(cached.getPixel(0, 0)).isEqualTo(Color.RED);
+    }
+
+    @Test
+    public void get_newCacheOnSameDirectory_readsHeadersOfPreviousFiles() {
+        ImageKey key = newKey("content://com.example/a");
+        mCache.put(key, newBitmap(Color.RED), VERSION, () -> false);
+
+        Bitmap cached = newCache().get(key, VERSION);
+
+        assertThat(cached).isNotNull();
+        assertThat(cached.getPixel(0, 0)).isEqualTo(Color.RED);
+    }
+
+    @Test
+    public void get_otherSize_returnsNull() {
+        mCache.put(newKey("content://com.example/a"), newBitmap(Color.RED), VERSION, () -> false);
+
+        assertThat(mCache.get(new ImageKey(Uri.parse("content://com.example/a"),
+                new Size(64, 64)), VERSION)).isNull();
+    }
+
+    @Test
+    public void get_otherContentVersion_returnsNullAndDeletesFile() {
+        ImageKey key = newKey("content://com.example/a");
+        mCache.put(key, newBitmap(Color.RED), VERSION, () -> false);
+
+        assertThat(newCache().get(key, "0+100@1:2:100:4.0")).isNull();
+        assertThat(mDirectory.listFiles()).isEmpty();
+    }
+
+    @Test
+    public void get_unknownHeader_returnsNullAndDeletesFile() throws IOException {
+        ImageKey key = newKey("content://com.example/a");
+        mCache.put(key, newBitmap(Color.RED), VERSION, () -> false);
+        File[] files = mDirectory.listFiles();
+        assertThat(files).hasLength(1);
+        Files.write(files[0].toPath(), new byte[] {1, 2, 3});
+
+        assertThat(mCache.get(key, VERSION)).isNull();
+        assertThat(mDirectory.listFiles()).isEmpty();
+    }
+
+    @Test
+    public void put_stale_isNotStored() {
+        ImageKey key = newKey("content://com.example/a");
+        mCache.put(key, newBitmap(Color.RED), VERSION, () -> true);
+
+        assertThat(mCache.get(key, VERSION)).isNull();
+    }
+
+    @Test
+    public void put_overMaxSize_evictsLeastRecentlyUsed() {
+        ImageKey keyA = newKey("content://com.example/a");
+        ImageKey keyB = newKey("content://com.example/b");
+        ImageKey keyC = newKey("content://com.example/c");
+        mCache.put(keyA, newBitmap(Color.RED), VERSION, () -> false);
+        mCache.put(keyB, newBitmap(Color.GREEN), VERSION, () -> false);
+        assertThat(mCache.get(keyA, VERSION)).isNotNull();
+
+        mCache.put(keyC, newBitmap(Color.BLUE), VERSION, () -> false);
+
+        assertThat(mCache.get(keyB, VERSION)).isNull();
+        assertThat(mCache.get(keyA, VERSION)).isNotNull();
+        assertThat(mCache.get(keyC, VERSION)).isNotNull();
+        assertThat(mDirectory.listFiles()).hasLength(2);
+    }
+
+    @Test
+    public void invalidate_removesEntriesOfUriAndDescendants() {
+        ImageKey parent = newKey("content://com.example/a");
+        ImageKey child = newKey("content://com.example/a/1");
+        ImageKey other = newKey("content://com.example/ab");
+        ImageDiskCache cache = new ImageDiskCache(mDirectory, /* maxSizeBytes= */ 10000,
+                new BitmapPool(/* maxSizeBytes= */ 0));
+        cache.put(parent, newBitmap(Color.RED), VERSION, () -> false);
+        cache.put(child, newBitmap(Color.GREEN), VERSION, () -> false);
+        cache.put(other, newBitmap(Color.BLUE), VERSION, () -> false);
+
+        cache.invalidate(Uri.parse("content://com.example/a"));
+
+        assertThat(cache.get(parent, VERSION)).isNull();
+        assertThat(cache.get(child, VERSION)).isNull();
+        assertThat(cache.get(other, VERSION)).isNotNull();
+    }
+
+    private ImageDiskCache newCache() {
+        return new ImageDiskCache(mDirectory, MAX_CACHE_SIZE_BYTES,
+                new BitmapPool(/* maxSizeBytes= */ 0));
+    }
+
+    private static ImageKey newKey(String uri) {
+        return new ImageKey(Uri.parse(uri), MAX_SIZE);
+    }
+
+    private static Bitmap newBitmap(int color) {
+        Bitmap bitmap = Bitmap.createBitmap(BITMAP_SIZE, BITMAP_SIZE, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(color);
+        return bitmap;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.apps.common.imaging;
+
+import static com.android.car.apps.common.imaging.ImageFetchScheduler.PRIORITY_HIGH;
+import static com.android.car.apps.common.imaging.ImageFetchScheduler.PRIORITY_LOW;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.car.apps.common.TestConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = TestConfig.MANIFEST_PATH, sdk = TestConfig.SDK_VERSION)
+public class ImageFetchSchedulerTest {
+    private static final String PACKAGE_A = "com.example.a";
+    private static final String PACKAGE_B = "com.example.b";
+    private static final long TIMEOUT_MS = 5000;
+
+    private final List<String> mRan = new CopyOnWriteArrayList<>();
+    private final List<String> mRejected = new CopyOnWriteArrayList<>();
+    private final CountDownLatch mBlockerStarted = new CountDownLatch(1);
+    private final CountDownLatch mReleaseBlocker = new CountDownLatch(1);
+
+    private ImageFetchScheduler mScheduler;
+    private CountDownLatch mTasksDone;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        mScheduler = new ImageFetchScheduler(/* poolSize= */ 1, /* maxQueueDepth= */ 3,
+                /* idleTimeoutMs= */ TIMEOUT_MS);
+        // Keeps the only worker busy so that the tasks of the tests wait in the queue.
+        mScheduler.execute(PACKAGE_A, PRIORITY_HIGH, () -> {
+            mBlockerStarted.countDown();
+            awaitOrFail(mReleaseBlocker);
+        }, () -> {});
+        awaitOrFail(mBlockerStarted);
+    }
+
+    @After
+    public void tearDown() {
+        mReleaseBlocker.countDown();
+    }
+
+    @Test
+    public void execute_packagesTakeTurns() {
+        mTasksDone = new CountDownLatch(4);
+        execute(PACKAGE_A, PRIORITY_LOW, "A1");
+        execute(PACKAGE_A, PRIORITY_LOW, "A2");
+        execute(PACKAGE_A, PRIORITY_LOW, "A3");
+        execute(PACKAGE_B, PRIORITY_LOW, "B1");
+
+        runQueuedTasks();
+
+        assertThat(mRan).containsExactly("A1", "B1", "A2", "A3").inOrder();
+    }
+
+    @Test
+    public void execute_highPriorityRunsFirst() {
+        mTasksDone = new CountDownLatch(2);
+        execute(PACKAGE_A, PRIORITY_LOW, "A1");
+        execute(PACKAGE_B, PRIORITY_HIGH, "B1");
+
+        runQueuedTasks();
+
+        assertThat(mRan).containsExactly("B1", "A1").inOrder();
+    }
+
+    @Test
+    public void execute_queueFull_rejectsOldestTaskOfBusiestPackage() {
+        mTasksDone = new CountDownLatch(3);
+        execute(PACKAGE_A, PRIORITY_LOW, "A1");
+        execute(PACKAGE_A, PRIORITY_LOW, "A2");
+        execute(PACKAGE_A, PRIORITY_LOW, "A3");
+        execute(PACKAGE_B, PRIORITY_LOW, "B1");
+
+        assertThat(mRejected).containsExactly("A1");
+        assertThat(mScheduler.getQueueDepth()).isEqualTo(3);
+
+        runQueuedTasks();
+
+        assertThat(mRan).containsExactly("A2", "B1", "A3").inOrder();
+    }
+
+    @Test
+    public void execute_queueFull_rejectsLowPriorityFirst() {
+        mTasksDone = new CountDownLatch(3);
+        execute(PACKAGE_A, PRIORITY_HIGH, "A1");
+        execute(PACKAGE_A, PRIORITY_HIGH, "A2");
+        execute(PACKAGE_A, PRIORITY_HIGH, "A3");
+        execute(PACKAGE_B, PRIORITY_LOW, "B1");
+
+        assertThat(mRejected).containsExactly("B1");
+
+        runQueuedTasks();
+
+        assertThat(mRan).containsExactly("A1", "A2", "A3").inOrder();
+    }
+
+    @Test
+    public void setPriority_waitingTask_runsBeforeLowPriorityTasks() {
+        mTasksDone = new CountDownLatch(3);
+        execute(PACKAGE_A, PRIORITY_LOW, "A1");
+        execute(PACKAGE_A, PRIORITY_LOW, "A2");
+        ImageFetchScheduler.PendingTask task = execute(PACKAGE_B, PRIORITY_LOW, "B1");
+
+        mScheduler.setPriority(task, PRIORITY_HIGH);
+        runQueuedTasks();
+
+        assertThat(mRan).containsExactly("B1", "A1", "A2").inOrder();
+    }
+
+    @Test
+    public void remove_waitingTask_neverRuns() {
+        mTasksDone = new CountDownLatch(2);
+        execute(PACKAGE_A, PRIORITY_LOW, "A1");
+        ImageFetchScheduler.PendingTask task = execute(PACKAGE_A, PRIORITY_LOW, "A2");
+        execute(PACKAGE_A, PRIORITY_LOW, "A3");
+
+        mScheduler.remove(task);
+
+        assertThat(mScheduler.getQueueDepth()).isEqualTo(2);
+
+        runQueuedTasks();
+
+        assertThat(mRan).containsExactly("A1", "A3").inOrder();
+        assertThat(mRejected).isEmpty();
+    }
+
+    private ImageFetchScheduler.PendingTask execute(String packageName,
+            @ImageFetchScheduler.Priority int priority, String name) {
+        return mScheduler.execute(packageName, priority, () -> {
+            mRan.add(name);
+            mTasksDone.countDown();
+        }, () -> mRejected.add(name));
+    }
+
+    private void runQueuedTasks() {
+        mReleaseBlocker.countDown();
+        awaitOrFail(mTasksDone);
+    }
+
+    private static void awaitOrFail(CountDownLatch latch) {
+        try {
+            assertThat(latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)).isTrue();
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.apps.common.imaging;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.net.Uri;
+import android.util.Size;
+
+import com.android.car.apps.common.TestConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = TestConfig.MANIFEST_PATH, sdk = TestConfig.SDK_VERSION)
+public class ImageKeyTest {
+    private static final Uri URI = Uri.parse("content://com.example/image");
+
+    @Test
+    public void toBucket_smallDimensions_unchanged() {
+        assertThat(ImageKey.toBucket(0)).isEqualTo(0);
+        assertThat(ImageKey.toBucket(1)).isEqualTo(1);
+        assertThat(ImageKey.toBucket(2)).isEqualTo(2);
+    }
+
+    @Test
+    public void toBucket_powerOfTwo_unchanged() {
+        assertThat(ImageKey.toBucket(64)).isEqualTo(64);
+        assertThat(ImageKey.toBucket(1024)).isEqualTo(1024);
+    }
+
+    @Test
+    public void toBucket_roundsUpToOneAndHalfPowerOfTwo() {
+        assertThat(ImageKey.toBucket(3)).isEqualTo(3);
+        assertThat(ImageKey.toBucket(65)).isEqualTo(96);
+        assertThat(ImageKey.toBucket(96)).isEqualTo(96);
+    }
+
+    @Test
+    public void toBucket_roundsUpToNextPowerOfTwo() {
+        assertThat(ImageKey.toBucket(97)).isEqualTo(128);
+        assertThat(ImageKey.toBucket(127)).isEqualTo(128);
+        assertThat(ImageKey.toBucket(1025)).isEqualTo(1536);
+        assertThat(ImageKey.toBucket(1537)).isEqualTo(2048);
+    }
+
+    @Test
+    public void constructor_keepsRequestedSize() {
+        ImageKey key = new ImageKey(URI, new Size(65, 100));
+
+        assertThat(key.mMaxImageSize).isEqualTo(new Size(65, 100));
+    }
+
+    @Test
+    public void equals_sameBucketDifferentSizes_notEqual() {
+        ImageKey small = new ImageKey(URI, new Size(65, 65));
+        ImageKey large = new ImageKey(URI, new Size(96, 96));
+
+        assertThat(small.isSameBucket(large)).isTrue();
+        assertThat(small).isNotEqualTo(large);
+    }
+
+    @Test
+    public void isSameBucket_differentBuckets_false() {
+        ImageKey key = new ImageKey(URI, new Size(96, 96));
+
+        assertThat(key.isSameBucket(new ImageKey(URI, new Size(97, 96)))).isFalse();
+        assertThat(key.isSameBucket(new ImageKey(URI, new Size(96, 64)))).isFalse();
+    }
+
+    @Test
+    public void isLargerOrEqual_comparesBothDimensions() {
+        ImageKey key = new ImageKey(URI, new Size(100, 50));
+
+        assertThat(key.isLargerOrEqual(new ImageKey(URI, new Size(100, 50)))).isTrue();
+        assertThat(key.isLargerOrEqual(new ImageKey(URI, new Size(80, 40)))).isTrue();
+        assertThat(key.isLargerOrEqual(new ImageKey(URI, new Size(80, 60)))).isFalse();
+    }
+
+    @Test
+    public void isLargerOrEqual_differentHardwareFlag_false() {
+        ImageKey key = new ImageKey(URI, new Size(100, 100), /* isHardwareAllowed= */ true);
+
+        assertThat(key.isLargerOrEqual(new ImageKey(URI, new Size(50, 50)))).isFalse();
+    }
+}
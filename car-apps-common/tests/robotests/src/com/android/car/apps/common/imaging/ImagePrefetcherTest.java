@@ -0,0 +1,191 @@
+/*
+ * Copyright 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.apps.common.imaging;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+import android.content.Context;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.util.Size;
+
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.android.car.apps.common.TestConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Objects;
+import java.util.function.IntFunction;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = TestConfig.MANIFEST_PATH, sdk = TestConfig.SDK_VERSION)
+public class ImagePrefetcherTest {
+    private static final Size MAX_SIZE = new Size(64, 64);
+    private static final int PREFETCH_COUNT = 2;
+    private static final int ITEM_COUNT = 10;
+
+    private final IntFunction<TestRef> mRefAt = this::refAt;
+
+    @Mock
+    private LocalImageFetcher mFetcher;
+
+    private Context mContext;
+    private ImagePrefetcher<TestRef> mPrefetcher;
+    /** Whether the items at odd positions have no image. */
+    private boolean mOddEmpty;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mContext = RuntimeEnvironment.application;
+        mPrefetcher = new ImagePrefetcher<>(MAX_SIZE, PREFETCH_COUNT, context -> mFetcher);
+    }
+
+    @Test
+    public void onVisibleRangeChanged_firstCall_prefetchesItemsAfterVisibleOnes() {
+        mPrefetcher.onVisibleRangeChanged(mContext, 0, 2, ITEM_COUNT, mRefAt);
+
+        verify(mFetcher).prefetch(any(), eq(key(3)));
+        verify(mFetcher).prefetch(any(), eq(key(4)));
+        verifyNoMoreInteractions(mFetcher);
+    }
+
+    @Test
+    public void onVisibleRangeChanged_scrollingForward_onlyPrefetchesNewItems() {
+        mPrefetcher.onVisibleRangeChanged(mContext, 0, 2, ITEM_COUNT, mRefAt);
+
+        mPrefetcher.onVisibleRangeChanged(mContext, 1, 3, ITEM_COUNT, mRefAt);
+
+        verify(mFetcher).prefetch(any(), eq(key(4)));
+        verify(mFetcher).prefetch(any(), eq(key(5)));
+        verify(mFetcher).cancelPrefetch(key(3));
+    }
+
+    @Test
+    public void onVisibleRangeChanged_scrollingBackward_prefetchesItemsBeforeVisibleOnes() {
+        mPrefetcher.onVisibleRangeChanged(mContext, 5, 7, ITEM_COUNT, mRefAt);
+
+        mPrefetcher.onVisibleRangeChanged(mContext, 4, 6, ITEM_COUNT, mRefAt);
+
+        verify(mFetcher).prefetch(any(), eq(key(2)));
+        verify(mFetcher).prefetch(any(), eq(key(3)));
+        verify(mFetcher).cancelPrefetch(key(8));
+        verify(mFetcher).cancelPrefetch(key(9));
+    }
+
+    @Test
+    public void onVisibleRangeChanged_sameFirstVisible_keepsDirection() {
+        mPrefetcher.onVisibleRangeChanged(mContext, 5, 7, ITEM_COUNT, mRefAt);
+        mPrefetcher.onVisibleRangeChanged(mContext, 4, 6, ITEM_COUNT, mRefAt);
+
+        mPrefetcher.onVisibleRangeChanged(mContext, 4, 7, ITEM_COUNT, mRefAt);
+
+        verify(mFetcher, never()).cancelPrefetch(key(2));
+        verify(mFetcher, never()).cancelPrefetch(key(3));
+    }
+
+    @Test
+    public void onVisibleRangeChanged_endOfList_prefetchesNothing() {
+        mPrefetcher.onVisibleRangeChanged(mContext, 7, 9, ITEM_COUNT, mRefAt);
+
+        verifyNoMoreInteractions(mFetcher);
+    }
+
+    @Test
+    public void onVisibleRangeChanged_noPosition_isIgnored() {
+        mPrefetcher.onVisibleRangeChanged(mContext, RecyclerView.NO_POSITION,
+                RecyclerView.NO_POSITION, ITEM_COUNT, mRefAt);
+
+        verifyNoMoreInteractions(mFetcher);
+    }
+
+    @Test
+    public void onVisibleRangeChanged_itemsWithoutImage_areSkipped() {
+        mOddEmpty = true;
+
+        mPrefetcher.onVisibleRangeChanged(mContext, 0, 2, ITEM_COUNT, mRefAt);
+
+        verify(mFetcher).prefetch(any(), eq(key(4)));
+        verifyNoMoreInteractions(mFetcher);
+    }
+
+    @Test
+    public void cancelAll_cancelsPrefetches() {
+        mPrefetcher.onVisibleRangeChanged(mContext, 0, 2, ITEM_COUNT, mRefAt);
+
+        mPrefetcher.cancelAll(mContext);
+
+        verify(mFetcher).cancelPrefetch(key(3));
+        verify(mFetcher).cancelPrefetch(key(4));
+    }
+
+    @Test
+    public void cancelAll_nextCallPrefetchesAgain() {
+        mPrefetcher.onVisibleRangeChanged(mContext, 0, 2, ITEM_COUNT, mRefAt);
+        mPrefetcher.cancelAll(mContext);
+
+        mPrefetcher.onVisibleRangeChanged(mContext, 0, 2, ITEM_COUNT, mRefAt);
+
+        verify(mFetcher, times(2)).prefetch(any(), eq(key(3)));
+        verify(mFetcher, times(2)).prefetch(any(), eq(key(4)));
+    }
+
+    private TestRef refAt(int position) {
+        return new TestRef((mOddEmpty && position % 2 == 1)
+                ? null : Uri.parse("content://com.example/" + position));
+    }
+
+    private static ImageKey key(int position) {
+        return new ImageKey(Uri.parse("content://com.example/" + position), MAX_SIZE);
+    }
+
+    private static class TestRef implements ImageBinder.ImageRef {
+        private final Uri mUri;
+
+        TestRef(Uri uri) {
+            mUri = uri;
+        }
+
+        @Override
+        public boolean equals(Context context, Object other) {
+            return other instanceof TestRef && Objects.equals(mUri, ((TestRef) other).mUri);
+        }
+
+        @Override
+        public Uri getImageURI() {
+            return mUri;
+        }
+
+        @Override
+        public Drawable getPlaceholder(Context context, ImageBinder.PlaceholderType type) {
+            return null;
+        }
+    }
+}
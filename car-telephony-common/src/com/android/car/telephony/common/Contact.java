@@ -38,15 +38,6 @@ import java.util.List;
 public class Contact implements Parcelable, Comparable<Contact> {
     private static final String TAG = "CD.Contact";
 
-    /**
-     * Column name for phonebook label column.
-     */
-    private static final String PHONEBOOK_LABEL = "phonebook_label";
-    /**
-     * Column name for alternative phonebook label column.
-     */
-    private static final String PHONEBOOK_LABEL_ALT = "phonebook_label_alt";
-
     /**
      * Contact belongs to TYPE_LETTER if its display name starts with a letter
      */
@@ -221,36 +212,42 @@ public class Contact implements Parcelable, Comparable<Contact> {
      *                returned.
      */
     public static Contact fromCursor(Context context, Cursor cursor, @Nullable Contact contact) {
-        int accountNameColumn = cursor.getColumnIndex(ContactsContract.RawContacts.ACCOUNT_NAME);
-        int lookupKeyColumn = cursor.getColumnIndex(ContactsContract.Data.LOOKUP_KEY);
-        String accountName = cursor.getString(accountNameColumn);
-        String lookupKey = cursor.getString(lookupKeyColumn);
+        return fromCursor(context, cursor, ContactColumns.forCurrentRow(cursor), contact);
+    }
+
+    /**
+     * Same as {@link #fromCursor(Context, Cursor, Contact)}, reading the columns resolved once for
+     * the whole cursor.
+     */
+    static Contact fromCursor(Context context, Cursor cursor, ContactColumns columns,
+            @Nullable Contact contact) {
+        String accountName = cursor.getString(columns.mAccountName);
+        String lookupKey = cursor.getString(columns.mLookupKey);
 
         if (contact == null) {
             contact = new Contact();
-            contact.loadBasicInfo(cursor);
+            contact.loadBasicInfo(cursor, columns);
         }
 
         if (!TextUtils.equals(accountName, contact.mAccountName)
                 || !TextUtils.equals(lookupKey, contact.mLookupKey)) {
             Log.w(TAG, "A wrong contact is passed in. A new contact will be created.");
             contact = new Contact();
-            contact.loadBasicInfo(cursor);
+            contact.loadBasicInfo(cursor, columns);
         }
 
-        int mimetypeColumn = cursor.getColumnIndex(ContactsContract.Data.MIMETYPE);
-        String mimeType = cursor.getString(mimetypeColumn);
+        String mimeType = cursor.getString(columns.mMimetype);
 
         // More mimeType can be added here if more types of data needs to be loaded.
         switch (mimeType) {
             case ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE:
-                contact.loadNameDetails(cursor);
+                contact.loadNameDetails(cursor, columns);
                 break;
             case ContactsContract.CommonDataKinds.Phone.CONTENT_ITEM_TYPE:
-                contact.addPhoneNumber(context, cursor);
+                contact.addPhoneNumber(context, cursor, columns);
                 break;
             case ContactsContract.CommonDataKinds.StructuredPostal.CONTENT_ITEM_TYPE:
-                contact.addPostalAddress(cursor);
+                contact.addPostalAddress(cursor, columns);
                 break;
             default:
                 Log.d(TAG,
@@ -264,68 +261,43 @@ public class Contact implements Parcelable, Comparable<Contact> {
      * The data columns that are the same in every cursor no matter what the mimetype is will be
      * loaded here.
      */
-    private void loadBasicInfo(Cursor cursor) {
-        int contactIdColumn = cursor.getColumnIndex(ContactsContract.RawContacts.CONTACT_ID);
-        int rawContactIdColumn = cursor.getColumnIndex(ContactsContract.Data.RAW_CONTACT_ID);
-        int accountNameColumn = cursor.getColumnIndex(ContactsContract.RawContacts.ACCOUNT_NAME);
-        int displayNameColumn = cursor.getColumnIndex(ContactsContract.Data.DISPLAY_NAME);
-        int displayNameAltColumn = cursor.getColumnIndex(
-                ContactsContract.RawContacts.DISPLAY_NAME_ALTERNATIVE);
-        int phoneBookLabelColumn = cursor.getColumnIndex(PHONEBOOK_LABEL);
-        int phoneBookLabelAltColumn = cursor.getColumnIndex(PHONEBOOK_LABEL_ALT);
-        int sortKeyPrimaryColumn = cursor.getColumnIndex(
-                ContactsContract.RawContacts.SORT_KEY_PRIMARY);
-        int sortKeyAltColumn = cursor.getColumnIndex(
-                ContactsContract.RawContacts.SORT_KEY_ALTERNATIVE);
-        int lookupKeyColumn = cursor.getColumnIndex(ContactsContract.Data.LOOKUP_KEY);
-
-        int avatarUriColumn = cursor.getColumnIndex(ContactsContract.Data.PHOTO_URI);
-        int avatarThumbnailColumn = cursor.getColumnIndex(
-                ContactsContract.Data.PHOTO_THUMBNAIL_URI);
-        int starredColumn = cursor.getColumnIndex(ContactsContract.CommonDataKinds.Phone.STARRED);
-        int pinnedColumn = cursor.getColumnIndex(ContactsContract.CommonDataKinds.Phone.PINNED);
-
-        mContactId = cursor.getLong(contactIdColumn);
-        mRawContactId = cursor.getLong(rawContactIdColumn);
-        mAccountName = cursor.getString(accountNameColumn);
-        mDisplayName = cursor.getString(displayNameColumn);
-        mDisplayNameAlt = cursor.getString(displayNameAltColumn);
-        mSortKeyPrimary = cursor.getString(sortKeyPrimaryColumn);
-        mSortKeyAlt = cursor.getString(sortKeyAltColumn);
-        mPhoneBookLabel = cursor.getString(phoneBookLabelColumn);
-        mPhoneBookLabelAlt = cursor.getString(phoneBookLabelAltColumn);
-        mLookupKey = cursor.getString(lookupKeyColumn);
-
-        String avatarUriStr = cursor.getString(avatarUriColumn);
+    private void loadBasicInfo(Cursor cursor, ContactColumns columns) {
+        mContactId = cursor.getLong(columns.mContactId);
+        mRawContactId = cursor.getLong(columns.mRawContactId);
+        mAccountName = cursor.getString(columns.mAccountName);
+        mDisplayName = cursor.getString(columns.mDisplayName);
+        mDisplayNameAlt = cursor.getString(columns.mDisplayNameAlt);
+        mSortKeyPrimary = cursor.getString(columns.mSortKeyPrimary);
+        mSortKeyAlt = cursor.getString(columns.mSortKeyAlt);
+        mPhoneBookLabel = cursor.getString(columns.mPhoneBookLabel);
+        mPhoneBookLabelAlt = cursor.getString(columns.mPhoneBookLabelAlt);
+        mLookupKey = cursor.getString(columns.mLookupKey);
+
+        String avatarUriStr = cursor.getString(columns.mAvatarUri);
         mAvatarUri = avatarUriStr == null ? null : Uri.parse(avatarUriStr);
-        String avatarThumbnailStringUri = cursor.getString(avatarThumbnailColumn);
+        String avatarThumbnailStringUri = cursor.getString(columns.mAvatarThumbnailUri);
         mAvatarThumbnailUri = avatarThumbnailStringUri == null ? null : Uri.parse(
                 avatarThumbnailStringUri);
 
-        mIsStarred = cursor.getInt(starredColumn) > 0;
-        mPinnedPosition = cursor.getInt(pinnedColumn);
+        mIsStarred = cursor.getInt(columns.mStarred) > 0;
+        mPinnedPosition = cursor.getInt(columns.mPinned);
     }
 
     /**
      * Loads the data whose mimetype is
      * {@link ContactsContract.CommonDataKinds.StructuredName#CONTENT_ITEM_TYPE}.
      */
-    private void loadNameDetails(Cursor cursor) {
-        int firstNameColumn = cursor.getColumnIndex(
-                ContactsContract.CommonDataKinds.StructuredName.GIVEN_NAME);
-        int lastNameColumn = cursor.getColumnIndex(
-                ContactsContract.CommonDataKinds.StructuredName.FAMILY_NAME);
-
-        mGivenName = cursor.getString(firstNameColumn);
-        mFamilyName = cursor.getString(lastNameColumn);
+    private void loadNameDetails(Cursor cursor, ContactColumns columns) {
+        mGivenName = cursor.getString(columns.mGivenName);
+        mFamilyName = cursor.getString(columns.mFamilyName);
     }
 
     /**
      * Loads the data whose mimetype is
      * {@link ContactsContract.CommonDataKinds.Phone#CONTENT_ITEM_TYPE}.
      */
-    private void addPhoneNumber(Context context, Cursor cursor) {
-        PhoneNumber newNumber = PhoneNumber.fromCursor(context, cursor);
+    private void addPhoneNumber(Context context, Cursor cursor, ContactColumns columns) {
+        PhoneNumber newNumber = PhoneNumber.fromCursor(context, cursor, columns);
 
         boolean hasSameNumber = false;
         for (PhoneNumber number : mPhoneNumbers) {
@@ -353,8 +325,8 @@ public class Contact implements Parcelable, Comparable<Contact> {
      * Loads the data whose mimetype is
      * {@link ContactsContract.CommonDataKinds.StructuredPostal#CONTENT_ITEM_TYPE}.
      */
-    private void addPostalAddress(Cursor cursor) {
-        PostalAddress newAddress = PostalAddress.fromCursor(cursor);
+    private void addPostalAddress(Cursor cursor, ContactColumns columns) {
+        PostalAddress newAddress = PostalAddress.fromCursor(cursor, columns);
 
         if (!mPostalAddresses.contains(newAddress)) {
             mPostalAddresses.add(newAddress);
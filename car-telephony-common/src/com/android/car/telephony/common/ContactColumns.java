@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.telephony.common;
+
+import android.database.Cursor;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+
+/**
+ * The indices of the {@link ContactsContract.Data} columns read by {@link Contact}, {@link
+ * PhoneNumber} and {@link PostalAddress}, resolved once per cursor instead of once per row. The
+ * factory methods for reading a single row only resolve the columns that row needs.
+ */
+class ContactColumns {
+    /**
+     * Column name for phonebook label column.
+     */
+    static final String PHONEBOOK_LABEL = "phonebook_label";
+    /**
+     * Column name for alternative phonebook label column.
+     */
+    static final String PHONEBOOK_LABEL_ALT = "phonebook_label_alt";
+
+    /**
+     * All the columns read from a contacts data cursor. Mimetype specific columns sharing the same
+     * generic data column are only listed once.
+     */
+    static final String[] PROJECTION = new LinkedHashSet<>(Arrays.asList(
+            ContactsContract.Data.MIMETYPE,
+            ContactsContract.Data.CONTACT_LAST_UPDATED_TIMESTAMP,
+            ContactsContract.RawContacts.CONTACT_ID,
+            ContactsContract.Data.RAW_CONTACT_ID,
+            ContactsContract.RawContacts.ACCOUNT_NAME,
+            ContactsContract.RawContacts.ACCOUNT_TYPE,
+            ContactsContract.Data.DISPLAY_NAME,
+            ContactsContract.RawContacts.DISPLAY_NAME_ALTERNATIVE,
+            PHONEBOOK_LABEL,
+            PHONEBOOK_LABEL_ALT,
+            ContactsContract.RawContacts.SORT_KEY_PRIMARY,
+            ContactsContract.RawContacts.SORT_KEY_ALTERNATIVE,
+            ContactsContract.Data.LOOKUP_KEY,
+            ContactsContract.Data.PHOTO_URI,
+            ContactsContract.Data.PHOTO_THUMBNAIL_URI,
+            Phone.STARRED,
+            Phone.PINNED,
+            StructuredName.GIVEN_NAME,
+            StructuredName.FAMILY_NAME,
+            Phone.NUMBER,
+            Phone.TYPE,
+            Phone.LABEL,
+            Phone._ID,
+            Phone.DATA_VERSION,
+            Phone.IS_SUPER_PRIMARY,
+            StructuredPostal.FORMATTED_ADDRESS,
+            StructuredPostal.TYPE,
+            StructuredPostal.LABEL)).toArray(new String[0]);
+
+    /** Read by {@link InMemoryPhoneBook} when it loads a whole cursor. */
+    private static final int LOAD = 1;
+    /** Read for the contact of every row, whatever the mimetype. */
+    private static final int COMMON = 1 << 1;
+    private static final int NAME = 1 << 2;
+    private static final int PHONE = 1 << 3;
+    private static final int POSTAL = 1 << 4;
+    private static final int ALL = LOAD | COMMON | NAME | PHONE | POSTAL;
+
+    final int mMimetype;
+    final int mLastUpdatedTimestamp;
+
+    // Columns of all the mimetypes.
+    final int mContactId;
+    final int mRawContactId;
+    final int mAccountName;
+    final int mAccountType;
+    final int mDisplayName;
+    final int mDisplayNameAlt;
+    final int mPhoneBookLabel;
+    final int mPhoneBookLabelAlt;
+    final int mSortKeyPrimary;
+    final int mSortKeyAlt;
+    final int mLookupKey;
+    final int mAvatarUri;
+    final int mAvatarThumbnailUri;
+    final int mStarred;
+    final int mPinned;
+
+    // StructuredName columns.
+    final int mGivenName;
+    final int mFamilyName;
+
+    // Phone columns.
+    final int mNumber;
+    final int mNumberType;
+    final int mNumberLabel;
+    final int mDataId;
+    final int mDataVersion;
+    final int mIsSuperPrimary;
+
+    // StructuredPostal columns.
+    final int mFormattedAddress;
+    final int mAddressType;
+    final int mAddressLabel;
+
+    /** Resolves all the columns, for reading every row of a cursor. */
+    ContactColumns(Cursor cursor) {
+        this(cursor, ALL);
+    }
+
+    /** Resolves the columns read by {@link PhoneNumber} only, for reading a single row. */
+    static ContactColumns forPhoneNumber(Cursor cursor) {
+        return new ContactColumns(cursor, PHONE);
+    }
+
+    /** Resolves the columns read by {@link PostalAddress} only, for reading a single row. */
+    static ContactColumns forPostalAddress(Cursor cursor) {
+        return new ContactColumns(cursor, POSTAL);
+    }
+
+    /**
+     * Resolves the columns read by {@link Contact} for the current row only: the ones of all the
+     * mimetypes and the ones of the mimetype of the row.
+     */
+    static ContactColumns forCurrentRow(Cursor cursor) {
+        String mimetype = cursor.getString(cursor.getColumnIndex(ContactsContract.Data.MIMETYPE));
+        int groups = COMMON;
+        if (StructuredName.CONTENT_ITEM_TYPE.equals(mimetype)) {
+            groups |= NAME;
+        } else if (Phone.CONTENT_ITEM_TYPE.equals(mimetype)) {
+            groups |= PHONE;
+        } else if (StructuredPostal.CONTENT_ITEM_TYPE.equals(mimetype)) {
+            groups |= POSTAL;
+        }
+        return new ContactColumns(cursor, groups);
+    }
+
+    /** The columns of the groups that are not resolved are -1. */
+    private ContactColumns(Cursor cursor, int groups) {
+        boolean common = (groups & COMMON) != 0;
+        boolean name = (groups & NAME) != 0;
+        boolean phone = (groups & PHONE) != 0;
+        boolean postal = (groups & POSTAL) != 0;
+
+        mMimetype = getColumnIndex(cursor, ContactsContract.Data.MIMETYPE, common);
+        mLastUpdatedTimestamp = getColumnIndex(cursor,
+                ContactsContract.Data.CONTACT_LAST_UPDATED_TIMESTAMP, (groups & LOAD) != 0);
+
+        mContactId = getColumnIndex(cursor, ContactsContract.RawContacts.CONTACT_ID, common);
+        mRawContactId = getColumnIndex(cursor, ContactsContract.Data.RAW_CONTACT_ID, common);
+        mAccountName = getColumnIndex(cursor, ContactsContract.RawContacts.ACCOUNT_NAME,
+                common || phone);
+        mAccountType = getColumnIndex(cursor, ContactsContract.RawContacts.ACCOUNT_TYPE,
+                common || phone);
+        mDisplayName = getColumnIndex(cursor, ContactsContract.Data.DISPLAY_NAME, common);
+        mDisplayNameAlt = getColumnIndex(cursor,
+                ContactsContract.RawContacts.DISPLAY_NAME_ALTERNATIVE, common);
+        mPhoneBookLabel = getColumnIndex(cursor, PHONEBOOK_LABEL, common);
+        mPhoneBookLabelAlt = getColumnIndex(cursor, PHONEBOOK_LABEL_ALT, common);
+        mSortKeyPrimary = getColumnIndex(cursor, ContactsContract.RawContacts.SORT_KEY_PRIMARY,
+                common);
+        mSortKeyAlt = getColumnIndex(cursor, ContactsContract.RawContacts.SORT_KEY_ALTERNATIVE,
+                common);
+        mLookupKey = getColumnIndex(cursor, ContactsContract.Data.LOOKUP_KEY, common);
+        mAvatarUri = getColumnIndex(cursor, ContactsContract.Data.PHOTO_URI, common);
+        mAvatarThumbnailUri = getColumnIndex(cursor, ContactsContract.Data.PHOTO_THUMBNAIL_URI,
+                common);
+        mStarred = getColumnIndex(cursor, Phone.STARRED, common);
+        mPinned = getColumnIndex(cursor, Phone.PINNED, common);
+
+        mGivenName = getColumnIndex(cursor, StructuredName.GIVEN_NAME, name);
+        mFamilyName = getColumnIndex(cursor, StructuredName.FAMILY_NAME, name);
+
+        mNumber = getColumnIndex(cursor, Phone.NUMBER, phone);
+        mNumberType = getColumnIndex(cursor, Phone.TYPE, phone);
+        mNumberLabel = getColumnIndex(cursor, Phone.LABEL, phone);
+        mDataId = getColumnIndex(cursor, Phone._ID, phone);
+        mDataVersion = getColumnIndex(cursor, Phone.DATA_VERSION, phone);
+        // IS_PRIMARY means primary entry of the raw contact and IS_SUPER_PRIMARY means primary
+        // entry of the aggregated contact. It is guaranteed that only one data entry is super
+        // primary.
+        mIsSuperPrimary = getColumnIndex(cursor, Phone.IS_SUPER_PRIMARY, phone);
+
+        mFormattedAddress = getColumnIndex(cursor, StructuredPostal.FORMATTED_ADDRESS, postal);
+        mAddressType = getColumnIndex(cursor, StructuredPostal.TYPE, postal);
+        mAddressLabel = getColumnIndex(cursor, StructuredPostal.LABEL, postal);
+    }
+
+    private static int getColumnIndex(Cursor cursor, String column, boolean resolve) {
+        return resolve ? cursor.getColumnIndex(column) : -1;
+    }
+}
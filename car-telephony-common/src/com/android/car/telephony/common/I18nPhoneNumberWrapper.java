@@ -30,7 +30,10 @@ import androidx.annotation.Nullable;
 import com.google.i18n.phonenumbers.PhoneNumberUtil;
 import com.google.i18n.phonenumbers.Phonenumber;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
@@ -45,6 +48,11 @@ public class I18nPhoneNumberWrapper implements Parcelable {
     private final Phonenumber.PhoneNumber mI18nPhoneNumber;
     private final String mRawNumber;
     private final String mNumber;
+    /**
+     * The national significant number, or the raw number if it can't be parsed. Numbers that are
+     * {@link #equals equal} have the same key.
+     */
+    private final String mIndexKey;
 
     private I18nPhoneNumberWrapper(String rawNumber,
             @Nullable Phonenumber.PhoneNumber i18nPhoneNumber) {
@@ -53,12 +61,22 @@ public class I18nPhoneNumberWrapper implements Parcelable {
         mNumber = (i18nPhoneNumber == null)
                 ? rawNumber
                 : PhoneNumberUtil.getInstance().format(i18nPhoneNumber, INTERNATIONAL);
+        mIndexKey = (i18nPhoneNumber == null)
+                ? rawNumber
+                : PhoneNumberUtil.getInstance().getNationalSignificantNumber(i18nPhoneNumber);
     }
 
     @Override
     public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
         if (obj instanceof I18nPhoneNumberWrapper) {
             I18nPhoneNumberWrapper other = (I18nPhoneNumberWrapper) obj;
+            if (!Objects.equals(mIndexKey, other.mIndexKey)) {
+                // Matching numbers always have the same national significant number.
+                return false;
+            }
             if (mI18nPhoneNumber != null && other.mI18nPhoneNumber != null) {
                 PhoneNumberUtil.MatchType matchType = PhoneNumberUtil.getInstance().isNumberMatch(
                         mI18nPhoneNumber, other.mI18nPhoneNumber);
@@ -73,12 +91,21 @@ public class I18nPhoneNumberWrapper implements Parcelable {
         return false;
     }
 
+    /**
+     * Only hashes the national significant number, as numbers with a different country code or
+     * formatting can be {@link #equals equal}.
+     */
     @Override
     public int hashCode() {
-        if (mI18nPhoneNumber == null) {
-            return Objects.hashCode(mRawNumber);
-        }
-        return Objects.hash(mI18nPhoneNumber);
+        return Objects.hashCode(mIndexKey);
+    }
+
+    /**
+     * Returns a normalized form of the number that is the same for all the numbers that are
+     * {@link #equals equal} to it.
+     */
+    String getIndexKey() {
+        return mIndexKey;
     }
 
     /**
@@ -128,12 +155,35 @@ public class I18nPhoneNumberWrapper implements Parcelable {
     /**
      * Caches {@link WeakReference} of {@link I18nPhoneNumberWrapper}s to avoid creating same object
      * over and over again. It will avoid too many instances getting created during contact sync.
+     * <p>
+     * References cleared by the garbage collector are removed from the cache as they are
+     * enqueued, and the parsing results of recently seen numbers are reused for numbers that only
+     * differ in their formatting.
      */
     public enum Factory {
         INSTANCE;
 
-        private final Map<String, WeakReference<I18nPhoneNumberWrapper>> mRecycledPool =
-                new ConcurrentHashMap<>();
+        /** The max number of cached wrappers. New numbers are not cached beyond that. */
+        private static final int MAX_POOL_SIZE = 10000;
+        /** The max number of cached parsing results. */
+        private static final int MAX_PARSED_NUMBERS = 1000;
+
+        private final Map<String, PooledReference> mRecycledPool = new ConcurrentHashMap<>();
+        private final ReferenceQueue<I18nPhoneNumberWrapper> mReferenceQueue =
+                new ReferenceQueue<>();
+        /**
+         * Parsing results by country code and number without formatting characters, in access
+         * order. Numbers that can't be parsed are cached with a null value.
+         */
+        private final LinkedHashMap<String, Phonenumber.PhoneNumber> mParsedNumbers =
+                new LinkedHashMap<String, Phonenumber.PhoneNumber>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(
+                            Map.Entry<String, Phonenumber.PhoneNumber> eldest) {
+                        return size() > MAX_PARSED_NUMBERS;
+                    }
+                };
+
         /**
          * Returns cached {@link I18nPhoneNumberWrapper} for the given {@code rawNumber}. It will
          * create a new instance if not present.
@@ -142,27 +192,73 @@ public class I18nPhoneNumberWrapper implements Parcelable {
          *                  {@link #getNumber()} will return a formatted number.
          */
         public I18nPhoneNumberWrapper get(@NonNull Context context, @NonNull String rawNumber) {
-            for (String key : mRecycledPool.keySet()) {
-                if (mRecycledPool.get(key).get() == null) {
-                    mRecycledPool.remove(key);
-                }
-            }
-            WeakReference<I18nPhoneNumberWrapper> existingReference = mRecycledPool.get(rawNumber);
+            drainClearedReferences();
+            PooledReference existingReference = mRecycledPool.get(rawNumber);
             I18nPhoneNumberWrapper i18nPhoneNumberWrapper =
                     existingReference == null ? null : existingReference.get();
             if (i18nPhoneNumberWrapper == null) {
                 i18nPhoneNumberWrapper = create(context, rawNumber);
-                mRecycledPool.put(rawNumber, new WeakReference<>(i18nPhoneNumberWrapper));
+                if (mRecycledPool.size() < MAX_POOL_SIZE) {
+                    mRecycledPool.put(rawNumber, new PooledReference(rawNumber,
+                            i18nPhoneNumberWrapper, mReferenceQueue));
+                }
                 return i18nPhoneNumberWrapper;
             }
             return i18nPhoneNumberWrapper;
         }
 
+        /** Removes the entries of the wrappers that were garbage collected. */
+        private void drainClearedReferences() {
+            Reference<? extends I18nPhoneNumberWrapper> reference;
+            while ((reference = mReferenceQueue.poll()) != null) {
+                PooledReference pooledReference = (PooledReference) reference;
+                // The entry may already hold a newer wrapper for the same number.
+                mRecycledPool.remove(pooledReference.mRawNumber, pooledReference);
+            }
+        }
+
         /** Create a new instance. */
         private I18nPhoneNumberWrapper create(@NonNull Context context, @NonNull String rawNumber) {
-            Phonenumber.PhoneNumber i18nPhoneNumber = TelecomUtils.createI18nPhoneNumber(context,
-                    rawNumber);
+            String countryIso = TelecomUtils.getCurrentCountryIso(context);
+            String parsedNumberKey = countryIso + ":" + stripFormatting(rawNumber);
+            Phonenumber.PhoneNumber i18nPhoneNumber;
+            synchronized (mParsedNumbers) {
+                i18nPhoneNumber = mParsedNumbers.get(parsedNumberKey);
+                if (i18nPhoneNumber != null || mParsedNumbers.containsKey(parsedNumberKey)) {
+                    return new I18nPhoneNumberWrapper(rawNumber, i18nPhoneNumber);
+                }
+            }
+            i18nPhoneNumber = TelecomUtils.createI18nPhoneNumber(rawNumber, countryIso);
+            synchronized (mParsedNumbers) {
+                mParsedNumbers.put(parsedNumberKey, i18nPhoneNumber);
+            }
             return new I18nPhoneNumberWrapper(rawNumber, i18nPhoneNumber);
         }
+
+        /**
+         * Removes the separators that don't change how a number is parsed. Letters are kept, as
+         * they can be part of an extension or a vanity number.
+         */
+        private static String stripFormatting(String rawNumber) {
+            StringBuilder builder = new StringBuilder(rawNumber.length());
+            for (int i = 0; i < rawNumber.length(); i++) {
+                char c = rawNumber.charAt(i);
+                if (c != ' ' && c != '-' && c != '(' && c != ')' && c != '.') {
+                    builder.append(c);
+                }
+            }
+            return builder.toString();
+        }
+    }
+
+    /** A pooled wrapper reference, which remembers its key to be removed once cleared. */
+    private static class PooledReference extends WeakReference<I18nPhoneNumberWrapper> {
+        final String mRawNumber;
+
+        PooledReference(String rawNumber, I18nPhoneNumberWrapper wrapper,
+                ReferenceQueue<I18nPhoneNumberWrapper> queue) {
+            super(wrapper, queue);
+            mRawNumber = rawNumber;
+        }
     }
 }
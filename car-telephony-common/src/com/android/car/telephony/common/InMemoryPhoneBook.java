@@ -18,42 +18,119 @@ package com.android.car.telephony.common;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.ContactsContract;
 import android.text.TextUtils;
 import android.util.Log;
 
+import androidx.annotation.MainThread;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.Observer;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
 
 /**
  * A singleton statically accessible helper class which pre-loads contacts list into memory so that
  * they can be accessed more easily and quickly.
+ * <p>
+ * After the first load, only the contacts updated or deleted since the last load are queried
+ * and applied to the loaded contacts.
  */
 public class InMemoryPhoneBook implements Observer<List<Contact>> {
     private static final String TAG = "CD.InMemoryPhoneBook";
     private static InMemoryPhoneBook sInMemoryPhoneBook;
 
+    /** Value of {@link #mLastUpdatedTimestamp} until contacts are loaded. */
+    private static final long NOT_LOADED = -1;
+
+    private static final String MIMETYPE_SELECTION = ContactsContract.Data.MIMETYPE + " = ? OR "
+            + ContactsContract.Data.MIMETYPE + " = ? OR "
+            + ContactsContract.Data.MIMETYPE + " = ?";
+    private static final String[] MIMETYPE_SELECTION_ARGS = new String[]{
+            ContactsContract.CommonDataKinds.Phone.CONTENT_ITEM_TYPE,
+            ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE,
+            ContactsContract.CommonDataKinds.StructuredPostal.CONTENT_ITEM_TYPE};
+    private static final String ORDER_BY = ContactsContract.Contacts.DISPLAY_NAME + " ASC ";
+
+    /**
+     * Listener for the changes applied to the {@link InMemoryPhoneBook}.
+     */
+    public interface OnContactsChangedListener {
+        /** Called on the main thread after contacts were loaded, updated or deleted. */
+        @MainThread
+        void onContactsChanged(@NonNull ContactChanges changes);
+    }
+
+    /**
+     * The contacts added, updated and removed by a load. Contacts are identified by their lookup
+     * key and account name.
+     */
+    public static class ContactChanges {
+        final List<Contact> mAdded = new ArrayList<>();
+        final List<Contact> mUpdated = new ArrayList<>();
+        final List<Contact> mRemoved = new ArrayList<>();
+
+        /** Returns the contacts that were not loaded before. */
+        @NonNull
+        public List<Contact> getAdded() {
+            return mAdded;
+        }
+
+        /** Returns the new versions of contacts that were loaded before. */
+        @NonNull
+        public List<Contact> getUpdated() {
+            return mUpdated;
+        }
+
+        /** Returns the contacts that are not loaded anymore. */
+        @NonNull
+        public List<Contact> getRemoved() {
+            return mRemoved;
+        }
+
+        /** Returns whether there is no change. */
+        public boolean isEmpty() {
+            return mAdded.isEmpty() && mUpdated.isEmpty() && mRemoved.isEmpty();
+        }
+    }
+
     private final Context mContext;
     private final AsyncQueryLiveData<List<Contact>> mContactListAsyncQueryLiveData;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final List<OnContactsChangedListener> mOnContactsChangedListeners =
+            new CopyOnWriteArrayList<>();
     /**
-     * A map to speed up phone number searching.
+     * The loaded contacts. Replaced as a whole by the loading thread, so lookups from other
+     * threads never see a partially applied change.
      */
-    private final Map<I18nPhoneNumberWrapper, Contact> mPhoneNumberContactMap = new HashMap<>();
+    private volatile PhoneBookIndex mIndex = PhoneBookIndex.EMPTY;
     /**
-     * A map to look up contact by account name and lookup key. Each entry presents a map of lookup
-     * key to contacts for one account.
+     * The latest {@link ContactsContract.Contacts#CONTACT_LAST_UPDATED_TIMESTAMP} that was loaded.
+     * Only the loaded contact rows move it, as they are the one consistent snapshot of a load.
+     * Deletions and contacts without rows are queried again until it passes them, which is
+     * harmless as applying them twice changes nothing.
      */
-    private final Map<String, Map<String, Contact>> mLookupKeyContactMap = new HashMap<>();
+    private volatile long mLastUpdatedTimestamp = NOT_LOADED;
+    /**
+     * Hashes of the rows of the contacts that were loaded at {@link #mLastUpdatedTimestamp}, by
+     * contact id. These contacts are loaded again by the next load, which must not report them as
+     * updated unless their rows changed. Only accessed by the loading thread.
+     */
+    private Map<Long, Integer> mRowHashesAtLastUpdatedTimestamp = Collections.emptyMap();
     private boolean mIsLoaded = false;
 
     /**
@@ -98,22 +175,12 @@ public class InMemoryPhoneBook implements Observer<List<Contact>> {
         sInMemoryPhoneBook = null;
     }
 
-    private InMemoryPhoneBook(Context context) {
+    @VisibleForTesting
+    InMemoryPhoneBook(Context context) {
         mContext = context;
 
-        QueryParam contactListQueryParam = new QueryParam(
-                ContactsContract.Data.CONTENT_URI,
-                null,
-                ContactsContract.Data.MIMETYPE + " = ? OR "
-                        + ContactsContract.Data.MIMETYPE + " = ? OR "
-                        + ContactsContract.Data.MIMETYPE + " = ?",
-                new String[]{
-                        ContactsContract.CommonDataKinds.Phone.CONTENT_ITEM_TYPE,
-                        ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE,
-                        ContactsContract.CommonDataKinds.StructuredPostal.CONTENT_ITEM_TYPE},
-                ContactsContract.Contacts.DISPLAY_NAME + " ASC ");
         mContactListAsyncQueryLiveData = new AsyncQueryLiveData<List<Contact>>(mContext,
-                QueryParam.of(contactListQueryParam), Executors.newSingleThreadExecutor()) {
+                this::getContactListQueryParam, Executors.newSingleThreadExecutor()) {
             @Override
             protected List<Contact> convertToEntity(Cursor cursor) {
                 return onCursorLoaded(cursor);
@@ -140,6 +207,19 @@ public class InMemoryPhoneBook implements Observer<List<Contact>> {
         return mContactListAsyncQueryLiveData;
     }
 
+    /**
+     * Adds a listener for the changes of the contacts. Unlike {@link #getContactsLiveData()}, it
+     * is called with the changes of every load.
+     */
+    public void addOnContactsChangedListener(@NonNull OnContactsChangedListener listener) {
+        mOnContactsChangedListeners.add(listener);
+    }
+
+    /** Removes a listener added with {@link #addOnContactsChangedListener}. */
+    public void removeOnContactsChangedListener(@NonNull OnContactsChangedListener listener) {
+        mOnContactsChangedListeners.remove(listener);
+    }
+
     /**
      * Looks up a {@link Contact} by the given phone number. Returns null if can't find a Contact or
      * the {@link InMemoryPhoneBook} is still loading.
@@ -158,7 +238,7 @@ public class InMemoryPhoneBook implements Observer<List<Contact>> {
 
         I18nPhoneNumberWrapper i18nPhoneNumber = I18nPhoneNumberWrapper.Factory.INSTANCE.get(
                 mContext, phoneNumber);
-        return mPhoneNumberContactMap.get(i18nPhoneNumber);
+        return mIndex.getContact(i18nPhoneNumber);
     }
 
     /**
@@ -174,11 +254,7 @@ public class InMemoryPhoneBook implements Observer<List<Contact>> {
             Log.w(TAG, "looking up an empty lookup key.");
             return null;
         }
-        if (mLookupKeyContactMap.containsKey(accountName)) {
-            return mLookupKeyContactMap.get(accountName).get(lookupKey);
-        }
-
-        return null;
+        return mIndex.getContact(lookupKey, accountName);
     }
 
     /**
@@ -196,50 +272,161 @@ public class InMemoryPhoneBook implements Observer<List<Contact>> {
             Log.w(TAG, "looking up an empty lookup key.");
             return Collections.emptyList();
         }
-        List<Contact> results = new ArrayList<>();
-        // Iterate all the accounts to get all the match contacts with given lookup key.
-        for (Map<String, Contact> subMap : mLookupKeyContactMap.values()) {
-            if (subMap.containsKey(lookupKey)) {
-                results.add(subMap.get(lookupKey));
-            }
-        }
-
-        return results;
+        return mIndex.getContacts(lookupKey);
     }
 
-    private List<Contact> onCursorLoaded(Cursor cursor) {
-        Map<String, Map<String, Contact>> contactMap = new LinkedHashMap<>();
-        List<Contact> contactList = new ArrayList<>();
+    /**
+     * Returns the query for all the contacts before the first load, and for the contacts updated
+     * since the last load afterwards.
+     */
+    @VisibleForTesting
+    QueryParam getContactListQueryParam() {
+        long lastUpdatedTimestamp = mLastUpdatedTimestamp;
+        if (lastUpdatedTimestamp == NOT_LOADED) {
+            return new QueryParam(ContactsContract.Data.CONTENT_URI, ContactColumns.PROJECTION,
+                    MIMETYPE_SELECTION, MIMETYPE_SELECTION_ARGS, ORDER_BY);
+        }
+        String[] selectionArgs = new String[MIMETYPE_SELECTION_ARGS.length + 1];
+        System.arraycopy(MIMETYPE_SELECTION_ARGS, 0, selectionArgs, 0,
+                MIMETYPE_SELECTION_ARGS.length);
+        // Contacts updated within the same millisecond as the last load are loaded again, as
+        // they might have been updated after it. onCursorLoaded skips the ones it already has.
+        selectionArgs[MIMETYPE_SELECTION_ARGS.length] = String.valueOf(lastUpdatedTimestamp);
+        return new QueryParam(ContactsContract.Data.CONTENT_URI, ContactColumns.PROJECTION,
+                "(" + MIMETYPE_SELECTION + ") AND "
+                        + ContactsContract.Data.CONTACT_LAST_UPDATED_TIMESTAMP + " >= ?",
+                selectionArgs, ORDER_BY);
+    }
 
+    /**
+     * Applies the loaded contacts to the current ones. Each contact id in the cursor replaces all
+     * the contacts of that id, which makes loading the same changes twice harmless. Contacts that
+     * were already loaded at the last updated timestamp are kept unless their rows changed.
+     */
+    @VisibleForTesting
+    @WorkerThread
+    List<Contact> onCursorLoaded(Cursor cursor) {
+        long lastUpdatedTimestamp = mLastUpdatedTimestamp;
+        long newLastUpdatedTimestamp = Math.max(lastUpdatedTimestamp, 0);
+        Map<Long, List<Contact>> loadedContacts = new HashMap<>();
+        Map<Long, Long> loadedTimestamps = new HashMap<>();
+        Map<Long, Integer> loadedRowHashes = new HashMap<>();
+
+        ContactColumns columns = new ContactColumns(cursor);
         while (cursor.moveToNext()) {
-            int accountNameColumn = cursor.getColumnIndex(
-                    ContactsContract.RawContacts.ACCOUNT_NAME);
-            int lookupKeyColumn = cursor.getColumnIndex(ContactsContract.Data.LOOKUP_KEY);
-            String accountName = cursor.getString(accountNameColumn);
-            String lookupKey = cursor.getString(lookupKeyColumn);
-
-            if (!contactMap.containsKey(accountName)) {
-                contactMap.put(accountName, new HashMap<>());
+            long contactId = cursor.getLong(columns.mContactId);
+            String accountName = cursor.getString(columns.mAccountName);
+            String lookupKey = cursor.getString(columns.mLookupKey);
+            long timestamp = cursor.getLong(columns.mLastUpdatedTimestamp);
+            newLastUpdatedTimestamp = Math.max(newLastUpdatedTimestamp, timestamp);
+            loadedTimestamps.merge(contactId, timestamp, Math::max);
+            loadedRowHashes.merge(contactId, hashRow(cursor), Integer::sum);
+
+            List<Contact> contacts = loadedContacts.computeIfAbsent(contactId,
+                    id -> new ArrayList<>(1));
+            Contact contact = PhoneBookIndex.findContact(contacts, accountName, lookupKey);
+            Contact loadedContact = Contact.fromCursor(mContext, cursor, columns, contact);
+            if (loadedContact != contact) {
+                contacts.add(loadedContact);
             }
+        }
 
-            Map<String, Contact> subMap = contactMap.get(accountName);
-            subMap.put(lookupKey, Contact.fromCursor(mContext, cursor, subMap.get(lookupKey)));
+        Set<Long> deletedContactIds = new HashSet<>();
+        if (lastUpdatedTimestamp != NOT_LOADED) {
+            // The query includes the last updated timestamp, so the contacts the last load
+            // applied at that timestamp come back, most likely unchanged.
+            for (Map.Entry<Long, Integer> entry : mRowHashesAtLastUpdatedTimestamp.entrySet()) {
+                long contactId = entry.getKey();
+                Long timestamp = loadedTimestamps.get(contactId);
+                if (timestamp != null && timestamp == lastUpdatedTimestamp
+                        && entry.getValue().equals(loadedRowHashes.get(contactId))) {
+                    loadedContacts.remove(contactId);
+                }
+            }
+            queryDeletedContactIds(lastUpdatedTimestamp, deletedContactIds);
+            queryContactIdsWithoutRows(lastUpdatedTimestamp, loadedTimestamps.keySet(),
+                    deletedContactIds);
+        }
+        Map<Long, Integer> rowHashesAtLastUpdatedTimestamp = new HashMap<>();
+        for (Map.Entry<Long, Long> entry : loadedTimestamps.entrySet()) {
+            if (entry.getValue() == newLastUpdatedTimestamp) {
+                rowHashesAtLastUpdatedTimestamp.put(entry.getKey(),
+                        loadedRowHashes.get(entry.getKey()));
+            }
         }
 
-        for (Map<String, Contact> subMap : contactMap.values()) {
-            contactList.addAll(subMap.values());
+        ContactChanges changes = new ContactChanges();
+        PhoneBookIndex index = mIndex.apply(loadedContacts, deletedContactIds, changes);
+        mIndex = index;
+        mLastUpdatedTimestamp = newLastUpdatedTimestamp;
+        mRowHashesAtLastUpdatedTimestamp = rowHashesAtLastUpdatedTimestamp;
+        Log.d(TAG, String.format("Contacts changes: %d added, %d updated, %d removed",
+                changes.mAdded.size(), changes.mUpdated.size(), changes.mRemoved.size()));
+        if (!changes.isEmpty()) {
+            mMainHandler.post(() -> {
+                for (OnContactsChangedListener listener : mOnContactsChangedListeners) {
+                    listener.onContactsChanged(changes);
+                }
+            });
         }
 
-        mLookupKeyContactMap.clear();
-        mLookupKeyContactMap.putAll(contactMap);
+        return new ArrayList<>(index.getAllContacts());
+    }
 
-        mPhoneNumberContactMap.clear();
-        for (Contact contact : contactList) {
-            for (PhoneNumber phoneNumber : contact.getNumbers()) {
-                mPhoneNumberContactMap.put(phoneNumber.getI18nPhoneNumberWrapper(), contact);
+    /**
+     * Returns a hash of the values of the current row. The hashes of the rows of a contact are
+     * summed, so they don't depend on the order of the rows.
+     */
+    private static int hashRow(Cursor cursor) {
+        int hash = 1;
+        for (int i = 0; i < cursor.getColumnCount(); i++) {
+            hash = 31 * hash + Objects.hashCode(cursor.getString(i));
+        }
+        return hash;
+    }
+
+    /** Adds the ids of the contacts deleted since the given timestamp to the set. */
+    @WorkerThread
+    private void queryDeletedContactIds(long sinceTimestamp, Set<Long> deletedContactIds) {
+        try (Cursor cursor = mContext.getContentResolver().query(
+                ContactsContract.DeletedContacts.CONTENT_URI,
+                new String[]{ContactsContract.DeletedContacts.CONTACT_ID},
+                ContactsContract.DeletedContacts.CONTACT_DELETED_TIMESTAMP + " >= ?",
+                new String[]{String.valueOf(sinceTimestamp)},
+                null)) {
+            if (cursor == null) {
+                return;
+            }
+            while (cursor.moveToNext()) {
+                deletedContactIds.add(cursor.getLong(0));
+            }
+        }
+    }
+
+    /**
+     * Adds the ids of the contacts updated since the given timestamp that have no loaded rows to
+     * the set. These contacts lost their last phone number, name and postal address, so no row
+     * of theirs is left to load.
+     */
+    @WorkerThread
+    private void queryContactIdsWithoutRows(long sinceTimestamp, Set<Long> loadedContactIds,
+            Set<Long> contactIds) {
+        try (Cursor cursor = mContext.getContentResolver().query(
+                ContactsContract.Contacts.CONTENT_URI,
+                new String[]{ContactsContract.Contacts._ID},
+                ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + " >= ?",
+                new String[]{String.valueOf(sinceTimestamp)},
+                null)) {
+            if (cursor == null) {
+                return;
+            }
+            while (cursor.moveToNext()) {
+                long contactId = cursor.getLong(0);
+                if (!loadedContactIds.contains(contactId)) {
+                    contactIds.add(contactId);
+                }
             }
         }
-        return contactList;
     }
 
     @Override
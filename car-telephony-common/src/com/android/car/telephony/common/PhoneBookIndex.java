@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.telephony.common;
+
+import android.text.TextUtils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable snapshot of the contacts loaded by {@link InMemoryPhoneBook}, indexed for lookups.
+ * <p>
+ * Changes are applied by building a new snapshot, so a snapshot can be read from any thread
+ * without locking while the next one is being built.
+ */
+class PhoneBookIndex {
+    static final PhoneBookIndex EMPTY = new PhoneBookIndex(new HashMap<>(), new HashMap<>(),
+            new HashMap<>());
+
+    /**
+     * The caller id index. Phone numbers are bucketed by {@link
+     * I18nPhoneNumberWrapper#getIndexKey()}, so a lookup is one hash probe followed by comparing
+     * the few numbers sharing the same national significant number. A number shared by several
+     * contacts has one entry per contact, and lookups return the first one. Buckets are never
+     * modified.
+     */
+    private final Map<String, List<NumberEntry>> mPhoneNumberContactMap;
+    /**
+     * A map to look up contact by account name and lookup key. Each entry presents a map of lookup
+     * key to contacts for one account.
+     */
+    private final Map<String, Map<String, Contact>> mLookupKeyContactMap;
+    /**
+     * A map to find the contacts to replace when a contact is updated or deleted. Each entry
+     * holds the contacts of one aggregated contact id, one per account.
+     */
+    private final Map<Long, List<Contact>> mContactIdMap;
+    private final List<Contact> mContacts;
+
+    private PhoneBookIndex(Map<String, List<NumberEntry>> phoneNumberContactMap,
+            Map<String, Map<String, Contact>> lookupKeyContactMap,
+            Map<Long, List<Contact>> contactIdMap) {
+        mPhoneNumberContactMap = phoneNumberContactMap;
+        mLookupKeyContactMap = lookupKeyContactMap;
+        mContactIdMap = contactIdMap;
+        List<Contact> contacts = new ArrayList<>();
+        for (Map<String, Contact> subMap : lookupKeyContactMap.values()) {
+            contacts.addAll(subMap.values());
+        }
+        mContacts = Collections.unmodifiableList(contacts);
+    }
+
+    /** Returns the contact with the given phone number, or null. */
+    @Nullable
+    Contact getContact(I18nPhoneNumberWrapper phoneNumber) {
+        List<NumberEntry> bucket = mPhoneNumberContactMap.get(phoneNumber.getIndexKey());
+        if (bucket == null) {
+            return null;
+        }
+        for (NumberEntry entry : bucket) {
+            if (entry.mNumber.equals(phoneNumber)) {
+                return entry.mContact;
+            }
+        }
+        return null;
+    }
+
+    /** Returns the contact with the given lookup key and account name, or null. */
+    @Nullable
+    Contact getContact(String lookupKey, @Nullable String accountName) {
+        Map<String, Contact> subMap = mLookupKeyContactMap.get(accountName);
+        return subMap == null ? null : subMap.get(lookupKey);
+    }
+
+    /** Returns the contacts with the given lookup key in all the accounts. */
+    @NonNull
+    List<Contact> getContacts(String lookupKey) {
+        List<Contact> results = new ArrayList<>();
+        for (Map<String, Contact> subMap : mLookupKeyContactMap.values()) {
+            Contact contact = subMap.get(lookupKey);
+            if (contact != null) {
+                results.add(contact);
+            }
+        }
+        return results;
+    }
+
+    /** Returns all the contacts. The list can't be modified. */
+    @NonNull
+    List<Contact> getAllContacts() {
+        return mContacts;
+    }
+
+    /**
+     * Returns a new snapshot with the given changes applied, and records them in {@code changes}.
+     * The contacts of a loaded contact id replace all the previous contacts of that id.
+     *
+     * @param loadedContacts the loaded contacts by aggregated contact id.
+     * @param deletedContactIds the aggregated contact ids to remove.
+     */
+    @NonNull
+    PhoneBookIndex apply(Map<Long, List<Contact>> loadedContacts, Set<Long> deletedContactIds,
+            InMemoryPhoneBook.ContactChanges changes) {
+        Map<String, List<NumberEntry>> phoneNumberContactMap =
+                new HashMap<>(mPhoneNumberContactMap);
+        Map<String, Map<String, Contact>> lookupKeyContactMap = new HashMap<>();
+        for (Map.Entry<String, Map<String, Contact>> entry : mLookupKeyContactMap.entrySet()) {
+            lookupKeyContactMap.put(entry.getKey(), new HashMap<>(entry.getValue()));
+        }
+        Map<Long, List<Contact>> contactIdMap = new HashMap<>(mContactIdMap);
+
+        for (Long contactId : deletedContactIds) {
+            List<Contact> oldContacts = contactIdMap.remove(contactId);
+            if (oldContacts != null) {
+                for (Contact contact : oldContacts) {
+                    remove(contact, phoneNumberContactMap, lookupKeyContactMap);
+                    changes.mRemoved.add(contact);
+                }
+            }
+        }
+
+        for (Map.Entry<Long, List<Contact>> entry : loadedContacts.entrySet()) {
+            List<Contact> newContacts = Collections.unmodifiableList(
+                    new ArrayList<>(entry.getValue()));
+            List<Contact> oldContacts = contactIdMap.put(entry.getKey(), newContacts);
+            if (oldContacts != null) {
+                for (Contact contact : oldContacts) {
+                    remove(contact, phoneNumberContactMap, lookupKeyContactMap);
+                    if (findContact(newContacts, contact.getAccountName(),
+                            contact.getLookupKey()) == null) {
+                        changes.mRemoved.add(contact);
+                    }
+                }
+            }
+            for (Contact contact : newContacts) {
+                add(contact, phoneNumberContactMap, lookupKeyContactMap);
+                if (oldContacts != null && findContact(oldContacts, contact.getAccountName(),
+                        contact.getLookupKey()) != null) {
+                    changes.mUpdated.add(contact);
+                } else {
+                    changes.mAdded.add(contact);
+                }
+            }
+        }
+
+        for (Map.Entry<String, Map<String, Contact>> entry : lookupKeyContactMap.entrySet()) {
+            entry.setValue(Collections.unmodifiableMap(entry.getValue()));
+        }
+        return new PhoneBookIndex(Collections.unmodifiableMap(phoneNumberContactMap),
+                Collections.unmodifiableMap(lookupKeyContactMap),
+                Collections.unmodifiableMap(contactIdMap));
+    }
+
+    /**
+     * Returns the contact of the list with the given account name and lookup key, or null.
+     */
+    @Nullable
+    static Contact findContact(List<Contact> contacts, String accountName, String lookupKey) {
+        for (Contact contact : contacts) {
+            if (TextUtils.equals(accountName, contact.getAccountName())
+                    && TextUtils.equals(lookupKey, contact.getLookupKey())) {
+                return contact;
+            }
+        }
+        return null;
+    }
+
+    private static void add(Contact contact,
+            Map<String, List<NumberEntry>> phoneNumberContactMap,
+            Map<String, Map<String, Contact>> lookupKeyContactMap) {
+        lookupKeyContactMap.computeIfAbsent(contact.getAccountName(), account -> new HashMap<>())
+                .put(contact.getLookupKey(), contact);
+        for (PhoneNumber phoneNumber : contact.getNumbers()) {
+            I18nPhoneNumberWrapper number = phoneNumber.getI18nPhoneNumberWrapper();
+            List<NumberEntry> bucket = phoneNumberContactMap.get(number.getIndexKey());
+            List<NumberEntry> newBucket = new ArrayList<>(bucket == null ? 1 : bucket.size() + 1);
+            if (bucket != null) {
+                // Entries of other contacts with the same number are kept, so that the number
+                // still finds one of them once this contact is removed.
+                newBucket.addAll(bucket);
+            }
+            newBucket.add(new NumberEntry(number, contact));
+            phoneNumberContactMap.put(number.getIndexKey(), newBucket);
+        }
+    }
+
+    private static void remove(Contact contact,
+            Map<String, List<NumberEntry>> phoneNumberContactMap,
+            Map<String, Map<String, Contact>> lookupKeyContactMap) {
+        Map<String, Contact> subMap = lookupKeyContactMap.get(contact.getAccountName());
+        if (subMap != null && subMap.get(contact.getLookupKey()) == contact) {
+            subMap.remove(contact.getLookupKey());
+            if (subMap.isEmpty()) {
+                lookupKeyContactMap.remove(contact.getAccountName());
+            }
+        }
+        for (PhoneNumber phoneNumber : contact.getNumbers()) {
+            String indexKey = phoneNumber.getI18nPhoneNumberWrapper().getIndexKey();
+            List<NumberEntry> bucket = phoneNumberContactMap.get(indexKey);
+            if (bucket == null) {
+                continue;
+            }
+            List<NumberEntry> newBucket = new ArrayList<>(bucket.size());
+            for (NumberEntry entry : bucket) {
+                if (entry.mContact != contact) {
+                    newBucket.add(entry);
+                }
+            }
+            if (newBucket.isEmpty()) {
+                phoneNumberContactMap.remove(indexKey);
+            } else if (newBucket.size() != bucket.size()) {
+                phoneNumberContactMap.put(indexKey, newBucket);
+            }
+        }
+    }
+
+    /** A phone number of a contact in the caller id index. */
+    private static class NumberEntry {
+        final I18nPhoneNumberWrapper mNumber;
+        final Contact mContact;
+
+        NumberEntry(I18nPhoneNumberWrapper number, Contact contact) {
+            mNumber = number;
+            mContact = contact;
+        }
+    }
+}
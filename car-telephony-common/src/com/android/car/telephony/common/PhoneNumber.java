@@ -21,7 +21,6 @@ import android.content.res.Resources;
 import android.database.Cursor;
 import android.os.Parcel;
 import android.os.Parcelable;
-import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.text.TextUtils;
 
@@ -53,29 +52,21 @@ public class PhoneNumber implements Parcelable {
     private boolean mIsFavorite;
 
     static PhoneNumber fromCursor(Context context, Cursor cursor) {
-        int typeColumn = cursor.getColumnIndex(ContactsContract.CommonDataKinds.Phone.TYPE);
-        int labelColumn = cursor.getColumnIndex(ContactsContract.CommonDataKinds.Phone.LABEL);
-        int numberColumn = cursor.getColumnIndex(ContactsContract.CommonDataKinds.Phone.NUMBER);
-        int rawDataIdColumn = cursor.getColumnIndex(ContactsContract.CommonDataKinds.Phone._ID);
-        int dataVersionColumn = cursor.getColumnIndex(
-                ContactsContract.CommonDataKinds.Phone.DATA_VERSION);
-        // IS_PRIMARY means primary entry of the raw contact and IS_SUPER_PRIMARY means primary
-        // entry of the aggregated contact. It is guaranteed that only one data entry is super
-        // primary.
-        int isPrimaryColumn = cursor.getColumnIndex(
-                ContactsContract.CommonDataKinds.Phone.IS_SUPER_PRIMARY);
-        int accountNameColumn = cursor.getColumnIndex(ContactsContract.RawContacts.ACCOUNT_NAME);
-        int accountTypeColumn = cursor.getColumnIndex(ContactsContract.RawContacts.ACCOUNT_TYPE);
+        return fromCursor(context, cursor, ContactColumns.forPhoneNumber(cursor));
+    }
+
+    /** Reads a phone number from the columns resolved once for the whole cursor. */
+    static PhoneNumber fromCursor(Context context, Cursor cursor, ContactColumns columns) {
         return PhoneNumber.newInstance(
                 context,
-                cursor.getString(numberColumn),
-                cursor.getInt(typeColumn),
-                cursor.getString(labelColumn),
-                cursor.getInt(isPrimaryColumn) > 0,
-                cursor.getLong(rawDataIdColumn),
-                cursor.getString(accountNameColumn),
-                cursor.getString(accountTypeColumn),
-                cursor.getInt(dataVersionColumn));
+                cursor.getString(columns.mNumber),
+                cursor.getInt(columns.mNumberType),
+                cursor.getString(columns.mNumberLabel),
+                cursor.getInt(columns.mIsSuperPrimary) > 0,
+                cursor.getLong(columns.mDataId),
+                cursor.getString(columns.mAccountName),
+                cursor.getString(columns.mAccountType),
+                cursor.getInt(columns.mDataVersion));
     }
 
     /**
@@ -53,17 +53,15 @@ public class PostalAddress implements Parcelable {
      * Parses a PostalAddress entry for a Cursor loaded from the Address Database.
      */
     public static PostalAddress fromCursor(Cursor cursor) {
-        int formattedAddressColumn = cursor.getColumnIndex(
-                ContactsContract.CommonDataKinds.StructuredPostal.FORMATTED_ADDRESS);
-        int addressTypeColumn = cursor.getColumnIndex(
-                ContactsContract.CommonDataKinds.StructuredPostal.TYPE);
-        int labelColumn = cursor.getColumnIndex(
-                ContactsContract.CommonDataKinds.StructuredPostal.LABEL);
+        return fromCursor(cursor, ContactColumns.forPostalAddress(cursor));
+    }
 
+    /** Reads a PostalAddress from the columns resolved once for the whole cursor. */
+    static PostalAddress fromCursor(Cursor cursor, ContactColumns columns) {
         PostalAddress postalAddress = new PostalAddress();
-        postalAddress.mFormattedAddress = cursor.getString(formattedAddressColumn);
-        postalAddress.mType = cursor.getInt(addressTypeColumn);
-        postalAddress.mLabel = cursor.getString(labelColumn);
+        postalAddress.mFormattedAddress = cursor.getString(columns.mFormattedAddress);
+        postalAddress.mType = cursor.getInt(columns.mAddressType);
+        postalAddress.mLabel = cursor.getString(columns.mAddressLabel);
 
         return postalAddress;
     }
@@ -161,7 +161,7 @@ public class TelecomUtils {
         return countryIso;
     }
 
-    private static String getCurrentCountryIso(Context context) {
+    static String getCurrentCountryIso(Context context) {
         return getCurrentCountryIso(context, Locale.getDefault());
     }
 
@@ -171,8 +171,16 @@ public class TelecomUtils {
      */
     @Nullable
     public static Phonenumber.PhoneNumber createI18nPhoneNumber(Context context, String number) {
+        return createI18nPhoneNumber(number, getCurrentCountryIso(context));
+    }
+
+    /**
+     * Same as {@link #createI18nPhoneNumber(Context, String)} with a known country code.
+     */
+    @Nullable
+    static Phonenumber.PhoneNumber createI18nPhoneNumber(String number, String countryIso) {
         try {
-            return PhoneNumberUtil.getInstance().parse(number, getCurrentCountryIso(context));
+            return PhoneNumberUtil.getInstance().parse(number, countryIso);
         } catch (NumberParseException e) {
             return null;
         }
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.telephony.common;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.database.Cursor;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class ContactColumnsTest {
+
+    private static final int MIMETYPE_COLUMN = 1;
+    private static final int DISPLAY_NAME_COLUMN = 2;
+    /** {@link Phone#NUMBER} and {@link StructuredPostal#FORMATTED_ADDRESS} are both DATA1. */
+    private static final int DATA1_COLUMN = 3;
+
+    @Mock
+    private Cursor mMockCursor;
+
+    @Before
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+
+        when(mMockCursor.getColumnIndex(ContactsContract.Data.MIMETYPE)).thenReturn(
+                MIMETYPE_COLUMN);
+        when(mMockCursor.getColumnIndex(ContactsContract.Data.DISPLAY_NAME)).thenReturn(
+                DISPLAY_NAME_COLUMN);
+        when(mMockCursor.getColumnIndex(ContactsContract.Data.DATA1)).thenReturn(DATA1_COLUMN);
+    }
+
+    @Test
+    public void constructor_resolvesAllColumns() {
+        ContactColumns columns = new ContactColumns(mMockCursor);
+
+        assertThat(columns.mDisplayName).isEqualTo(DISPLAY_NAME_COLUMN);
+        assertThat(columns.mNumber).isEqualTo(DATA1_COLUMN);
+        verify(mMockCursor, times(28)).getColumnIndex(anyString());
+    }
+
+    @Test
+    public void forPhoneNumber_onlyResolvesPhoneColumns() {
+        ContactColumns columns = ContactColumns.forPhoneNumber(mMockCursor);
+
+        assertThat(columns.mNumber).isEqualTo(DATA1_COLUMN);
+        assertThat(columns.mDisplayName).isEqualTo(-1);
+        assertThat(columns.mFormattedAddress).isEqualTo(-1);
+        verify(mMockCursor, times(8)).getColumnIndex(anyString());
+    }
+
+    @Test
+    public void forPostalAddress_onlyResolvesPostalColumns() {
+        ContactColumns columns = ContactColumns.forPostalAddress(mMockCursor);
+
+        assertThat(columns.mFormattedAddress).isEqualTo(DATA1_COLUMN);
+        assertThat(columns.mDisplayName).isEqualTo(-1);
+        assertThat(columns.mNumber).isEqualTo(-1);
+        verify(mMockCursor, times(3)).getColumnIndex(anyString());
+    }
+
+    @Test
+    public void forCurrentRow_phoneRow_resolvesCommonAndPhoneColumns() {
+        when(mMockCursor.getString(MIMETYPE_COLUMN)).thenReturn(Phone.CONTENT_ITEM_TYPE);
+
+        ContactColumns columns = ContactColumns.forCurrentRow(mMockCursor);
+
+        assertThat(columns.mMimetype).isEqualTo(MIMETYPE_COLUMN);
+        assertThat(columns.mDisplayName).isEqualTo(DISPLAY_NAME_COLUMN);
+        assertThat(columns.mNumber).isEqualTo(DATA1_COLUMN);
+        assertThat(columns.mFormattedAddress).isEqualTo(-1);
+        assertThat(columns.mLastUpdatedTimestamp).isEqualTo(-1);
+    }
+
+    @Test
+    public void forCurrentRow_postalRow_resolvesCommonAndPostalColumns() {
+        when(mMockCursor.getString(MIMETYPE_COLUMN)).thenReturn(
+                StructuredPostal.CONTENT_ITEM_TYPE);
+
+        ContactColumns columns = ContactColumns.forCurrentRow(mMockCursor);
+
+        assertThat(columns.mDisplayName).isEqualTo(DISPLAY_NAME_COLUMN);
+        assertThat(columns.mFormattedAddress).isEqualTo(DATA1_COLUMN);
+        assertThat(columns.mNumber).isEqualTo(-1);
+        assertThat(columns.mGivenName).isEqualTo(-1);
+    }
+
+    @Test
+    public void forCurrentRow_unknownMimetype_resolvesCommonColumnsOnly() {
+        ContactColumns columns = ContactColumns.forCurrentRow(mMockCursor);
+
+        assertThat(columns.mDisplayName).isEqualTo(DISPLAY_NAME_COLUMN);
+        assertThat(columns.mNumber).isEqualTo(-1);
+        assertThat(columns.mGivenName).isEqualTo(-1);
+        assertThat(columns.mFormattedAddress).isEqualTo(-1);
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.telephony.common;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.robolectric.Shadows.shadowOf;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Looper;
+import android.provider.ContactsContract;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class InMemoryPhoneBookTest {
+
+    private static final String ACCOUNT_NAME = "account";
+    private static final String LOOKUP_KEY_1 = "key1";
+    private static final String LOOKUP_KEY_2 = "key2";
+    private static final String LOOKUP_KEY_3 = "key3";
+    private static final long CONTACT_ID_1 = 1;
+    private static final long CONTACT_ID_2 = 2;
+    private static final long CONTACT_ID_3 = 3;
+
+    private Context mContext;
+    private FakeContactsProvider mProvider;
+    private InMemoryPhoneBook mPhoneBook;
+
+    @Before
+    public void setup() {
+        mContext = RuntimeEnvironment.application;
+        mProvider = Robolectric.buildContentProvider(FakeContactsProvider.class)
+                .create(ContactsContract.AUTHORITY).get();
+        mPhoneBook = new InMemoryPhoneBook(mContext);
+    }
+
+    @Test
+    public void getContactListQueryParam_notLoaded_queriesAllContacts() {
+        QueryParam queryParam = mPhoneBook.getContactListQueryParam();
+
+        assertThat(queryParam.mSelection).doesNotContain(
+                ContactsContract.Data.CONTACT_LAST_UPDATED_TIMESTAMP);
+    }
+
+    @Test
+    public void getContactListQueryParam_loaded_queriesContactsUpdatedSinceLastLoad() {
+        MatrixCursor cursor = newDataCursor();
+        addNameRow(cursor, CONTACT_ID_1, LOOKUP_KEY_1, "Name 1", /* timestamp= */ 200);
+        addNameRow(cursor, CONTACT_ID_2, LOOKUP_KEY_2, "Name 2", /* timestamp= */ 100);
+
+        mPhoneBook.onCursorLoaded(cursor);
+        QueryParam queryParam = mPhoneBook.getContactListQueryParam();
+
+        assertThat(queryParam.mSelection).contains(
+                ContactsContract.Data.CONTACT_LAST_UPDATED_TIMESTAMP + " >= ?");
+        assertThat(queryParam.mSelectionArgs[queryParam.mSelectionArgs.length - 1])
+                .isEqualTo("200");
+    }
+
+    @Test
+    public void onCursorLoaded_firstLoad_doesNotQueryDeletedContacts() {
+        mPhoneBook.onCursorLoaded(newDataCursor());
+
+        assertThat(mProvider.mDeletedContactsQueries).isEmpty();
+    }
+
+    @Test
+    public void onCursorLoaded_deltaLoad_replacesUpdatedContactAndKeepsOthers() {
+        loadTwoContacts();
+        MatrixCursor cursor = newDataCursor();
+        addNameRow(cursor, CONTACT_ID_1, LOOKUP_KEY_1, "New name", /* timestamp= */ 300);
+
+        List<Contact> contacts = mPhoneBook.onCursorLoaded(cursor);
+
+        assertThat(contacts).hasSize(2);
+        assertThat(mPhoneBook.lookupContactByKey(LOOKUP_KEY_1, ACCOUNT_NAME).getDisplayName())
+                .isEqualTo("New name");
+        assertThat(mPhoneBook.lookupContactByKey(LOOKUP_KEY_2, ACCOUNT_NAME)).isNotNull();
+    }
+
+    @Test
+    public void onCursorLoaded_deltaLoad_removesDeletedContacts() {
+        loadTwoContacts();
+        mProvider.mDeletedContacts.add(new Object[]{CONTACT_ID_2, 300L});
+
+        List<Contact> contacts = mPhoneBook.onCursorLoaded(newDataCursor());
+
+        assertThat(mProvider.mDeletedContactsQueries).containsExactly("200");
+        assertThat(contacts).hasSize(1);
+        assertThat(mPhoneBook.lookupContactByKey(LOOKUP_KEY_1, ACCOUNT_NAME)).isNotNull();
+        assertThat(mPhoneBook.lookupContactByKey(LOOKUP_KEY_2, ACCOUNT_NAME)).isNull();
+    }
+
+    @Test
+    public void onCursorLoaded_deltaLoad_removesContactsWithoutRows() {
+        loadTwoContacts();
+        mProvider.mContacts.add(new Object[]{CONTACT_ID_1, 300L});
+
+        List<Contact> contacts = mPhoneBook.onCursorLoaded(newDataCursor());
+
+        assertThat(contacts).hasSize(1);
+        assertThat(mPhoneBook.lookupContactByKey(LOOKUP_KEY_1, ACCOUNT_NAME)).isNull();
+        assertThat(mPhoneBook.lookupContactByKey(LOOKUP_KEY_2, ACCOUNT_NAME)).isNotNull();
+    }
+
+    @Test
+    public void onCursorLoaded_deltaLoad_keepsLastUpdatedTimestampOfLoadedRows() {
+        loadTwoContacts();
+        mProvider.mDeletedContacts.add(new Object[]{CONTACT_ID_2, 300L});
+
+        mPhoneBook.onCursorLoaded(newDataCursor());
+        QueryParam queryParam = mPhoneBook.getContactListQueryParam();
+
+        assertThat(queryParam.mSelectionArgs[queryParam.mSelectionArgs.length - 1])
+                .isEqualTo("200");
+    }
+
+    @Test
+    public void onCursorLoaded_deltaLoad_notifiesChanges() {
+        loadTwoContacts();
+        Contact deletedContact = mPhoneBook.lookupContactByKey(LOOKUP_KEY_2, ACCOUNT_NAME);
+        List<InMemoryPhoneBook.ContactChanges> notifiedChanges = new ArrayList<>();
+        mPhoneBook.addOnContactsChangedListener(notifiedChanges::add);
+        mProvider.mDeletedContacts.add(new Object[]{CONTACT_ID_2, 300L});
+        MatrixCursor cursor = newDataCursor();
+        addNameRow(cursor, CONTACT_ID_1, LOOKUP_KEY_1, "New name", /* timestamp= */ 300);
+
+        mPhoneBook.onCursorLoaded(cursor);
+        shadowOf(Looper.getMainLooper()).idle();
+
+        assertThat(notifiedChanges).hasSize(1);
+        assertThat(notifiedChanges.get(0).getAdded()).isEmpty();
+        assertThat(notifiedChanges.get(0).getUpdated()).containsExactly(
+                mPhoneBook.lookupContactByKey(LOOKUP_KEY_1, ACCOUNT_NAME));
+        assertThat(notifiedChanges.get(0).getRemoved()).containsExactly(deletedContact);
+    }
+
+    @Test
+    public void onCursorLoaded_deltaLoadWithoutChanges_notifiesNothing() {
+        loadTwoContacts();
+        List<InMemoryPhoneBook.ContactChanges> notifiedChanges = new ArrayList<>();
+        mPhoneBook.addOnContactsChangedListener(notifiedChanges::add);
+
+        mPhoneBook.onCursorLoaded(newDataCursor());
+        shadowOf(Looper.getMainLooper()).idle();
+
+        assertThat(notifiedChanges).isEmpty();
+    }
+
+    @Test
+    public void onCursorLoaded_deltaLoadOfUnchangedContactAtLastUpdatedTimestamp_notifiesNothing() {
+        loadTwoContacts();
+        List<InMemoryPhoneBook.ContactChanges> notifiedChanges = new ArrayList<>();
+        mPhoneBook.addOnContactsChangedListener(notifiedChanges::add);
+        MatrixCursor cursor = newDataCursor();
+        addNameRow(cursor, CONTACT_ID_2, LOOKUP_KEY_2, "Name 2", /* timestamp= */ 200);
+
+        mPhoneBook.onCursorLoaded(cursor);
+        shadowOf(Looper.getMainLooper()).idle();
+
+        assertThat(notifiedChanges).isEmpty();
+    }
+
+    @Test
+    public void onCursorLoaded_deltaLoadOfChangedContactAtLastUpdatedTimestamp_updatesContact() {
+        loadTwoContacts();
+        MatrixCursor cursor = newDataCursor();
+        addNameRow(cursor, CONTACT_ID_2, LOOKUP_KEY_2, "New name", /* timestamp= */ 200);
+
+        mPhoneBook.onCursorLoaded(cursor);
+
+        assertThat(mPhoneBook.lookupContactByKey(LOOKUP_KEY_2, ACCOUNT_NAME).getDisplayName())
+                .isEqualTo("New name");
+    }
+
+    @Test
+    public void onCursorLoaded_deltaLoadOfNewContactAtLastUpdatedTimestamp_addsContact() {
+        loadTwoContacts();
+        List<InMemoryPhoneBook.ContactChanges> notifiedChanges = new ArrayList<>();
+        mPhoneBook.addOnContactsChangedListener(notifiedChanges::add);
+        MatrixCursor cursor = newDataCursor();
+        addNameRow(cursor, CONTACT_ID_2, LOOKUP_KEY_2, "Name 2", /* timestamp= */ 200);
+        addNameRow(cursor, CONTACT_ID_3, LOOKUP_KEY_3, "Name 3", /* timestamp= */ 200);
+
+        mPhoneBook.onCursorLoaded(cursor);
+        shadowOf(Looper.getMainLooper()).idle();
+
+        assertThat(notifiedChanges).hasSize(1);
+        assertThat(notifiedChanges.get(0).getAdded()).containsExactly(
+                mPhoneBook.lookupContactByKey(LOOKUP_KEY_3, ACCOUNT_NAME));
+        assertThat(notifiedChanges.get(0).getUpdated()).isEmpty();
+        assertThat(notifiedChanges.get(0).getRemoved()).isEmpty();
+    }
+
+    /** Loads two contacts, last updated at 100 and 200. */
+    private void loadTwoContacts() {
+        MatrixCursor cursor = newDataCursor();
+        addNameRow(cursor, CONTACT_ID_1, LOOKUP_KEY_1, "Name 1", /* timestamp= */ 100);
+        addNameRow(cursor, CONTACT_ID_2, LOOKUP_KEY_2, "Name 2", /* timestamp= */ 200);
+        mPhoneBook.onCursorLoaded(cursor);
+    }
+
+    private static MatrixCursor newDataCursor() {
+        return new MatrixCursor(ContactColumns.PROJECTION);
+    }
+
+    private static void addNameRow(MatrixCursor cursor, long contactId, String lookupKey,
+            String displayName, long timestamp) {
+        List<String> columns = Arrays.asList(ContactColumns.PROJECTION);
+        Object[] row = new Object[columns.size()];
+        row[columns.indexOf(ContactsContract.Data.MIMETYPE)] =
+                ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE;
+        row[columns.indexOf(ContactsContract.Data.CONTACT_LAST_UPDATED_TIMESTAMP)] = timestamp;
+        row[columns.indexOf(ContactsContract.RawContacts.CONTACT_ID)] = contactId;
+        row[columns.indexOf(ContactsContract.RawContacts.ACCOUNT_NAME)] = ACCOUNT_NAME;
+        row[columns.indexOf(ContactsContract.Data.LOOKUP_KEY)] = lookupKey;
+        row[columns.indexOf(ContactsContract.Data.DISPLAY_NAME)] = displayName;
+        cursor.addRow(row);
+    }
+
+    /**
+     * Serves the deleted and the updated contacts, and records the timestamps the deleted ones
+     * were queried since.
+     */
+    public static class FakeContactsProvider extends ContentProvider {
+        final List<Object[]> mDeletedContacts = new ArrayList<>();
+        final List<String> mDeletedContactsQueries = new ArrayList<>();
+        final List<Object[]> mContacts = new ArrayList<>();
+
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            List<Object[]> rows;
+            if (ContactsContract.DeletedContacts.CONTENT_URI.equals(uri)) {
+                mDeletedContactsQueries.add(selectionArgs[0]);
+                rows = mDeletedContacts;
+            } else if (ContactsContract.Contacts.CONTENT_URI.equals(uri)) {
+                rows = mContacts;
+            } else {
+                return null;
+            }
+            long sinceTimestamp = Long.parseLong(selectionArgs[0]);
+            MatrixCursor cursor = new MatrixCursor(projection);
+            for (Object[] row : rows) {
+                if ((long) row[1] >= sinceTimestamp) {
+                    cursor.addRow(Arrays.copyOf(row, projection.length));
+                }
+            }
+            return cursor;
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return null;
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            return null;
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            return 0;
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection,
+                String[] selectionArgs) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.telephony.common;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.ContactsContract;
+import android.telephony.TelephonyManager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(RobolectricTestRunner.class)
+public class PhoneBookIndexTest {
+
+    private static final int ACCOUNT_NAME_COLUMN = 1;
+    private static final int LOOKUP_KEY_COLUMN = 2;
+    private static final int MIMETYPE_COLUMN = 3;
+    private static final int NUMBER_COLUMN = 4;
+
+    private static final String ACCOUNT_NAME = "account";
+    private static final String LOOKUP_KEY_1 = "key1";
+    private static final String LOOKUP_KEY_2 = "key2";
+    private static final long CONTACT_ID_1 = 1;
+    private static final long CONTACT_ID_2 = 2;
+    private static final String SHARED_NUMBER = "650-253-0000";
+    private static final String OTHER_NUMBER = "650-253-0001";
+
+    private static final int READER_COUNT = 4;
+    private static final int RELOAD_COUNT = 1000;
+
+    @Mock
+    private Context mMockContext;
+    @Mock
+    private Cursor mMockCursor;
+    @Mock
+    private TelephonyManager mMockTelephonyManager;
+
+    @Before
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+
+        when(mMockCursor.getColumnIndex(ContactsContract.RawContacts.ACCOUNT_NAME)).thenReturn(
+                ACCOUNT_NAME_COLUMN);
+        when(mMockCursor.getColumnIndex(ContactsContract.Data.LOOKUP_KEY)).thenReturn(
+                LOOKUP_KEY_COLUMN);
+        when(mMockCursor.getColumnIndex(ContactsContract.Data.MIMETYPE)).thenReturn(
+                MIMETYPE_COLUMN);
+        when(mMockCursor.getColumnIndex(ContactsContract.CommonDataKinds.Phone.NUMBER))
+                .thenReturn(NUMBER_COLUMN);
+        when(mMockCursor.getString(ACCOUNT_NAME_COLUMN)).thenReturn(ACCOUNT_NAME);
+        when(mMockCursor.getString(MIMETYPE_COLUMN)).thenReturn(
+                ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE);
+        when(mMockContext.getSystemService(Context.TELEPHONY_SERVICE)).thenReturn(
+                mMockTelephonyManager);
+    }
+
+    @Test
+    public void apply_newContactId_added() {
+        Contact contact = createContact(LOOKUP_KEY_1);
+
+        InMemoryPhoneBook.ContactChanges changes = new InMemoryPhoneBook.ContactChanges();
+        PhoneBookIndex index = PhoneBookIndex.EMPTY.apply(
+                loaded(CONTACT_ID_1, contact), Collections.emptySet(), changes);
+
+        assertThat(changes.getAdded()).containsExactly(contact);
+        assertThat(index.getContact(LOOKUP_KEY_1, ACCOUNT_NAME)).isSameAs(contact);
+        assertThat(index.getContacts(LOOKUP_KEY_1)).containsExactly(contact);
+        assertThat(PhoneBookIndex.EMPTY.getContact(LOOKUP_KEY_1, ACCOUNT_NAME)).isNull();
+    }
+
+    @Test
+    public void apply_loadedContactId_replacesPreviousContact() {
+        Contact oldContact = createContact(LOOKUP_KEY_1);
+        Contact newContact = createContact(LOOKUP_KEY_1);
+        PhoneBookIndex oldIndex = PhoneBookIndex.EMPTY.apply(loaded(CONTACT_ID_1, oldContact),
+                Collections.emptySet(), new InMemoryPhoneBook.ContactChanges());
+
+        InMemoryPhoneBook.ContactChanges changes = new InMemoryPhoneBook.ContactChanges();
+        PhoneBookIndex newIndex = oldIndex.apply(loaded(CONTACT_ID_1, newContact),
+                Collections.emptySet(), changes);
+
+        assertThat(changes.getUpdated()).containsExactly(newContact);
+        assertThat(changes.getRemoved()).isEmpty();
+        assertThat(newIndex.getContact(LOOKUP_KEY_1, ACCOUNT_NAME)).isSameAs(newContact);
+        assertThat(newIndex.getAllContacts()).hasSize(1);
+        assertThat(oldIndex.getContact(LOOKUP_KEY_1, ACCOUNT_NAME)).isSameAs(oldContact);
+    }
+
+    @Test
+    public void apply_deletedContactId_removed() {
+        Contact contact1 = createContact(LOOKUP_KEY_1);
+        Contact contact2 = createContact(LOOKUP_KEY_2);
+        Map<Long, List<Contact>> loadedContacts = loaded(CONTACT_ID_1, contact1);
+        loadedContacts.putAll(loaded(CONTACT_ID_2, contact2));
+        PhoneBookIndex oldIndex = PhoneBookIndex.EMPTY.apply(loadedContacts,
+                Collections.emptySet(), new InMemoryPhoneBook.ContactChanges());
+
+        InMemoryPhoneBook.ContactChanges changes = new InMemoryPhoneBook.ContactChanges();
+        PhoneBookIndex newIndex = oldIndex.apply(Collections.emptyMap(),
+                Collections.singleton(CONTACT_ID_1), changes);
+
+        assertThat(changes.getRemoved()).containsExactly(contact1);
+        assertThat(newIndex.getContact(LOOKUP_KEY_1, ACCOUNT_NAME)).isNull();
+        assertThat(newIndex.getContact(LOOKUP_KEY_2, ACCOUNT_NAME)).isSameAs(contact2);
+    }
+
+    @Test
+    public void apply_deletedContactSharingNumber_numberFindsOtherContact() {
+        Contact contact1 = createContact(LOOKUP_KEY_1, SHARED_NUMBER);
+        Contact contact2 = createContact(LOOKUP_KEY_2, SHARED_NUMBER);
+        Map<Long, List<Contact>> loadedContacts = loaded(CONTACT_ID_1, contact1);
+        loadedContacts.putAll(loaded(CONTACT_ID_2, contact2));
+        PhoneBookIndex oldIndex = PhoneBookIndex.EMPTY.apply(loadedContacts,
+                Collections.emptySet(), new InMemoryPhoneBook.ContactChanges());
+        Contact found = oldIndex.getContact(number(SHARED_NUMBER));
+        assertThat(found).isAnyOf(contact1, contact2);
+
+        PhoneBookIndex newIndex = oldIndex.apply(Collections.emptyMap(),
+                Collections.singleton(found == contact1 ? CONTACT_ID_1 : CONTACT_ID_2),
+                new InMemoryPhoneBook.ContactChanges());
+
+        assertThat(newIndex.getContact(number(SHARED_NUMBER)))
+                .isSameAs(found == contact1 ? contact2 : contact1);
+    }
+
+    @Test
+    public void apply_updatedContactSharingNumber_numberFindsOtherContact() {
+        Contact contact1 = createContact(LOOKUP_KEY_1, SHARED_NUMBER);
+        Contact contact2 = createContact(LOOKUP_KEY_2, SHARED_NUMBER);
+        Map<Long, List<Contact>> loadedContacts = loaded(CONTACT_ID_1, contact1);
+        loadedContacts.putAll(loaded(CONTACT_ID_2, contact2));
+        PhoneBookIndex oldIndex = PhoneBookIndex.EMPTY.apply(loadedContacts,
+                Collections.emptySet(), new InMemoryPhoneBook.ContactChanges());
+        Contact newContact2 = createContact(LOOKUP_KEY_2, OTHER_NUMBER);
+
+        PhoneBookIndex newIndex = oldIndex.apply(loaded(CONTACT_ID_2, newContact2),
+                Collections.emptySet(), new InMemoryPhoneBook.ContactChanges());
+
+        assertThat(newIndex.getContact(number(SHARED_NUMBER))).isSameAs(contact1);
+        assertThat(newIndex.getContact(number(OTHER_NUMBER))).isSameAs(newContact2);
+    }
+
+    @Test
+    public void lookupsDuringReloads_neverMissUnchangedContact() throws InterruptedException {
+        Contact stableContact = createContact(LOOKUP_KEY_1);
+        List<Contact> versions = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            versions.add(createContact(LOOKUP_KEY_2));
+        }
+        Set<Long> noDeletion = Collections.emptySet();
+        PublishedIndex published = new PublishedIndex();
+        published.mIndex = PhoneBookIndex.EMPTY.apply(loaded(CONTACT_ID_1, stableContact),
+                noDeletion, new InMemoryPhoneBook.ContactChanges());
+
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicInteger failures = new AtomicInteger();
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < READER_COUNT; i++) {
+            Thread reader = new Thread(() -> {
+                while (!done.get()) {
+                    try {
+                        PhoneBookIndex index = published.mIndex;
+                        if (index.getContact(LOOKUP_KEY_1, ACCOUNT_NAME) != stableContact
+                                || index.getContacts(LOOKUP_KEY_1).size() != 1) {
+                            failures.incrementAndGet();
+                        }
+                    } catch (RuntimeException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            readers.add(reader);
+            reader.start();
+        }
+
+        for (int i = 0; i < RELOAD_COUNT; i++) {
+            // Alternates between replacing and deleting the other contact.
+            published.mIndex = (i % 2 == 0)
+                    ? published.mIndex.apply(loaded(CONTACT_ID_2, versions.get(i % 4 / 2)),
+                            noDeletion, new InMemoryPhoneBook.ContactChanges())
+                    : published.mIndex.apply(Collections.emptyMap(),
+                            Collections.singleton(CONTACT_ID_2),
+                            new InMemoryPhoneBook.ContactChanges());
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertThat(failures.get()).isEqualTo(0);
+    }
+
+    private Contact createContact(String lookupKey) {
+        when(mMockCursor.getString(LOOKUP_KEY_COLUMN)).thenReturn(lookupKey);
+        return Contact.fromCursor(mMockContext, mMockCursor);
+    }
+
+    private Contact createContact(String lookupKey, String number) {
+        when(mMockCursor.getString(LOOKUP_KEY_COLUMN)).thenReturn(lookupKey);
+        when(mMockCursor.getString(MIMETYPE_COLUMN)).thenReturn(
+                ContactsContract.CommonDataKinds.Phone.CONTENT_ITEM_TYPE);
+        when(mMockCursor.getString(NUMBER_COLUMN)).thenReturn(number);
+        Contact contact = Contact.fromCursor(mMockContext, mMockCursor);
+        when(mMockCursor.getString(MIMETYPE_COLUMN)).thenReturn(
+                ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE);
+        return contact;
+    }
+
+    private I18nPhoneNumberWrapper number(String number) {
+        return I18nPhoneNumberWrapper.Factory.INSTANCE.get(mMockContext, number);
+    }
+
+    private static Map<Long, List<Contact>> loaded(long contactId, Contact contact) {
+        Map<Long, List<Contact>> loadedContacts = new HashMap<>();
+        loadedContacts.put(contactId, Collections.singletonList(contact));
+        return loadedContacts;
+    }
+
+    /** Publishes indices the way {@link InMemoryPhoneBook} does. */
+    private static class PublishedIndex {
+        volatile PhoneBookIndex mIndex;
+    }
+}
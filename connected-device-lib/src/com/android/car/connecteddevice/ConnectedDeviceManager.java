@@ -27,6 +27,7 @@ import android.annotation.IntDef;
 import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.content.Context;
+import android.util.Pair;
 
 import com.android.car.connecteddevice.ble.BleCentralManager;
 import com.android.car.connecteddevice.ble.BlePeripheralManager;
@@ -34,6 +35,7 @@ import com.android.car.connecteddevice.ble.CarBleCentralManager;
 import com.android.car.connecteddevice.ble.CarBleManager;
 import com.android.car.connecteddevice.ble.CarBlePeripheralManager;
 import com.android.car.connecteddevice.ble.DeviceMessage;
+import com.android.car.connecteddevice.ble.StreamThreadingModel;
 import com.android.car.connecteddevice.model.AssociatedDevice;
 import com.android.car.connecteddevice.model.ConnectedDevice;
 import com.android.car.connecteddevice.storage.ConnectedDeviceStorage;
@@ -45,6 +47,7 @@ import com.android.internal.annotations.VisibleForTesting;
 
 import java.lang.annotation.Retention;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -78,14 +81,16 @@ public class ConnectedDeviceManager {
 
     private final CarBlePeripheralManager mPeripheralManager;
 
+    // Many features listen for these events, typically on the same executor. Notify them in one
+    // task per executor rather than one task per feature.
     private final ThreadSafeCallbacks<DeviceAssociationCallback> mDeviceAssociationCallbacks =
-            new ThreadSafeCallbacks<>();
+            new ThreadSafeCallbacks<>(ThreadSafeCallbacks.DISPATCH_PER_EXECUTOR);
 
     private final ThreadSafeCallbacks<ConnectionCallback> mActiveUserConnectionCallbacks =
-            new ThreadSafeCallbacks<>();
+            new ThreadSafeCallbacks<>(ThreadSafeCallbacks.DISPATCH_PER_EXECUTOR);
 
     private final ThreadSafeCallbacks<ConnectionCallback> mAllUserConnectionCallbacks =
-            new ThreadSafeCallbacks<>();
+            new ThreadSafeCallbacks<>(ThreadSafeCallbacks.DISPATCH_PER_EXECUTOR);
 
     // deviceId -> (recipientId -> callbacks)
     private final Map<String, Map<UUID, ThreadSafeCallbacks<DeviceCallback>>> mDeviceCallbacks =
@@ -95,9 +100,13 @@ public class ConnectedDeviceManager {
     private final Map<String, InternalConnectedDevice> mConnectedDevices =
             new ConcurrentHashMap<>();
 
-    // recipientId -> (deviceId -> message bytes)
-    private final Map<UUID, Map<String, byte[]>> mRecipientMissedMessages =
-            new ConcurrentHashMap<>();
+    private final MissedMessageStore mMissedMessageStore;
+
+    // (deviceId, recipientId) -> messages waiting for a delivery task that has not run yet.
+    // Messages that arrive while a delivery is pending join it instead of scheduling another.
+    private final Map<Pair<String, UUID>, List<byte[]>> mPendingDeliveries = new HashMap<>();
+
+    private final Object mPendingDeliveriesLock = new Object();
 
     // Recipient ids that received multiple callback registrations indicate that the recipient id
     // has been compromised. Another party now has access the messages intended for that recipient.
@@ -105,7 +114,8 @@ public class ConnectedDeviceManager {
     // callback notifications.
     private final Set<UUID> mBlacklistedRecipients = new CopyOnWriteArraySet<>();
 
-    private final AtomicBoolean mIsConnectingToUserDevice = new AtomicBoolean(false);
+    // Ids of the active user's devices the peripheral manager has been asked to connect to.
+    private final Set<String> mConnectingDeviceIds = ConcurrentHashMap.newKeySet();
 
     private final AtomicBoolean mHasStarted = new AtomicBoolean(false);
 
@@ -152,7 +162,12 @@ public class ConnectedDeviceManager {
                 context.getString(R.string.car_bg_mask),
                 UUID.fromString(context.getString(R.string.car_secure_write_uuid)),
                 UUID.fromString(context.getString(R.string.car_secure_read_uuid)),
-                context.getResources().getInteger(R.integer.car_reconnect_timeout_sec));
+                context.getResources().getInteger(R.integer.car_reconnect_timeout_sec),
+                context.getResources().getBoolean(R.bool.car_ble_stream_dedicated_thread)
+                        ? StreamThreadingModel.newDedicatedThreadModel()
+                        : StreamThreadingModel.newSharedThreadModel(),
+                context.getResources().getInteger(R.integer.car_ble_peripheral_max_connections),
+                context.getResources().getBoolean(R.bool.car_persist_missed_messages));
     }
 
     private ConnectedDeviceManager(
@@ -165,12 +180,18 @@ public class ConnectedDeviceManager {
             @NonNull String bgMask,
             @NonNull UUID writeCharacteristicUuid,
             @NonNull UUID readCharacteristicUuid,
-            int reconnectTimeoutSeconds) {
+            int reconnectTimeoutSeconds,
+            @NonNull StreamThreadingModel streamThreadingModel,
+            int maxPeripheralConnections,
+            boolean persistMissedMessages) {
         this(storage,
                 new CarBleCentralManager(context, bleCentralManager, storage, serviceUuid, bgMask,
                         writeCharacteristicUuid, readCharacteristicUuid),
                 new CarBlePeripheralManager(blePeripheralManager, storage, associationServiceUuid,
-                        writeCharacteristicUuid, readCharacteristicUuid), reconnectTimeoutSeconds);
+                        writeCharacteristicUuid, readCharacteristicUuid, streamThreadingModel,
+                        maxPeripheralConnections),
+                reconnectTimeoutSeconds,
+                new MissedMessageStore(persistMissedMessages ? storage : null));
     }
 
     @VisibleForTesting
@@ -179,8 +200,20 @@ public class ConnectedDeviceManager {
             @NonNull CarBleCentralManager centralManager,
             @NonNull CarBlePeripheralManager peripheralManager,
             int reconnectTimeoutSeconds) {
+        this(storage, centralManager, peripheralManager, reconnectTimeoutSeconds,
+                new MissedMessageStore(/* storage= */ null));
+    }
+
+    @VisibleForTesting
+    ConnectedDeviceManager(
+            @NonNull ConnectedDeviceStorage storage,
+            @NonNull CarBleCentralManager centralManager,
+            @NonNull CarBlePeripheralManager peripheralManager,
+            int reconnectTimeoutSeconds,
+            @NonNull MissedMessageStore missedMessageStore) {
         Executor callbackExecutor = Executors.newSingleThreadExecutor();
         mStorage = storage;
+        mMissedMessageStore = missedMessageStore;
         mCentralManager = centralManager;
         mPeripheralManager = peripheralManager;
         mCentralManager.registerCallback(generateCarBleCallback(centralManager), callbackExecutor);
@@ -200,7 +233,10 @@ public class ConnectedDeviceManager {
         } else {
             logd(TAG, "Starting ConnectedDeviceManager.");
             EventLog.onConnectedDeviceManagerStarted();
+            mMissedMessageStore.restore(System.currentTimeMillis());
         }
+        // Warm the key cache so the reconnect below does not wait on the KeyStore.
+        mStorage.prefetchActiveUserEncryptionKeys();
         // TODO (b/141312136) Start central manager
         mPeripheralManager.start();
         connectToActiveUserDevice();
@@ -214,7 +250,9 @@ public class ConnectedDeviceManager {
         }
         mPeripheralManager.stop();
         // TODO (b/141312136) Stop central manager
-        mIsConnectingToUserDevice.set(false);
+        mConnectingDeviceIds.clear();
+        // The next start may be for another user, whose keys must be read from storage again.
+        mStorage.clearEncryptionKeyCache();
     }
 
     /** Returns {@link List<ConnectedDevice>} of devices currently connected. */
@@ -283,33 +321,38 @@ public class ConnectedDeviceManager {
 
     private void connectToActiveUserDeviceInternal() {
         try {
-            if (mIsConnectingToUserDevice.get()) {
-                logd(TAG, "A request has already been made to connect to this user's device. "
-                        + "Ignoring redundant request.");
-                return;
-            }
             List<AssociatedDevice> userDevices = mStorage.getActiveUserAssociatedDevices();
             if (userDevices.isEmpty()) {
                 logw(TAG, "No devices associated with active user. Ignoring.");
                 return;
             }
 
-            // Only currently support one device per user for fast association, so take the
-            // first one.
-            AssociatedDevice userDevice = userDevices.get(0);
-            if (!userDevice.isConnectionEnabled()) {
-                logd(TAG, "Connection is disabled on device " + userDevice + ".");
-                return;
+            // The peripheral manager advertises for the requested devices one after another, as
+            // long as fewer than its maximum number of devices are connected.
+            boolean isSearchStarted = false;
+            for (AssociatedDevice userDevice : userDevices) {
+                String deviceId = userDevice.getDeviceId();
+                if (!userDevice.isConnectionEnabled()) {
+                    logd(TAG, "Connection is disabled on device " + userDevice + ".");
+                    continue;
+                }
+                if (mConnectedDevices.containsKey(deviceId)) {
+                    logd(TAG, "Device " + deviceId + " has already been connected. No need to "
+                            + "attempt connection again.");
+                    continue;
+                }
+                if (!mConnectingDeviceIds.add(deviceId)) {
+                    logd(TAG, "A request has already been made to connect to device " + deviceId
+                            + ". Ignoring redundant request.");
+                    continue;
+                }
+                if (!isSearchStarted) {
+                    EventLog.onStartDeviceSearchStarted();
+                    isSearchStarted = true;
+                }
+                mPeripheralManager.connectToDevice(UUID.fromString(deviceId),
+                        mReconnectTimeoutSeconds);
             }
-            if (mConnectedDevices.containsKey(userDevice.getDeviceId())) {
-                logd(TAG, "Device has already been connected. No need to attempt connection "
-                        + "again.");
-                return;
-            }
-            EventLog.onStartDeviceSearchStarted();
-            mIsConnectingToUserDevice.set(true);
-            mPeripheralManager.connectToDevice(UUID.fromString(userDevice.getDeviceId()),
-                    mReconnectTimeoutSeconds);
         } catch (Exception e) {
             loge(TAG, "Exception while attempting connection with active user's device.", e);
         }
@@ -425,14 +468,21 @@ public class ConnectedDeviceManager {
             return;
         }
 
-        ThreadSafeCallbacks<DeviceCallback> newCallbacks = new ThreadSafeCallbacks<>();
+        // Notified together with the callbacks of the other recipients of the device, in one task
+        // per executor.
+        ThreadSafeCallbacks<DeviceCallback> newCallbacks =
+                new ThreadSafeCallbacks<>(ThreadSafeCallbacks.DISPATCH_PER_EXECUTOR);
         newCallbacks.add(callback, executor);
         recipientCallbacks.put(recipientId, newCallbacks);
 
-        byte[] message = popMissedMessage(recipientId, device.getDeviceId());
-        if (message != null) {
+        List<byte[]> missedMessages = mMissedMessageStore.pop(recipientId, deviceId,
+                System.currentTimeMillis());
+        if (!missedMessages.isEmpty()) {
+            logd(TAG, "Delivering " + missedMessages.size() + " missed messages to recipient "
+                    + recipientId + ".");
+            // Deliver the whole backlog in a single task so it arrives in order and at once.
             newCallbacks.invoke(deviceCallback ->
-                    deviceCallback.onMessageReceived(device, message));
+                    deviceCallback.onMessagesReceived(device, missedMessages));
         }
     }
 
@@ -455,30 +505,10 @@ public class ConnectedDeviceManager {
 
     private void saveMissedMessage(@NonNull String deviceId, @NonNull UUID recipientId,
             @NonNull byte[] message) {
-        // Store last message in case recipient registers callbacks in the future.
+        // Store message in case recipient registers callbacks in the future.
         logd(TAG, "No recipient registered for device " + deviceId + " and recipient "
                 + recipientId + " combination. Saving message.");
-        mRecipientMissedMessages.putIfAbsent(recipientId, new HashMap<>());
-        mRecipientMissedMessages.get(recipientId).putIfAbsent(deviceId, message);
-    }
-
-    /**
-     * Remove the last message sent for this device prior to a {@link DeviceCallback} being
-     * registered.
-     *
-     * @param recipientId Recipient's id
-     * @param deviceId Device id
-     * @return The last missed {@code byte[]} of the message, or {@code null} if no messages were
-     *         missed.
-     */
-    @Nullable
-    private byte[] popMissedMessage(@NonNull UUID recipientId, @NonNull String deviceId) {
-        Map<String, byte[]> missedMessages = mRecipientMissedMessages.get(recipientId);
-        if (missedMessages == null) {
-            return null;
-        }
-
-        return missedMessages.remove(deviceId);
+        mMissedMessageStore.add(recipientId, deviceId, message, System.currentTimeMillis());
     }
 
     /**
@@ -506,6 +536,9 @@ public class ConnectedDeviceManager {
         callbacks.remove(callback);
         if (callbacks.size() == 0) {
             recipientCallbacks.remove(recipientId);
+            synchronized (mPendingDeliveriesLock) {
+                mPendingDeliveries.remove(new Pair<>(device.getDeviceId(), recipientId));
+            }
         }
     }
 
@@ -519,7 +552,23 @@ public class ConnectedDeviceManager {
      */
     public void sendMessageSecurely(@NonNull ConnectedDevice device, @NonNull UUID recipientId,
             @NonNull byte[] message) throws IllegalStateException {
-        sendMessage(device, recipientId, message, /* isEncrypted = */ true);
+        sendMessageSecurely(device, recipientId, message, DeviceMessage.PRIORITY_NORMAL);
+    }
+
+    /**
+     * Securely send message to a device with the given priority. Messages with a higher priority
+     * are sent ahead of queued messages with a lower priority.
+     *
+     * @param device {@link ConnectedDevice} to send the message to.
+     * @param recipientId Recipient {@link UUID}.
+     * @param message Message to send.
+     * @param priority {@link DeviceMessage.MessagePriority} of the message.
+     * @throws IllegalStateException Secure channel has not been established.
+     */
+    public void sendMessageSecurely(@NonNull ConnectedDevice device, @NonNull UUID recipientId,
+            @NonNull byte[] message, @DeviceMessage.MessagePriority int priority)
+            throws IllegalStateException {
+        sendMessage(device, recipientId, message, /* isEncrypted = */ true, priority);
     }
 
     /**
@@ -531,11 +580,26 @@ public class ConnectedDeviceManager {
      */
     public void sendMessageUnsecurely(@NonNull ConnectedDevice device, @NonNull UUID recipientId,
             @NonNull byte[] message) {
-        sendMessage(device, recipientId, message, /* isEncrypted = */ false);
+        sendMessageUnsecurely(device, recipientId, message, DeviceMessage.PRIORITY_NORMAL);
+    }
+
+    /**
+     * Send an unencrypted message to a device with the given priority. Messages with a higher
+     * priority are sent ahead of queued messages with a lower priority.
+     *
+     * @param device {@link ConnectedDevice} to send the message to.
+     * @param recipientId Recipient {@link UUID}.
+     * @param message Message to send.
+     * @param priority {@link DeviceMessage.MessagePriority} of the message.
+     */
+    public void sendMessageUnsecurely(@NonNull ConnectedDevice device, @NonNull UUID recipientId,
+            @NonNull byte[] message, @DeviceMessage.MessagePriority int priority) {
+        sendMessage(device, recipientId, message, /* isEncrypted = */ false, priority);
     }
 
     private void sendMessage(@NonNull ConnectedDevice device, @NonNull UUID recipientId,
-            @NonNull byte[] message, boolean isEncrypted) throws IllegalStateException {
+            @NonNull byte[] message, boolean isEncrypted,
+            @DeviceMessage.MessagePriority int priority) throws IllegalStateException {
         String deviceId = device.getDeviceId();
         logd(TAG, "Sending new message to device " + deviceId + " for " + recipientId
                 + " containing " + message.length + ". Message will be sent securely: "
@@ -553,7 +617,7 @@ public class ConnectedDeviceManager {
         }
 
         connectedDevice.mCarBleManager.sendMessage(deviceId,
-                new DeviceMessage(recipientId, isEncrypted, message));
+                new DeviceMessage(recipientId, isEncrypted, message, priority));
     }
 
     private boolean isRecipientBlacklisted(UUID recipientId) {
@@ -594,6 +658,7 @@ public class ConnectedDeviceManager {
             return;
         }
         logd(TAG, "New device with id " + deviceId + " connected.");
+        mConnectingDeviceIds.remove(deviceId);
         ConnectedDevice connectedDevice = new ConnectedDevice(
                 deviceId,
                 /* deviceName = */ null,
@@ -612,9 +677,10 @@ public class ConnectedDeviceManager {
         InternalConnectedDevice connectedDevice = getConnectedDeviceForManager(deviceId,
                 bleManager);
 
-        // If disconnect happened on peripheral, open for future requests to connect.
+        // If disconnect happened on peripheral, open for future requests to connect. Devices the
+        // peripheral manager is still waiting for ignore the repeated request.
         if (bleManager == mPeripheralManager) {
-            mIsConnectingToUserDevice.set(false);
+            mConnectingDeviceIds.clear();
         }
 
         if (connectedDevice == null) {
@@ -695,9 +761,31 @@ public class ConnectedDeviceManager {
             return;
         }
 
-        recipientCallbacks.invoke(
-                callback -> callback.onMessageReceived(connectedDevice.mConnectedDevice,
-                        message.getMessage()));
+        Pair<String, UUID> deliveryKey = new Pair<>(deviceId, recipientId);
+        List<byte[]> delivery;
+        synchronized (mPendingDeliveriesLock) {
+            List<byte[]> pendingDelivery = mPendingDeliveries.get(deliveryKey);
+            if (pendingDelivery != null) {
+                // A delivery task is already queued on the callback executor and has not run yet.
+                pendingDelivery.add(message.getMessage());
+                return;
+            }
+            delivery = new ArrayList<>();
+            delivery.add(message.getMessage());
+            mPendingDeliveries.put(deliveryKey, delivery);
+        }
+        recipientCallbacks.invoke(callback -> {
+            synchronized (mPendingDeliveriesLock) {
+                // Close the delivery so that later messages start a new one.
+                mPendingDeliveries.remove(deliveryKey, delivery);
+            }
+            if (delivery.size() == 1) {
+                callback.onMessageReceived(connectedDevice.mConnectedDevice, delivery.get(0));
+            } else {
+                callback.onMessagesReceived(connectedDevice.mConnectedDevice,
+                        Collections.unmodifiableList(delivery));
+            }
+        });
     }
 
     @VisibleForTesting
@@ -766,9 +854,7 @@ public class ConnectedDeviceManager {
             return;
         }
 
-        for (ThreadSafeCallbacks<DeviceCallback> callbacks : deviceCallbacks.values()) {
-            callbacks.invoke(notification);
-        }
+        ThreadSafeCallbacks.invokeAll(deviceCallbacks.values(), notification);
     }
 
     /**
@@ -897,6 +983,19 @@ public class ConnectedDeviceManager {
         /** Triggered when a new message is received from a device. */
         void onMessageReceived(@NonNull ConnectedDevice device, @NonNull byte[] message);
 
+        /**
+         * Triggered when several messages from a device are delivered at once, such as messages
+         * that arrived before the callback was registered or faster than the callback executor
+         * could run. Messages are in the order they were received. By default each message is
+         * passed to {@link #onMessageReceived(ConnectedDevice, byte[])} in turn.
+         */
+        default void onMessagesReceived(@NonNull ConnectedDevice device,
+                @NonNull List<byte[]> messages) {
+            for (byte[] message : messages) {
+                onMessageReceived(device, message);
+            }
+        }
+
         /** Triggered when an error has occurred for a device. */
         void onDeviceError(@NonNull ConnectedDevice device, @DeviceError int error);
     }
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.connecteddevice;
+
+import static com.android.car.connecteddevice.util.SafeLog.logd;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.Pair;
+
+import com.android.car.connecteddevice.storage.ConnectedDeviceStorage;
+import com.android.car.connecteddevice.storage.MissedMessageEntity;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Holds messages that arrived for a recipient before a {@link
+ * ConnectedDeviceManager.DeviceCallback} was registered for it.
+ *
+ * <p>Messages are kept per recipient and device in the order they arrived. The store is bounded
+ * by the number of messages per recipient and device, by the total number of message bytes, and
+ * by how long a message is kept. When a bound is exceeded the oldest messages are dropped first.
+ *
+ * <p>If a {@link ConnectedDeviceStorage} is provided, messages are also written to disk so that
+ * they survive a restart of the process.
+ */
+class MissedMessageStore {
+
+    private static final String TAG = "MissedMessageStore";
+
+    private static final int DEFAULT_MAX_MESSAGES_PER_RECIPIENT = 32;
+
+    private static final int DEFAULT_MAX_TOTAL_BYTES = 512 * 1024;
+
+    private static final long DEFAULT_TTL_MS = 10 * 60 * 1000;
+
+    private final ConnectedDeviceStorage mStorage;
+
+    private final int mMaxMessagesPerRecipient;
+
+    private final int mMaxTotalBytes;
+
+    private final long mTtlMs;
+
+    // (recipientId, deviceId) -> messages, oldest first.
+    private final Map<Pair<UUID, String>, ArrayDeque<MissedMessage>> mMessages = new HashMap<>();
+
+    // Every stored message, oldest first. Messages that have since been removed from mMessages
+    // are marked as such and skipped when this queue is trimmed.
+    private final ArrayDeque<MissedMessage> mArrivalOrder = new ArrayDeque<>();
+
+    private int mTotalBytes;
+
+    /**
+     * @param storage Storage to persist messages in, or {@code null} to keep them in memory only.
+     */
+    MissedMessageStore(@Nullable ConnectedDeviceStorage storage) {
+        this(storage, DEFAULT_MAX_MESSAGES_PER_RECIPIENT, DEFAULT_MAX_TOTAL_BYTES,
+                DEFAULT_TTL_MS);
+    }
+
+    MissedMessageStore(@Nullable ConnectedDeviceStorage storage, int maxMessagesPerRecipient,
+            int maxTotalBytes, long ttlMs) {
+        mStorage = storage;
+        mMaxMessagesPerRecipient = maxMessagesPerRecipient;
+        mMaxTotalBytes = maxTotalBytes;
+        mTtlMs = ttlMs;
+    }
+
+    /**
+     * Load messages persisted by a previous process. Messages older than the time-to-live are
+     * discarded. Does nothing if the store is not persistent.
+     *
+     * @param nowMs The current time in milliseconds since the epoch.
+     */
+    void restore(long nowMs) {
+        if (mStorage == null) {
+            return;
+        }
+        mStorage.getMissedMessagesAsync(nowMs - mTtlMs, Runnable::run, this::onRestored);
+    }
+
+    private synchronized void onRestored(@NonNull List<MissedMessageEntity> entities) {
+        // Messages may have been added while the persisted ones were loading. Rebuild the store in
+        // arrival order from both sets.
+        List<MissedMessage> messages = new ArrayList<>(entities.size() + mArrivalOrder.size());
+        for (MissedMessageEntity entity : entities) {
+            messages.add(new MissedMessage(entity.id, UUID.fromString(entity.recipientId),
+                    entity.deviceId, entity.message, entity.timestamp));
+        }
+        for (MissedMessage message : mArrivalOrder) {
+            if (!message.mIsRemoved) {
+                messages.add(message);
+            }
+        }
+        Collections.sort(messages, (first, second) ->
+                Long.compare(first.mTimestamp, second.mTimestamp));
+        mMessages.clear();
+        mArrivalOrder.clear();
+        mTotalBytes = 0;
+        List<String> evictedIds = new ArrayList<>();
+        for (MissedMessage message : messages) {
+            insert(message, evictedIds);
+        }
+        mStorage.removeMissedMessagesAsync(evictedIds);
+        logd(TAG, "Restored " + entities.size() + " persisted missed messages.");
+    }
+
+    /**
+     * Store a message for a recipient that has no callback registered yet.
+     *
+     * @param recipientId The recipient of the message.
+     * @param deviceId The device that sent the message.
+     * @param message The message payload.
+     * @param nowMs The current time in milliseconds since the epoch.
+     */
+    synchronized void add(@NonNull UUID recipientId, @NonNull String deviceId,
+            @NonNull byte[] message, long nowMs) {
+        if (message.length > mMaxTotalBytes) {
+            logd(TAG, "Dropping missed message of " + message.length + " bytes for recipient "
+                    + recipientId + ". It exceeds the size of the store.");
+            return;
+        }
+        List<String> evictedIds = new ArrayList<>();
+        evictExpired(nowMs, evictedIds);
+        MissedMessage missedMessage = new MissedMessage(UUID.randomUUID().toString(),
+                recipientId, deviceId, message, nowMs);
+        insert(missedMessage, evictedIds);
+        if (mStorage != null) {
+            mStorage.removeMissedMessagesAsync(evictedIds);
+            mStorage.saveMissedMessageAsync(new MissedMessageEntity(missedMessage.mId,
+                    recipientId.toString(), deviceId, message, nowMs));
+        }
+    }
+
+    /**
+     * Remove and return all messages stored for a recipient and device, oldest first.
+     *
+     * @param recipientId The recipient of the messages.
+     * @param deviceId The device that sent the messages.
+     * @param nowMs The current time in milliseconds since the epoch.
+     * @return The message payloads, or an empty list if no messages were missed.
+     */
+    @NonNull
+    synchronized List<byte[]> pop(@NonNull UUID recipientId, @NonNull String deviceId,
+            long nowMs) {
+        List<String> removedIds = new ArrayList<>();
+        evictExpired(nowMs, removedIds);
+        ArrayDeque<MissedMessage> queue = mMessages.remove(new Pair<>(recipientId, deviceId));
+        List<byte[]> messages = new ArrayList<>(queue == null ? 0 : queue.size());
+        if (queue != null) {
+            for (MissedMessage message : queue) {
+                markRemoved(message);
+                removedIds.add(message.mId);
+                messages.add(message.mMessage);
+            }
+        }
+        if (mStorage != null) {
+            mStorage.removeMissedMessagesAsync(removedIds);
+        }
+        return messages;
+    }
+
+    /** Returns the total number of bytes of all stored messages. */
+    synchronized int getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    private void insert(@NonNull MissedMessage message, @NonNull List<String> evictedIds) {
+        Pair<UUID, String> key = new Pair<>(message.mRecipientId, message.mDeviceId);
+        ArrayDeque<MissedMessage> queue = mMessages.get(key);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            mMessages.put(key, queue);
+        }
+        while (queue.size() >= mMaxMessagesPerRecipient) {
+            MissedMessage evicted = queue.remove();
+            markRemoved(evicted);
+            evictedIds.add(evicted.mId);
+        }
+        queue.add(message);
+        mArrivalOrder.add(message);
+        mTotalBytes += message.mMessage.length;
+        while (mTotalBytes > mMaxTotalBytes) {
+            evictOldest(evictedIds);
+        }
+    }
+
+    private void evictExpired(long nowMs, @NonNull List<String> evictedIds) {
+        long minTimestamp = nowMs - mTtlMs;
+        MissedMessage oldest;
+        while ((oldest = peekOldest()) != null && oldest.mTimestamp < minTimestamp) {
+            evictOldest(evictedIds);
+        }
+    }
+
+    @Nullable
+    private MissedMessage peekOldest() {
+        MissedMessage oldest = mArrivalOrder.peek();
+        while (oldest != null && oldest.mIsRemoved) {
+            mArrivalOrder.remove();
+            oldest = mArrivalOrder.peek();
+        }
+        return oldest;
+    }
+
+    private void evictOldest(@NonNull List<String> evictedIds) {
+        MissedMessage oldest = peekOldest();
+        if (oldest == null) {
+            return;
+        }
+        mArrivalOrder.remove();
+        Pair<UUID, String> key = new Pair<>(oldest.mRecipientId, oldest.mDeviceId);
+        ArrayDeque<MissedMessage> queue = mMessages.get(key);
+        if (queue != null) {
+            // The oldest message overall is also the oldest message of its recipient.
+            queue.remove(oldest);
+            if (queue.isEmpty()) {
+                mMessages.remove(key);
+            }
+        }
+        markRemoved(oldest);
+        evictedIds.add(oldest.mId);
+        logd(TAG, "Evicted missed message for recipient " + oldest.mRecipientId + ".");
+    }
+
+    private void markRemoved(@NonNull MissedMessage message) {
+        if (message.mIsRemoved) {
+            return;
+        }
+        message.mIsRemoved = true;
+        mTotalBytes -= message.mMessage.length;
+    }
+
+    private static class MissedMessage {
+        private final String mId;
+        private final UUID mRecipientId;
+        private final String mDeviceId;
+        private final byte[] mMessage;
+        private final long mTimestamp;
+        private boolean mIsRemoved;
+
+        MissedMessage(@NonNull String id, @NonNull UUID recipientId, @NonNull String deviceId,
+                @NonNull byte[] message, long timestamp) {
+            mId = id;
+            mRecipientId = recipientId;
+            mDeviceId = deviceId;
+            mMessage = message;
+            mTimestamp = timestamp;
+        }
+    }
+}
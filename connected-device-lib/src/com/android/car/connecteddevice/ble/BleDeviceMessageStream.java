@@ -27,32 +27,45 @@ import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.car.encryptionrunner.Key;
 import android.os.Handler;
-import android.os.Looper;
+import android.os.SystemClock;
 
 import com.android.car.connecteddevice.BleStreamProtos.BleDeviceMessageProto.BleDeviceMessage;
 import com.android.car.connecteddevice.util.ByteUtils;
 import com.android.car.protobuf.ByteString;
+import com.android.car.protobuf.CodedOutputStream;
 import com.android.car.protobuf.InvalidProtocolBufferException;
+import com.android.car.protobuf.UnsafeByteOperations;
+import com.android.car.protobuf.WireFormat;
 import com.android.internal.annotations.VisibleForTesting;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
 
 /** BLE message stream to a device. */
 class BleDeviceMessageStream {
 
     private static final String TAG = "BleDeviceMessageStream";
 
-    // Only version 2 of the messaging and version 1 of the security supported.
-    private static final int MESSAGING_VERSION = 2;
+    // Versions 2 to 4 of the messaging and version 1 of the security supported. Version 3 of
+    // the messaging adds windowed transmission of packets. Version 4 lets the car send its half
+    // of the reconnection authentication before receiving the device's.
+    private static final int MIN_MESSAGING_VERSION = 2;
+    private static final int MAX_MESSAGING_VERSION = 4;
+    private static final int WINDOWED_MESSAGING_VERSION = 3;
+    private static final int EARLY_SERVER_AUTH_MESSAGING_VERSION = 4;
     private static final int SECURITY_VERSION = 1;
 
     /*
@@ -64,14 +77,45 @@ class BleDeviceMessageStream {
     private static final long THROTTLE_DEFAULT_MS = 10L;
     private static final long THROTTLE_WAIT_MS = 75L;
 
-    private final ArrayDeque<BlePacket> mPacketQueue = new ArrayDeque<>();
+    /*
+     * Bounds of the number of packets that can be in flight at the same time when windowed
+     * transmission has been negotiated with the remote device. Notifications are sent without
+     * confirmation, so the remote device never acknowledges a packet. The latency measured here
+     * is the time until the local Bluetooth stack reports the notification as sent, which only
+     * reflects how quickly the stack drains its queue and not the receipt by the phone. The window
+     * grows by one packet for every full window that is sent in time and shrinks by one packet
+     * when the send latency exceeds LATENCY_BACKOFF_FACTOR times the lowest latency observed on
+     * this stream. Late completions of packets handed to the stack before the last reduction don't
+     * reduce the window again, so a window is reduced at most once per drained window. The window
+     * is halved when the stack rejects or fails to send a packet.
+     */
+    @VisibleForTesting
+    static final int INITIAL_WINDOW_SIZE = 4;
+    @VisibleForTesting
+    static final int MAX_WINDOW_SIZE = 16;
+    private static final int LATENCY_BACKOFF_FACTOR = 3;
+
+    private static final int MIN_WRITE_SIZE = 20;
+    private static final int WRITE_SIZE_PROBE_SUCCESSES = 64;
+
+    // Pauses longer than this are not counted towards the stream throughput.
+    private static final long THROUGHPUT_IDLE_MS = 1000L;
 
-    private final HashMap<Integer, ByteArrayOutputStream> mPendingData =
-            new HashMap<>();
+    // Default limits for messages that are still missing packets.
+    private static final long REASSEMBLY_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+    static final int MAX_REASSEMBLY_BYTES = 4 * 1024 * 1024;
+
+    // Outgoing packets waiting to be sent. Only modified on the handler.
+    private final BlePacketScheduler mPacketScheduler = new BlePacketScheduler();
+
+    private final BleMessageReassembler mReassembler =
+            new BleMessageReassembler(REASSEMBLY_TIMEOUT_MS, MAX_REASSEMBLY_BYTES);
 
     private final MessageIdGenerator mMessageIdGenerator = new MessageIdGenerator();
 
-    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Handler mHandler;
+
+    private final StreamThreadingModel mThreadingModel;
 
     private final AtomicBoolean mIsVersionExchanged = new AtomicBoolean(false);
 
@@ -79,34 +123,107 @@ class BleDeviceMessageStream {
 
     private final AtomicLong mThrottleDelay = new AtomicLong(THROTTLE_DEFAULT_MS);
 
+    private final AtomicBoolean mIsWindowedTransmission = new AtomicBoolean(false);
+
+    private final AtomicBoolean mIsEarlyServerAuthSupported = new AtomicBoolean(false);
+
+    private final AtomicInteger mWindowSize = new AtomicInteger(INITIAL_WINDOW_SIZE);
+
+    private final AtomicBoolean mIsCompressionEnabled = new AtomicBoolean(false);
+
+    private final MessageCompressor mMessageCompressor = new MessageCompressor();
+
+    // Packets handed to the stack but not yet reported as sent, oldest first. Only accessed on the handler.
+    private final ArrayDeque<InFlightPacket> mInFlightPackets = new ArrayDeque<>();
+
+    /*
+     * The write size derived from the MTU is an upper bound. The size used for new messages
+     * starts at that bound, drops when the stack fails to deliver a packet and climbs back towards
+     * the bound after a run of successful deliveries.
+     *
+     * The minimum value is 20 because BLE has a default write of 23 bytes. However, 3 bytes are
+     * subtracted due to bytes being reserved for the command type and attribute ID.
+     */
+    private final AtomicInteger mMaxWriteSize = new AtomicInteger(MIN_WRITE_SIZE);
+
+    private final AtomicInteger mWriteSize = new AtomicInteger(MIN_WRITE_SIZE);
+
+    private final ThroughputCounter mSentThroughput = new ThroughputCounter(THROUGHPUT_IDLE_MS);
+
+    private final ThroughputCounter mReceivedThroughput =
+            new ThroughputCounter(THROUGHPUT_IDLE_MS);
+
     private final BlePeripheralManager mBlePeripheralManager;
 
     private final BluetoothDevice mDevice;
 
-    private final BluetoothGattCharacteristic mWriteCharacteristic;
+    // The characteristics of the service the device talks through. Rebound on the handler when
+    // the first write arrives through another service of the GATT server.
+    private volatile BluetoothGattCharacteristic mWriteCharacteristic;
+
+    private volatile BluetoothGattCharacteristic mReadCharacteristic;
 
-    private final BluetoothGattCharacteristic mReadCharacteristic;
+    private final BlePeripheralManager.OnCharacteristicWriteListener mWriteListener =
+            this::onCharacteristicWrite;
+
+    private final BlePeripheralManager.OnCharacteristicReadListener mReadListener =
+            this::onCharacteristicRead;
+
+    private final BlePeripheralManager.OnNotificationFailedListener mNotificationFailedListener =
+            this::onNotificationFailed;
 
     private MessageReceivedListener mMessageReceivedListener;
 
     private MessageReceivedErrorListener mMessageReceivedErrorListener;
 
-    /*
-     * This initial value is 20 because BLE has a default write of 23 bytes. However, 3 bytes are
-     * subtracted due to bytes being reserved for the command type and attribute ID.
+    private int mSuccessfulWritesSinceResize;
+
+    private long mMinSendLatencyMs = Long.MAX_VALUE;
+
+    private int mSentSinceWindowChange;
+
+    // Sequence number of the next packet handed to the stack. Only accessed on the handler.
+    private long mNextSendSequence;
+
+    // Packets handed to the stack before this sequence number don't reduce the window when
+    // reported as sent late.
+    private long mLatencyReductionSequence;
+
+    /**
+     * Creates a stream that runs on the thread provided by the given {@link StreamThreadingModel}.
+     * All packet processing and all listener invocations happen on that thread. Call
+     * {@link #close()} when the stream is no longer used to give the thread back.
      */
-    private int mMaxWriteSize = 20;
+    BleDeviceMessageStream(@NonNull BlePeripheralManager blePeripheralManager,
+            @NonNull BluetoothDevice device,
+            @NonNull BluetoothGattCharacteristic writeCharacteristic,
+            @NonNull BluetoothGattCharacteristic readCharacteristic,
+            @NonNull StreamThreadingModel threadingModel) {
+        this(blePeripheralManager, device, writeCharacteristic, readCharacteristic,
+                threadingModel, threadingModel.acquireHandler(device));
+    }
 
+    @VisibleForTesting
     BleDeviceMessageStream(@NonNull BlePeripheralManager blePeripheralManager,
             @NonNull BluetoothDevice device,
             @NonNull BluetoothGattCharacteristic writeCharacteristic,
-            @NonNull BluetoothGattCharacteristic readCharacteristic) {
+            @NonNull BluetoothGattCharacteristic readCharacteristic,
+            @Nullable StreamThreadingModel threadingModel,
+            @NonNull Handler handler) {
         mBlePeripheralManager = blePeripheralManager;
         mDevice = device;
         mWriteCharacteristic = writeCharacteristic;
         mReadCharacteristic = readCharacteristic;
-        mBlePeripheralManager.addOnCharacteristicWriteListener(this::onCharacteristicWrite);
-        mBlePeripheralManager.addOnCharacteristicReadListener(this::onCharacteristicRead);
+        mThreadingModel = threadingModel;
+        mHandler = handler;
+        mBlePeripheralManager.addOnCharacteristicWriteListener(mWriteListener);
+        mBlePeripheralManager.addOnCharacteristicReadListener(mReadListener);
+        mBlePeripheralManager.addOnNotificationFailedListener(mNotificationFailedListener);
+        mReassembler.setOnMessageDroppedListener((messageId, exception) -> {
+            if (mMessageReceivedErrorListener != null) {
+                mMessageReceivedErrorListener.onMessageReceivedError(exception);
+            }
+        });
     }
 
     /**
@@ -128,56 +245,306 @@ class BleDeviceMessageStream {
      * a handshake message, the message recipient should be {@code null} and it cannot be
      * encrypted.
      *
+     * <p>Messages that are not {@code CLIENT_MESSAGE}s are sent ahead of all client messages.
+     * Client messages are ordered by their priority, and packets of different recipients with the
+     * same priority are interleaved.
+     *
      * @param deviceMessage The data object contains recipient, isPayloadEncrypted and message.
      * @param operationType The {@link OperationType} of this message.
      */
     void writeMessage(@NonNull DeviceMessage deviceMessage, OperationType operationType) {
         logd(TAG, "Writing message to device: " + mDevice.getAddress() + ".");
+        // Encrypted payloads are compressed by the secure channel before they are encrypted.
+        if (operationType == OperationType.CLIENT_MESSAGE && mIsCompressionEnabled.get()
+                && !deviceMessage.isMessageEncrypted()) {
+            mMessageCompressor.compress(deviceMessage);
+        }
+        // The caller's array is wrapped without a copy. This is safe because the message is
+        // serialized into a new buffer below, before this method returns, and nothing keeps a
+        // reference to the wrapped array afterwards.
         BleDeviceMessage.Builder builder = BleDeviceMessage.newBuilder()
                 .setOperation(operationType)
                 .setIsPayloadEncrypted(deviceMessage.isMessageEncrypted())
-                .setPayload(ByteString.copyFrom(deviceMessage.getMessage()));
+                .setPayload(UnsafeByteOperations.unsafeWrap(deviceMessage.getMessage()))
+                .setOriginalSize(deviceMessage.getOriginalMessageSize());
 
         UUID recipient = deviceMessage.getRecipient();
         if (recipient != null) {
             builder.setRecipient(ByteString.copyFrom(ByteUtils.uuidToBytes(recipient)));
         }
 
-        BleDeviceMessage bleDeviceMessage = builder.build();
-        byte[] rawBytes = bleDeviceMessage.toByteArray();
+        // Serialize the message once. Every packet references a slice of this single buffer, so
+        // the payload is only copied again when a packet is written to the characteristic.
+        enqueueMessage(builder.build().toByteString(), recipient, operationType,
+                deviceMessage.getPriority());
+    }
+
+    /**
+     * Encrypts the payload of the given message with the key and writes the message to the write
+     * characteristic of this stream as a {@code CLIENT_MESSAGE}.
+     *
+     * <p>The payload is encrypted directly into the buffer the packets are sliced from, so the
+     * encrypted payload is not copied again before it is written.
+     *
+     * @param deviceMessage The message to encrypt. Its payload is not modified.
+     * @param key The {@link Key} to encrypt the payload with.
+     */
+    void writeEncryptedMessage(@NonNull DeviceMessage deviceMessage, @NonNull Key key) {
+        logd(TAG, "Writing encrypted message to device: " + mDevice.getAddress() + ".");
+        BleDeviceMessage.Builder builder = BleDeviceMessage.newBuilder()
+                .setOperation(OperationType.CLIENT_MESSAGE)
+                .setIsPayloadEncrypted(true)
+                .setOriginalSize(deviceMessage.getOriginalMessageSize());
+
+        UUID recipient = deviceMessage.getRecipient();
+        if (recipient != null) {
+            builder.setRecipient(ByteString.copyFrom(ByteUtils.uuidToBytes(recipient)));
+        }
+
+        ByteString rawBytes;
+        try {
+            rawBytes = serializeWithEncryptedPayload(builder.build(), deviceMessage.getMessage(),
+                    key);
+        } catch (IOException | BufferOverflowException e) {
+            loge(TAG, "Error while encrypting message.", e);
+            return;
+        }
+        enqueueMessage(rawBytes, recipient, OperationType.CLIENT_MESSAGE,
+                deviceMessage.getPriority());
+    }
+
+    /**
+     * Serializes the message with the encrypted payload appended as its last field. Fields may
+     * appear in any order on the wire, so this parses the same as a message with the payload set.
+     */
+    @VisibleForTesting
+    @NonNull
+    static ByteString serializeWithEncryptedPayload(@NonNull BleDeviceMessage message,
+            @NonNull byte[] payload, @NonNull Key key) throws IOException {
+        int messageSize = message.getSerializedSize();
+        int tagSize = CodedOutputStream.computeTagSize(BleDeviceMessage.PAYLOAD_FIELD_NUMBER);
+        int maxPayloadSize = key.getMaxEncryptedSize(payload.length);
+        int maxLengthSize = CodedOutputStream.computeUInt32SizeNoTag(maxPayloadSize);
+        byte[] buffer = new byte[messageSize + tagSize + maxLengthSize + maxPayloadSize];
+
+        int payloadStart = messageSize + tagSize + maxLengthSize;
+        ByteBuffer encryptedPayload = key.encryptData(ByteBuffer.wrap(payload),
+                ByteBuffer.wrap(buffer, payloadStart, maxPayloadSize));
+        if (!encryptedPayload.hasArray() || encryptedPayload.array() != buffer) {
+            // The key's size bound fell short. The payload can't be encrypted again, so it is
+            // copied into the message instead.
+            return message.toBuilder()
+                    .setPayload(ByteString.copyFrom(encryptedPayload))
+                    .build()
+                    .toByteString();
+        }
+        int payloadSize = encryptedPayload.remaining();
+
+        // The length was reserved for the largest possible payload. If the actual length takes
+        // fewer bytes, move the payload up against it.
+        int lengthSize = CodedOutputStream.computeUInt32SizeNoTag(payloadSize);
+        int start = payloadStart - (maxLengthSize - lengthSize);
+        if (start != payloadStart) {
+            System.arraycopy(buffer, payloadStart, buffer, start, payloadSize);
+        }
+        CodedOutputStream output = CodedOutputStream.newInstance(buffer, 0, start);
+        message.writeTo(output);
+        output.writeTag(BleDeviceMessage.PAYLOAD_FIELD_NUMBER,
+                WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        output.writeUInt32NoTag(payloadSize);
+        output.checkNoSpaceLeft();
+        return UnsafeByteOperations.unsafeWrap(buffer, 0, start + payloadSize);
+    }
+
+    private void enqueueMessage(@NonNull ByteString rawBytes, @Nullable UUID recipient,
+            @NonNull OperationType operationType, @DeviceMessage.MessagePriority int priority) {
         List<BlePacket> blePackets;
         try {
             blePackets = BlePacketFactory.makeBlePackets(rawBytes, mMessageIdGenerator.next(),
-                    mMaxWriteSize);
+                    mWriteSize.get());
         } catch (BlePacketFactoryException e) {
             loge(TAG, "Error while creating message packets.", e);
             return;
         }
-        mPacketQueue.addAll(blePackets);
-        writeNextMessageInQueue();
+        mHandler.post(() -> {
+            mPacketScheduler.enqueue(recipient, operationType, priority, blePackets);
+            writeNextMessageInQueue();
+        });
+    }
+
+    /**
+     * Stops listening for packets and gives the stream thread back to its threading model.
+     * Packets that have not been sent yet are dropped.
+     */
+    void close() {
+        mBlePeripheralManager.removeOnCharacteristicWriteListener(mWriteListener);
+        mBlePeripheralManager.removeOnCharacteristicReadistener(mReadListener);
+        mBlePeripheralManager.removeOnNotificationFailedListener(mNotificationFailedListener);
+        if (mThreadingModel != null) {
+            mThreadingModel.releaseHandler(mHandler);
+        } else {
+            mHandler.removeCallbacksAndMessages(/* token = */ null);
+        }
+        mMessageCompressor.release();
     }
 
     private void writeNextMessageInQueue() {
         mHandler.postDelayed(() -> {
-            if (mPacketQueue.isEmpty()) {
+            if (mPacketScheduler.isEmpty()) {
                 logd(TAG, "No more packets to send.");
                 return;
             }
+            if (mIsWindowedTransmission.get()) {
+                writeWindowOfPackets();
+                return;
+            }
             if (mIsSendingInProgress.get()) {
                 logd(TAG, "Unable to send packet at this time.");
                 return;
             }
 
             mIsSendingInProgress.set(true);
-            BlePacket packet = mPacketQueue.remove();
+            BlePacketScheduler.QueuedPacket queuedPacket = mPacketScheduler.poll();
+            BlePacket packet = queuedPacket.mPacket;
             logd(TAG, "Writing packet " + packet.getPacketNumber() + " of "
                     + packet.getTotalPackets() + " for " + packet.getMessageId() + ".");
-            mWriteCharacteristic.setValue(packet.toByteArray());
+            byte[] value = packet.toByteArray();
+            mInFlightPackets.add(new InFlightPacket(queuedPacket, value,
+                    SystemClock.elapsedRealtime(), mNextSendSequence++));
             mBlePeripheralManager.notifyCharacteristicChanged(mDevice, mWriteCharacteristic,
-                    /* confirm = */ false);
+                    value, /* confirm = */ false);
         }, mThrottleDelay.get());
     }
 
+    /** Fills the transmission window with packets from the queue. Must run on the handler. */
+    private void writeWindowOfPackets() {
+        while (!mPacketScheduler.isEmpty() && mInFlightPackets.size() < mWindowSize.get()) {
+            BlePacketScheduler.QueuedPacket queuedPacket = mPacketScheduler.poll();
+            BlePacket packet = queuedPacket.mPacket;
+            logd(TAG, "Writing packet " + packet.getPacketNumber() + " of "
+                    + packet.getTotalPackets() + " for " + packet.getMessageId() + " with "
+                    + mInFlightPackets.size() + " packets in flight.");
+            byte[] value = packet.toByteArray();
+            if (!mBlePeripheralManager.notifyCharacteristicChanged(mDevice, mWriteCharacteristic,
+                    value, /* confirm = */ false)) {
+                // The stack could not accept another notification. Put the packet back, shrink
+                // the window and wait for outstanding packets to drain the stack.
+                mPacketScheduler.putBack(queuedPacket);
+                shrinkWindow();
+                if (mInFlightPackets.isEmpty()) {
+                    mHandler.postDelayed(this::writeWindowOfPackets, THROTTLE_WAIT_MS);
+                }
+                return;
+            }
+            mInFlightPackets.add(new InFlightPacket(queuedPacket, value,
+                    SystemClock.elapsedRealtime(), mNextSendSequence++));
+        }
+    }
+
+    /**
+     * Updates the stream state for a packet the local stack reported as sent. This does not mean
+     * the remote device has received the packet. Must run on the handler.
+     */
+    private void onPacketSent() {
+        InFlightPacket inFlightPacket = mInFlightPackets.poll();
+        if (inFlightPacket == null) {
+            // Notifications outside of the packet queue, such as the version exchange.
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        mSentThroughput.record(inFlightPacket.mQueuedPacket.mPacket.getSerializedSize(), now);
+        mSuccessfulWritesSinceResize++;
+        int writeSize = mWriteSize.get();
+        if (mSuccessfulWritesSinceResize >= WRITE_SIZE_PROBE_SUCCESSES
+                && writeSize < mMaxWriteSize.get()) {
+            int newWriteSize = Math.min(mMaxWriteSize.get(), writeSize + writeSize / 8 + 1);
+            mWriteSize.set(newWriteSize);
+            mSuccessfulWritesSinceResize = 0;
+            logd(TAG, "Probing larger write size of " + newWriteSize + " bytes.");
+        }
+        if (!mIsWindowedTransmission.get()) {
+            return;
+        }
+
+        long latencyMs = now - inFlightPacket.mSendTimeMs;
+        mMinSendLatencyMs = Math.min(mMinSendLatencyMs, latencyMs);
+        if (latencyMs > Math.max(mMinSendLatencyMs, 1L) * LATENCY_BACKOFF_FACTOR) {
+            if (inFlightPacket.mSequence >= mLatencyReductionSequence) {
+                reduceWindowForLatency();
+            }
+            return;
+        }
+        mSentSinceWindowChange++;
+        int windowSize = mWindowSize.get();
+        if (mSentSinceWindowChange >= windowSize && windowSize < MAX_WINDOW_SIZE) {
+            mWindowSize.set(windowSize + 1);
+            mSentSinceWindowChange = 0;
+            logd(TAG, "Increased transmission window to " + (windowSize + 1) + " packets.");
+        }
+    }
+
+    /**
+     * Updates the stream state for a notification the stack failed to send. Must run on the
+     * handler.
+     *
+     * @param value The value of the failed notification. Packets in flight are matched to it by
+     *              identity, as failures are not necessarily reported for the oldest packet and
+     *              notifications outside of the packet queue can fail as well.
+     */
+    private void onPacketFailed(@Nullable byte[] value) {
+        InFlightPacket inFlightPacket = removeInFlightPacket(value);
+        int writeSize = mWriteSize.get();
+        int newWriteSize = Math.max(MIN_WRITE_SIZE, writeSize - writeSize / 4);
+        mWriteSize.set(newWriteSize);
+        mSuccessfulWritesSinceResize = 0;
+        logw(TAG, "Packet delivery failed. Reducing write size for new messages to "
+                + newWriteSize + " bytes.");
+        if (inFlightPacket == null) {
+            return;
+        }
+        // Packets carry their number, so a resent packet can be placed correctly by the receiver
+        // even if later packets of the same window were delivered first.
+        mPacketScheduler.requeue(inFlightPacket.mQueuedPacket);
+        if (mIsWindowedTransmission.get()) {
+            shrinkWindow();
+        } else {
+            mIsSendingInProgress.set(false);
+        }
+        writeNextMessageInQueue();
+    }
+
+    /** Removes and returns the packet in flight that was sent with the given value, or null. */
+    @Nullable
+    private InFlightPacket removeInFlightPacket(@Nullable byte[] value) {
+        if (value == null) {
+            return null;
+        }
+        Iterator<InFlightPacket> iterator = mInFlightPackets.iterator();
+        while (iterator.hasNext()) {
+            InFlightPacket inFlightPacket = iterator.next();
+            if (inFlightPacket.mValue == value) {
+                iterator.remove();
+                return inFlightPacket;
+            }
+        }
+        return null;
+    }
+
+    private void reduceWindowForLatency() {
+        mWindowSize.set(Math.max(1, mWindowSize.get() - 1));
+        mSentSinceWindowChange = 0;
+        mLatencyReductionSequence = mNextSendSequence;
+        logd(TAG, "Send latency increased. Decreased transmission window to "
+                + mWindowSize.get() + " packets.");
+    }
+
+    private void shrinkWindow() {
+        int windowSize = mWindowSize.get();
+        mWindowSize.set(Math.max(1, windowSize / 2));
+        mSentSinceWindowChange = 0;
+        logd(TAG, "Decreased transmission window to " + mWindowSize.get() + " packets.");
+    }
+
     private void onCharacteristicRead(@NonNull BluetoothDevice device) {
         if (!mDevice.equals(device)) {
             logw(TAG, "Received a read notification from a device (" + device.getAddress()
@@ -186,11 +553,22 @@ class BleDeviceMessageStream {
             return;
         }
 
-        logd(TAG, "Releasing lock on characteristic.");
-        mIsSendingInProgress.set(false);
+        mHandler.post(this::onPacketSent);
+        if (!mIsWindowedTransmission.get()) {
+            logd(TAG, "Releasing lock on characteristic.");
+            mIsSendingInProgress.set(false);
+        }
         writeNextMessageInQueue();
     }
 
+    private void onNotificationFailed(@NonNull BluetoothDevice device, int status,
+            @Nullable byte[] value) {
+        if (!mDevice.equals(device)) {
+            return;
+        }
+        mHandler.post(() -> onPacketFailed(value));
+    }
+
     private void onCharacteristicWrite(@NonNull BluetoothDevice device,
             @NonNull BluetoothGattCharacteristic characteristic, @NonNull byte[] value) {
         logd(TAG, "Received a message from a device (" + device.getAddress() + ").");
@@ -208,6 +586,23 @@ class BleDeviceMessageStream {
             return;
         }
 
+        mHandler.post(() -> processWrite(device, characteristic, value));
+    }
+
+    private void processWrite(@NonNull BluetoothDevice device,
+            @NonNull BluetoothGattCharacteristic characteristic, @NonNull byte[] value) {
+        BluetoothGattService service = characteristic.getService();
+        if (service != null && service != mReadCharacteristic.getService()) {
+            if (mIsVersionExchanged.get()) {
+                logw(TAG, "Received a write through service " + service.getUuid() + " that is "
+                        + "not the service this stream is bound to. Ignoring.");
+                return;
+            }
+            if (!bindToService(service)) {
+                return;
+            }
+        }
+
         if (!mIsVersionExchanged.get()) {
             processVersionExchange(device, value);
             return;
@@ -226,6 +621,36 @@ class BleDeviceMessageStream {
         processPacket(packet);
     }
 
+    /**
+     * Binds this stream to the characteristics of the given service. The device picks the service
+     * it talks through, which is not necessarily the one that was advertised when it connected.
+     */
+    private boolean bindToService(@NonNull BluetoothGattService service) {
+        BluetoothGattCharacteristic writeCharacteristic =
+                service.getCharacteristic(mWriteCharacteristic.getUuid());
+        BluetoothGattCharacteristic readCharacteristic =
+                service.getCharacteristic(mReadCharacteristic.getUuid());
+        if (writeCharacteristic == null || readCharacteristic == null) {
+            loge(TAG, "Service " + service.getUuid() + " is missing the stream characteristics. "
+                    + "Ignoring write.");
+            return false;
+        }
+        logd(TAG, "Binding stream to service " + service.getUuid() + ".");
+        mWriteCharacteristic = writeCharacteristic;
+        mReadCharacteristic = readCharacteristic;
+        return true;
+    }
+
+    /**
+     * Returns the UUID of the service this stream is bound to, or {@code null} if its
+     * characteristics don't belong to a service.
+     */
+    @Nullable
+    UUID getServiceUuid() {
+        BluetoothGattService service = mReadCharacteristic.getService();
+        return service == null ? null : service.getUuid();
+    }
+
     private void processVersionExchange(@NonNull BluetoothDevice device, @NonNull byte[] value) {
         BleVersionExchange versionExchange;
         try {
@@ -241,7 +666,8 @@ class BleDeviceMessageStream {
         int maxMessagingVersion = versionExchange.getMaxSupportedMessagingVersion();
         int minSecurityVersion = versionExchange.getMinSupportedSecurityVersion();
         int maxSecurityVersion = versionExchange.getMaxSupportedSecurityVersion();
-        if (minMessagingVersion > MESSAGING_VERSION || maxMessagingVersion < MESSAGING_VERSION
+        int messagingVersion = Math.min(maxMessagingVersion, MAX_MESSAGING_VERSION);
+        if (messagingVersion < minMessagingVersion || messagingVersion < MIN_MESSAGING_VERSION
                 || minSecurityVersion > SECURITY_VERSION || maxSecurityVersion < SECURITY_VERSION) {
             loge(TAG, "Unsupported message version for min " + minMessagingVersion + " and max "
                     + maxMessagingVersion + " or security version for " + minSecurityVersion
@@ -254,16 +680,21 @@ class BleDeviceMessageStream {
         }
 
         BleVersionExchange headunitVersion = BleVersionExchange.newBuilder()
-                .setMinSupportedMessagingVersion(MESSAGING_VERSION)
-                .setMaxSupportedMessagingVersion(MESSAGING_VERSION)
+                .setMinSupportedMessagingVersion(messagingVersion)
+                .setMaxSupportedMessagingVersion(messagingVersion)
                 .setMinSupportedSecurityVersion(SECURITY_VERSION)
                 .setMaxSupportedSecurityVersion(SECURITY_VERSION)
+                .setIsCompressionSupported(true)
                 .build();
-        mWriteCharacteristic.setValue(headunitVersion.toByteArray());
         mBlePeripheralManager.notifyCharacteristicChanged(device, mWriteCharacteristic,
-                /* confirm = */ false);
+                headunitVersion.toByteArray(), /* confirm = */ false);
+        mIsWindowedTransmission.set(messagingVersion >= WINDOWED_MESSAGING_VERSION);
+        mIsEarlyServerAuthSupported.set(messagingVersion >= EARLY_SERVER_AUTH_MESSAGING_VERSION);
+        mIsCompressionEnabled.set(versionExchange.getIsCompressionSupported());
         mIsVersionExchanged.set(true);
-        logd(TAG, "Sent supported version to the phone.");
+        logd(TAG, "Sent supported version to the phone. Messaging version " + messagingVersion
+                + " selected; windowed transmission enabled: " + mIsWindowedTransmission.get()
+                + "; compression enabled: " + mIsCompressionEnabled.get() + ".");
     }
 
     @VisibleForTesting
@@ -273,15 +704,14 @@ class BleDeviceMessageStream {
         mThrottleDelay.set(THROTTLE_WAIT_MS);
 
         int messageId = packet.getMessageId();
-        ByteArrayOutputStream currentPayloadStream =
-                mPendingData.getOrDefault(messageId, new ByteArrayOutputStream());
-        mPendingData.putIfAbsent(messageId, currentPayloadStream);
-
-        byte[] payload = packet.getPayload().toByteArray();
+        long now = SystemClock.elapsedRealtime();
+        mReceivedThroughput.record(packet.getSerializedSize(), now);
+        mReassembler.evictExpiredMessages(now);
+        ByteString messageBytes;
         try {
-            currentPayloadStream.write(payload);
-        } catch (IOException e) {
-            loge(TAG, "Error writing packet to stream.", e);
+            messageBytes = mReassembler.addPacket(packet, now);
+        } catch (BleMessageReassemblyException e) {
+            loge(TAG, "Error reassembling packet into message.", e);
             if (mMessageReceivedErrorListener != null) {
                 mMessageReceivedErrorListener.onMessageReceivedError(e);
             }
@@ -289,20 +719,18 @@ class BleDeviceMessageStream {
         }
         logd(TAG, "Parsed packet " + packet.getPacketNumber() + " of "
                 + packet.getTotalPackets() + " for message " + messageId + ". Writing "
-                + payload.length + ".");
+                + packet.getPayload().size() + ".");
 
-        if (packet.getPacketNumber() != packet.getTotalPackets()) {
+        if (messageBytes == null) {
+            scheduleReassemblyExpiryCheck();
             return;
         }
 
-        byte[] messageBytes = currentPayloadStream.toByteArray();
-        mPendingData.remove(messageId);
-
         // All message packets received. Resetting throttle back to default until next message
         // started.
         mThrottleDelay.set(THROTTLE_DEFAULT_MS);
 
-        logd(TAG, "Received complete device message " + messageId + " of " + messageBytes.length
+        logd(TAG, "Received complete device message " + messageId + " of " + messageBytes.size()
                 + " bytes.");
         BleDeviceMessage message;
         try {
@@ -318,14 +746,109 @@ class BleDeviceMessageStream {
         DeviceMessage deviceMessage = new DeviceMessage(
                 ByteUtils.bytesToUUID(message.getRecipient().toByteArray()),
                 message.getIsPayloadEncrypted(), message.getPayload().toByteArray());
+        deviceMessage.setOriginalMessageSize(message.getOriginalSize());
+        // Encrypted payloads are decompressed by the secure channel after they are decrypted.
+        if (!deviceMessage.isMessageEncrypted()) {
+            try {
+                mMessageCompressor.decompress(deviceMessage);
+            } catch (DataFormatException e) {
+                loge(TAG, "Cannot decompress device message from client.", e);
+                if (mMessageReceivedErrorListener != null) {
+                    mMessageReceivedErrorListener.onMessageReceivedError(e);
+                }
+                return;
+            }
+        }
         if (mMessageReceivedListener != null) {
             mMessageReceivedListener.onMessageReceived(deviceMessage, message.getOperation());
         }
     }
 
-    /** The maximum amount of bytes that can be written over BLE. */
+    private void scheduleReassemblyExpiryCheck() {
+        mHandler.removeCallbacks(mReassemblyExpiryRunnable);
+        mHandler.postDelayed(mReassemblyExpiryRunnable, mReassembler.getTimeoutMs());
+    }
+
+    private final Runnable mReassemblyExpiryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mReassembler.evictExpiredMessages(SystemClock.elapsedRealtime());
+            if (mReassembler.hasPendingMessages()) {
+                scheduleReassemblyExpiryCheck();
+            }
+        }
+    };
+
+    /**
+     * Set how long a partially received message is kept without receiving a new packet, and how
+     * many bytes may be allocated for all partially received messages combined.
+     */
+    void setMessageReassemblyLimits(long timeoutMs, int maxPendingBytes) {
+        mReassembler.setLimits(timeoutMs, maxPendingBytes);
+    }
+
+    /** Returns whether packets are sent with a sliding window instead of one at a time. */
+    @VisibleForTesting
+    boolean isWindowedTransmissionEnabled() {
+        return mIsWindowedTransmission.get();
+    }
+
+    /**
+     * Returns whether the remote device accepts the car's reconnection authentication before it
+     * has sent its own.
+     */
+    boolean isEarlyServerAuthSupported() {
+        return mIsEarlyServerAuthSupported.get();
+    }
+
+    /** Returns whether the remote device has agreed to receive compressed payloads. */
+    boolean isCompressionEnabled() {
+        return mIsCompressionEnabled.get();
+    }
+
+    /** Returns the compressor used for the payloads of this stream. */
+    @NonNull
+    MessageCompressor getMessageCompressor() {
+        return mMessageCompressor;
+    }
+
+    /** Returns the current number of packets that may be in flight at the same time. */
+    @VisibleForTesting
+    int getWindowSize() {
+        return mWindowSize.get();
+    }
+
+    /**
+     * The maximum amount of bytes that can be written over BLE. Messages written after this call
+     * are split into packets of at most this size; packets already queued are not changed.
+     */
     void setMaxWriteSize(int maxWriteSize) {
-        mMaxWriteSize = maxWriteSize;
+        logd(TAG, "Setting max write size to " + maxWriteSize + " bytes.");
+        mMaxWriteSize.set(maxWriteSize);
+        mWriteSize.set(maxWriteSize);
+    }
+
+    /**
+     * Returns the number of packets waiting to be sent to the given recipient, or to messages
+     * without a recipient if {@code null}.
+     */
+    int getQueueDepth(@Nullable UUID recipient) {
+        return mPacketScheduler.getQueueDepth(recipient);
+    }
+
+    /** Returns the size of the packets that new messages are currently split into. */
+    int getWriteSize() {
+        return mWriteSize.get();
+    }
+
+    /** Returns the average bytes per second sent while this stream was busy sending. */
+    long getSentBytesPerSecond() {
+        return mSentThroughput.getBytesPerSecond();
+    }
+
+    /** Returns the average bytes per second received while this stream was busy receiving. */
+    long getReceivedBytesPerSecond() {
+        return mReceivedThroughput.getBytesPerSecond();
     }
 
     /**
@@ -371,6 +894,25 @@ class BleDeviceMessageStream {
         void onMessageReceivedError(@NonNull Exception exception);
     }
 
+    /**
+     * A packet that was handed to the stack, the value it was sent with, the time it was sent and
+     * its send order.
+     */
+    private static class InFlightPacket {
+        final BlePacketScheduler.QueuedPacket mQueuedPacket;
+        final byte[] mValue;
+        final long mSendTimeMs;
+        final long mSequence;
+
+        InFlightPacket(@NonNull BlePacketScheduler.QueuedPacket queuedPacket,
+                @NonNull byte[] value, long sendTimeMs, long sequence) {
+            mQueuedPacket = queuedPacket;
+            mValue = value;
+            mSendTimeMs = sendTimeMs;
+            mSequence = sequence;
+        }
+    }
+
     /** A generator of unique IDs for messages. */
     private static class MessageIdGenerator {
         private final AtomicInteger mMessageId = new AtomicInteger(0);
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.connecteddevice.ble;
+
+import static com.android.car.connecteddevice.util.SafeLog.logd;
+import static com.android.car.connecteddevice.util.SafeLog.logw;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+
+import com.android.car.connecteddevice.BleStreamProtos.BlePacketProto.BlePacket;
+import com.android.car.protobuf.ByteString;
+import com.android.car.protobuf.UnsafeByteOperations;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reassembles incoming {@link BlePacket}s into complete messages.
+ *
+ * <p>A single buffer is allocated per message, sized from the total number of packets and the
+ * payload size of the first non-final packet received. Every packet is written at the offset given
+ * by its packet number, so packets may arrive in any order. The final packet may be shorter, so its
+ * payload is held until the buffer exists and is counted against the pending memory cap alongside
+ * the buffer. Partial messages are dropped when no packet has arrived for them within the timeout,
+ * or when they must make room for a newer message under the pending memory cap.
+ */
+class BleMessageReassembler {
+
+    private static final String TAG = "BleMessageReassembler";
+
+    // Partial messages in order of creation, so the oldest is evicted first.
+    private final LinkedHashMap<Integer, PendingMessage> mPendingMessages = new LinkedHashMap<>();
+
+    private long mTimeoutMs;
+
+    private int mMaxPendingBytes;
+
+    private int mPendingBytes;
+
+    private OnMessageDroppedListener mOnMessageDroppedListener;
+
+    /**
+     * @param timeoutMs Time after the last received packet when a partial message is dropped.
+     * @param maxPendingBytes Maximum bytes allocated for all partial messages combined.
+     */
+    BleMessageReassembler(long timeoutMs, int maxPendingBytes) {
+        mTimeoutMs = timeoutMs;
+        mMaxPendingBytes = maxPendingBytes;
+    }
+
+    /** Set the timeout and memory cap used for partial messages. */
+    synchronized void setLimits(long timeoutMs, int maxPendingBytes) {
+        mTimeoutMs = timeoutMs;
+        mMaxPendingBytes = maxPendingBytes;
+    }
+
+    /** Returns the timeout after which a partial message is dropped. */
+    synchronized long getTimeoutMs() {
+        return mTimeoutMs;
+    }
+
+    /**
+     * Set the given listener to be notified when a partial message is dropped. If listener is
+     * {@code null}, clear.
+     */
+    synchronized void setOnMessageDroppedListener(@Nullable OnMessageDroppedListener listener) {
+        mOnMessageDroppedListener = listener;
+    }
+
+    /**
+     * Add a packet to the message it belongs to.
+     *
+     * @param packet The received packet.
+     * @param nowMs The current time in milliseconds.
+     * @return The complete message if this packet was the last one missing, otherwise
+     *         {@code null}.
+     * @throws BleMessageReassemblyException if the packet is inconsistent with previous packets
+     *         of the same message or the message cannot fit within the memory cap. The partial
+     *         message is dropped in that case.
+     */
+    @Nullable
+    ByteString addPacket(@NonNull BlePacket packet, long nowMs)
+            throws BleMessageReassemblyException {
+        List<Integer> evictedMessageIds = new ArrayList<>();
+        try {
+            synchronized (this) {
+                return addPacketLocked(packet, nowMs, evictedMessageIds);
+            }
+        } finally {
+            notifyMessagesDropped(evictedMessageIds, "Dropped to stay within memory limit.");
+        }
+    }
+
+    /** Drop every partial message that has not received a packet within the timeout. */
+    void evictExpiredMessages(long nowMs) {
+        List<Integer> expiredMessageIds = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Map.Entry<Integer, PendingMessage>> iterator =
+                    mPendingMessages.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Integer, PendingMessage> entry = iterator.next();
+                if (nowMs - entry.getValue().mLastUpdateMs < mTimeoutMs) {
+                    continue;
+                }
+                mPendingBytes -= entry.getValue().getAllocatedSize();
+                iterator.remove();
+                expiredMessageIds.add(entry.getKey());
+            }
+        }
+        notifyMessagesDropped(expiredMessageIds, "Timed out waiting for remaining packets.");
+    }
+
+    /** Returns {@code true} if any message is still waiting for packets. */
+    synchronized boolean hasPendingMessages() {
+        return !mPendingMessages.isEmpty();
+    }
+
+    /** Returns the number of bytes currently allocated for partial messages. */
+    synchronized int getPendingBytes() {
+        return mPendingBytes;
+    }
+
+    private ByteString addPacketLocked(@NonNull BlePacket packet, long nowMs,
+            @NonNull List<Integer> evictedMessageIds) throws BleMessageReassemblyException {
+        int messageId = packet.getMessageId();
+        int totalPackets = packet.getTotalPackets();
+        int packetNumber = packet.getPacketNumber();
+        if (totalPackets < 1 || packetNumber < 1 || packetNumber > totalPackets) {
+            removePendingMessage(messageId);
+            throw new BleMessageReassemblyException("Invalid packet " + packetNumber + " of "
+                    + totalPackets + " for message " + messageId + ".");
+        }
+        ByteString payload = packet.getPayload();
+        if (totalPackets == 1) {
+            if (mPendingMessages.containsKey(messageId)) {
+                logw(TAG, "Discarding partial message " + messageId + " replaced by a single "
+                        + "packet message with the same id.");
+                removePendingMessage(messageId);
+            }
+            return payload;
+        }
+
+        PendingMessage message = mPendingMessages.get(messageId);
+        if (message == null) {
+            message = new PendingMessage(totalPackets);
+            mPendingMessages.put(messageId, message);
+        } else if (message.mTotalPackets != totalPackets) {
+            removePendingMessage(messageId);
+            throw new BleMessageReassemblyException("Packet for message " + messageId
+                    + " reported " + totalPackets + " total packets instead of "
+                    + message.mTotalPackets + ".");
+        }
+        message.mLastUpdateMs = nowMs;
+
+        int packetIndex = packetNumber - 1;
+        if (message.mReceivedPackets.get(packetIndex)) {
+            logw(TAG, "Ignoring duplicate packet " + packetNumber + " for message " + messageId
+                    + ".");
+            return null;
+        }
+
+        if (packetNumber == totalPackets) {
+            reserveBytes(messageId, message, payload.size(), evictedMessageIds);
+            message.mLastPayload = payload;
+        } else {
+            if (message.mBuffer == null) {
+                allocateBuffer(messageId, message, payload.size(), evictedMessageIds);
+            } else if (payload.size() != message.mChunkSize) {
+                removePendingMessage(messageId);
+                throw new BleMessageReassemblyException("Packet " + packetNumber
+                        + " for message " + messageId + " has " + payload.size()
+                        + " bytes instead of " + message.mChunkSize + ".");
+            }
+            payload.copyTo(message.mBuffer, packetIndex * message.mChunkSize);
+        }
+        message.mReceivedPackets.set(packetIndex);
+
+        if (message.mReceivedPackets.cardinality() < totalPackets) {
+            return null;
+        }
+        removePendingMessage(messageId);
+        return message.assemble(messageId);
+    }
+
+    private void allocateBuffer(int messageId, @NonNull PendingMessage message, int chunkSize,
+            @NonNull List<Integer> evictedMessageIds) throws BleMessageReassemblyException {
+        long size = (long) chunkSize * message.mTotalPackets;
+        if (chunkSize == 0) {
+            removePendingMessage(messageId);
+            throw new BleMessageReassemblyException("Packet for message " + messageId
+                    + " has an empty payload.");
+        }
+        reserveBytes(messageId, message, size, evictedMessageIds);
+        message.mChunkSize = chunkSize;
+        message.mBuffer = new byte[(int) size];
+        logd(TAG, "Allocated " + size + " bytes for message " + messageId + ".");
+    }
+
+    /**
+     * Counts {@code size} more bytes for the given message against the memory cap, evicting the
+     * oldest other partial messages to make room.
+     */
+    private void reserveBytes(int messageId, @NonNull PendingMessage message, long size,
+            @NonNull List<Integer> evictedMessageIds) throws BleMessageReassemblyException {
+        long messageSize = message.getAllocatedSize() + size;
+        if (messageSize > mMaxPendingBytes) {
+            removePendingMessage(messageId);
+            throw new BleMessageReassemblyException("Message " + messageId + " of at least "
+                    + messageSize + " bytes cannot be reassembled within the limit of "
+                    + mMaxPendingBytes + " bytes.");
+        }
+        Iterator<Map.Entry<Integer, PendingMessage>> iterator =
+                mPendingMessages.entrySet().iterator();
+        while (mPendingBytes + size > mMaxPendingBytes && iterator.hasNext()) {
+            Map.Entry<Integer, PendingMessage> entry = iterator.next();
+            if (entry.getValue() == message) {
+                continue;
+            }
+            mPendingBytes -= entry.getValue().getAllocatedSize();
+            iterator.remove();
+            evictedMessageIds.add(entry.getKey());
+        }
+        mPendingBytes += size;
+    }
+
+    private void removePendingMessage(int messageId) {
+        PendingMessage message = mPendingMessages.remove(messageId);
+        if (message != null) {
+            mPendingBytes -= message.getAllocatedSize();
+        }
+    }
+
+    private void notifyMessagesDropped(@NonNull List<Integer> messageIds,
+            @NonNull String reason) {
+        if (messageIds.isEmpty()) {
+            return;
+        }
+        OnMessageDroppedListener listener;
+        synchronized (this) {
+            listener = mOnMessageDroppedListener;
+        }
+        for (int messageId : messageIds) {
+            logw(TAG, "Dropped partial message " + messageId + ". " + reason);
+            if (listener != null) {
+                listener.onMessageDropped(messageId, new BleMessageReassemblyException(
+                        "Partial message " + messageId + " dropped. " + reason));
+            }
+        }
+    }
+
+    /** Listener to be invoked when a partial message is dropped before it was completed. */
+    interface OnMessageDroppedListener {
+        /**
+         * Called when a partial message is dropped.
+         *
+         * @param messageId The id of the dropped message.
+         * @param exception The reason the message was dropped.
+         */
+        void onMessageDropped(int messageId, @NonNull BleMessageReassemblyException exception);
+    }
+
+    /** The state of a message that is still missing packets. */
+    private static class PendingMessage {
+        final int mTotalPackets;
+        final BitSet mReceivedPackets;
+        long mLastUpdateMs;
+        int mChunkSize;
+        byte[] mBuffer;
+        ByteString mLastPayload;
+
+        PendingMessage(int totalPackets) {
+            mTotalPackets = totalPackets;
+            mReceivedPackets = new BitSet(totalPackets);
+        }
+
+        int getAllocatedSize() {
+            return (mBuffer == null ? 0 : mBuffer.length)
+                    + (mLastPayload == null ? 0 : mLastPayload.size());
+        }
+
+        ByteString assemble(int messageId) throws BleMessageReassemblyException {
+            if (mLastPayload.size() > mChunkSize) {
+                throw new BleMessageReassemblyException("Last packet for message " + messageId
+                        + " has " + mLastPayload.size() + " bytes, more than " + mChunkSize
+                        + ".");
+            }
+            int lastOffset = (mTotalPackets - 1) * mChunkSize;
+            mLastPayload.copyTo(mBuffer, lastOffset);
+            return UnsafeByteOperations.unsafeWrap(mBuffer, 0, lastOffset + mLastPayload.size());
+        }
+    }
+}
@@ -22,8 +22,9 @@ import com.android.car.protobuf.ByteString;
 import com.android.internal.annotations.VisibleForTesting;
 
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * Factory for creating {@link BlePacket} protos.
@@ -53,6 +54,8 @@ class BlePacketFactory {
     /**
      * Split given data if necessary to fit within the given {@code maxSize}.
      *
+     * <p>The payload is copied once, so the caller may modify {@code payload} afterwards.
+     *
      * @param payload The payload to potentially split across multiple {@link BlePacket}s.
      * @param messageId The unique id for identifying message.
      * @param maxSize The maximum size of each chunk.
@@ -61,25 +64,47 @@ class BlePacketFactory {
      */
     static List<BlePacket> makeBlePackets(byte[] payload, int messageId, int maxSize)
             throws BlePacketFactoryException {
+        return makeBlePackets(ByteString.copyFrom(payload), messageId, maxSize);
+    }
+
+    /**
+     * Split given data if necessary to fit within the given {@code maxSize}.
+     *
+     * <p>The payload of each returned {@link BlePacket} is a view into {@code payload}; no bytes
+     * are copied.
+     *
+     * @param payload The payload to potentially split across multiple {@link BlePacket}s.
+     * @param messageId The unique id for identifying message.
+     * @param maxSize The maximum size of each chunk.
+     * @return A list of {@link BlePacket}s.
+     * @throws BlePacketFactoryException if an error occurred during the splitting of data.
+     */
+    static List<BlePacket> makeBlePackets(ByteString payload, int messageId, int maxSize)
+            throws BlePacketFactoryException {
+        Iterator<BlePacket> packetIterator = newBlePacketIterator(payload, messageId, maxSize);
         List<BlePacket> blePackets = new ArrayList<>();
-        int payloadSize = payload.length;
+        while (packetIterator.hasNext()) {
+            blePackets.add(packetIterator.next());
+        }
+        return blePackets;
+    }
+
+    /**
+     * Returns an {@link Iterator} that lazily creates the {@link BlePacket}s for the given
+     * payload as they are requested. The payload of each packet is a view into {@code payload}.
+     *
+     * @param payload The payload to potentially split across multiple {@link BlePacket}s.
+     * @param messageId The unique id for identifying message.
+     * @param maxSize The maximum size of each chunk.
+     * @throws BlePacketFactoryException if the payload cannot be split with the given size.
+     */
+    static Iterator<BlePacket> newBlePacketIterator(ByteString payload, int messageId,
+            int maxSize) throws BlePacketFactoryException {
+        int payloadSize = payload.size();
         int totalPackets = getTotalPacketNumber(messageId, payloadSize, maxSize);
         int maxPayloadSize = maxSize
                 - getPacketHeaderSize(totalPackets, messageId, Math.min(payloadSize, maxSize));
-
-        int start = 0;
-        int end = Math.min(payloadSize, maxPayloadSize);
-        for (int packetNum = 1; packetNum <= totalPackets; packetNum++) {
-            blePackets.add(BlePacket.newBuilder()
-                    .setPacketNumber(packetNum)
-                    .setTotalPackets(totalPackets)
-                    .setMessageId(messageId)
-                    .setPayload(ByteString.copyFrom(Arrays.copyOfRange(payload, start, end)))
-                    .build());
-            start = end;
-            end = Math.min(start + maxPayloadSize, payloadSize);
-        }
-        return blePackets;
+        return new BlePacketIterator(payload, messageId, totalPackets, maxPayloadSize);
     }
 
     /**
@@ -152,4 +177,45 @@ class BlePacketFactory {
     }
 
     private BlePacketFactory() {}
+
+    /** Slices a payload into {@link BlePacket}s one at a time. */
+    private static class BlePacketIterator implements Iterator<BlePacket> {
+        private final ByteString mPayload;
+        private final int mMessageId;
+        private final int mTotalPackets;
+        private final int mMaxPayloadSize;
+
+        private int mNextPacketNumber = 1;
+        private int mStart = 0;
+
+        BlePacketIterator(ByteString payload, int messageId, int totalPackets,
+                int maxPayloadSize) {
+            mPayload = payload;
+            mMessageId = messageId;
+            mTotalPackets = totalPackets;
+            mMaxPayloadSize = maxPayloadSize;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mNextPacketNumber <= mTotalPackets;
+        }
+
+        @Override
+        public BlePacket next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int end = Math.min(mStart + mMaxPayloadSize, mPayload.size());
+            BlePacket packet = BlePacket.newBuilder()
+                    .setPacketNumber(mNextPacketNumber)
+                    .setTotalPackets(mTotalPackets)
+                    .setMessageId(mMessageId)
+                    .setPayload(mPayload.substring(mStart, end))
+                    .build();
+            mStart = end;
+            mNextPacketNumber++;
+            return packet;
+        }
+    }
 }
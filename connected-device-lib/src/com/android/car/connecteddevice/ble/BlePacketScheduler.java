@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.connecteddevice.ble;
+
+import static com.android.car.connecteddevice.BleStreamProtos.BleOperationProto.OperationType;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+
+import com.android.car.connecteddevice.BleStreamProtos.BlePacketProto.BlePacket;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Orders outgoing {@link BlePacket}s across recipients and priorities.
+ *
+ * <p>Packets are placed in one of several lanes. Packets that have to be resent go first, in the
+ * order they were requeued, then control messages (handshake, acknowledgements), then client
+ * messages by {@link DeviceMessage.MessagePriority}. Within a lane, recipients take turns one
+ * packet at a time so that a large message for one recipient does not hold back the others.
+ *
+ * <p>A client lane that has been passed over for {@link #MAX_SKIPPED_POLLS} polls while it had
+ * packets is served once ahead of higher priority lanes, so a steady stream of higher priority
+ * messages slows lower priority ones down without starving them.
+ *
+ * <p>Enqueueing and polling must happen on a single thread. The queue depths may be read from
+ * any thread.
+ */
+class BlePacketScheduler {
+
+    // Key used for messages without a recipient, such as handshake messages.
+    private static final UUID NO_RECIPIENT = new UUID(0L, 0L);
+
+    private static final int LANE_CONTROL = 0;
+    private static final int LANE_HIGH = 1;
+    private static final int LANE_NORMAL = 2;
+    private static final int LANE_LOW = 3;
+    private static final int LANE_COUNT = 4;
+
+    @VisibleForTesting
+    static final int MAX_SKIPPED_POLLS = 32;
+
+    // Packets that were handed to the stack but failed to send. Always sent first.
+    private final ArrayDeque<QueuedPacket> mRetryQueue = new ArrayDeque<>();
+
+    private final Lane[] mLanes = new Lane[LANE_COUNT];
+
+    private final Map<UUID, Integer> mQueueDepths = new ConcurrentHashMap<>();
+
+    private int mSize;
+
+    BlePacketScheduler() {
+        for (int i = 0; i < LANE_COUNT; i++) {
+            mLanes[i] = new Lane();
+        }
+    }
+
+    /**
+     * Add the packets of a message to the end of its recipient's queue.
+     *
+     * @param recipient The recipient of the message or {@code null} if it has none.
+     * @param operationType The {@link OperationType} of the message.
+     * @param priority The {@link DeviceMessage.MessagePriority} of the message.
+     * @param packets The packets of the message in order.
+     */
+    void enqueue(@Nullable UUID recipient, @NonNull OperationType operationType,
+            @DeviceMessage.MessagePriority int priority, @NonNull List<BlePacket> packets) {
+        if (packets.isEmpty()) {
+            return;
+        }
+        UUID key = recipient == null ? NO_RECIPIENT : recipient;
+        mLanes[getLane(operationType, priority)].enqueue(key, packets);
+        mQueueDepths.merge(key, packets.size(), Integer::sum);
+        mSize += packets.size();
+    }
+
+    /**
+     * Put a packet that failed to send back ahead of all other queued packets. Packets requeued
+     * one after the other are sent again in the same order.
+     */
+    void requeue(@NonNull QueuedPacket packet) {
+        mRetryQueue.addLast(packet);
+        mQueueDepths.merge(packet.mRecipientKey, 1, Integer::sum);
+        mSize++;
+    }
+
+    /**
+     * Put back the packet returned by the last {@link #poll()}, which could not be sent, so that
+     * the next poll returns it again.
+     */
+    void putBack(@NonNull QueuedPacket packet) {
+        mRetryQueue.addFirst(packet);
+        mQueueDepths.merge(packet.mRecipientKey, 1, Integer::sum);
+        mSize++;
+    }
+
+    /** Returns the next packet to send or {@code null} if no packets are queued. */
+    @Nullable
+    QueuedPacket poll() {
+        QueuedPacket packet = mRetryQueue.poll();
+        if (packet == null) {
+            Lane lane = nextLane();
+            if (lane == null) {
+                return null;
+            }
+            UUID recipient = lane.peekRecipient();
+            packet = new QueuedPacket(lane.poll(), recipient);
+        }
+        mQueueDepths.computeIfPresent(packet.mRecipientKey,
+                (key, depth) -> depth > 1 ? depth - 1 : null);
+        mSize--;
+        return packet;
+    }
+
+    /** Returns {@code true} if no packets are queued. */
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /** Returns the number of packets queued for the given recipient. */
+    int getQueueDepth(@Nullable UUID recipient) {
+        return mQueueDepths.getOrDefault(recipient == null ? NO_RECIPIENT : recipient, 0);
+    }
+
+    /** Remove all queued packets. */
+    void clear() {
+        mRetryQueue.clear();
+        for (Lane lane : mLanes) {
+            lane.clear();
+        }
+        mQueueDepths.clear();
+        mSize = 0;
+    }
+
+    /**
+     * Returns the lane to serve next and updates how long each client lane has waited, or
+     * {@code null} if all lanes are empty.
+     */
+    @Nullable
+    private Lane nextLane() {
+        if (!mLanes[LANE_CONTROL].isEmpty()) {
+            return mLanes[LANE_CONTROL];
+        }
+        Lane next = null;
+        for (int i = LANE_CONTROL + 1; i < LANE_COUNT; i++) {
+            Lane lane = mLanes[i];
+            if (lane.isEmpty()) {
+                continue;
+            }
+            if (next == null || lane.mSkippedPolls >= MAX_SKIPPED_POLLS) {
+                next = lane;
+                if (lane.mSkippedPolls >= MAX_SKIPPED_POLLS) {
+                    break;
+                }
+            }
+        }
+        if (next == null) {
+            return null;
+        }
+        for (int i = LANE_CONTROL + 1; i < LANE_COUNT; i++) {
+            Lane lane = mLanes[i];
+            if (lane == next) {
+                lane.mSkippedPolls = 0;
+            } else if (!lane.isEmpty()) {
+                lane.mSkippedPolls++;
+            }
+        }
+        return next;
+    }
+
+    private static int getLane(@NonNull OperationType operationType,
+            @DeviceMessage.MessagePriority int priority) {
+        if (operationType != OperationType.CLIENT_MESSAGE) {
+            return LANE_CONTROL;
+        }
+        switch (priority) {
+            case DeviceMessage.PRIORITY_HIGH:
+                return LANE_HIGH;
+            case DeviceMessage.PRIORITY_LOW:
+                return LANE_LOW;
+            default:
+                return LANE_NORMAL;
+        }
+    }
+
+    /** A packet polled from the scheduler and the recipient it was queued for. */
+    static class QueuedPacket {
+        final BlePacket mPacket;
+        final UUID mRecipientKey;
+
+        private QueuedPacket(@NonNull BlePacket packet, @NonNull UUID recipientKey) {
+            mPacket = packet;
+            mRecipientKey = recipientKey;
+        }
+    }
+
+    /** Packets of one priority class, queued per recipient and served round-robin. */
+    private static class Lane {
+        private final Map<UUID, ArrayDeque<BlePacket>> mRecipientQueues = new HashMap<>();
+
+        // Recipients with queued packets in the order they will be served.
+        private final ArrayDeque<UUID> mTurnOrder = new ArrayDeque<>();
+
+        // Polls served by other client lanes while this lane had packets.
+        int mSkippedPolls;
+
+        void enqueue(@NonNull UUID recipient, @NonNull List<BlePacket> packets) {
+            ArrayDeque<BlePacket> queue = mRecipientQueues.get(recipient);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                mRecipientQueues.put(recipient, queue);
+                mTurnOrder.add(recipient);
+            }
+            queue.addAll(packets);
+        }
+
+        @Nullable
+        UUID peekRecipient() {
+            return mTurnOrder.peek();
+        }
+
+        boolean isEmpty() {
+            return mTurnOrder.isEmpty();
+        }
+
+        @NonNull
+        BlePacket poll() {
+            UUID recipient = mTurnOrder.remove();
+            ArrayDeque<BlePacket> queue = mRecipientQueues.get(recipient);
+            BlePacket packet = queue.remove();
+            if (queue.isEmpty()) {
+                mRecipientQueues.remove(recipient);
+            } else {
+                mTurnOrder.add(recipient);
+            }
+            return packet;
+        }
+
+        void clear() {
+            mRecipientQueues.clear();
+            mTurnOrder.clear();
+            mSkippedPolls = 0;
+        }
+    }
+}
@@ -43,9 +43,13 @@ import android.os.Handler;
 
 import com.android.car.connecteddevice.util.ByteUtils;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -63,6 +67,9 @@ public class BlePeripheralManager {
     private static final int GATT_SERVER_RETRY_LIMIT = 20;
     private static final int GATT_SERVER_RETRY_DELAY_MS = 200;
 
+    // BLE default MTU before a remote device requests a change.
+    private static final int DEFAULT_MTU_SIZE = 23;
+
     // https://www.bluetooth.com/specifications/gatt/viewer?attributeXmlFile=org.bluetooth
     // .service.generic_access.xml
     private static final UUID GENERIC_ACCESS_PROFILE_UUID =
@@ -76,8 +83,19 @@ public class BlePeripheralManager {
 
     private final Context mContext;
     private final Set<Callback> mCallbacks = new CopyOnWriteArraySet<>();
-    private final Set<OnCharacteristicWriteListener> mWriteListeners = new HashSet<>();
-    private final Set<OnCharacteristicReadListener> mReadListeners = new HashSet<>();
+    // Each connected device registers its own listeners, so these are modified while notifying.
+    private final Set<OnCharacteristicWriteListener> mWriteListeners =
+            new CopyOnWriteArraySet<>();
+    private final Set<OnCharacteristicReadListener> mReadListeners = new CopyOnWriteArraySet<>();
+    private final Set<OnNotificationFailedListener> mNotificationFailedListeners =
+            new CopyOnWriteArraySet<>();
+    // MTU negotiated with each connected device, keyed by device address.
+    private final Map<String, Integer> mDeviceMtuSizes = new ConcurrentHashMap<>();
+    // Values of the notifications queued for each device that the stack has not reported on yet,
+    // oldest first, keyed by device address. The stack reports notifications in the order they
+    // were queued.
+    private final Map<String, ArrayDeque<byte[]>> mPendingNotifications =
+            new ConcurrentHashMap<>();
     private final AtomicReference<BluetoothGattServer> mGattServer = new AtomicReference<>();
     private final AtomicReference<BluetoothGatt> mBluetoothGatt = new AtomicReference<>();
 
@@ -152,7 +170,25 @@ public class BlePeripheralManager {
     }
 
     /**
-     * Returns the current MTU size.
+     * Adds a listener to be notified when a notification could not be delivered.
+     *
+     * @param listener The listener to invoke.
+     */
+    void addOnNotificationFailedListener(@NonNull OnNotificationFailedListener listener) {
+        mNotificationFailedListeners.add(listener);
+    }
+
+    /**
+     * Removes the given listener from being notified of notification failures.
+     *
+     * @param listener The listener to remove.
+     */
+    void removeOnNotificationFailedListener(@NonNull OnNotificationFailedListener listener) {
+        mNotificationFailedListeners.remove(listener);
+    }
+
+    /**
+     * Returns the most recently negotiated MTU size.
      *
      * @return The size of the MTU in bytes.
      */
@@ -160,6 +196,16 @@ public class BlePeripheralManager {
         return mMtuSize;
     }
 
+    /**
+     * Returns the MTU size negotiated with the given device.
+     *
+     * @param device The connected device.
+     * @return The size of the MTU in bytes, or the default size if the device has not changed it.
+     */
+    int getMtuSize(@NonNull BluetoothDevice device) {
+        return mDeviceMtuSizes.getOrDefault(device.getAddress(), DEFAULT_MTU_SIZE);
+    }
+
     /**
      * Starts the GATT server with the given {@link BluetoothGattService} and begins advertising.
      *
@@ -188,6 +234,63 @@ public class BlePeripheralManager {
         openGattServer();
     }
 
+    /**
+     * Adds the given {@link BluetoothGattService} to the running GATT server and advertises it in
+     * place of the current advertisement. Unlike {@link #startAdvertising}, devices that are
+     * already connected stay connected. Starts the GATT server if it is not running.
+     * <p>
+     * Services that are neither the given one nor in {@code servicesInUse} are removed from the
+     * GATT server.
+     *
+     * @param service           {@link BluetoothGattService} that will be discovered by clients
+     * @param data              {@link AdvertiseData} data to advertise
+     * @param advertiseCallback {@link AdvertiseCallback} callback for advertiser
+     * @param servicesInUse     UUIDs of the services connected devices talk through
+     */
+    void startAdvertisingAlongsideConnections(
+            BluetoothGattService service, AdvertiseData data, AdvertiseCallback advertiseCallback,
+            @NonNull Set<UUID> servicesInUse) {
+        BluetoothGattServer gattServer = mGattServer.get();
+        if (gattServer == null) {
+            startAdvertising(service, data, advertiseCallback);
+            return;
+        }
+        logd(TAG, "startAdvertisingAlongsideConnections: " + service.getUuid());
+        if (mAdvertiser != null) {
+            mAdvertiser.stopAdvertising(mAdvertiseCallback);
+        }
+        Set<UUID> retainedServices = new HashSet<>(servicesInUse);
+        retainedServices.add(service.getUuid());
+        retainServices(retainedServices);
+        if (gattServer.getService(service.getUuid()) == null) {
+            gattServer.addService(service);
+        }
+        mBluetoothGattService = service;
+        mAdvertiseCallback = advertiseCallback;
+        mAdvertiseData = data;
+        mAdvertiserStartCount = 0;
+        startAdvertisingInternally(createAdvertiseSettings(), data, advertiseCallback);
+    }
+
+    /**
+     * Removes the services of the running GATT server whose UUID is not in the given set, so the
+     * services of devices that have disconnected or never connected don't accumulate.
+     *
+     * @param serviceUuids UUIDs of the services to keep.
+     */
+    void retainServices(@NonNull Set<UUID> serviceUuids) {
+        BluetoothGattServer gattServer = mGattServer.get();
+        if (gattServer == null) {
+            return;
+        }
+        for (BluetoothGattService service : new ArrayList<>(gattServer.getServices())) {
+            if (!serviceUuids.contains(service.getUuid())) {
+                logd(TAG, "Removing stale service " + service.getUuid() + ".");
+                gattServer.removeService(service);
+            }
+        }
+    }
+
     /**
      * Stops the GATT server from advertising.
      *
@@ -200,20 +303,79 @@ public class BlePeripheralManager {
         }
     }
 
+    /**
+     * Disconnects a single device from the GATT server without affecting other connected devices.
+     *
+     * @param device The device to disconnect.
+     */
+    void disconnectDevice(@NonNull BluetoothDevice device) {
+        BluetoothGattServer gattServer = mGattServer.get();
+        if (gattServer == null) {
+            return;
+        }
+        logd(TAG, "Disconnecting device " + device.getAddress() + ".");
+        gattServer.cancelConnection(device);
+    }
+
+    /**
+     * Sets the value of the characteristic and notifies the change via
+     * {@link BluetoothGattServer}. Setting the value and notifying happen atomically, so devices
+     * sharing the characteristic cannot overwrite each other's values.
+     *
+     * @return {@code true} if the notification was successfully queued by the stack.
+     */
+    boolean notifyCharacteristicChanged(
+            @NonNull BluetoothDevice device,
+            @NonNull BluetoothGattCharacteristic characteristic,
+            @NonNull byte[] value,
+            boolean confirm) {
+        synchronized (characteristic) {
+            characteristic.setValue(value);
+            return notifyCharacteristicChanged(device, characteristic, confirm);
+        }
+    }
+
     /**
      * Notifies the characteristic change via {@link BluetoothGattServer}
+     *
+     * @return {@code true} if the notification was successfully queued by the stack.
      */
-    void notifyCharacteristicChanged(
+    boolean notifyCharacteristicChanged(
             @NonNull BluetoothDevice device,
             @NonNull BluetoothGattCharacteristic characteristic,
             boolean confirm) {
         BluetoothGattServer gattServer = mGattServer.get();
         if (gattServer == null) {
-            return;
+            return false;
         }
 
+        // Recorded before queueing, as the stack may report on the notification right away.
+        byte[] value = characteristic.getValue();
+        ArrayDeque<byte[]> pendingNotifications =
+                mPendingNotifications.computeIfAbsent(device.getAddress(),
+                        address -> new ArrayDeque<>());
+        synchronized (pendingNotifications) {
+            pendingNotifications.addLast(value);
+        }
         if (!gattServer.notifyCharacteristicChanged(device, characteristic, confirm)) {
             loge(TAG, "notifyCharacteristicChanged failed");
+            synchronized (pendingNotifications) {
+                pendingNotifications.removeLastOccurrence(value);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /** Returns the value of the oldest notification the stack has not reported on, or null. */
+    @Nullable
+    private byte[] pollPendingNotification(@NonNull BluetoothDevice device) {
+        ArrayDeque<byte[]> pendingNotifications = mPendingNotifications.get(device.getAddress());
+        if (pendingNotifications == null) {
+            return null;
+        }
+        synchronized (pendingNotifications) {
+            return pendingNotifications.pollFirst();
         }
     }
 
@@ -232,9 +394,12 @@ public class BlePeripheralManager {
         if (mAdvertiser != null) {
             mAdvertiser.stopAdvertising(mAdvertiseCallback);
         }
-        // Clears all registered listeners. IHU only supports single connection in peripheral role.
+        // Clears all registered listeners of every connected device.
         mReadListeners.clear();
         mWriteListeners.clear();
+        mNotificationFailedListeners.clear();
+        mDeviceMtuSizes.clear();
+        mPendingNotifications.clear();
         mAdvertiser = null;
 
         BluetoothGattServer gattServer = mGattServer.getAndSet(null);
@@ -259,14 +424,9 @@ public class BlePeripheralManager {
             logd(TAG, "Gatt Server created, retry count: " + mGattServerRetryStartCount);
             gattServer.clearServices();
             gattServer.addService(mBluetoothGattService);
-            AdvertiseSettings settings =
-                    new AdvertiseSettings.Builder()
-                            .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY)
-                            .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_HIGH)
-                            .setConnectable(true)
-                            .build();
             mAdvertiserStartCount = 0;
-            startAdvertisingInternally(settings, mAdvertiseData, mAdvertiseCallback);
+            startAdvertisingInternally(createAdvertiseSettings(), mAdvertiseData,
+                    mAdvertiseCallback);
             mGattServerRetryStartCount = 0;
         } else if (mGattServerRetryStartCount < GATT_SERVER_RETRY_LIMIT) {
             mGattServer.set(mBluetoothManager.openGattServer(mContext, mGattServerCallback));
@@ -277,6 +437,15 @@ public class BlePeripheralManager {
         }
     }
 
+    @NonNull
+    private static AdvertiseSettings createAdvertiseSettings() {
+        return new AdvertiseSettings.Builder()
+                .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY)
+                .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_HIGH)
+                .setConnectable(true)
+                .build();
+    }
+
     private void startAdvertisingInternally(
             AdvertiseSettings settings, AdvertiseData data, AdvertiseCallback advertiseCallback) {
         if (BluetoothAdapter.getDefaultAdapter() != null) {
@@ -311,6 +480,8 @@ public class BlePeripheralManager {
                             }
                             break;
                         case BluetoothProfile.STATE_DISCONNECTED:
+                            mDeviceMtuSizes.remove(device.getAddress());
+                            mPendingNotifications.remove(device.getAddress());
                             for (Callback callback : mCallbacks) {
                                 callback.onRemoteDeviceDisconnected(device);
                             }
@@ -372,15 +543,17 @@ public class BlePeripheralManager {
                     logd(TAG, "onMtuChanged: " + mtu + " for device " + device.getAddress());
 
                     mMtuSize = mtu;
+                    mDeviceMtuSizes.put(device.getAddress(), mtu);
 
                     for (Callback callback : mCallbacks) {
-                        callback.onMtuSizeChanged(mtu);
+                        callback.onMtuSizeChanged(device, mtu);
                     }
                 }
 
                 @Override
                 public void onNotificationSent(BluetoothDevice device, int status) {
                     super.onNotificationSent(device, status);
+                    byte[] value = pollPendingNotification(device);
                     if (status == BluetoothGatt.GATT_SUCCESS) {
                         logd(TAG, "Notification sent successfully. Device: " + device.getAddress()
                                 + ", Status: " + status + ". Notifying all listeners.");
@@ -390,6 +563,10 @@ public class BlePeripheralManager {
                     } else {
                         loge(TAG, "Notification failed. Device: " + device + ", Status: "
                                 + status);
+                        for (OnNotificationFailedListener listener :
+                                mNotificationFailedListeners) {
+                            listener.onNotificationFailed(device, status, value);
+                        }
                     }
                 }
             };
@@ -470,9 +647,10 @@ public class BlePeripheralManager {
         /**
          * Triggered if a remote client has requested to change the MTU for a given connection.
          *
+         * @param device Remote device whose connection changed its MTU.
          * @param size The new MTU size.
          */
-        void onMtuSizeChanged(int size);
+        void onMtuSizeChanged(@NonNull BluetoothDevice device, int size);
 
         /**
          * Triggered when a device (GATT client) connected.
@@ -517,4 +695,20 @@ public class BlePeripheralManager {
          */
         void onCharacteristicRead(@NonNull BluetoothDevice device);
     }
+
+    /**
+     * An interface for classes that wish to be notified when a notification was not delivered.
+     */
+    interface OnNotificationFailedListener {
+        /**
+         * Triggered when the stack reports a failure for a notification sent to a remote device.
+         *
+         * @param device The bluetooth device the notification was sent to.
+         * @param status The GATT status reported by the stack.
+         * @param value The value of the failed notification, the same array that was passed to
+         *              {@link #notifyCharacteristicChanged}, or {@code null} if unknown.
+         */
+        void onNotificationFailed(@NonNull BluetoothDevice device, int status,
+                @Nullable byte[] value);
+    }
 }
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.connecteddevice.ble;
+
+import android.annotation.NonNull;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanSettings;
+import android.os.ParcelUuid;
+
+import com.android.car.connecteddevice.util.IosOverflowArea;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Decides what {@link CarBleCentralManager} scans for and how aggressively.
+ *
+ * <p>Matching is moved to the controller with {@link ScanFilter}s for the service UUID and the iOS
+ * background overflow area. Associated devices are not filtered by address: phones advertise
+ * with randomized addresses that rotate, so an address filter would stop matching after the next
+ * rotation while still taking a hardware filter slot.
+ *
+ * <p>A search starts with a window of low-latency scanning. After that, scanning alternates
+ * between long low-power periods and short low-latency bursts. In low-power periods, results are
+ * batched by the controller if it supports batching.
+ */
+class BleScanPolicy {
+
+    @VisibleForTesting
+    static final long INITIAL_LOW_LATENCY_MS = 30_000;
+
+    @VisibleForTesting
+    static final long LOW_POWER_PERIOD_MS = 60_000;
+
+    @VisibleForTesting
+    static final long LOW_LATENCY_BURST_MS = 10_000;
+
+    private static final long BATCH_REPORT_DELAY_MS = 5_000;
+
+    // Each set bit of the overflow mask takes one hardware filter slot. Beyond this many bits,
+    // a single filter on the overflow area header is used instead.
+    private static final int MAX_OVERFLOW_FILTERS = 8;
+
+    private final UUID mServiceUuid;
+
+    private final byte[] mOverflowMask;
+
+    /**
+     * @param serviceUuid The service UUID advertised by devices in the foreground.
+     * @param bgServiceMask Hex string of the bits set in the iOS overflow area by devices
+     *                      advertising the service from the background.
+     */
+    BleScanPolicy(@NonNull UUID serviceUuid, @NonNull String bgServiceMask) {
+        mServiceUuid = serviceUuid;
+        mOverflowMask = IosOverflowArea.parseMask(bgServiceMask);
+    }
+
+    /** Returns the filters that let through every device worth connecting to. */
+    @NonNull
+    List<ScanFilter> buildScanFilters() {
+        List<ScanFilter> filters = new ArrayList<>();
+        filters.add(new ScanFilter.Builder()
+                .setServiceUuid(new ParcelUuid(mServiceUuid))
+                .build());
+        addOverflowFilters(filters);
+        return filters;
+    }
+
+    /**
+     * Returns the settings to scan with after the search has been running for the given time.
+     *
+     * @param searchDurationMs Time since the search started.
+     * @param isBatchingSupported Whether the controller can batch scan results.
+     */
+    @NonNull
+    ScanSettings buildScanSettings(long searchDurationMs, boolean isBatchingSupported) {
+        int scanMode = getScanMode(searchDurationMs);
+        ScanSettings.Builder builder = new ScanSettings.Builder()
+                .setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
+                .setScanMode(scanMode)
+                .setMatchMode(ScanSettings.MATCH_MODE_AGGRESSIVE);
+        if (scanMode == ScanSettings.SCAN_MODE_LOW_POWER && isBatchingSupported) {
+            builder.setReportDelay(BATCH_REPORT_DELAY_MS);
+        }
+        return builder.build();
+    }
+
+    /** Returns the scan mode to use after the search has been running for the given time. */
+    @VisibleForTesting
+    int getScanMode(long searchDurationMs) {
+        if (searchDurationMs < INITIAL_LOW_LATENCY_MS) {
+            return ScanSettings.SCAN_MODE_LOW_LATENCY;
+        }
+        long cycleOffset = (searchDurationMs - INITIAL_LOW_LATENCY_MS)
+                % (LOW_POWER_PERIOD_MS + LOW_LATENCY_BURST_MS);
+        return cycleOffset < LOW_POWER_PERIOD_MS
+                ? ScanSettings.SCAN_MODE_LOW_POWER
+                : ScanSettings.SCAN_MODE_LOW_LATENCY;
+    }
+
+    /** Returns how long the current scan mode lasts after the given search duration. */
+    long getTimeUntilScanModeChangeMs(long searchDurationMs) {
+        if (searchDurationMs < INITIAL_LOW_LATENCY_MS) {
+            return INITIAL_LOW_LATENCY_MS - searchDurationMs;
+        }
+        long cycleOffset = (searchDurationMs - INITIAL_LOW_LATENCY_MS)
+                % (LOW_POWER_PERIOD_MS + LOW_LATENCY_BURST_MS);
+        return cycleOffset < LOW_POWER_PERIOD_MS
+                ? LOW_POWER_PERIOD_MS - cycleOffset
+                : LOW_POWER_PERIOD_MS + LOW_LATENCY_BURST_MS - cycleOffset;
+    }
+
+    private void addOverflowFilters(@NonNull List<ScanFilter> filters) {
+        // A manufacturer data filter matches when all bits under its mask are equal. A device
+        // qualifies when any bit of the overflow mask is set, so every bit gets its own filter.
+        List<ScanFilter> bitFilters = new ArrayList<>();
+        for (int i = 0; i < IosOverflowArea.MASK_LENGTH; i++) {
+            for (int bit = 0; bit < Byte.SIZE; bit++) {
+                byte bitMask = (byte) (1 << bit);
+                if ((mOverflowMask[i] & bitMask) == 0) {
+                    continue;
+                }
+                byte[] data = new byte[IosOverflowArea.MASK_LENGTH + 1];
+                byte[] mask = new byte[IosOverflowArea.MASK_LENGTH + 1];
+                data[0] = IosOverflowArea.AREA_TYPE;
+                mask[0] = (byte) 0xFF;
+                data[i + 1] = bitMask;
+                mask[i + 1] = bitMask;
+                bitFilters.add(new ScanFilter.Builder()
+                        .setManufacturerData(IosOverflowArea.APPLE_MANUFACTURER_ID, data, mask)
+                        .build());
+            }
+        }
+        if (bitFilters.size() <= MAX_OVERFLOW_FILTERS) {
+            filters.addAll(bitFilters);
+            return;
+        }
+        // Too many bits to filter for individually. Let every overflow area through and leave
+        // the bit check to software.
+        byte[] header = new byte[] { IosOverflowArea.AREA_TYPE };
+        filters.add(new ScanFilter.Builder()
+                .setManufacturerData(IosOverflowArea.APPLE_MANUFACTURER_ID, header,
+                        new byte[] { (byte) 0xFF })
+                .build());
+    }
+}
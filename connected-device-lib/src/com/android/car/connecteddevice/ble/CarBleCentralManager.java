@@ -19,9 +19,9 @@ package com.android.car.connecteddevice.ble;
 import static com.android.car.connecteddevice.util.SafeLog.logd;
 import static com.android.car.connecteddevice.util.SafeLog.loge;
 import static com.android.car.connecteddevice.util.SafeLog.logw;
-import static com.android.car.connecteddevice.util.ScanDataAnalyzer.containsUuidsInOverflow;
 
 import android.annotation.NonNull;
+import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
@@ -30,18 +30,23 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
 import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.Context;
+import android.os.Handler;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 
 import com.android.car.connecteddevice.storage.ConnectedDeviceStorage;
+import com.android.car.connecteddevice.util.AdvertisementMatcher;
 
-import java.math.BigInteger;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Communication manager for a car that maintains continuous connections with all devices in the car
@@ -59,12 +64,6 @@ public class CarBleCentralManager extends CarBleManager {
 
     private static final int STATUS_FORCED_DISCONNECT = -1;
 
-    private final ScanSettings mScanSettings = new ScanSettings.Builder()
-            .setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
-            .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
-            .setMatchMode(ScanSettings.MATCH_MODE_AGGRESSIVE)
-            .build();
-
     private final CopyOnWriteArraySet<BleDevice> mIgnoredDevices = new CopyOnWriteArraySet<>();
 
     private final Context mContext;
@@ -77,7 +76,24 @@ public class CarBleCentralManager extends CarBleManager {
 
     private final UUID mReadCharacteristicUuid;
 
-    private final BigInteger mParsedBgServiceBitMask;
+    private final AdvertisementMatcher mAdvertisementMatcher;
+
+    private final BleScanPolicy mScanPolicy;
+
+    private final Handler mHandler;
+
+    private final AtomicBoolean mIsSearching = new AtomicBoolean(false);
+
+    // Scan metrics for the current search.
+    private final AtomicInteger mScanCallbackCount = new AtomicInteger(0);
+
+    private final AtomicInteger mScanResultCount = new AtomicInteger(0);
+
+    private final AtomicInteger mMatchedScanResultCount = new AtomicInteger(0);
+
+    private volatile List<ScanFilter> mScanFilters;
+
+    private volatile long mSearchStartTimeMs;
 
     /**
      * Create a new manager.
@@ -104,19 +120,78 @@ public class CarBleCentralManager extends CarBleManager {
         mServiceUuid = serviceUuid;
         mWriteCharacteristicUuid = writeCharacteristicUuid;
         mReadCharacteristicUuid = readCharacteristicUuid;
-        mParsedBgServiceBitMask = new BigInteger(bgServiceMask, 16);
+        mAdvertisementMatcher = new AdvertisementMatcher(serviceUuid, bgServiceMask,
+                AdvertisementMatcher.NO_MANUFACTURER_ID);
+        mScanPolicy = new BleScanPolicy(serviceUuid, bgServiceMask);
+        mHandler = new Handler(context.getMainLooper());
     }
 
     @Override
     public void start() {
         super.start();
-        mBleCentralManager.startScanning(/* filters = */ null, mScanSettings, mScanCallback);
+        if (mIsSearching.getAndSet(true)) {
+            return;
+        }
+        mSearchStartTimeMs = SystemClock.elapsedRealtime();
+        mScanCallbackCount.set(0);
+        mScanResultCount.set(0);
+        mMatchedScanResultCount.set(0);
+        mScanFilters = mScanPolicy.buildScanFilters();
+        logd(TAG, "Scanning with " + mScanFilters.size() + " hardware filters.");
+        startScanningForCurrentMode();
     }
 
     @Override
     public void stop() {
         super.stop();
+        mIsSearching.set(false);
+        mHandler.removeCallbacks(mScanModeChangeRunnable);
         mBleCentralManager.stopScanning();
+        logScanMetrics();
+    }
+
+    private void startScanningForCurrentMode() {
+        long searchDurationMs = SystemClock.elapsedRealtime() - mSearchStartTimeMs;
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        boolean isBatchingSupported = adapter != null
+                && adapter.isOffloadedScanBatchingSupported();
+        ScanSettings settings = mScanPolicy.buildScanSettings(searchDurationMs,
+                isBatchingSupported);
+        logd(TAG, "Scanning in mode " + settings.getScanMode() + " with a report delay of "
+                + settings.getReportDelayMillis() + " ms.");
+        // Scan settings can not be changed on a running scan.
+        if (mBleCentralManager.isScanning()) {
+            mBleCentralManager.stopScanning();
+        }
+        mBleCentralManager.startScanning(mScanFilters, settings, mScanCallback);
+        logScanMetrics();
+        mHandler.postDelayed(mScanModeChangeRunnable,
+                mScanPolicy.getTimeUntilScanModeChangeMs(searchDurationMs));
+    }
+
+    private final Runnable mScanModeChangeRunnable = () -> {
+        if (mIsSearching.get()) {
+            startScanningForCurrentMode();
+        }
+    };
+
+    private void logScanMetrics() {
+        long searchDurationMs = SystemClock.elapsedRealtime() - mSearchStartTimeMs;
+        int callbacks = mScanCallbackCount.get();
+        long callbacksPerMinute = searchDurationMs == 0 ? 0
+                : callbacks * 60_000L / searchDurationMs;
+        logd(TAG, "Scan metrics after " + searchDurationMs + " ms: " + callbacks
+                + " callbacks (" + callbacksPerMinute + " per minute) delivering "
+                + mScanResultCount.get() + " results, " + mMatchedScanResultCount.get()
+                + " of which matched.");
+    }
+
+    private void onScanResult(@NonNull ScanResult result) {
+        mScanResultCount.incrementAndGet();
+        if (shouldAttemptConnection(result)) {
+            mMatchedScanResultCount.incrementAndGet();
+            startDeviceConnection(result.getDevice());
+        }
     }
 
     @Override
@@ -174,20 +249,16 @@ public class CarBleCentralManager extends CarBleManager {
             return false;
         }
 
-        // Connect to any device that is advertising our service UUID.
-        List<ParcelUuid> serviceUuids = scanRecord.getServiceUuids();
-        if (serviceUuids != null) {
-            for (ParcelUuid serviceUuid : serviceUuids) {
-                if (serviceUuid.getUuid().equals(mServiceUuid)) {
-                    return true;
-                }
-            }
-        }
-        if (containsUuidsInOverflow(scanRecord.getBytes(), mParsedBgServiceBitMask)) {
+        // Connect to any device that is advertising our service UUID, either directly or in the
+        // iOS background overflow area. Both are checked in a single pass over the raw data.
+        int match = mAdvertisementMatcher.match(scanRecord.getBytes());
+        if ((match & (AdvertisementMatcher.MATCH_SERVICE_UUID
+                | AdvertisementMatcher.MATCH_OVERFLOW)) != 0) {
             return true;
         }
 
         // Can safely ignore devices advertising unrecognized service uuids.
+        List<ParcelUuid> serviceUuids = scanRecord.getServiceUuids();
         if (serviceUuids != null && !serviceUuids.isEmpty()) {
             return false;
         }
@@ -211,6 +282,7 @@ public class CarBleCentralManager extends CarBleManager {
 
         // Stop scanning if we have reached the maximum number of connections.
         if (getConnectedDevicesCount() >= MAX_CONNECTIONS) {
+            mHandler.removeCallbacks(mScanModeChangeRunnable);
             mBleCentralManager.stopScanning();
         }
     }
@@ -243,8 +315,16 @@ public class CarBleCentralManager extends CarBleManager {
         @Override
         public void onScanResult(int callbackType, ScanResult result) {
             super.onScanResult(callbackType, result);
-            if (shouldAttemptConnection(result)) {
-                startDeviceConnection(result.getDevice());
+            mScanCallbackCount.incrementAndGet();
+            CarBleCentralManager.this.onScanResult(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            super.onBatchScanResults(results);
+            mScanCallbackCount.incrementAndGet();
+            for (ScanResult result : results) {
+                CarBleCentralManager.this.onScanResult(result);
             }
         }
 
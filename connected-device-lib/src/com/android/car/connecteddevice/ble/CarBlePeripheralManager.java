@@ -42,7 +42,13 @@ import com.android.car.connecteddevice.storage.ConnectedDeviceStorage;
 import com.android.car.connecteddevice.util.EventLog;
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
@@ -50,6 +56,10 @@ import java.util.concurrent.TimeUnit;
 
 /**
  * Communication manager that allows for targeted connections to a specific device in the car.
+ *
+ * <p>Several devices can be connected at once, up to a configured limit. Each connected device
+ * has its own {@link BleDeviceMessageStream}, {@link SecureBleChannel} and MTU. Devices that are
+ * asked to reconnect are advertised for one after another, while below the limit.
  */
 public class CarBlePeripheralManager extends CarBleManager {
 
@@ -63,14 +73,11 @@ public class CarBlePeripheralManager extends CarBleManager {
     // fails.
     private static final long ASSOCIATE_ADVERTISING_DELAY_MS = 10L;
 
+    private static final int DEFAULT_MAX_CONNECTED_DEVICES = 1;
+
     private static final UUID CLIENT_CHARACTERISTIC_CONFIG =
             UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
-    private final BluetoothGattDescriptor mDescriptor =
-            new BluetoothGattDescriptor(CLIENT_CHARACTERISTIC_CONFIG,
-                    BluetoothGattDescriptor.PERMISSION_READ
-                            | BluetoothGattDescriptor.PERMISSION_WRITE);
-
     private final ScheduledExecutorService mScheduler =
             Executors.newSingleThreadScheduledExecutor();
 
@@ -78,24 +85,41 @@ public class CarBlePeripheralManager extends CarBleManager {
 
     private final UUID mAssociationServiceUuid;
 
-    private final BluetoothGattCharacteristic mWriteCharacteristic;
+    private final UUID mWriteCharacteristicUuid;
 
-    private final BluetoothGattCharacteristic mReadCharacteristic;
+    private final UUID mReadCharacteristicUuid;
 
     private final Handler mTimeoutHandler;
 
-    // BLE default is 23, minus 3 bytes for ATT_PROTOCOL.
-    private int mWriteSize = 20;
+    private final StreamThreadingModel mStreamThreadingModel;
+
+    private final int mMaxConnectedDevices;
+
+    // Connected devices that have sent their device id, keyed by that id.
+    private final Map<String, BleDevice> mConnectedDevicesById = new ConcurrentHashMap<>();
+
+    // Devices waiting to reconnect, in the order they were requested. While advertising for
+    // reconnection, the first one is the device advertised for. Only accessed while holding
+    // mReconnectLock.
+    private final Set<UUID> mPendingReconnects = new LinkedHashSet<>();
+
+    private final Object mReconnectLock = new Object();
+
+    private int mReconnectTimeoutSeconds;
 
     private String mOriginalBluetoothName;
 
     private String mClientDeviceName;
 
-    private String mClientDeviceAddress;
+    // The device that connected for the current or most recent association.
+    private volatile BleDevice mAssociatingDevice;
+
+    private volatile AssociationCallback mAssociationCallback;
 
-    private AssociationCallback mAssociationCallback;
+    private volatile AdvertiseCallback mAdvertiseCallback;
 
-    private AdvertiseCallback mAdvertiseCallback;
+    // Service of the current advertisement. Devices that connect are served its characteristics.
+    private volatile BluetoothGattService mAdvertisedService;
 
     /**
      * Initialize a new instance of manager.
@@ -110,18 +134,54 @@ public class CarBlePeripheralManager extends CarBleManager {
             @NonNull ConnectedDeviceStorage connectedDeviceStorage,
             @NonNull UUID associationServiceUuid, @NonNull UUID writeCharacteristicUuid,
             @NonNull UUID readCharacteristicUuid) {
+        this(blePeripheralManager, connectedDeviceStorage, associationServiceUuid,
+                writeCharacteristicUuid, readCharacteristicUuid,
+                StreamThreadingModel.newDedicatedThreadModel());
+    }
+
+    /**
+     * Initialize a new instance of manager.
+     *
+     * @param blePeripheralManager {@link BlePeripheralManager} for establishing connection.
+     * @param connectedDeviceStorage Shared {@link ConnectedDeviceStorage} for companion features.
+     * @param associationServiceUuid {@link UUID} of association service.
+     * @param writeCharacteristicUuid {@link UUID} of characteristic the car will write to.
+     * @param readCharacteristicUuid {@link UUID} of characteristic the device will write to.
+     * @param streamThreadingModel {@link StreamThreadingModel} the message streams run on.
+     */
+    public CarBlePeripheralManager(@NonNull BlePeripheralManager blePeripheralManager,
+            @NonNull ConnectedDeviceStorage connectedDeviceStorage,
+            @NonNull UUID associationServiceUuid, @NonNull UUID writeCharacteristicUuid,
+            @NonNull UUID readCharacteristicUuid,
+            @NonNull StreamThreadingModel streamThreadingModel) {
+        this(blePeripheralManager, connectedDeviceStorage, associationServiceUuid,
+                writeCharacteristicUuid, readCharacteristicUuid, streamThreadingModel,
+                DEFAULT_MAX_CONNECTED_DEVICES);
+    }
+
+    /**
+     * Initialize a new instance of manager.
+     *
+     * @param blePeripheralManager {@link BlePeripheralManager} for establishing connection.
+     * @param connectedDeviceStorage Shared {@link ConnectedDeviceStorage} for companion features.
+     * @param associationServiceUuid {@link UUID} of association service.
+     * @param writeCharacteristicUuid {@link UUID} of characteristic the car will write to.
+     * @param readCharacteristicUuid {@link UUID} of characteristic the device will write to.
+     * @param streamThreadingModel {@link StreamThreadingModel} the message streams run on.
+     * @param maxConnectedDevices Maximum number of devices that can be connected at once.
+     */
+    public CarBlePeripheralManager(@NonNull BlePeripheralManager blePeripheralManager,
+            @NonNull ConnectedDeviceStorage connectedDeviceStorage,
+            @NonNull UUID associationServiceUuid, @NonNull UUID writeCharacteristicUuid,
+            @NonNull UUID readCharacteristicUuid,
+            @NonNull StreamThreadingModel streamThreadingModel, int maxConnectedDevices) {
         super(connectedDeviceStorage);
         mBlePeripheralManager = blePeripheralManager;
+        mStreamThreadingModel = streamThreadingModel;
         mAssociationServiceUuid = associationServiceUuid;
-        mDescriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
-        mWriteCharacteristic = new BluetoothGattCharacteristic(writeCharacteristicUuid,
-                BluetoothGattCharacteristic.PROPERTY_NOTIFY,
-                BluetoothGattCharacteristic.PROPERTY_READ);
-        mReadCharacteristic = new BluetoothGattCharacteristic(readCharacteristicUuid,
-                BluetoothGattCharacteristic.PROPERTY_WRITE
-                        | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE,
-                BluetoothGattCharacteristic.PERMISSION_WRITE);
-        mReadCharacteristic.addDescriptor(mDescriptor);
+        mWriteCharacteristicUuid = writeCharacteristicUuid;
+        mReadCharacteristicUuid = readCharacteristicUuid;
+        mMaxConnectedDevices = Math.max(maxConnectedDevices, 1);
         mTimeoutHandler = new Handler(Looper.getMainLooper());
     }
 
@@ -151,63 +211,193 @@ public class CarBlePeripheralManager extends CarBleManager {
 
     @Override
     public void stop() {
-        super.stop();
+        // Close the streams before the connected devices are cleared.
         reset();
+        super.stop();
     }
 
     @Override
     public void disconnectDevice(@NonNull String deviceId) {
-        BleDevice connectedDevice = getConnectedDevice();
-        if (connectedDevice == null || !deviceId.equals(connectedDevice.mDeviceId)) {
+        BleDevice connectedDevice = getConnectedDevice(deviceId);
+        if (connectedDevice == null) {
             return;
         }
-        reset();
+        disconnect(connectedDevice);
+    }
+
+    @Override
+    @Nullable
+    BleDevice getConnectedDevice(@NonNull String deviceId) {
+        return mConnectedDevicesById.get(deviceId);
     }
 
     private void reset() {
+        mTimeoutHandler.removeCallbacks(mTimeoutRunnable);
+        synchronized (mReconnectLock) {
+            mPendingReconnects.clear();
+        }
         resetBluetoothAdapterName();
-        mClientDeviceAddress = null;
         mClientDeviceName = null;
+        mAssociatingDevice = null;
         mAssociationCallback = null;
+        mAdvertisedService = null;
         mBlePeripheralManager.cleanup();
+        for (BleDevice device : mConnectedDevices) {
+            closeStream(device);
+        }
         mConnectedDevices.clear();
+        mConnectedDevicesById.clear();
     }
 
-    /** Attempt to connect to device with provided id within set timeout period. */
-    public void connectToDevice(@NonNull UUID deviceId, int timeoutSeconds) {
+    /**
+     * Disconnect a single device. Tears down the GATT server as well if it was the last connected
+     * device.
+     */
+    private void disconnect(@NonNull BleDevice device) {
+        if (getConnectedDevicesCount() <= 1) {
+            reset();
+            return;
+        }
+        removeSession(device);
+        mBlePeripheralManager.disconnectDevice(device.mDevice);
+    }
+
+    /** Forget the given device and release its stream while other devices stay connected. */
+    private void removeSession(@NonNull BleDevice device) {
+        removeConnectedDevice(device);
+        if (device.mDeviceId != null) {
+            mConnectedDevicesById.remove(device.mDeviceId, device);
+        }
+        if (device == mAssociatingDevice) {
+            mAssociatingDevice = null;
+        }
+        closeStream(device);
+        Set<UUID> retainedServices = getServicesInUse();
+        BluetoothGattService advertisedService = mAdvertisedService;
+        if (advertisedService != null) {
+            retainedServices.add(advertisedService.getUuid());
+        }
+        mBlePeripheralManager.retainServices(retainedServices);
+    }
+
+    /** Returns the UUIDs of the services the connected devices talk through. */
+    @NonNull
+    private Set<UUID> getServicesInUse() {
+        Set<UUID> services = new HashSet<>();
         for (BleDevice device : mConnectedDevices) {
-            if (UUID.fromString(device.mDeviceId).equals(deviceId)) {
-                logd(TAG, "Already connected to device " + deviceId + ".");
-                // Already connected to this device. Ignore requests to connect again.
+            if (device.mSecureChannel == null || device.mSecureChannel.getStream() == null) {
+                continue;
+            }
+            UUID serviceUuid = device.mSecureChannel.getStream().getServiceUuid();
+            if (serviceUuid != null) {
+                services.add(serviceUuid);
+            }
+        }
+        return services;
+    }
+
+    private static void closeStream(@NonNull BleDevice device) {
+        if (device.mSecureChannel != null && device.mSecureChannel.getStream() != null) {
+            device.mSecureChannel.getStream().close();
+        }
+    }
+
+    /** Stop the current advertisement without affecting connected devices. */
+    private void stopCurrentAdvertising() {
+        mTimeoutHandler.removeCallbacks(mTimeoutRunnable);
+        if (mAdvertiseCallback != null) {
+            mBlePeripheralManager.stopAdvertising(mAdvertiseCallback);
+        }
+        resetBluetoothAdapterName();
+        if (mAssociatingDevice == null) {
+            // An association that no device has connected to yet is abandoned.
+            mAssociationCallback = null;
+        }
+    }
+
+    /**
+     * Attempt to connect to device with provided id within set timeout period. Devices requested
+     * while another device is being advertised for are advertised for once the devices before
+     * them have connected or timed out, as long as fewer than the maximum number of devices are
+     * connected.
+     */
+    public void connectToDevice(@NonNull UUID deviceId, int timeoutSeconds) {
+        if (mConnectedDevicesById.containsKey(deviceId.toString())) {
+            logd(TAG, "Already connected to device " + deviceId + ".");
+            // Already connected to this device. Ignore requests to connect again.
+            return;
+        }
+
+        synchronized (mReconnectLock) {
+            if (mConnectedDevices.isEmpty() && mPendingReconnects.isEmpty()) {
+                // Clear any previous session before starting a new one.
+                reset();
+            }
+            if (!mPendingReconnects.add(deviceId)) {
+                logd(TAG, "Already waiting for device " + deviceId + " to connect. Ignoring "
+                        + "redundant request.");
+                return;
+            }
+            mReconnectTimeoutSeconds = timeoutSeconds;
+            if (mPendingReconnects.size() > 1) {
+                logd(TAG, "Device " + deviceId + " will be advertised for after "
+                        + (mPendingReconnects.size() - 1) + " other devices.");
                 return;
             }
+            advertiseForNextReconnectLocked();
         }
+    }
 
-        // Clear any previous session before starting a new one.
-        reset();
+    /**
+     * Advertise for the first device waiting to reconnect, unless an association is in progress
+     * or the maximum number of devices is connected. Must be called while holding
+     * mReconnectLock.
+     */
+    private void advertiseForNextReconnectLocked() {
+        Iterator<UUID> iterator = mPendingReconnects.iterator();
+        while (iterator.hasNext()) {
+            if (mConnectedDevicesById.containsKey(iterator.next().toString())) {
+                iterator.remove();
+            }
+        }
+        if (mPendingReconnects.isEmpty() || isAssociating()) {
+            return;
+        }
+        if (getConnectedDevicesCount() >= mMaxConnectedDevices) {
+            logd(TAG, "Already connected to " + getConnectedDevicesCount() + " devices. "
+                    + mPendingReconnects.size() + " devices are waiting for a free slot.");
+            return;
+        }
 
-        mAdvertiseCallback = new AdvertiseCallback() {
+        stopCurrentAdvertising();
+        UUID deviceId = mPendingReconnects.iterator().next();
+        int timeoutSeconds = mReconnectTimeoutSeconds;
+        AdvertiseCallback advertiseCallback = new AdvertiseCallback() {
             @Override
             public void onStartSuccess(AdvertiseSettings settingsInEffect) {
                 super.onStartSuccess(settingsInEffect);
+                if (mAdvertiseCallback != this) {
+                    // Advertising has moved on to another device in the meantime.
+                    return;
+                }
                 mTimeoutHandler.postDelayed(mTimeoutRunnable,
                         TimeUnit.SECONDS.toMillis(timeoutSeconds));
                 logd(TAG, "Successfully started advertising for device " + deviceId
                         + " for " + timeoutSeconds + " seconds.");
             }
         };
-        mBlePeripheralManager.unregisterCallback(mAssociationPeripheralCallback);
-        mBlePeripheralManager.registerCallback(mReconnectPeripheralCallback);
-        mTimeoutHandler.removeCallbacks(mTimeoutRunnable);
-        startAdvertising(deviceId, mAdvertiseCallback, /* includeDeviceName = */ false);
+        mAdvertiseCallback = advertiseCallback;
+        mBlePeripheralManager.registerCallback(mPeripheralCallback);
+        BluetoothGattService service = createGattService(deviceId);
+        mAdvertisedService = service;
+        startAdvertising(service, advertiseCallback, /* includeDeviceName = */ false);
     }
 
-    @Nullable
-    private BleDevice getConnectedDevice() {
-        if (mConnectedDevices.isEmpty()) {
-            return null;
+    /** Resume advertising for devices waiting to reconnect, if there are any. */
+    private void resumeReconnectAdvertising() {
+        synchronized (mReconnectLock) {
+            advertiseForNextReconnectLocked();
         }
-        return mConnectedDevices.iterator().next();
     }
 
     /** Start the association with a new device */
@@ -218,8 +408,19 @@ public class CarBlePeripheralManager extends CarBleManager {
             loge(TAG, "Bluetooth is unavailable on this device. Unable to start associating.");
             return;
         }
+        if (getConnectedDevicesCount() >= mMaxConnectedDevices) {
+            loge(TAG, "Already connected to " + getConnectedDevicesCount() + " devices. Unable "
+                    + "to start associating.");
+            callback.onAssociationStartFailure();
+            return;
+        }
 
-        reset();
+        if (mConnectedDevices.isEmpty()) {
+            reset();
+        } else {
+            stopCurrentAdvertising();
+            mAssociatingDevice = null;
+        }
         mAssociationCallback = callback;
         if (mOriginalBluetoothName == null) {
             mOriginalBluetoothName = adapter.getName();
@@ -228,8 +429,8 @@ public class CarBlePeripheralManager extends CarBleManager {
         adapter.setName(nameForAssociation);
         logd(TAG, "Changing bluetooth adapter name from " + mOriginalBluetoothName + " to "
                 + nameForAssociation + ".");
-        mBlePeripheralManager.unregisterCallback(mReconnectPeripheralCallback);
-        mBlePeripheralManager.registerCallback(mAssociationPeripheralCallback);
+        mBlePeripheralManager.registerCallback(mPeripheralCallback);
+        mAdvertisedService = createGattService(mAssociationServiceUuid);
         mAdvertiseCallback = new AdvertiseCallback() {
             @Override
             public void onStartSuccess(AdvertiseSettings settingsInEffect) {
@@ -253,15 +454,27 @@ public class CarBlePeripheralManager extends CarBleManager {
         if (!isAssociating() || callback != mAssociationCallback) {
             return;
         }
-        reset();
+        BleDevice associatingDevice = mAssociatingDevice;
+        mAssociationCallback = null;
+        stopCurrentAdvertising();
+        if (associatingDevice != null) {
+            disconnect(associatingDevice);
+        } else if (mConnectedDevices.isEmpty()) {
+            reset();
+        }
+        resumeReconnectAdvertising();
     }
 
     private void attemptAssociationAdvertising(@NonNull String adapterName,
             @NonNull AssociationCallback callback) {
+        BluetoothGattService service = mAdvertisedService;
+        if (service == null || callback != mAssociationCallback) {
+            logd(TAG, "Association was stopped before advertising started.");
+            return;
+        }
         if (mOriginalBluetoothName != null
                 && adapterName.equals(BluetoothAdapter.getDefaultAdapter().getName())) {
-            startAdvertising(mAssociationServiceUuid, mAdvertiseCallback,
-                    /* includeDeviceName = */ true);
+            startAdvertising(service, mAdvertiseCallback, /* includeDeviceName = */ true);
             return;
         }
 
@@ -277,32 +490,57 @@ public class CarBlePeripheralManager extends CarBleManager {
                 + "again in " + ASSOCIATE_ADVERTISING_DELAY_MS + "  milliseconds.");
     }
 
-    private void startAdvertising(@NonNull UUID serviceUuid, @NonNull AdvertiseCallback callback,
-            boolean includeDeviceName) {
+    @NonNull
+    private BluetoothGattService createGattService(@NonNull UUID serviceUuid) {
+        // Every service gets its own characteristics. Sharing them between services of the same
+        // GATT server would mix up their attribute handles.
+        BluetoothGattDescriptor descriptor = new BluetoothGattDescriptor(
+                CLIENT_CHARACTERISTIC_CONFIG,
+                BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE);
+        descriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
+        BluetoothGattCharacteristic writeCharacteristic = new BluetoothGattCharacteristic(
+                mWriteCharacteristicUuid, BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PROPERTY_READ);
+        BluetoothGattCharacteristic readCharacteristic = new BluetoothGattCharacteristic(
+                mReadCharacteristicUuid,
+                BluetoothGattCharacteristic.PROPERTY_WRITE
+                        | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE,
+                BluetoothGattCharacteristic.PERMISSION_WRITE);
+        readCharacteristic.addDescriptor(descriptor);
+
         BluetoothGattService gattService = new BluetoothGattService(serviceUuid,
                 BluetoothGattService.SERVICE_TYPE_PRIMARY);
-        gattService.addCharacteristic(mWriteCharacteristic);
-        gattService.addCharacteristic(mReadCharacteristic);
+        gattService.addCharacteristic(writeCharacteristic);
+        gattService.addCharacteristic(readCharacteristic);
+        return gattService;
+    }
 
+    private void startAdvertising(@NonNull BluetoothGattService gattService,
+            @NonNull AdvertiseCallback callback, boolean includeDeviceName) {
         AdvertiseData advertiseData = new AdvertiseData.Builder()
                 .setIncludeDeviceName(includeDeviceName)
-                .addServiceUuid(new ParcelUuid(serviceUuid))
+                .addServiceUuid(new ParcelUuid(gattService.getUuid()))
                 .build();
-        mBlePeripheralManager.startAdvertising(gattService, advertiseData, callback);
+        if (mConnectedDevices.isEmpty()) {
+            mBlePeripheralManager.startAdvertising(gattService, advertiseData, callback);
+            return;
+        }
+        mBlePeripheralManager.startAdvertisingAlongsideConnections(gattService, advertiseData,
+                callback, getServicesInUse());
     }
 
     /** Notify that the user has accepted a pairing code or other out-of-band confirmation. */
     public void notifyOutOfBandAccepted() {
-        if (getConnectedDevice() == null) {
-            disconnectWithError("Null connected device found when out-of-band confirmation "
-                    + "received.");
+        BleDevice associatingDevice = mAssociatingDevice;
+        if (associatingDevice == null) {
+            loge(TAG, "Null connected device found when out-of-band confirmation received.");
             return;
         }
 
-        SecureBleChannel secureChannel = getConnectedDevice().mSecureChannel;
+        SecureBleChannel secureChannel = associatingDevice.mSecureChannel;
         if (secureChannel == null) {
-            disconnectWithError("Null SecureBleChannel found for the current connected device "
-                    + "when out-of-band confirmation received.");
+            disconnectWithError(associatingDevice, "Null SecureBleChannel found for the current "
+                    + "connected device when out-of-band confirmation received.");
             return;
         }
 
@@ -312,29 +550,24 @@ public class CarBlePeripheralManager extends CarBleManager {
     @VisibleForTesting
     @Nullable
     SecureBleChannel getConnectedDeviceChannel() {
-        BleDevice connectedDevice = getConnectedDevice();
-        if (connectedDevice == null) {
+        if (mConnectedDevices.isEmpty()) {
             return null;
         }
 
-        return connectedDevice.mSecureChannel;
+        return mConnectedDevices.iterator().next().mSecureChannel;
     }
 
-    private void setDeviceId(@NonNull String deviceId) {
+    private void setDeviceId(@NonNull BleDevice connectedDevice, @NonNull String deviceId) {
         logd(TAG, "Setting device id: " + deviceId);
-        BleDevice connectedDevice = getConnectedDevice();
-        if (connectedDevice == null) {
-            disconnectWithError("Null connected device found when device id received.");
-            return;
-        }
-
         connectedDevice.mDeviceId = deviceId;
+        mConnectedDevicesById.put(deviceId, connectedDevice);
         mCallbacks.invoke(callback -> callback.onDeviceConnected(deviceId));
     }
 
-    private void disconnectWithError(@NonNull String errorMessage) {
+    private void disconnectWithError(@NonNull BleDevice connectedDevice,
+            @NonNull String errorMessage) {
         loge(TAG, errorMessage);
-        reset();
+        disconnect(connectedDevice);
     }
 
     private void resetBluetoothAdapterName() {
@@ -361,80 +594,85 @@ public class CarBlePeripheralManager extends CarBleManager {
                 ASSOCIATE_ADVERTISING_DELAY_MS, TimeUnit.MILLISECONDS);
     }
 
-    private void addConnectedDevice(BluetoothDevice device, boolean isReconnect) {
+    @Nullable
+    private BleDevice addConnectedDevice(@NonNull BluetoothDevice device, boolean isReconnect) {
+        BluetoothGattService service = mAdvertisedService;
+        if (service == null) {
+            loge(TAG, "Device " + device.getAddress() + " connected without an advertised "
+                    + "service. Disconnecting.");
+            mBlePeripheralManager.disconnectDevice(device);
+            return null;
+        }
         EventLog.onDeviceConnected();
         mBlePeripheralManager.stopAdvertising(mAdvertiseCallback);
         mTimeoutHandler.removeCallbacks(mTimeoutRunnable);
-        mClientDeviceAddress = device.getAddress();
-        mClientDeviceName = device.getName();
-        if (mClientDeviceName == null) {
-            logd(TAG, "Device connected, but name is null; issuing request to retrieve device "
-                    + "name.");
-            mBlePeripheralManager.retrieveDeviceName(device);
+        if (!isReconnect) {
+            mClientDeviceName = device.getName();
+            if (mClientDeviceName == null) {
+                logd(TAG, "Device connected, but name is null; issuing request to retrieve "
+                        + "device name.");
+                mBlePeripheralManager.retrieveDeviceName(device);
+            }
         }
 
+        // The stream starts on the service advertised when the device connected and binds to the
+        // service the device actually writes through once its first write arrives.
         BleDeviceMessageStream secureStream = new BleDeviceMessageStream(mBlePeripheralManager,
-                device, mWriteCharacteristic, mReadCharacteristic);
-        secureStream.setMaxWriteSize(mWriteSize);
+                device, service.getCharacteristic(mWriteCharacteristicUuid),
+                service.getCharacteristic(mReadCharacteristicUuid), mStreamThreadingModel);
+        int mtuSize = mBlePeripheralManager.getMtuSize(device);
+        if (mtuSize > ATT_PROTOCOL_BYTES) {
+            secureStream.setMaxWriteSize(mtuSize - ATT_PROTOCOL_BYTES);
+        }
         SecureBleChannel secureChannel = new SecureBleChannel(secureStream, mStorage, isReconnect,
                 EncryptionRunnerFactory.newRunner());
-        secureChannel.registerCallback(mSecureChannelCallback);
         BleDevice bleDevice = new BleDevice(device, /* gatt = */ null);
         bleDevice.mSecureChannel = secureChannel;
+        secureChannel.registerCallback(createSecureChannelCallback(bleDevice));
         addConnectedDevice(bleDevice);
+        if (isReconnect) {
+            synchronized (mReconnectLock) {
+                // The device advertised for has connected. Move on to the next waiting device.
+                mPendingReconnects.remove(service.getUuid());
+                advertiseForNextReconnectLocked();
+            }
+        }
+        return bleDevice;
     }
 
-    private void setMtuSize(int mtuSize) {
-        mWriteSize = mtuSize - ATT_PROTOCOL_BYTES;
-        BleDevice connectedDevice = getConnectedDevice();
+    private void setMtuSize(@NonNull BluetoothDevice device, int mtuSize) {
+        BleDevice connectedDevice = getConnectedDevice(device);
         if (connectedDevice != null
                 && connectedDevice.mSecureChannel != null
                 && connectedDevice.mSecureChannel.getStream() != null) {
-            connectedDevice.mSecureChannel.getStream().setMaxWriteSize(mWriteSize);
+            connectedDevice.mSecureChannel.getStream()
+                    .setMaxWriteSize(mtuSize - ATT_PROTOCOL_BYTES);
+        }
+    }
+
+    private void logStreamThroughput(@Nullable BleDevice connectedDevice) {
+        if (connectedDevice == null
+                || connectedDevice.mSecureChannel == null
+                || connectedDevice.mSecureChannel.getStream() == null) {
+            return;
         }
+        BleDeviceMessageStream stream = connectedDevice.mSecureChannel.getStream();
+        logd(TAG, "Stream to device " + connectedDevice.mDeviceId + " sent "
+                + stream.getSentBytesPerSecond() + " bytes/s and received "
+                + stream.getReceivedBytesPerSecond() + " bytes/s with a final write size of "
+                + stream.getWriteSize() + " bytes.");
+        MessageCompressor compressor = stream.getMessageCompressor();
+        logd(TAG, "Stream to device " + connectedDevice.mDeviceId + " compressed payloads to "
+                + compressor.getCompressionRatio() + " of their size, spending "
+                + compressor.getCompressionTimeMs() + " ms compressing and "
+                + compressor.getDecompressionTimeMs() + " ms decompressing.");
     }
 
     private boolean isAssociating() {
         return mAssociationCallback != null;
     }
 
-    private final BlePeripheralManager.Callback mReconnectPeripheralCallback =
-            new BlePeripheralManager.Callback() {
-
-                @Override
-                public void onDeviceNameRetrieved(String deviceName) {
-                    // Ignored.
-                }
-
-                @Override
-                public void onMtuSizeChanged(int size) {
-                    setMtuSize(size);
-                }
-
-                @Override
-                public void onRemoteDeviceConnected(BluetoothDevice device) {
-                    addConnectedDevice(device, /* isReconnect= */ true);
-                }
-
-                @Override
-                public void onRemoteDeviceDisconnected(BluetoothDevice device) {
-                    String deviceId = null;
-                    BleDevice connectedDevice = getConnectedDevice(device);
-                    // Reset before invoking callbacks to avoid a race condition with reconnect
-                    // logic.
-                    reset();
-                    if (connectedDevice != null) {
-                        deviceId = connectedDevice.mDeviceId;
-                    }
-                    final String finalDeviceId = deviceId;
-                    if (finalDeviceId != null) {
-                        logd(TAG, "Connected device " + finalDeviceId + " disconnected.");
-                        mCallbacks.invoke(callback -> callback.onDeviceDisconnected(finalDeviceId));
-                    }
-                }
-            };
-
-    private final BlePeripheralManager.Callback mAssociationPeripheralCallback =
+    private final BlePeripheralManager.Callback mPeripheralCallback =
             new BlePeripheralManager.Callback() {
                 @Override
                 public void onDeviceNameRetrieved(String deviceName) {
@@ -442,26 +680,43 @@ public class CarBlePeripheralManager extends CarBleManager {
                         return;
                     }
                     mClientDeviceName = deviceName;
-                    BleDevice connectedDevice = getConnectedDevice();
-                    if (connectedDevice == null || connectedDevice.mDeviceId == null) {
+                    BleDevice associatingDevice = mAssociatingDevice;
+                    if (associatingDevice == null || associatingDevice.mDeviceId == null) {
                         return;
                     }
-                    mStorage.updateAssociatedDeviceName(connectedDevice.mDeviceId, deviceName);
+                    mStorage.updateAssociatedDeviceName(associatingDevice.mDeviceId, deviceName);
                 }
 
                 @Override
-                public void onMtuSizeChanged(int size) {
-                    setMtuSize(size);
+                public void onMtuSizeChanged(BluetoothDevice device, int size) {
+                    setMtuSize(device, size);
                 }
 
                 @Override
                 public void onRemoteDeviceConnected(BluetoothDevice device) {
+                    if (getConnectedDevice(device) != null) {
+                        logw(TAG, "Device " + device.getAddress() + " is already connected. "
+                                + "Ignoring.");
+                        return;
+                    }
+                    if (getConnectedDevicesCount() >= mMaxConnectedDevices) {
+                        logw(TAG, "Device " + device.getAddress() + " connected beyond the limit "
+                                + "of " + mMaxConnectedDevices + " devices. Disconnecting.");
+                        mBlePeripheralManager.disconnectDevice(device);
+                        return;
+                    }
+                    boolean isAssociation = isAssociating() && mAssociatingDevice == null;
+                    if (!isAssociation) {
+                        addConnectedDevice(device, /* isReconnect= */ true);
+                        return;
+                    }
                     resetBluetoothAdapterName();
-                    addConnectedDevice(device, /* isReconnect = */ false);
-                    BleDevice connectedDevice = getConnectedDevice();
+                    BleDevice connectedDevice =
+                            addConnectedDevice(device, /* isReconnect = */ false);
                     if (connectedDevice == null || connectedDevice.mSecureChannel == null) {
                         return;
                     }
+                    mAssociatingDevice = connectedDevice;
                     connectedDevice.mSecureChannel.setShowVerificationCodeListener(
                             code -> {
                                 if (!isAssociating()) {
@@ -475,100 +730,118 @@ public class CarBlePeripheralManager extends CarBleManager {
                 @Override
                 public void onRemoteDeviceDisconnected(BluetoothDevice device) {
                     BleDevice connectedDevice = getConnectedDevice(device);
-                    if (isAssociating()) {
-                        mAssociationCallback.onAssociationError(
+                    if (connectedDevice == null) {
+                        return;
+                    }
+                    logStreamThroughput(connectedDevice);
+                    AssociationCallback associationCallback = mAssociationCallback;
+                    if (connectedDevice == mAssociatingDevice && associationCallback != null) {
+                        associationCallback.onAssociationError(
                                 DEVICE_ERROR_UNEXPECTED_DISCONNECTION);
                     }
                     // Reset before invoking callbacks to avoid a race condition with reconnect
                     // logic.
-                    reset();
-                    if (connectedDevice != null && connectedDevice.mDeviceId != null) {
-                        mCallbacks.invoke(callback -> callback.onDeviceDisconnected(
-                                connectedDevice.mDeviceId));
-                    }
-                }
-            };
-
-    private final SecureBleChannel.Callback mSecureChannelCallback =
-            new SecureBleChannel.Callback() {
-                @Override
-                public void onSecureChannelEstablished() {
-                    BleDevice connectedDevice = getConnectedDevice();
-                    if (connectedDevice == null || connectedDevice.mDeviceId == null) {
-                        disconnectWithError("Null device id found when secure channel "
-                                + "established.");
-                        return;
+                    if (getConnectedDevicesCount() <= 1) {
+                        reset();
+                    } else {
+                        removeSession(connectedDevice);
+                        // A slot has been freed for a device waiting to reconnect.
+                        resumeReconnectAdvertising();
                     }
                     String deviceId = connectedDevice.mDeviceId;
-                    if (mClientDeviceAddress == null) {
-                        disconnectWithError("Null device address found when secure channel "
-                                + "established.");
-                        return;
-                    }
-                    if (isAssociating()) {
-                        logd(TAG, "Secure channel established for un-associated device. Saving "
-                                + "association of that device for current user.");
-                        mStorage.addAssociatedDeviceForActiveUser(
-                                new AssociatedDevice(deviceId, mClientDeviceAddress,
-                                        mClientDeviceName, /* isConnectionEnabled = */ true));
-                        if (mAssociationCallback != null) {
-                            mAssociationCallback.onAssociationCompleted(deviceId);
-                            mAssociationCallback = null;
-                        }
+                    if (deviceId != null) {
+                        logd(TAG, "Connected device " + deviceId + " disconnected.");
+                        mCallbacks.invoke(callback -> callback.onDeviceDisconnected(deviceId));
                     }
-                    mCallbacks.invoke(callback -> callback.onSecureChannelEstablished(deviceId));
                 }
+            };
 
-                @Override
-                public void onEstablishSecureChannelFailure(int error) {
-                    BleDevice connectedDevice = getConnectedDevice();
-                    if (connectedDevice == null || connectedDevice.mDeviceId == null) {
-                        disconnectWithError("Null device id found when secure channel failed to "
-                                + "establish.");
-                        return;
-                    }
-                    String deviceId = connectedDevice.mDeviceId;
-                    mCallbacks.invoke(callback -> callback.onSecureChannelError(deviceId));
-
-                    if (isAssociating()) {
-                        mAssociationCallback.onAssociationError(error);
-                        disconnectWithError("Error while establishing secure connection.");
-                    }
+    @NonNull
+    private SecureBleChannel.Callback createSecureChannelCallback(
+            @NonNull BleDevice connectedDevice) {
+        return new SecureBleChannel.Callback() {
+            @Override
+            public void onSecureChannelEstablished() {
+                String deviceId = connectedDevice.mDeviceId;
+                if (deviceId == null) {
+                    disconnectWithError(connectedDevice, "Null device id found when secure "
+                            + "channel established.");
+                    return;
                 }
+                AssociationCallback associationCallback = mAssociationCallback;
+                if (connectedDevice == mAssociatingDevice && associationCallback != null) {
+                    logd(TAG, "Secure channel established for un-associated device. Saving "
+                            + "association of that device for current user.");
+                    mStorage.addAssociatedDeviceForActiveUser(
+                            new AssociatedDevice(deviceId, connectedDevice.mDevice.getAddress(),
+                                    mClientDeviceName, /* isConnectionEnabled = */ true));
+                    associationCallback.onAssociationCompleted(deviceId);
+                    mAssociationCallback = null;
+                    resumeReconnectAdvertising();
+                }
+                mCallbacks.invoke(callback -> callback.onSecureChannelEstablished(deviceId));
+            }
 
-                @Override
-                public void onMessageReceived(DeviceMessage deviceMessage) {
-                    BleDevice connectedDevice = getConnectedDevice();
-                    if (connectedDevice == null || connectedDevice.mDeviceId == null) {
-                        disconnectWithError("Null device id found when message received.");
-                        return;
-                    }
-
-                    logd(TAG, "Received new message from " + connectedDevice.mDeviceId
-                            + " with " + deviceMessage.getMessage().length + " bytes in its "
-                            + "payload. Notifying " + mCallbacks.size() + " callbacks.");
-                    mCallbacks.invoke(
-                            callback ->callback.onMessageReceived(connectedDevice.mDeviceId,
-                                    deviceMessage));
+            @Override
+            public void onEstablishSecureChannelFailure(int error) {
+                String deviceId = connectedDevice.mDeviceId;
+                if (deviceId == null) {
+                    disconnectWithError(connectedDevice, "Null device id found when secure "
+                            + "channel failed to establish.");
+                    return;
                 }
+                mCallbacks.invoke(callback -> callback.onSecureChannelError(deviceId));
 
-                @Override
-                public void onMessageReceivedError(Exception exception) {
-                    // TODO(b/143879960) Extend the message error from here to continue up the
-                    // chain.
+                AssociationCallback associationCallback = mAssociationCallback;
+                if (connectedDevice == mAssociatingDevice && associationCallback != null) {
+                    associationCallback.onAssociationError(error);
+                    disconnectWithError(connectedDevice,
+                            "Error while establishing secure connection.");
                 }
+            }
 
-                @Override
-                public void onDeviceIdReceived(String deviceId) {
-                    setDeviceId(deviceId);
+            @Override
+            public void onMessageReceived(DeviceMessage deviceMessage) {
+                String deviceId = connectedDevice.mDeviceId;
+                if (deviceId == null) {
+                    disconnectWithError(connectedDevice, "Null device id found when message "
+                            + "received.");
+                    return;
                 }
-            };
+
+                logd(TAG, "Received new message from " + deviceId + " with "
+                        + deviceMessage.getMessage().length + " bytes in its payload. Notifying "
+                        + mCallbacks.size() + " callbacks.");
+                mCallbacks.invoke(
+                        callback -> callback.onMessageReceived(deviceId, deviceMessage));
+            }
+
+            @Override
+            public void onMessageReceivedError(Exception exception) {
+                // TODO(b/143879960) Extend the message error from here to continue up the
+                // chain.
+            }
+
+            @Override
+            public void onDeviceIdReceived(String deviceId) {
+                setDeviceId(connectedDevice, deviceId);
+            }
+        };
+    }
 
     private final Runnable mTimeoutRunnable = new Runnable() {
         @Override
         public void run() {
-            logd(TAG, "Timeout period expired without a connection. Stopping advertisement.");
-            mBlePeripheralManager.stopAdvertising(mAdvertiseCallback);
+            synchronized (mReconnectLock) {
+                Iterator<UUID> iterator = mPendingReconnects.iterator();
+                if (iterator.hasNext()) {
+                    logd(TAG, "Timeout period expired without a connection from device "
+                            + iterator.next() + ". Stopping advertisement.");
+                    iterator.remove();
+                }
+                mBlePeripheralManager.stopAdvertising(mAdvertiseCallback);
+                advertiseForNextReconnectLocked();
+            }
         }
     };
 }
@@ -18,9 +18,13 @@ package com.android.car.connecteddevice.ble;
 
 import static com.android.car.connecteddevice.BleStreamProtos.BleDeviceMessageProto.BleDeviceMessage;
 
+import static java.lang.annotation.RetentionPolicy.SOURCE;
+
+import android.annotation.IntDef;
 import android.annotation.NonNull;
 import android.annotation.Nullable;
 
+import java.lang.annotation.Retention;
 import java.util.Arrays;
 import java.util.Objects;
 import java.util.UUID;
@@ -30,17 +34,44 @@ public class DeviceMessage {
 
     private static final String TAG = "DeviceMessage";
 
+    @Retention(SOURCE)
+    @IntDef(prefix = { "PRIORITY_" },
+            value = {
+                    PRIORITY_LOW,
+                    PRIORITY_NORMAL,
+                    PRIORITY_HIGH
+            }
+    )
+    public @interface MessagePriority {}
+    /** Bulk transfers that can wait behind other traffic, such as background syncs. */
+    public static final int PRIORITY_LOW = 0;
+    /** Default priority for messages. */
+    public static final int PRIORITY_NORMAL = 1;
+    /** Time-critical messages, such as replies to a notification. */
+    public static final int PRIORITY_HIGH = 2;
+
     private final UUID mRecipient;
 
     private final boolean mIsMessageEncrypted;
 
+    @MessagePriority
+    private final int mPriority;
+
     private byte[] mMessage;
 
+    private int mOriginalMessageSize;
+
     public DeviceMessage(@Nullable UUID recipient, boolean isMessageEncrypted,
             @NonNull byte[] message) {
+        this(recipient, isMessageEncrypted, message, PRIORITY_NORMAL);
+    }
+
+    public DeviceMessage(@Nullable UUID recipient, boolean isMessageEncrypted,
+            @NonNull byte[] message, @MessagePriority int priority) {
         mRecipient = recipient;
         mIsMessageEncrypted = isMessageEncrypted;
         mMessage = message;
+        mPriority = priority;
     }
 
     /** Returns the recipient for this message. {@code null} if no recipient set. */
@@ -54,6 +85,12 @@ public class DeviceMessage {
         return mIsMessageEncrypted;
     }
 
+    /** Returns the priority this message is sent with. Not transmitted to the device. */
+    @MessagePriority
+    public int getPriority() {
+        return mPriority;
+    }
+
     /** Returns the message payload. */
     @Nullable
     public byte[] getMessage() {
@@ -65,6 +102,22 @@ public class DeviceMessage {
         mMessage = message;
     }
 
+    /**
+     * Returns the size of the payload before it was compressed, or {@code 0} if the payload is
+     * not compressed.
+     */
+    public int getOriginalMessageSize() {
+        return mOriginalMessageSize;
+    }
+
+    /**
+     * Set the size of the payload before it was compressed. {@code 0} indicates the payload is
+     * not compressed.
+     */
+    public void setOriginalMessageSize(int originalMessageSize) {
+        mOriginalMessageSize = originalMessageSize;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj == this) {
@@ -76,12 +129,14 @@ public class DeviceMessage {
         DeviceMessage deviceMessage = (DeviceMessage) obj;
         return Objects.equals(mRecipient, deviceMessage.mRecipient)
                 && mIsMessageEncrypted == deviceMessage.mIsMessageEncrypted
+                && mPriority == deviceMessage.mPriority
+                && mOriginalMessageSize == deviceMessage.mOriginalMessageSize
                 && Arrays.equals(mMessage, deviceMessage.mMessage);
     }
 
     @Override
     public int hashCode() {
-        return 31 * Objects.hash(mRecipient, mIsMessageEncrypted)
+        return 31 * Objects.hash(mRecipient, mIsMessageEncrypted, mPriority, mOriginalMessageSize)
                 + Arrays.hashCode(mMessage);
     }
 }
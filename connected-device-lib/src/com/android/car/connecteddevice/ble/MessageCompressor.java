@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.connecteddevice.ble;
+
+import static com.android.car.connecteddevice.util.SafeLog.logd;
+
+import android.annotation.NonNull;
+import android.os.SystemClock;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses {@link DeviceMessage} payloads with deflate.
+ *
+ * <p>Payloads smaller than the threshold, or that do not get smaller when compressed, are left
+ * untouched. A compressed payload is marked with its original size through
+ * {@link DeviceMessage#setOriginalMessageSize(int)}.
+ */
+class MessageCompressor {
+
+    private static final String TAG = "MessageCompressor";
+
+    // Deflate rarely saves bytes on payloads smaller than this.
+    private static final int DEFAULT_THRESHOLD_BYTES = 128;
+
+    private static final int BUFFER_SIZE = 1024;
+
+    // A decompressed payload can't be larger than a message the stream would reassemble.
+    private static final int MAX_ORIGINAL_SIZE_BYTES = BleDeviceMessageStream.MAX_REASSEMBLY_BYTES;
+
+    private final int mThresholdBytes;
+
+    private final Deflater mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+
+    private final Inflater mInflater = new Inflater();
+
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+
+    private long mUncompressedBytes;
+
+    private long mCompressedBytes;
+
+    private long mCompressionTimeNanos;
+
+    private long mDecompressionTimeNanos;
+
+    private boolean mIsReleased;
+
+    MessageCompressor() {
+        this(DEFAULT_THRESHOLD_BYTES);
+    }
+
+    MessageCompressor(int thresholdBytes) {
+        mThresholdBytes = thresholdBytes;
+    }
+
+    /**
+     * Compress the payload of the given message in place.
+     *
+     * @return {@code true} if the payload was replaced by its compressed form.
+     */
+    synchronized boolean compress(@NonNull DeviceMessage message) {
+        byte[] payload = message.getMessage();
+        if (mIsReleased || payload == null || payload.length < mThresholdBytes
+                || message.getOriginalMessageSize() != 0) {
+            return false;
+        }
+        long start = SystemClock.elapsedRealtimeNanos();
+        mDeflater.reset();
+        mDeflater.setInput(payload);
+        mDeflater.finish();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(payload.length);
+        while (!mDeflater.finished() && outputStream.size() < payload.length) {
+            int count = mDeflater.deflate(mBuffer);
+            outputStream.write(mBuffer, 0, count);
+        }
+        mCompressionTimeNanos += SystemClock.elapsedRealtimeNanos() - start;
+        if (!mDeflater.finished() || outputStream.size() >= payload.length) {
+            logd(TAG, "Compression did not reduce payload of " + payload.length + " bytes.");
+            return false;
+        }
+        byte[] compressed = outputStream.toByteArray();
+        mUncompressedBytes += payload.length;
+        mCompressedBytes += compressed.length;
+        message.setMessage(compressed);
+        message.setOriginalMessageSize(payload.length);
+        logd(TAG, "Compressed payload from " + payload.length + " to " + compressed.length
+                + " bytes.");
+        return true;
+    }
+
+    /**
+     * Decompress the payload of the given message in place if it is compressed.
+     *
+     * @throws DataFormatException if the original size is negative or larger than a reassembled
+     *         message can be, or if the payload is not valid deflate data of the original size.
+     */
+    synchronized void decompress(@NonNull DeviceMessage message) throws DataFormatException {
+        int originalSize = message.getOriginalMessageSize();
+        if (originalSize == 0) {
+            return;
+        }
+        // The size comes from the remote device, so check it before allocating the buffer.
+        if (originalSize < 0 || originalSize > MAX_ORIGINAL_SIZE_BYTES) {
+            throw new DataFormatException("Invalid original size of " + originalSize
+                    + " bytes.");
+        }
+        if (mIsReleased) {
+            throw new DataFormatException("Compressor has been released.");
+        }
+        long start = SystemClock.elapsedRealtimeNanos();
+        byte[] decompressed = new byte[originalSize];
+        mInflater.reset();
+        mInflater.setInput(message.getMessage());
+        int size = 0;
+        while (size < originalSize && !mInflater.finished()) {
+            int count = mInflater.inflate(decompressed, size, originalSize - size);
+            if (count == 0 && (mInflater.needsInput() || mInflater.needsDictionary())) {
+                break;
+            }
+            size += count;
+        }
+        mDecompressionTimeNanos += SystemClock.elapsedRealtimeNanos() - start;
+        if (size != originalSize || !mInflater.finished()) {
+            throw new DataFormatException("Decompressed " + size + " bytes but expected "
+                    + originalSize + ".");
+        }
+        message.setMessage(decompressed);
+        message.setOriginalMessageSize(0);
+    }
+
+    /**
+     * Returns the size of all compressed payloads divided by their size before compression, or
+     * {@code 1} if nothing has been compressed.
+     */
+    synchronized float getCompressionRatio() {
+        if (mUncompressedBytes == 0) {
+            return 1f;
+        }
+        return (float) mCompressedBytes / mUncompressedBytes;
+    }
+
+    /** Returns the total time spent compressing payloads in milliseconds. */
+    synchronized long getCompressionTimeMs() {
+        return mCompressionTimeNanos / 1_000_000;
+    }
+
+    /** Returns the total time spent decompressing payloads in milliseconds. */
+    synchronized long getDecompressionTimeMs() {
+        return mDecompressionTimeNanos / 1_000_000;
+    }
+
+    /** Release the native resources held by this compressor. */
+    synchronized void release() {
+        if (mIsReleased) {
+            return;
+        }
+        mIsReleased = true;
+        mDeflater.end();
+        mInflater.end();
+    }
+}
@@ -40,6 +40,7 @@ import java.security.SignatureException;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
 
 /**
  * Establishes a secure channel with {@link EncryptionRunner} over {@link BleDeviceMessageStream} as
@@ -95,6 +96,8 @@ class SecureBleChannel {
 
     private String mDeviceId;
 
+    private boolean mIsServerAuthSent;
+
     private Callback mCallback;
 
     private ShowVerificationCodeListener mShowVerificationCodeListener;
@@ -147,6 +150,7 @@ class SecureBleChannel {
             return;
         }
         mDeviceId = deviceId.toString();
+        mEncryptionRunner.setDeviceId(mDeviceId);
         if (mIsReconnect && !hasEncryptionKey(mDeviceId)) {
             loge(TAG, "Attempted to reconnect device but no key found. Aborting secure channel.");
             notifySecureChannelFailure(CHANNEL_ERROR_INVALID_DEVICE_ID);
@@ -172,7 +176,12 @@ class SecureBleChannel {
             return;
         }
 
-        if (!isValidStateForAssociation) {
+        if (isValidStateForReconnect) {
+            // Devices that predate the early authentication expect the car's half in response
+            // to theirs, so it is only sent up front when the negotiated version allows it.
+            if (mStream.isEarlyServerAuthSupported()) {
+                sendEarlyServerAuthToClient();
+            }
             return;
         }
 
@@ -225,7 +234,11 @@ class SecureBleChannel {
         logd(TAG, "Saved new key for reconnection.");
         mStorage.saveEncryptionKey(mDeviceId, newKey.asBytes());
         mEncryptionKey.set(newKey);
-        sendServerAuthToClient(handshakeMessage.getNextMessage());
+        // When the car's half was sent early there is nothing left to send, and messages the
+        // device sent right behind its authentication are decrypted with the new key.
+        if (!mIsServerAuthSent && !sendServerAuthToClient(handshakeMessage.getNextMessage())) {
+            return;
+        }
         notifyCallback(callback -> callback.onSecureChannelEstablished());
     }
 
@@ -254,15 +267,34 @@ class SecureBleChannel {
         mStream.writeMessage(deviceMessage, OperationType.ENCRYPTION_HANDSHAKE);
     }
 
-    private void sendServerAuthToClient(@Nullable byte[] message) {
+    /**
+     * Send the car's half of the reconnection authentication as soon as the session is resuming,
+     * rather than in response to the device's half. The device can verify the car and send its
+     * first message right behind its own half, which saves a round trip before the channel is
+     * usable.
+     */
+    private void sendEarlyServerAuthToClient() throws HandshakeException {
+        byte[] previousKey = mDeviceId == null ? null : mStorage.getEncryptionKey(mDeviceId);
+        if (previousKey == null) {
+            loge(TAG, "Unable to resume session, previous key is null.");
+            notifySecureChannelFailure(CHANNEL_ERROR_INVALID_ENCRYPTION_KEY);
+            return;
+        }
+        mIsServerAuthSent = sendServerAuthToClient(
+                mEncryptionRunner.initReconnectAuthentication(previousKey).getNextMessage());
+    }
+
+    private boolean sendServerAuthToClient(@Nullable byte[] message) {
         if (message == null) {
             loge(TAG, "Unable to send server authentication message to client, message is null.");
             notifySecureChannelFailure(CHANNEL_ERROR_INVALID_MSG);
-            return;
+            return false;
         }
+        logd(TAG, "Sending server authentication to client.");
         DeviceMessage deviceMessage = new DeviceMessage(/* recipient = */ null,
                 /* isMessageEncrypted = */ false, message);
         mStream.writeMessage(deviceMessage, OperationType.ENCRYPTION_HANDSHAKE);
+        return true;
     }
 
     /**
@@ -281,9 +313,11 @@ class SecureBleChannel {
             throw new IllegalStateException("Secure channel has not been established.");
         }
 
-        byte[] encryptedMessage = key.encryptData(deviceMessage.getMessage());
-        deviceMessage.setMessage(encryptedMessage);
-        mStream.writeMessage(deviceMessage, OperationType.CLIENT_MESSAGE);
+        // Encrypted data does not compress, so compress the payload before encrypting it.
+        if (mStream.isCompressionEnabled()) {
+            mStream.getMessageCompressor().compress(deviceMessage);
+        }
+        mStream.writeEncryptedMessage(deviceMessage, key);
     }
 
     /**
@@ -410,11 +444,17 @@ class SecureBleChannel {
                                 byte[] decryptedPayload =
                                         key.decryptData(deviceMessage.getMessage());
                                 deviceMessage.setMessage(decryptedPayload);
+                                if (deviceMessage.getOriginalMessageSize() > 0) {
+                                    mStream.getMessageCompressor().decompress(deviceMessage);
+                                }
                                 notifyCallback(
                                         callback -> callback.onMessageReceived(deviceMessage));
                             } catch (SignatureException e) {
                                 loge(TAG, "Could not decrypt client credentials.", e);
                                 notifyCallback(callback -> callback.onMessageReceivedError(e));
+                            } catch (DataFormatException e) {
+                                loge(TAG, "Could not decompress client message.", e);
+                                notifyCallback(callback -> callback.onMessageReceivedError(e));
                             }
                             break;
                         default:
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.connecteddevice.ble;
+
+import static com.android.car.connecteddevice.util.SafeLog.logd;
+
+import android.annotation.NonNull;
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides which thread each {@link BleDeviceMessageStream} runs on.
+ *
+ * <p>A stream does all of its packet work, and delivers completed messages, on the {@link Handler}
+ * it acquires from the model. Since a {@link Handler} runs its messages in order, the messages of
+ * a single device are always processed in the order they were sent or received.
+ */
+public abstract class StreamThreadingModel {
+
+    private static final String TAG = "StreamThreadingModel";
+
+    /** Returns a model that gives every stream its own dedicated thread. */
+    @NonNull
+    public static StreamThreadingModel newDedicatedThreadModel() {
+        return new DedicatedThreadModel();
+    }
+
+    /** Returns a model where all streams share a single I/O thread. */
+    @NonNull
+    public static StreamThreadingModel newSharedThreadModel() {
+        return new SharedThreadModel();
+    }
+
+    /**
+     * Returns the {@link Handler} that the stream for the given device should run on. Every
+     * acquired {@link Handler} must be given back with {@link #releaseHandler(Handler)}.
+     */
+    @NonNull
+    abstract Handler acquireHandler(@NonNull BluetoothDevice device);
+
+    /** Releases a {@link Handler} previously returned by {@link #acquireHandler}. */
+    abstract void releaseHandler(@NonNull Handler handler);
+
+    private static HandlerThread startIoThread(@NonNull String name) {
+        HandlerThread thread = new HandlerThread(name, Process.THREAD_PRIORITY_FOREGROUND);
+        thread.start();
+        logd(TAG, "Started stream thread " + name + ".");
+        return thread;
+    }
+
+    private static class DedicatedThreadModel extends StreamThreadingModel {
+        // Threads are numbered rather than named after the device, so thread names in traces and
+        // crash reports don't contain the device address.
+        private final AtomicInteger mThreadCount = new AtomicInteger(0);
+
+        @Override
+        Handler acquireHandler(BluetoothDevice device) {
+            return new Handler(
+                    startIoThread("BleStream-" + mThreadCount.incrementAndGet()).getLooper());
+        }
+
+        @Override
+        void releaseHandler(Handler handler) {
+            handler.removeCallbacksAndMessages(/* token = */ null);
+            handler.getLooper().quitSafely();
+        }
+    }
+
+    private static class SharedThreadModel extends StreamThreadingModel {
+        private final Object mLock = new Object();
+
+        private HandlerThread mThread;
+
+        private int mActiveStreams;
+
+        @Override
+        Handler acquireHandler(BluetoothDevice device) {
+            synchronized (mLock) {
+                if (mThread == null) {
+                    mThread = startIoThread("BleStream-shared");
+                }
+                mActiveStreams++;
+                return new Handler(mThread.getLooper());
+            }
+        }
+
+        @Override
+        void releaseHandler(Handler handler) {
+            handler.removeCallbacksAndMessages(/* token = */ null);
+            synchronized (mLock) {
+                mActiveStreams--;
+                if (mActiveStreams == 0 && mThread != null) {
+                    mThread.quitSafely();
+                    mThread = null;
+                }
+            }
+        }
+    }
+}
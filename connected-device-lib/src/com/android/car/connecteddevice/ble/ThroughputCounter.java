@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.connecteddevice.ble;
+
+/**
+ * Counts the bytes transferred over a stream and the time spent actively transferring them.
+ *
+ * <p>Gaps between two transfers that are longer than the idle threshold are not counted, so the
+ * reported rate reflects the throughput while the stream was busy rather than over its lifetime.
+ */
+class ThroughputCounter {
+
+    private final long mIdleThresholdMs;
+
+    private long mTotalBytes;
+
+    private long mActiveTimeMs;
+
+    private long mLastTransferMs = -1;
+
+    /**
+     * @param idleThresholdMs Gap between two transfers after which the stream is considered idle.
+     */
+    ThroughputCounter(long idleThresholdMs) {
+        mIdleThresholdMs = idleThresholdMs;
+    }
+
+    /**
+     * Record that a number of bytes finished transferring.
+     *
+     * @param bytes The number of bytes transferred.
+     * @param nowMs The current time in milliseconds.
+     */
+    synchronized void record(int bytes, long nowMs) {
+        if (mLastTransferMs >= 0) {
+            long elapsedMs = nowMs - mLastTransferMs;
+            if (elapsedMs <= mIdleThresholdMs) {
+                mActiveTimeMs += elapsedMs;
+            }
+        }
+        mLastTransferMs = nowMs;
+        mTotalBytes += bytes;
+    }
+
+    /** Returns the total number of bytes recorded. */
+    synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * Returns the average number of bytes transferred per second while the stream was active or
+     * {@code 0} if not enough transfers have been recorded.
+     */
+    synchronized long getBytesPerSecond() {
+        if (mActiveTimeMs == 0) {
+            return 0;
+        }
+        return mTotalBytes * 1000 / mActiveTimeMs;
+    }
+}
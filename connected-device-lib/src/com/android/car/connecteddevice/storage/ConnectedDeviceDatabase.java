@@ -16,13 +16,31 @@
 
 package com.android.car.connecteddevice.storage;
 
+import androidx.annotation.NonNull;
 import androidx.room.Database;
 import androidx.room.RoomDatabase;
+import androidx.room.migration.Migration;
+import androidx.sqlite.db.SupportSQLiteDatabase;
 
 /** Database for connected devices. */
-@Database(entities = { AssociatedDeviceEntity.class, AssociatedDeviceKeyEntity.class }, version = 1,
-        exportSchema = false)
+@Database(entities = { AssociatedDeviceEntity.class, AssociatedDeviceKeyEntity.class,
+        MissedMessageEntity.class }, version = 2, exportSchema = false)
 public abstract class ConnectedDeviceDatabase extends RoomDatabase {
+
+    /** Adds the missed message table without dropping existing associations. */
+    static final Migration MIGRATION_1_2 = new Migration(1, 2) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `missed_messages` ("
+                    + "`id` TEXT NOT NULL, `recipientId` TEXT NOT NULL, "
+                    + "`deviceId` TEXT NOT NULL, `message` BLOB NOT NULL, "
+                    + "`timestamp` INTEGER NOT NULL, PRIMARY KEY(`id`))");
+        }
+    };
+
     /** Return the DAO for the associated device table. */
     public abstract AssociatedDeviceDao associatedDeviceDao();
+
+    /** Return the DAO for the missed message table. */
+    public abstract MissedMessageDao missedMessageDao();
 }
@@ -20,9 +20,11 @@ import static com.android.car.connecteddevice.util.SafeLog.logd;
 import static com.android.car.connecteddevice.util.SafeLog.loge;
 import static com.android.car.connecteddevice.util.SafeLog.logw;
 
+import android.annotation.CallbackExecutor;
 import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.app.ActivityManager;
+import android.car.encryptionrunner.EncryptionRunnerFactory;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.security.keystore.KeyGenParameterSpec;
@@ -33,6 +35,7 @@ import androidx.room.Room;
 
 import com.android.car.connecteddevice.R;
 import com.android.car.connecteddevice.model.AssociatedDevice;
+import com.android.internal.annotations.VisibleForTesting;
 
 import java.io.IOException;
 import java.security.InvalidAlgorithmParameterException;
@@ -46,7 +49,12 @@ import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -77,21 +85,44 @@ public class ConnectedDeviceStorage {
 
     private final Context mContext;
 
+    // Executor for the asynchronous variants of the storage API. Runs tasks in order.
+    private final Executor mStorageExecutor;
+
+    // Decrypted encryption keys by device id. The cache holds its own copies, which are never
+    // handed out or modified, so they can be cloned without holding mEncryptionKeyLock. Only
+    // written while holding mEncryptionKeyLock.
+    private final Map<String, byte[]> mEncryptionKeyCache = new ConcurrentHashMap<>();
+
+    // Serializes loading and saving keys so a load can not put a stale key in the cache.
+    private final Object mEncryptionKeyLock = new Object();
+
     private SharedPreferences mSharedPreferences;
 
+    private volatile Key mKeyStoreKey;
+
     private UUID mUniqueId;
 
     private AssociatedDeviceDao mAssociatedDeviceDatabase;
 
+    private MissedMessageDao mMissedMessageDatabase;
+
     private AssociatedDeviceCallback mAssociatedDeviceCallback;
 
     public ConnectedDeviceStorage(@NonNull Context context) {
+        this(context, Executors.newSingleThreadExecutor());
+    }
+
+    @VisibleForTesting
+    ConnectedDeviceStorage(@NonNull Context context, @NonNull Executor storageExecutor) {
         mContext = context;
-        mAssociatedDeviceDatabase = Room.databaseBuilder(context, ConnectedDeviceDatabase.class,
-                DATABASE_NAME)
+        mStorageExecutor = storageExecutor;
+        ConnectedDeviceDatabase database = Room.databaseBuilder(context,
+                ConnectedDeviceDatabase.class, DATABASE_NAME)
+                .addMigrations(ConnectedDeviceDatabase.MIGRATION_1_2)
                 .fallbackToDestructiveMigration()
-                .build()
-                .associatedDeviceDao();
+                .build();
+        mAssociatedDeviceDatabase = database.associatedDeviceDao();
+        mMissedMessageDatabase = database.missedMessageDao();
     }
 
     /**
@@ -112,11 +143,96 @@ public class ConnectedDeviceStorage {
     /**
      * Get communication encryption key for the given device
      *
+     * <p>Keys are cached in memory after they are first read, so only the first call for a device
+     * touches the database and the KeyStore.
+     *
      * @param deviceId id of trusted device
      * @return encryption key, null if device id is not recognized
      */
     @Nullable
     public byte[] getEncryptionKey(@NonNull String deviceId) {
+        byte[] cachedKey = mEncryptionKeyCache.get(deviceId);
+        if (cachedKey != null) {
+            return cachedKey.clone();
+        }
+        synchronized (mEncryptionKeyLock) {
+            cachedKey = mEncryptionKeyCache.get(deviceId);
+            if (cachedKey != null) {
+                return cachedKey.clone();
+            }
+            byte[] key = loadEncryptionKey(deviceId);
+            if (key != null) {
+                mEncryptionKeyCache.put(deviceId, key.clone());
+            }
+            return key;
+        }
+    }
+
+    /**
+     * Get communication encryption key for the given device without blocking the caller.
+     *
+     * @param deviceId id of trusted device
+     * @param executor {@link Executor} to invoke the callback on.
+     * @param callback Receives the encryption key, null if device id is not recognized.
+     */
+    public void getEncryptionKeyAsync(@NonNull String deviceId,
+            @NonNull @CallbackExecutor Executor executor, @NonNull Consumer<byte[]> callback) {
+        mStorageExecutor.execute(() -> {
+            byte[] key = getEncryptionKey(deviceId);
+            executor.execute(() -> callback.accept(key));
+        });
+    }
+
+    /**
+     * Load the encryption keys of all devices associated with the active user into memory so
+     * that reconnecting to them does not have to wait on the database or the KeyStore.
+     */
+    public void prefetchActiveUserEncryptionKeys() {
+        int userId = ActivityManager.getCurrentUser();
+        mStorageExecutor.execute(() -> {
+            List<String> deviceIds = getAssociatedDeviceIdsForUser(userId);
+            for (String deviceId : deviceIds) {
+                getEncryptionKey(deviceId);
+            }
+            logd(TAG, "Prefetched encryption keys for " + deviceIds.size() + " devices.");
+        });
+    }
+
+    /**
+     * Drop all cached encryption keys and the cached KeyStore key handle, so that they are read
+     * again from storage when next needed. Call when the active user changes.
+     */
+    public void clearEncryptionKeyCache() {
+        synchronized (mEncryptionKeyLock) {
+            clearEncryptionKeyCacheLocked();
+        }
+        logd(TAG, "Cleared encryption key cache.");
+    }
+
+    @VisibleForTesting
+    boolean hasCachedEncryptionKey(@NonNull String deviceId) {
+        return mEncryptionKeyCache.containsKey(deviceId);
+    }
+
+    private void clearEncryptionKeyCacheLocked() {
+        for (String deviceId : new ArrayList<>(mEncryptionKeyCache.keySet())) {
+            invalidateEncryptionKey(deviceId);
+        }
+        EncryptionRunnerFactory.clearSavedSessions();
+        mKeyStoreKey = null;
+    }
+
+    /**
+     * Remove the cached encryption key of the given device. The removed copy is left untouched,
+     * as a concurrent {@link #getEncryptionKey(String)} may still be cloning it.
+     */
+    private void invalidateEncryptionKey(@NonNull String deviceId) {
+        mEncryptionKeyCache.remove(deviceId);
+        EncryptionRunnerFactory.invalidateSavedSession(deviceId);
+    }
+
+    @Nullable
+    private byte[] loadEncryptionKey(@NonNull String deviceId) {
         AssociatedDeviceKeyEntity entity =
                 mAssociatedDeviceDatabase.getAssociatedDeviceKey(deviceId);
         if (entity == null) {
@@ -144,10 +260,28 @@ public class ConnectedDeviceStorage {
     public void saveEncryptionKey(@NonNull String deviceId, @NonNull byte[] encryptionKey) {
         String encryptedKey = encryptWithKeyStore(KEY_ALIAS, encryptionKey);
         AssociatedDeviceKeyEntity entity = new AssociatedDeviceKeyEntity(deviceId, encryptedKey);
-        mAssociatedDeviceDatabase.addOrReplaceAssociatedDeviceKey(entity);
+        synchronized (mEncryptionKeyLock) {
+            invalidateEncryptionKey(deviceId);
+            mAssociatedDeviceDatabase.addOrReplaceAssociatedDeviceKey(entity);
+            if (encryptedKey != null) {
+                mEncryptionKeyCache.put(deviceId, encryptionKey.clone());
+            }
+        }
         logd(TAG, "Successfully wrote encryption key.");
     }
 
+    /**
+     * Save encryption key for the given device without blocking the caller. The key is copied
+     * before this method returns, so the caller may reuse the array.
+     *
+     * @param deviceId      did of trusted device
+     * @param encryptionKey encryption key
+     */
+    public void saveEncryptionKeyAsync(@NonNull String deviceId, @NonNull byte[] encryptionKey) {
+        byte[] key = encryptionKey.clone();
+        mStorageExecutor.execute(() -> saveEncryptionKey(deviceId, key));
+    }
+
     /**
      * Encrypt value with designated key
      *
@@ -220,7 +354,12 @@ public class ConnectedDeviceStorage {
     }
 
     @Nullable
-    private static Key getKeyStoreKey(@NonNull String keyAlias) {
+    private Key getKeyStoreKey(@NonNull String keyAlias) {
+        // Loading the KeyStore is an IPC, so hold on to the key handle once it is known.
+        Key cachedKey = mKeyStoreKey;
+        if (cachedKey != null) {
+            return cachedKey;
+        }
         KeyStore keyStore;
         try {
             keyStore = KeyStore.getInstance(KEYSTORE_PROVIDER);
@@ -238,7 +377,8 @@ public class ConnectedDeviceStorage {
                                 .build());
                 keyGenerator.generateKey();
             }
-            return keyStore.getKey(keyAlias, null);
+            mKeyStoreKey = keyStore.getKey(keyAlias, null);
+            return mKeyStoreKey;
 
         } catch (KeyStoreException
                 | NoSuchAlgorithmException
@@ -343,6 +483,21 @@ public class ConnectedDeviceStorage {
         return getAssociatedDevicesForUser(ActivityManager.getCurrentUser());
     }
 
+    /**
+     * Get a list of associated devices for the current user without blocking the caller.
+     *
+     * @param executor {@link Executor} to invoke the callback on.
+     * @param callback Receives the associated device list.
+     */
+    public void getActiveUserAssociatedDevicesAsync(@NonNull @CallbackExecutor Executor executor,
+            @NonNull Consumer<List<AssociatedDevice>> callback) {
+        int userId = ActivityManager.getCurrentUser();
+        mStorageExecutor.execute(() -> {
+            List<AssociatedDevice> devices = getAssociatedDevicesForUser(userId);
+            executor.execute(() -> callback.accept(devices));
+        });
+    }
+
     /**
      * Returns a list of device ids of associated devices for the given user.
      *
@@ -391,9 +546,17 @@ public class ConnectedDeviceStorage {
      * @param device New associated device to be added.
      */
     public void addAssociatedDeviceForUser(int userId, @NonNull AssociatedDevice device) {
+        AssociatedDeviceEntity existingEntity =
+                mAssociatedDeviceDatabase.getAssociatedDevice(device.getDeviceId());
         AssociatedDeviceEntity entity = new AssociatedDeviceEntity(userId, device,
                 /* isConnectionEnabled= */ true);
         mAssociatedDeviceDatabase.addOrReplaceAssociatedDevice(entity);
+        if (existingEntity != null && existingEntity.userId != userId) {
+            // Keys cached while the device belonged to another user must not outlive the move.
+            logd(TAG, "Associated device moved from user " + existingEntity.userId + " to user "
+                    + userId + ".");
+            clearEncryptionKeyCache();
+        }
     }
 
     /**
@@ -429,6 +592,9 @@ public class ConnectedDeviceStorage {
             return;
         }
         mAssociatedDeviceDatabase.removeAssociatedDevice(entity);
+        synchronized (mEncryptionKeyLock) {
+            invalidateEncryptionKey(deviceId);
+        }
         if (mAssociatedDeviceCallback != null) {
             mAssociatedDeviceCallback.onAssociatedDeviceRemoved(new AssociatedDevice(deviceId,
                     entity.address, entity.name, entity.isConnectionEnabled));
@@ -469,6 +635,46 @@ public class ConnectedDeviceStorage {
         }
     }
 
+    /**
+     * Persist a message that arrived before its recipient registered. The write happens on the
+     * storage thread, in order with other missed message operations.
+     *
+     * @param missedMessage The {@link MissedMessageEntity} to save.
+     */
+    public void saveMissedMessageAsync(@NonNull MissedMessageEntity missedMessage) {
+        mStorageExecutor.execute(() -> mMissedMessageDatabase.addMissedMessage(missedMessage));
+    }
+
+    /**
+     * Remove persisted missed messages on the storage thread.
+     *
+     * @param ids The ids of the {@link MissedMessageEntity}s to remove.
+     */
+    public void removeMissedMessagesAsync(@NonNull List<String> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        mStorageExecutor.execute(() -> mMissedMessageDatabase.removeMissedMessages(ids));
+    }
+
+    /**
+     * Get all persisted missed messages received at or after the given time, oldest first.
+     * Messages received earlier are deleted.
+     *
+     * @param minTimestamp Time in milliseconds since the epoch before which messages are dropped.
+     * @param executor {@link Executor} to invoke the callback on.
+     * @param callback Receives the missed messages.
+     */
+    public void getMissedMessagesAsync(long minTimestamp,
+            @NonNull @CallbackExecutor Executor executor,
+            @NonNull Consumer<List<MissedMessageEntity>> callback) {
+        mStorageExecutor.execute(() -> {
+            mMissedMessageDatabase.removeMissedMessagesBefore(minTimestamp);
+            List<MissedMessageEntity> missedMessages = mMissedMessageDatabase.getMissedMessages();
+            executor.execute(() -> callback.accept(missedMessages));
+        });
+    }
+
     /** Callback for association device related events. */
     public interface AssociatedDeviceCallback {
         /** Triggered when an associated device has been added. */
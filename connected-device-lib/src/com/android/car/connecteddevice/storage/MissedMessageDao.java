@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.connecteddevice.storage;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+
+import java.util.List;
+
+/**
+ * Queries for missed message table.
+ */
+@Dao
+public interface MissedMessageDao {
+
+    /** Get all {@link MissedMessageEntity}s ordered from oldest to newest. */
+    @Query("SELECT * FROM missed_messages ORDER BY timestamp ASC")
+    List<MissedMessageEntity> getMissedMessages();
+
+    /** Add a {@link MissedMessageEntity}. */
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void addMissedMessage(MissedMessageEntity missedMessage);
+
+    /** Remove the {@link MissedMessageEntity}s with the given ids. */
+    @Query("DELETE FROM missed_messages WHERE id IN (:ids)")
+    void removeMissedMessages(List<String> ids);
+
+    /** Remove all {@link MissedMessageEntity}s received before the given time. */
+    @Query("DELETE FROM missed_messages WHERE timestamp < :timestamp")
+    void removeMissedMessagesBefore(long timestamp);
+}
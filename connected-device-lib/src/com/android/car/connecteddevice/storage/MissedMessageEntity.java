@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.connecteddevice.storage;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+/** Table entity representing a message that arrived before its recipient was registered. */
+@Entity(tableName = "missed_messages")
+public class MissedMessageEntity {
+
+    /** Id of the message. */
+    @PrimaryKey
+    @NonNull
+    public String id;
+
+    /** Id of the recipient the message is intended for. */
+    @NonNull
+    public String recipientId;
+
+    /** Id of the device that sent the message. */
+    @NonNull
+    public String deviceId;
+
+    @NonNull
+    public byte[] message;
+
+    /** Time the message was received in milliseconds since the epoch. */
+    public long timestamp;
+
+    public MissedMessageEntity() { }
+
+    public MissedMessageEntity(@NonNull String id, @NonNull String recipientId,
+            @NonNull String deviceId, @NonNull byte[] message, long timestamp) {
+        this.id = id;
+        this.recipientId = recipientId;
+        this.deviceId = deviceId;
+        this.message = message;
+        this.timestamp = timestamp;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.connecteddevice.util;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+
+import java.util.UUID;
+
+/**
+ * Matches raw advertisement data against a service UUID, a manufacturer id and the iOS background
+ * overflow area in a single pass over its AD structures. The service UUID is found in lists of
+ * 16-bit, 32-bit and 128-bit UUIDs.
+ *
+ * <p>Matching does not allocate and tolerates malformed data: parsing stops at the first AD
+ * structure that does not fit in the data.
+ *
+ * <p>See {@link IosOverflowArea} for the iOS overflow area.
+ */
+public class AdvertisementMatcher {
+
+    /** The advertisement contains the service UUID. */
+    public static final int MATCH_SERVICE_UUID = 1;
+
+    /** The advertisement contains manufacturer data with the manufacturer id. */
+    public static final int MATCH_MANUFACTURER_DATA = 1 << 1;
+
+    /** The iOS overflow area of the advertisement has a bit of the mask set. */
+    public static final int MATCH_OVERFLOW = 1 << 2;
+
+    /** Manufacturer id that matches no manufacturer data. */
+    public static final int NO_MANUFACTURER_ID = -1;
+
+    private static final int AD_TYPE_INCOMPLETE_16_BIT_UUIDS = 0x02;
+    private static final int AD_TYPE_COMPLETE_16_BIT_UUIDS = 0x03;
+    private static final int AD_TYPE_INCOMPLETE_32_BIT_UUIDS = 0x04;
+    private static final int AD_TYPE_COMPLETE_32_BIT_UUIDS = 0x05;
+    private static final int AD_TYPE_INCOMPLETE_128_BIT_UUIDS = 0x06;
+    private static final int AD_TYPE_COMPLETE_128_BIT_UUIDS = 0x07;
+    private static final int AD_TYPE_MANUFACTURER_DATA = 0xFF;
+
+    private static final int UUID_16_BIT_LENGTH = 2;
+    private static final int UUID_32_BIT_LENGTH = 4;
+    private static final int UUID_LENGTH = 16;
+    private static final int MANUFACTURER_ID_LENGTH = 2;
+
+    // Shortened UUIDs stand for xxxxxxxx-0000-1000-8000-00805F9B34FB, the Bluetooth base UUID
+    // with the short value in its top 32 bits.
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    private final boolean mHasServiceUuid;
+
+    private final long mServiceUuidMsb;
+
+    private final long mServiceUuidLsb;
+
+    private final long mOverflowMaskHigh;
+
+    private final long mOverflowMaskLow;
+
+    private final int mManufacturerId;
+
+    /**
+     * @param serviceUuid Service UUID to match or {@code null} to match none.
+     * @param bgServiceMask Hex string of the iOS overflow bits to match. Any bit suffices.
+     * @param manufacturerId Manufacturer id to match or {@link #NO_MANUFACTURER_ID}.
+     */
+    public AdvertisementMatcher(@Nullable UUID serviceUuid, @NonNull String bgServiceMask,
+            int manufacturerId) {
+        mHasServiceUuid = serviceUuid != null;
+        mServiceUuidMsb = serviceUuid == null ? 0 : serviceUuid.getMostSignificantBits();
+        mServiceUuidLsb = serviceUuid == null ? 0 : serviceUuid.getLeastSignificantBits();
+        byte[] mask = IosOverflowArea.parseMask(bgServiceMask);
+        mOverflowMaskHigh = IosOverflowArea.readBigEndianLong(mask, 0);
+        mOverflowMaskLow = IosOverflowArea.readBigEndianLong(mask, Long.BYTES);
+        mManufacturerId = manufacturerId;
+    }
+
+    /** Returns the {@code MATCH_} flags that apply to the given advertisement data. */
+    public int match(@NonNull byte[] data) {
+        return match(data, 0, data.length);
+    }
+
+    /**
+     * Returns the {@code MATCH_} flags that apply to the advertisement data in the given range.
+     */
+    public int match(@NonNull byte[] data, int offset, int length) {
+        return match(data, offset, length, mHasServiceUuid, mServiceUuidMsb, mServiceUuidLsb,
+                mOverflowMaskHigh, mOverflowMaskLow, mManufacturerId);
+    }
+
+    static int match(@NonNull byte[] data, int offset, int length, boolean hasServiceUuid,
+            long serviceUuidMsb, long serviceUuidLsb, long overflowMaskHigh,
+            long overflowMaskLow, int manufacturerId) {
+        int result = 0;
+        int end = Math.min(offset + length, data.length);
+        int position = offset;
+        while (position < end) {
+            int structureLength = data[position] & 0xFF;
+            if (structureLength == 0) {
+                break;
+            }
+            int structureEnd = position + 1 + structureLength;
+            if (structureEnd > end) {
+                break;
+            }
+            int type = data[position + 1] & 0xFF;
+            int dataStart = position + 2;
+            switch (type) {
+                case AD_TYPE_INCOMPLETE_16_BIT_UUIDS:
+                case AD_TYPE_COMPLETE_16_BIT_UUIDS:
+                    if (hasServiceUuid && containsShortUuid(data, dataStart, structureEnd,
+                            UUID_16_BIT_LENGTH, serviceUuidMsb, serviceUuidLsb)) {
+                        result |= MATCH_SERVICE_UUID;
+                    }
+                    break;
+                case AD_TYPE_INCOMPLETE_32_BIT_UUIDS:
+                case AD_TYPE_COMPLETE_32_BIT_UUIDS:
+                    if (hasServiceUuid && containsShortUuid(data, dataStart, structureEnd,
+                            UUID_32_BIT_LENGTH, serviceUuidMsb, serviceUuidLsb)) {
+                        result |= MATCH_SERVICE_UUID;
+                    }
+                    break;
+                case AD_TYPE_INCOMPLETE_128_BIT_UUIDS:
+                case AD_TYPE_COMPLETE_128_BIT_UUIDS:
+                    if (!hasServiceUuid) {
+                        break;
+                    }
+                    // UUIDs are little-endian in advertisements.
+                    for (int i = dataStart; i + UUID_LENGTH <= structureEnd; i += UUID_LENGTH) {
+                        if (readLittleEndianLong(data, i) == serviceUuidLsb
+                                && readLittleEndianLong(data, i + Long.BYTES) == serviceUuidMsb) {
+                            result |= MATCH_SERVICE_UUID;
+                        }
+                    }
+                    break;
+                case AD_TYPE_MANUFACTURER_DATA:
+                    if (structureEnd - dataStart < MANUFACTURER_ID_LENGTH) {
+                        break;
+                    }
+                    int id = (data[dataStart] & 0xFF) | (data[dataStart + 1] & 0xFF) << 8;
+                    if (id == manufacturerId) {
+                        result |= MATCH_MANUFACTURER_DATA;
+                    }
+                    if (id == IosOverflowArea.APPLE_MANUFACTURER_ID
+                            && structureLength == IosOverflowArea.STRUCTURE_LENGTH
+                            && data[dataStart + MANUFACTURER_ID_LENGTH]
+                                    == IosOverflowArea.AREA_TYPE) {
+                        int maskStart = dataStart + MANUFACTURER_ID_LENGTH + 1;
+                        if ((IosOverflowArea.readBigEndianLong(data, maskStart)
+                                        & overflowMaskHigh) != 0
+                                || (IosOverflowArea.readBigEndianLong(data,
+                                        maskStart + Long.BYTES) & overflowMaskLow) != 0) {
+                            result |= MATCH_OVERFLOW;
+                        }
+                    }
+                    break;
+                default:
+                    // Other structures are skipped.
+            }
+            position = structureEnd;
+        }
+        return result;
+    }
+
+    /**
+     * Returns {@code true} if the list of little-endian shortened UUIDs in the given range
+     * contains the service UUID once expanded with the Bluetooth base UUID.
+     */
+    private static boolean containsShortUuid(@NonNull byte[] data, int start, int end,
+            int uuidLength, long serviceUuidMsb, long serviceUuidLsb) {
+        if (serviceUuidLsb != BASE_UUID_LSB) {
+            return false;
+        }
+        for (int i = start; i + uuidLength <= end; i += uuidLength) {
+            long value = 0;
+            for (int j = uuidLength - 1; j >= 0; j--) {
+                value = (value << Byte.SIZE) | (data[i + j] & 0xFF);
+            }
+            if (((value << Integer.SIZE) | BASE_UUID_MSB) == serviceUuidMsb) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long readLittleEndianLong(@NonNull byte[] data, int offset) {
+        long value = 0;
+        for (int i = Long.BYTES - 1; i >= 0; i--) {
+            value = (value << Byte.SIZE) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.connecteddevice.util;
+
+import static com.android.car.connecteddevice.util.SafeLog.logw;
+
+import android.annotation.NonNull;
+
+/**
+ * Layout of the overflow area that iOS advertises from the background, and parsing of the masks
+ * used to match it.
+ *
+ * <p>See {@link ScanDataAnalyzer} for how the overflow area is laid out.
+ */
+public class IosOverflowArea {
+
+    private static final String TAG = "IosOverflowArea";
+
+    /** Manufacturer id of the manufacturer data that holds the overflow area. */
+    public static final int APPLE_MANUFACTURER_ID = 0x004C;
+
+    /** First byte of the manufacturer data after the manufacturer id. */
+    public static final byte AREA_TYPE = 0x01;
+
+    /** Length of the AD structure holding the overflow area, not counting the length byte. */
+    public static final int STRUCTURE_LENGTH = 0x14;
+
+    /** Number of bytes of the overflow bit field. */
+    public static final int MASK_LENGTH = 16;
+
+    private IosOverflowArea() { }
+
+    /**
+     * Parse a hex mask of up to {@link #MASK_LENGTH} bytes. A shorter mask fills the least
+     * significant bytes. A longer mask is truncated to its least significant bytes. A mask that
+     * is not valid hex matches nothing.
+     *
+     * @return The mask bytes, most significant first.
+     */
+    @NonNull
+    public static byte[] parseMask(@NonNull String hexMask) {
+        byte[] mask = new byte[MASK_LENGTH];
+        int maxDigits = MASK_LENGTH * 2;
+        if (hexMask.length() > maxDigits) {
+            logw(TAG, "Overflow mask " + hexMask + " is longer than " + MASK_LENGTH
+                    + " bytes. Truncating.");
+        }
+        // Right-align the mask so a shorter string fills the least significant bytes.
+        int digits = Math.min(hexMask.length(), maxDigits);
+        int hexOffset = hexMask.length() - digits;
+        int maskOffset = maxDigits - digits;
+        for (int i = 0; i < digits; i++) {
+            int value = Character.digit(hexMask.charAt(hexOffset + i), 16);
+            if (value < 0) {
+                logw(TAG, "Invalid overflow mask " + hexMask + ". Matching no overflow bits.");
+                return new byte[MASK_LENGTH];
+            }
+            int nibble = maskOffset + i;
+            mask[nibble / 2] |= (byte) (nibble % 2 == 0 ? value << 4 : value);
+        }
+        return mask;
+    }
+
+    /** Returns the 8 bytes of {@code data} at {@code offset} as a big-endian long. */
+    public static long readBigEndianLong(@NonNull byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            value = (value << Byte.SIZE) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
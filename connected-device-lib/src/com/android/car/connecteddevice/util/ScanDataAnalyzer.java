@@ -16,8 +16,6 @@
 
 package com.android.car.connecteddevice.util;
 
-import static com.android.car.connecteddevice.util.SafeLog.logw;
-
 import android.annotation.NonNull;
 import android.bluetooth.le.ScanResult;
 
@@ -29,16 +27,6 @@ import java.math.BigInteger;
  */
 public class ScanDataAnalyzer {
 
-    private static final String TAG = "ScanDataAnalyzer";
-
-    private static final byte IOS_OVERFLOW_LENGTH = (byte) 0x14;
-    private static final byte IOS_ADVERTISING_TYPE = (byte) 0xff;
-    private static final int IOS_ADVERTISING_TYPE_LENGTH = 1;
-    private static final long IOS_OVERFLOW_CUSTOM_ID = 0x4c0001;
-    private static final int IOS_OVERFLOW_CUSTOM_ID_LENGTH = 3;
-    private static final int IOS_OVERFLOW_CONTENT_LENGTH =
-            IOS_OVERFLOW_LENGTH - IOS_OVERFLOW_CUSTOM_ID_LENGTH - IOS_ADVERTISING_TYPE_LENGTH;
-
     private ScanDataAnalyzer() { }
 
     /**
@@ -79,46 +67,22 @@ public class ScanDataAnalyzer {
      */
     public static boolean containsUuidsInOverflow(@NonNull byte[] scanData,
             @NonNull BigInteger serviceUuidMask) {
-        byte[] overflowBytes = new byte[IOS_OVERFLOW_CONTENT_LENGTH];
-        int overflowPtr = 0;
-        int outPtr = 0;
-        try {
-            while (overflowPtr < scanData.length - IOS_OVERFLOW_LENGTH) {
-                byte length = scanData[overflowPtr++];
-                if (length == 0) {
-                    break;
-                } else if (length != IOS_OVERFLOW_LENGTH) {
-                    continue;
-                }
-
-                if (scanData[overflowPtr++] != IOS_ADVERTISING_TYPE) {
-                    return false;
-                }
-
-                byte[] idBytes = new byte[IOS_OVERFLOW_CUSTOM_ID_LENGTH];
-                for (int i = 0; i < IOS_OVERFLOW_CUSTOM_ID_LENGTH; i++) {
-                    idBytes[i] = scanData[overflowPtr++];
-                }
-
-                if (!new BigInteger(idBytes).equals(BigInteger.valueOf(IOS_OVERFLOW_CUSTOM_ID))) {
-                    return false;
-                }
-
-                for (outPtr = 0; outPtr < IOS_OVERFLOW_CONTENT_LENGTH; outPtr++) {
-                    overflowBytes[outPtr] = scanData[overflowPtr++];
-                }
-                break;
-            }
-
-            if (outPtr == IOS_OVERFLOW_CONTENT_LENGTH) {
-                BigInteger overflowBytesValue = new BigInteger(overflowBytes);
-                return overflowBytesValue.and(serviceUuidMask).signum() == 1;
-            }
-
-        } catch (ArrayIndexOutOfBoundsException e) {
-            logw(TAG, "Inspecting advertisement overflow bytes went out of bounds.");
-        }
+        return containsUuidsInOverflow(scanData, serviceUuidMask.shiftRight(Long.SIZE).longValue(),
+                serviceUuidMask.longValue());
+    }
 
-        return false;
+    /**
+     * Returns {@code true} if the given bytes from a [ScanResult] contain an iOS overflow area
+     * with any bit of the given mask set. The mask is given as its high and low 64 bits.
+     *
+     * <p>Does not allocate. See {@link #containsUuidsInOverflow(byte[], BigInteger)} for the
+     * layout of the overflow area.
+     */
+    public static boolean containsUuidsInOverflow(@NonNull byte[] scanData,
+            long serviceUuidMaskHigh, long serviceUuidMaskLow) {
+        int match = AdvertisementMatcher.match(scanData, 0, scanData.length,
+                /* hasServiceUuid= */ false, /* serviceUuidMsb= */ 0, /* serviceUuidLsb= */ 0,
+                serviceUuidMaskHigh, serviceUuidMaskLow, AdvertisementMatcher.NO_MANUFACTURER_ID);
+        return (match & AdvertisementMatcher.MATCH_OVERFLOW) != 0;
     }
 }
@@ -16,9 +16,19 @@
 
 package com.android.car.connecteddevice.util;
 
+import static com.android.car.connecteddevice.util.SafeLog.loge;
+
+import static java.lang.annotation.RetentionPolicy.SOURCE;
+
 import android.annotation.CallbackExecutor;
+import android.annotation.IntDef;
 import android.annotation.NonNull;
 
+import java.lang.annotation.Retention;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.function.Consumer;
@@ -30,8 +40,40 @@ import java.util.function.Consumer;
  */
 public class ThreadSafeCallbacks<T> {
 
+    private static final String TAG = "ThreadSafeCallbacks";
+
+    @Retention(SOURCE)
+    @IntDef(prefix = { "DISPATCH_" },
+            value = {
+                    DISPATCH_PER_CALLBACK,
+                    DISPATCH_PER_EXECUTOR
+            }
+    )
+    public @interface DispatchMode {}
+
+    /** Every callback is notified in its own task on its executor. */
+    public static final int DISPATCH_PER_CALLBACK = 0;
+
+    /**
+     * All callbacks that share an executor are notified one after another in a single task on
+     * that executor. An exception thrown by one callback does not prevent the others from being
+     * notified. The first exception is rethrown on the executor once all of them have run.
+     */
+    public static final int DISPATCH_PER_EXECUTOR = 1;
+
     private final ConcurrentHashMap<T, Executor> mCallbacks = new ConcurrentHashMap<>();
 
+    @DispatchMode
+    private final int mDispatchMode;
+
+    public ThreadSafeCallbacks() {
+        this(DISPATCH_PER_CALLBACK);
+    }
+
+    public ThreadSafeCallbacks(@DispatchMode int dispatchMode) {
+        mDispatchMode = dispatchMode;
+    }
+
     /** Add a callback to be notified on its executor. */
     public void add(@NonNull T callback, @NonNull @CallbackExecutor Executor executor) {
         mCallbacks.put(callback, executor);
@@ -54,7 +96,60 @@ public class ThreadSafeCallbacks<T> {
 
     /** Invoke notification on all callbacks with their supplied {@link Executor}. */
     public void invoke(Consumer<T> notification) {
+        if (mDispatchMode == DISPATCH_PER_CALLBACK) {
+            mCallbacks.forEach((callback, executor) ->
+                    executor.execute(() -> notification.accept(callback)));
+            return;
+        }
+        Map<Executor, List<T>> callbacksByExecutor = new HashMap<>();
+        groupByExecutor(callbacksByExecutor);
+        dispatch(callbacksByExecutor, notification);
+    }
+
+    /**
+     * Invoke notification on the callbacks of several collections at once. Each collection keeps
+     * its own {@link DispatchMode}: callbacks of {@link #DISPATCH_PER_EXECUTOR} collections that
+     * share an executor are notified in a single task on that executor, even across collections,
+     * while callbacks of {@link #DISPATCH_PER_CALLBACK} collections each get their own task.
+     */
+    public static <T> void invokeAll(@NonNull Iterable<ThreadSafeCallbacks<T>> callbacks,
+            @NonNull Consumer<T> notification) {
+        Map<Executor, List<T>> callbacksByExecutor = new HashMap<>();
+        for (ThreadSafeCallbacks<T> collection : callbacks) {
+            if (collection.mDispatchMode == DISPATCH_PER_CALLBACK) {
+                collection.invoke(notification);
+            } else {
+                collection.groupByExecutor(callbacksByExecutor);
+            }
+        }
+        dispatch(callbacksByExecutor, notification);
+    }
+
+    private void groupByExecutor(@NonNull Map<Executor, List<T>> callbacksByExecutor) {
         mCallbacks.forEach((callback, executor) ->
-                executor.execute(() -> notification.accept(callback)));
+                callbacksByExecutor.computeIfAbsent(executor, key -> new ArrayList<>())
+                        .add(callback));
+    }
+
+    private static <T> void dispatch(@NonNull Map<Executor, List<T>> callbacksByExecutor,
+            @NonNull Consumer<T> notification) {
+        callbacksByExecutor.forEach((executor, callbacks) -> executor.execute(() -> {
+            RuntimeException firstException = null;
+            for (T callback : callbacks) {
+                try {
+                    notification.accept(callback);
+                } catch (RuntimeException e) {
+                    loge(TAG, "Callback " + callback + " threw an exception.", e);
+                    if (firstException == null) {
+                        firstException = e;
+                    } else {
+                        firstException.addSuppressed(e);
+                    }
+                }
+            }
+            if (firstException != null) {
+                throw firstException;
+            }
+        }));
     }
 }
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.car.encryptionrunner;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import android.annotation.NonNull;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+@RunWith(AndroidJUnit4.class)
+public class Ukey2EncryptionRunnerTest {
+
+    @Test
+    public void reconnect_serverAuthFirst_bothSidesFinish() throws HandshakeException {
+        Key[] previousKeys = associate();
+        EncryptionRunner client = newReconnectRunner();
+        EncryptionRunner server = newReconnectRunner();
+        runHandshake(client, server);
+
+        byte[] serverAuth = server.initReconnectAuthentication(previousKeys[1].asBytes())
+                .getNextMessage();
+        HandshakeMessage clientResult =
+                client.authenticateReconnection(serverAuth, previousKeys[0].asBytes());
+        HandshakeMessage serverResult = server.authenticateReconnection(
+                clientResult.getNextMessage(), previousKeys[1].asBytes());
+
+        assertThat(clientResult.getHandshakeState())
+                .isEqualTo(HandshakeMessage.HandshakeState.FINISHED);
+        assertThat(serverResult.getHandshakeState())
+                .isEqualTo(HandshakeMessage.HandshakeState.FINISHED);
+        assertThat(serverResult.getNextMessage()).isNull();
+    }
+
+    @Test
+    public void reconnect_clientAuthFirst_bothSidesFinish() throws HandshakeException {
+        Key[] previousKeys = associate();
+        EncryptionRunner client = newReconnectRunner();
+        EncryptionRunner server = newReconnectRunner();
+        runHandshake(client, server);
+
+        byte[] clientAuth = client.initReconnectAuthentication(previousKeys[0].asBytes())
+                .getNextMessage();
+        HandshakeMessage serverResult =
+                server.authenticateReconnection(clientAuth, previousKeys[1].asBytes());
+        HandshakeMessage clientResult = client.authenticateReconnection(
+                serverResult.getNextMessage(), previousKeys[0].asBytes());
+
+        assertThat(serverResult.getHandshakeState())
+                .isEqualTo(HandshakeMessage.HandshakeState.FINISHED);
+        assertThat(clientResult.getHandshakeState())
+                .isEqualTo(HandshakeMessage.HandshakeState.FINISHED);
+    }
+
+    @Test
+    public void reconnect_consecutiveReconnections_eachUseTheKeyStoredLast()
+            throws HandshakeException {
+        Key[] previousKeys = associate();
+        for (int i = 0; i < 3; i++) {
+            EncryptionRunner client = newReconnectRunner();
+            EncryptionRunner server = newReconnectRunner();
+            runHandshake(client, server);
+
+            byte[] serverAuth = server.initReconnectAuthentication(previousKeys[1].asBytes())
+                    .getNextMessage();
+            HandshakeMessage clientResult =
+                    client.authenticateReconnection(serverAuth, previousKeys[0].asBytes());
+            HandshakeMessage serverResult = server.authenticateReconnection(
+                    clientResult.getNextMessage(), previousKeys[1].asBytes());
+
+            previousKeys = new Key[] {clientResult.getKey(), serverResult.getKey()};
+        }
+    }
+
+    @Test
+    public void reconnect_consecutiveReconnectionsOfSameDevice_eachUseTheKeyStoredLast()
+            throws HandshakeException {
+        String deviceId = "consecutiveReconnectionsDevice";
+        Key[] previousKeys = associate();
+        for (int i = 0; i < 3; i++) {
+            EncryptionRunner client = newReconnectRunner();
+            EncryptionRunner server = newReconnectRunner();
+            server.setDeviceId(deviceId);
+            runHandshake(client, server);
+
+            byte[] serverAuth = server.initReconnectAuthentication(previousKeys[1].asBytes())
+                    .getNextMessage();
+            HandshakeMessage clientResult =
+                    client.authenticateReconnection(serverAuth, previousKeys[0].asBytes());
+            HandshakeMessage serverResult = server.authenticateReconnection(
+                    clientResult.getNextMessage(), previousKeys[1].asBytes());
+
+            previousKeys = new Key[] {clientResult.getKey(), serverResult.getKey()};
+        }
+    }
+
+    @Test
+    public void reconnect_sameDeviceWithOtherStoredKey_fails() throws HandshakeException {
+        String deviceId = "otherStoredKeyDevice";
+        Key[] previousKeys = associate();
+        Key[] otherKeys = associate();
+        EncryptionRunner client = newReconnectRunner();
+        EncryptionRunner server = newReconnectRunner();
+        server.setDeviceId(deviceId);
+        runHandshake(client, server);
+        server.initReconnectAuthentication(previousKeys[1].asBytes());
+
+        EncryptionRunner otherClient = newReconnectRunner();
+        EncryptionRunner otherServer = newReconnectRunner();
+        otherServer.setDeviceId(deviceId);
+        runHandshake(otherClient, otherServer);
+        byte[] clientAuth = otherClient.initReconnectAuthentication(previousKeys[0].asBytes())
+                .getNextMessage();
+        try {
+            otherServer.authenticateReconnection(clientAuth, otherKeys[1].asBytes());
+            assertWithMessage("Expected HandshakeException").fail();
+        } catch (HandshakeException expected) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void reconnect_differentPreviousKeys_fails() throws HandshakeException {
+        Key[] previousKeys = associate();
+        Key[] otherKeys = associate();
+        EncryptionRunner client = newReconnectRunner();
+        EncryptionRunner server = newReconnectRunner();
+        runHandshake(client, server);
+
+        byte[] clientAuth = client.initReconnectAuthentication(previousKeys[0].asBytes())
+                .getNextMessage();
+        try {
+            server.authenticateReconnection(clientAuth, otherKeys[1].asBytes());
+            assertWithMessage("Expected HandshakeException").fail();
+        } catch (HandshakeException expected) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void encryptData_intoBufferOfMaxSize_decryptsOnPeer() throws Exception {
+        Key[] keys = associate();
+        byte[] data = "message".getBytes();
+        ByteBuffer output = ByteBuffer.allocate(keys[0].getMaxEncryptedSize(data.length));
+
+        ByteBuffer encryptedData = keys[0].encryptData(ByteBuffer.wrap(data), output);
+
+        assertThat(encryptedData.array()).isSameAs(output.array());
+        assertThat(output.position()).isEqualTo(encryptedData.remaining());
+        assertThat(keys[1].decryptData(toByteArray(encryptedData))).isEqualTo(data);
+    }
+
+    @Test
+    public void encryptData_bufferTooSmall_doesNotConsumeSequenceNumber() throws Exception {
+        Key[] keys = associate();
+        byte[] data = "message".getBytes();
+        try {
+            keys[0].encryptData(ByteBuffer.wrap(data),
+                    ByteBuffer.allocate(keys[0].getMaxEncryptedSize(data.length) - 1));
+            assertWithMessage("Expected BufferOverflowException").fail();
+        } catch (BufferOverflowException expected) {
+            // Expected.
+        }
+
+        // The peer expects the next sequence number, so it only decrypts if none was skipped.
+        ByteBuffer encryptedData = keys[0].encryptData(ByteBuffer.wrap(data),
+                ByteBuffer.allocate(keys[0].getMaxEncryptedSize(data.length)));
+        assertThat(keys[1].decryptData(toByteArray(encryptedData))).isEqualTo(data);
+    }
+
+    @NonNull
+    private static byte[] toByteArray(@NonNull ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /** Runs an association and returns the keys of the client and the server, in that order. */
+    @NonNull
+    private static Key[] associate() throws HandshakeException {
+        EncryptionRunner client = EncryptionRunnerFactory.newRunner();
+        EncryptionRunner server = EncryptionRunnerFactory.newRunner();
+        runHandshake(client, server);
+        return new Key[] {client.verifyPin().getKey(), server.verifyPin().getKey()};
+    }
+
+    @NonNull
+    private static EncryptionRunner newReconnectRunner() {
+        EncryptionRunner runner = EncryptionRunnerFactory.newRunner();
+        runner.setIsReconnect(true);
+        return runner;
+    }
+
+    private static void runHandshake(@NonNull EncryptionRunner client,
+            @NonNull EncryptionRunner server) throws HandshakeException {
+        HandshakeMessage initMessage = client.initHandshake();
+        HandshakeMessage responseMessage =
+                server.respondToInitRequest(initMessage.getNextMessage());
+        HandshakeMessage clientMessage =
+                client.continueHandshake(responseMessage.getNextMessage());
+        server.continueHandshake(clientMessage.getNextMessage());
+    }
+}
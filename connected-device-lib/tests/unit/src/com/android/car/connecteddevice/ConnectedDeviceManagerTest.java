@@ -24,7 +24,9 @@ import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mockitoSession;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
@@ -54,10 +56,12 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoSession;
 import org.mockito.quality.Strictness;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
@@ -450,6 +454,29 @@ public class ConnectedDeviceManagerTest {
         verify(deviceCallback).onMessageReceived(connectedDevice, payload);
     }
 
+    @Test
+    public void registerDeviceCallback_sendsAllMissedMessagesInOrder()
+            throws InterruptedException {
+        Semaphore semaphore = new Semaphore(0);
+        connectNewDevice(mMockCentralManager);
+        ConnectedDevice connectedDevice =
+                mConnectedDeviceManager.getActiveUserConnectedDevices().get(0);
+        byte[] firstPayload = ByteUtils.randomBytes(10);
+        byte[] secondPayload = ByteUtils.randomBytes(10);
+        mConnectedDeviceManager.onMessageReceived(connectedDevice.getDeviceId(),
+                new DeviceMessage(mRecipientId, false, firstPayload));
+        mConnectedDeviceManager.onMessageReceived(connectedDevice.getDeviceId(),
+                new DeviceMessage(mRecipientId, false, secondPayload));
+        DeviceCallback deviceCallback = createDeviceCallback(semaphore);
+        mConnectedDeviceManager.registerDeviceCallback(connectedDevice, mRecipientId,
+                deviceCallback, mCallbackExecutor);
+        assertThat(tryAcquire(semaphore)).isTrue();
+        assertThat(tryAcquire(semaphore)).isTrue();
+        InOrder inOrder = inOrder(deviceCallback);
+        inOrder.verify(deviceCallback).onMessageReceived(connectedDevice, firstPayload);
+        inOrder.verify(deviceCallback).onMessageReceived(connectedDevice, secondPayload);
+    }
+
     @Test
     public void registerDeviceCallback_doesNotSendMissedMessageForDifferentRecipient()
             throws InterruptedException {
@@ -591,6 +618,41 @@ public class ConnectedDeviceManagerTest {
                 .connectToDevice(eq(UUID.fromString(userDeviceId)), anyInt());
     }
 
+    @Test
+    public void connectToActiveUserDevice_requestsEveryConnectionEnabledDevice() {
+        String deviceId = UUID.randomUUID().toString();
+        String otherDeviceId = UUID.randomUUID().toString();
+        String disabledDeviceId = UUID.randomUUID().toString();
+        when(mMockStorage.getActiveUserAssociatedDevices()).thenReturn(Arrays.asList(
+                new AssociatedDevice(deviceId, TEST_DEVICE_ADDRESS, TEST_DEVICE_NAME,
+                        /* isConnectionEnabled = */ true),
+                new AssociatedDevice(otherDeviceId, TEST_DEVICE_ADDRESS, TEST_DEVICE_NAME,
+                        /* isConnectionEnabled = */ true),
+                new AssociatedDevice(disabledDeviceId, TEST_DEVICE_ADDRESS, TEST_DEVICE_NAME,
+                        /* isConnectionEnabled = */ false)));
+        mConnectedDeviceManager.connectToActiveUserDevice();
+        verify(mMockPeripheralManager, timeout(1000))
+                .connectToDevice(eq(UUID.fromString(deviceId)), anyInt());
+        verify(mMockPeripheralManager, timeout(1000))
+                .connectToDevice(eq(UUID.fromString(otherDeviceId)), anyInt());
+        verify(mMockPeripheralManager, never())
+                .connectToDevice(eq(UUID.fromString(disabledDeviceId)), anyInt());
+    }
+
+    @Test
+    public void connectToActiveUserDevice_ignoresDevicesAlreadyRequested() {
+        String deviceId = UUID.randomUUID().toString();
+        when(mMockStorage.getActiveUserAssociatedDevices()).thenReturn(
+                Collections.singletonList(new AssociatedDevice(deviceId, TEST_DEVICE_ADDRESS,
+                        TEST_DEVICE_NAME, /* isConnectionEnabled = */ true)));
+        mConnectedDeviceManager.connectToActiveUserDevice();
+        verify(mMockPeripheralManager, timeout(1000))
+                .connectToDevice(eq(UUID.fromString(deviceId)), anyInt());
+        mConnectedDeviceManager.connectToActiveUserDevice();
+        verify(mMockPeripheralManager, timeout(1000).times(1))
+                .connectToDevice(eq(UUID.fromString(deviceId)), anyInt());
+    }
+
     @Test
     public void removeActiveUserAssociatedDevice_deletesAssociatedDeviceFromStorage() {
         String deviceId = UUID.randomUUID().toString();
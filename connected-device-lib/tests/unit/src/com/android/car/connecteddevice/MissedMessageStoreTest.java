@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.connecteddevice;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.car.connecteddevice.util.ByteUtils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.UUID;
+
+@RunWith(AndroidJUnit4.class)
+public class MissedMessageStoreTest {
+
+    private static final int MAX_MESSAGES_PER_RECIPIENT = 3;
+
+    private static final int MAX_TOTAL_BYTES = 100;
+
+    private static final long TTL_MS = 1000;
+
+    private static final String DEVICE_ID = UUID.randomUUID().toString();
+
+    private final UUID mRecipientId = UUID.randomUUID();
+
+    private final MissedMessageStore mStore = new MissedMessageStore(/* storage= */ null,
+            MAX_MESSAGES_PER_RECIPIENT, MAX_TOTAL_BYTES, TTL_MS);
+
+    @Test
+    public void pop_returnsAllMessagesInOrder() {
+        byte[] first = ByteUtils.randomBytes(10);
+        byte[] second = ByteUtils.randomBytes(10);
+        mStore.add(mRecipientId, DEVICE_ID, first, /* nowMs= */ 0);
+        mStore.add(mRecipientId, DEVICE_ID, second, /* nowMs= */ 1);
+
+        assertThat(mStore.pop(mRecipientId, DEVICE_ID, /* nowMs= */ 2))
+                .containsExactly(first, second).inOrder();
+        assertThat(mStore.pop(mRecipientId, DEVICE_ID, /* nowMs= */ 2)).isEmpty();
+        assertThat(mStore.getTotalBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void pop_onlyReturnsMessagesForRecipientAndDevice() {
+        byte[] message = ByteUtils.randomBytes(10);
+        mStore.add(mRecipientId, DEVICE_ID, message, /* nowMs= */ 0);
+        mStore.add(UUID.randomUUID(), DEVICE_ID, ByteUtils.randomBytes(10), /* nowMs= */ 0);
+        mStore.add(mRecipientId, UUID.randomUUID().toString(), ByteUtils.randomBytes(10),
+                /* nowMs= */ 0);
+
+        assertThat(mStore.pop(mRecipientId, DEVICE_ID, /* nowMs= */ 0)).containsExactly(message);
+    }
+
+    @Test
+    public void add_dropsOldestMessageWhenRecipientQueueIsFull() {
+        byte[] oldest = ByteUtils.randomBytes(10);
+        mStore.add(mRecipientId, DEVICE_ID, oldest, /* nowMs= */ 0);
+        for (int i = 0; i < MAX_MESSAGES_PER_RECIPIENT; i++) {
+            mStore.add(mRecipientId, DEVICE_ID, ByteUtils.randomBytes(10), /* nowMs= */ i + 1);
+        }
+
+        assertThat(mStore.pop(mRecipientId, DEVICE_ID, /* nowMs= */ 10))
+                .hasSize(MAX_MESSAGES_PER_RECIPIENT);
+    }
+
+    @Test
+    public void add_dropsOldestMessageWhenStoreIsFull() {
+        UUID otherRecipientId = UUID.randomUUID();
+        mStore.add(otherRecipientId, DEVICE_ID, ByteUtils.randomBytes(60), /* nowMs= */ 0);
+        byte[] message = ByteUtils.randomBytes(60);
+        mStore.add(mRecipientId, DEVICE_ID, message, /* nowMs= */ 1);
+
+        assertThat(mStore.getTotalBytes()).isEqualTo(60);
+        assertThat(mStore.pop(otherRecipientId, DEVICE_ID, /* nowMs= */ 2)).isEmpty();
+        assertThat(mStore.pop(mRecipientId, DEVICE_ID, /* nowMs= */ 2)).containsExactly(message);
+    }
+
+    @Test
+    public void pop_dropsExpiredMessages() {
+        mStore.add(mRecipientId, DEVICE_ID, ByteUtils.randomBytes(10), /* nowMs= */ 0);
+        byte[] message = ByteUtils.randomBytes(10);
+        mStore.add(mRecipientId, DEVICE_ID, message, /* nowMs= */ TTL_MS);
+
+        assertThat(mStore.pop(mRecipientId, DEVICE_ID, /* nowMs= */ TTL_MS + 1))
+                .containsExactly(message);
+    }
+}
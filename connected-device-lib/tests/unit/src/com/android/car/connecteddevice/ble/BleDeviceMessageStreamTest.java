@@ -19,19 +19,30 @@ package com.android.car.connecteddevice.ble;
 import static com.android.car.connecteddevice.BleStreamProtos.BleDeviceMessageProto.BleDeviceMessage;
 import static com.android.car.connecteddevice.BleStreamProtos.BleOperationProto.OperationType;
 import static com.android.car.connecteddevice.BleStreamProtos.BlePacketProto.BlePacket;
+import static com.android.car.connecteddevice.BleStreamProtos.VersionExchangeProto.BleVersionExchange;
 import static com.android.car.connecteddevice.ble.BleDeviceMessageStream.MessageReceivedListener;
 
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth.assertWithMessage;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.mockitoSession;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import android.annotation.NonNull;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.car.encryptionrunner.EncryptionRunnerFactory;
+import android.car.encryptionrunner.Key;
+import android.os.Handler;
+import android.os.HandlerThread;
 
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 
@@ -47,9 +58,12 @@ import org.mockito.Mock;
 import org.mockito.MockitoSession;
 import org.mockito.quality.Strictness;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
@@ -59,6 +73,24 @@ public class BleDeviceMessageStreamTest {
 
     private static final String TAG = "BleDeviceMessageStreamTest";
 
+    // Split into many more packets than the largest window at the default write size.
+    private static final int LARGE_MESSAGE_SIZE = 1000;
+
+    // Longer than the throttle the stream waits before sending queued packets.
+    private static final long PENDING_WRITES_DELAY_MS = 100L;
+
+    private static final long SLOW_SEND_DELAY_MS = 500L;
+
+    private static final int WRITE_SIZE = 100;
+
+    private static final int MIN_WRITE_SIZE = 20;
+
+    private static final int FAILED_STATUS = 0x85;
+
+    private static final UUID WRITE_UUID = UUID.randomUUID();
+
+    private static final UUID READ_UUID = UUID.randomUUID();
+
     private BleDeviceMessageStream mStream;
 
     @Mock
@@ -75,6 +107,10 @@ public class BleDeviceMessageStreamTest {
 
     private MockitoSession mMockingSession;
 
+    private HandlerThread mHandlerThread;
+
+    private final List<byte[]> mNotifiedValues = new CopyOnWriteArrayList<>();
+
     @Before
     public void setup() {
         mMockingSession = mockitoSession()
@@ -82,12 +118,19 @@ public class BleDeviceMessageStreamTest {
                 .strictness(Strictness.LENIENT)
                 .startMocking();
 
+        when(mMockWriteCharacteristic.getUuid()).thenReturn(WRITE_UUID);
+        when(mMockReadCharacteristic.getUuid()).thenReturn(READ_UUID);
+        mHandlerThread = new HandlerThread(TAG);
+        mHandlerThread.start();
         mStream = new BleDeviceMessageStream(mMockBlePeripheralManager, mMockBluetoothDevice,
-                mMockWriteCharacteristic, mMockReadCharacteristic);
+                mMockWriteCharacteristic, mMockReadCharacteristic, /* threadingModel = */ null,
+                new Handler(mHandlerThread.getLooper()));
     }
 
     @After
     public void cleanup() {
+        mStream.close();
+        mHandlerThread.quitSafely();
         if (mMockingSession != null) {
             mMockingSession.finishMocking();
         }
@@ -164,6 +207,303 @@ public class BleDeviceMessageStreamTest {
         assertThat(tryAcquire(semaphore)).isFalse();
     }
 
+    @Test
+    public void versionExchange_enablesWindowedTransmissionWhenSupportedByDevice()
+            throws InterruptedException {
+        exchangeVersion(/* maxMessagingVersion = */ 3);
+        assertThat(mStream.isWindowedTransmissionEnabled()).isTrue();
+        assertThat(mStream.getWindowSize())
+                .isEqualTo(BleDeviceMessageStream.INITIAL_WINDOW_SIZE);
+    }
+
+    @Test
+    public void versionExchange_fallsBackToStopAndWaitForLegacyDevice()
+            throws InterruptedException {
+        exchangeVersion(/* maxMessagingVersion = */ 2);
+        assertThat(mStream.isWindowedTransmissionEnabled()).isFalse();
+    }
+
+    @Test
+    public void windowedTransmission_sendsInitialWindowOfPackets() throws InterruptedException {
+        enableWindowedTransmission();
+        mStream.writeMessage(createLargeMessage());
+        waitForPendingWrites();
+        assertThat(mNotifiedValues).hasSize(BleDeviceMessageStream.INITIAL_WINDOW_SIZE);
+    }
+
+    @Test
+    public void windowedTransmission_sentPacketSendsNextPacket()
+            throws InterruptedException {
+        BlePeripheralManager.OnCharacteristicReadListener readListener =
+                enableWindowedTransmission();
+        mStream.writeMessage(createLargeMessage());
+        waitForPendingWrites();
+        readListener.onCharacteristicRead(mMockBluetoothDevice);
+        waitForPendingWrites();
+        assertThat(mNotifiedValues).hasSize(BleDeviceMessageStream.INITIAL_WINDOW_SIZE + 1);
+    }
+
+    @Test
+    public void windowedTransmission_timelySendOfFullWindowGrowsWindow()
+            throws InterruptedException {
+        BlePeripheralManager.OnCharacteristicReadListener readListener =
+                enableWindowedTransmission();
+        mStream.writeMessage(createLargeMessage());
+        waitForPendingWrites();
+        for (int i = 0; i < BleDeviceMessageStream.INITIAL_WINDOW_SIZE; i++) {
+            readListener.onCharacteristicRead(mMockBluetoothDevice);
+        }
+        waitForPendingWrites();
+        assertThat(mStream.getWindowSize())
+                .isEqualTo(BleDeviceMessageStream.INITIAL_WINDOW_SIZE + 1);
+        assertThat(mNotifiedValues).hasSize(2 * BleDeviceMessageStream.INITIAL_WINDOW_SIZE + 1);
+    }
+
+    @Test
+    public void windowedTransmission_slowSendsShrinkWindowOncePerWindow()
+            throws InterruptedException {
+        BlePeripheralManager.OnCharacteristicReadListener readListener =
+                enableWindowedTransmission();
+        mStream.writeMessage(createLargeMessage());
+        waitForPendingWrites();
+        // The first sent packet sets the lowest latency of the stream.
+        readListener.onCharacteristicRead(mMockBluetoothDevice);
+        waitForPendingWrites();
+        Thread.sleep(SLOW_SEND_DELAY_MS);
+        readListener.onCharacteristicRead(mMockBluetoothDevice);
+        readListener.onCharacteristicRead(mMockBluetoothDevice);
+        waitForStreamThread();
+        assertThat(mStream.getWindowSize())
+                .isEqualTo(BleDeviceMessageStream.INITIAL_WINDOW_SIZE - 1);
+    }
+
+    @Test
+    public void notificationFailed_reducesWriteSizeAndResendsFailedPacket() throws Exception {
+        BlePeripheralManager.OnCharacteristicReadListener readListener =
+                enableWindowedTransmission();
+        BlePeripheralManager.OnNotificationFailedListener failedListener =
+                captureNotificationFailedListener();
+        mStream.setMaxWriteSize(WRITE_SIZE);
+        mStream.writeMessage(createLargeMessage());
+        waitForPendingWrites();
+        // Fail a packet that is not the oldest in flight.
+        byte[] failedValue = mNotifiedValues.get(1);
+
+        failedListener.onNotificationFailed(mMockBluetoothDevice, FAILED_STATUS, failedValue);
+        waitForPendingWrites();
+        assertThat(mStream.getWriteSize()).isEqualTo(WRITE_SIZE - WRITE_SIZE / 4);
+        assertThat(mStream.getWindowSize())
+                .isEqualTo(BleDeviceMessageStream.INITIAL_WINDOW_SIZE / 2);
+
+        // Two of the three packets still in flight must be reported as sent to make room.
+        mNotifiedValues.clear();
+        readListener.onCharacteristicRead(mMockBluetoothDevice);
+        readListener.onCharacteristicRead(mMockBluetoothDevice);
+        waitForPendingWrites();
+        assertThat(mNotifiedValues).isNotEmpty();
+        assertThat(mNotifiedValues.get(0)).isEqualTo(failedValue);
+    }
+
+    @Test
+    public void notificationFailed_unknownValueDoesNotResendPackets() throws Exception {
+        enableWindowedTransmission();
+        BlePeripheralManager.OnNotificationFailedListener failedListener =
+                captureNotificationFailedListener();
+        mStream.setMaxWriteSize(WRITE_SIZE);
+        mStream.writeMessage(createLargeMessage());
+        waitForPendingWrites();
+        mNotifiedValues.clear();
+
+        failedListener.onNotificationFailed(mMockBluetoothDevice, FAILED_STATUS,
+                ByteUtils.randomBytes(WRITE_SIZE));
+        waitForPendingWrites();
+
+        assertThat(mStream.getWriteSize()).isEqualTo(WRITE_SIZE - WRITE_SIZE / 4);
+        assertThat(mStream.getWindowSize()).isEqualTo(BleDeviceMessageStream.INITIAL_WINDOW_SIZE);
+        assertThat(mNotifiedValues).isEmpty();
+    }
+
+    @Test
+    public void notificationFailed_writeSizeNeverBelowMinimum() throws Exception {
+        BlePeripheralManager.OnNotificationFailedListener failedListener =
+                captureNotificationFailedListener();
+        mStream.setMaxWriteSize(MIN_WRITE_SIZE + 1);
+
+        failedListener.onNotificationFailed(mMockBluetoothDevice, FAILED_STATUS,
+                /* value= */ null);
+        waitForStreamThread();
+
+        assertThat(mStream.getWriteSize()).isEqualTo(MIN_WRITE_SIZE);
+    }
+
+    @Test
+    public void versionExchange_version4_enablesEarlyServerAuth() throws Exception {
+        exchangeVersion(/* maxMessagingVersion = */ 4);
+
+        assertThat(mStream.isEarlyServerAuthSupported()).isTrue();
+    }
+
+    @Test
+    public void versionExchange_version3_keepsServerAuthAfterClientAuth() throws Exception {
+        exchangeVersion(/* maxMessagingVersion = */ 3);
+
+        assertThat(mStream.isEarlyServerAuthSupported()).isFalse();
+        assertThat(mStream.isWindowedTransmissionEnabled()).isTrue();
+    }
+
+    @Test
+    public void versionExchange_throughOtherService_bindsStreamToThatService() throws Exception {
+        BluetoothGattService service = createGattService();
+
+        exchangeVersion(/* maxMessagingVersion = */ 2, service.getCharacteristic(READ_UUID));
+
+        verify(mMockBlePeripheralManager).notifyCharacteristicChanged(any(),
+                eq(service.getCharacteristic(WRITE_UUID)), any(), anyBoolean());
+        assertThat(mStream.getServiceUuid()).isEqualTo(service.getUuid());
+    }
+
+    @Test
+    public void writeThroughOtherServiceAfterVersionExchange_isIgnored() throws Exception {
+        exchangeVersion(/* maxMessagingVersion = */ 2);
+        Semaphore semaphore = new Semaphore(0);
+        mStream.setMessageReceivedListener(createMessageReceivedListener(semaphore));
+        BluetoothGattCharacteristic otherCharacteristic =
+                createGattService().getCharacteristic(READ_UUID);
+
+        for (BlePacket packet : createPackets(ByteUtils.randomBytes(5))) {
+            captureWriteListener().onCharacteristicWrite(mMockBluetoothDevice, otherCharacteristic,
+                    packet.toByteArray());
+        }
+
+        assertThat(tryAcquire(semaphore)).isFalse();
+        assertThat(mStream.getServiceUuid()).isNull();
+    }
+
+    private static BluetoothGattService createGattService() {
+        BluetoothGattService service = new BluetoothGattService(UUID.randomUUID(),
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        service.addCharacteristic(new BluetoothGattCharacteristic(WRITE_UUID,
+                BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PERMISSION_READ));
+        service.addCharacteristic(new BluetoothGattCharacteristic(READ_UUID,
+                BluetoothGattCharacteristic.PROPERTY_WRITE,
+                BluetoothGattCharacteristic.PERMISSION_WRITE));
+        return service;
+    }
+
+    private BlePeripheralManager.OnCharacteristicWriteListener captureWriteListener() {
+        ArgumentCaptor<BlePeripheralManager.OnCharacteristicWriteListener> listenerCaptor =
+                ArgumentCaptor.forClass(BlePeripheralManager.OnCharacteristicWriteListener.class);
+        verify(mMockBlePeripheralManager).addOnCharacteristicWriteListener(
+                listenerCaptor.capture());
+        return listenerCaptor.getValue();
+    }
+
+    private BlePeripheralManager.OnNotificationFailedListener captureNotificationFailedListener() {
+        ArgumentCaptor<BlePeripheralManager.OnNotificationFailedListener> listenerCaptor =
+                ArgumentCaptor.forClass(BlePeripheralManager.OnNotificationFailedListener.class);
+        verify(mMockBlePeripheralManager).addOnNotificationFailedListener(
+                listenerCaptor.capture());
+        return listenerCaptor.getValue();
+    }
+
+    /**
+     * Negotiates windowed transmission with the stream and returns the listener that reports its
+     * packets as sent by the stack. Packets sent after this call are recorded in {@link #mNotifiedValues}.
+     */
+    private BlePeripheralManager.OnCharacteristicReadListener enableWindowedTransmission()
+            throws InterruptedException {
+        when(mMockBlePeripheralManager.notifyCharacteristicChanged(any(), any(), any(),
+                anyBoolean())).thenAnswer(invocation -> {
+                    mNotifiedValues.add(invocation.getArgument(2));
+                    return true;
+                });
+        exchangeVersion(/* maxMessagingVersion = */ 3);
+        mNotifiedValues.clear();
+        ArgumentCaptor<BlePeripheralManager.OnCharacteristicReadListener> listenerCaptor =
+                ArgumentCaptor.forClass(BlePeripheralManager.OnCharacteristicReadListener.class);
+        verify(mMockBlePeripheralManager).addOnCharacteristicReadListener(
+                listenerCaptor.capture());
+        return listenerCaptor.getValue();
+    }
+
+    private DeviceMessage createLargeMessage() {
+        return new DeviceMessage(UUID.randomUUID(), /* isMessageEncrypted = */ false,
+                ByteUtils.randomBytes(LARGE_MESSAGE_SIZE));
+    }
+
+    /** Waits until the stream has sent the packets that are delayed by its throttle. */
+    private void waitForPendingWrites() throws InterruptedException {
+        Semaphore semaphore = new Semaphore(0);
+        new Handler(mHandlerThread.getLooper()).postDelayed(semaphore::release,
+                PENDING_WRITES_DELAY_MS);
+        assertThat(semaphore.tryAcquire(PENDING_WRITES_DELAY_MS * 5, TimeUnit.MILLISECONDS))
+                .isTrue();
+    }
+
+    private void exchangeVersion(int maxMessagingVersion) throws InterruptedException {
+        exchangeVersion(maxMessagingVersion, mMockReadCharacteristic);
+    }
+
+    private void exchangeVersion(int maxMessagingVersion,
+            @NonNull BluetoothGattCharacteristic characteristic) throws InterruptedException {
+        BleVersionExchange versionExchange = BleVersionExchange.newBuilder()
+                .setMinSupportedMessagingVersion(2)
+                .setMaxSupportedMessagingVersion(maxMessagingVersion)
+                .setMinSupportedSecurityVersion(1)
+                .setMaxSupportedSecurityVersion(1)
+                .build();
+        captureWriteListener().onCharacteristicWrite(mMockBluetoothDevice, characteristic,
+                versionExchange.toByteArray());
+        waitForStreamThread();
+    }
+
+    @Test
+    public void serializeWithEncryptedPayload_parsesAsMessageWithPayload() throws Exception {
+        Key key = EncryptionRunnerFactory.newDummyRunner().keyOf(new byte[0]);
+        byte[] payload = ByteUtils.randomBytes(750);
+        BleDeviceMessage header = BleDeviceMessage.newBuilder()
+                .setOperation(OperationType.CLIENT_MESSAGE)
+                .setIsPayloadEncrypted(true)
+                .setOriginalSize(payload.length)
+                .build();
+
+        ByteString serialized =
+                BleDeviceMessageStream.serializeWithEncryptedPayload(header, payload, key);
+
+        BleDeviceMessage message = BleDeviceMessage.parseFrom(serialized);
+        assertThat(message.getIsPayloadEncrypted()).isTrue();
+        assertThat(message.getOriginalSize()).isEqualTo(payload.length);
+        assertThat(key.decryptData(message.getPayload().toByteArray())).isEqualTo(payload);
+    }
+
+    @Test
+    public void serializeWithEncryptedPayload_sizeBoundTooSmall_keepsEncryptedPayload()
+            throws Exception {
+        byte[] encryptedPayload = ByteUtils.randomBytes(100);
+        Key key = mock(Key.class);
+        when(key.getMaxEncryptedSize(anyInt())).thenReturn(10);
+        when(key.encryptData(any(ByteBuffer.class), any(ByteBuffer.class)))
+                .thenReturn(ByteBuffer.wrap(encryptedPayload));
+        BleDeviceMessage header = BleDeviceMessage.newBuilder()
+                .setOperation(OperationType.CLIENT_MESSAGE)
+                .setIsPayloadEncrypted(true)
+                .build();
+
+        ByteString serialized = BleDeviceMessageStream.serializeWithEncryptedPayload(header,
+                ByteUtils.randomBytes(5), key);
+
+        BleDeviceMessage message = BleDeviceMessage.parseFrom(serialized);
+        assertThat(message.getPayload().toByteArray()).isEqualTo(encryptedPayload);
+        verify(key).encryptData(any(ByteBuffer.class), any(ByteBuffer.class));
+    }
+
+    private void waitForStreamThread() throws InterruptedException {
+        Semaphore semaphore = new Semaphore(0);
+        new Handler(mHandlerThread.getLooper()).post(semaphore::release);
+        assertThat(tryAcquire(semaphore)).isTrue();
+    }
+
     @NonNull
     private List<BlePacket> createPackets(byte[] data) {
         try {
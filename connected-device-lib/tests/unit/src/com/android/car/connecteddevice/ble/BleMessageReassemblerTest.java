@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.connecteddevice.ble;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.car.connecteddevice.BleStreamProtos.BlePacketProto.BlePacket;
+import com.android.car.connecteddevice.util.ByteUtils;
+import com.android.car.protobuf.ByteString;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class BleMessageReassemblerTest {
+
+    private static final long TIMEOUT_MS = 1000L;
+
+    private static final int MAX_PENDING_BYTES = 2000;
+
+    private static final int MAX_PACKET_SIZE = 50;
+
+    private BleMessageReassembler mReassembler;
+
+    private BleMessageReassembler.OnMessageDroppedListener mMockListener;
+
+    @Before
+    public void setUp() {
+        mReassembler = new BleMessageReassembler(TIMEOUT_MS, MAX_PENDING_BYTES);
+        mMockListener = mock(BleMessageReassembler.OnMessageDroppedListener.class);
+        mReassembler.setOnMessageDroppedListener(mMockListener);
+    }
+
+    @Test
+    public void addPacket_reassemblesInOrderPackets() throws Exception {
+        byte[] data = ByteUtils.randomBytes(500);
+        List<BlePacket> packets = BlePacketFactory.makeBlePackets(data, /* messageId= */ 1,
+                MAX_PACKET_SIZE);
+
+        ByteString message = null;
+        for (BlePacket packet : packets) {
+            message = mReassembler.addPacket(packet, /* nowMs= */ 0);
+        }
+
+        assertThat(message.toByteArray()).isEqualTo(data);
+        assertThat(mReassembler.hasPendingMessages()).isFalse();
+        assertThat(mReassembler.getPendingBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void addPacket_reassemblesOutOfOrderPackets() throws Exception {
+        byte[] data = ByteUtils.randomBytes(500);
+        List<BlePacket> packets = new ArrayList<>(BlePacketFactory.makeBlePackets(data,
+                /* messageId= */ 1, MAX_PACKET_SIZE));
+        Collections.reverse(packets);
+
+        ByteString message = null;
+        for (BlePacket packet : packets) {
+            assertThat(message).isNull();
+            message = mReassembler.addPacket(packet, /* nowMs= */ 0);
+        }
+
+        assertThat(message.toByteArray()).isEqualTo(data);
+    }
+
+    @Test
+    public void evictExpiredMessages_dropsStalePartialMessage() throws Exception {
+        List<BlePacket> packets = BlePacketFactory.makeBlePackets(ByteUtils.randomBytes(500),
+                /* messageId= */ 7, MAX_PACKET_SIZE);
+        mReassembler.addPacket(packets.get(0), /* nowMs= */ 0);
+
+        mReassembler.evictExpiredMessages(TIMEOUT_MS - 1);
+        assertThat(mReassembler.hasPendingMessages()).isTrue();
+
+        mReassembler.evictExpiredMessages(TIMEOUT_MS);
+        assertThat(mReassembler.hasPendingMessages()).isFalse();
+        assertThat(mReassembler.getPendingBytes()).isEqualTo(0);
+        verify(mMockListener).onMessageDropped(eq(7), any());
+    }
+
+    @Test
+    public void addPacket_evictsOldestMessageWhenOverMemoryLimit() throws Exception {
+        List<BlePacket> firstPackets = BlePacketFactory.makeBlePackets(
+                ByteUtils.randomBytes(1200), /* messageId= */ 1, MAX_PACKET_SIZE);
+        List<BlePacket> secondPackets = BlePacketFactory.makeBlePackets(
+                ByteUtils.randomBytes(1200), /* messageId= */ 2, MAX_PACKET_SIZE);
+
+        mReassembler.addPacket(firstPackets.get(0), /* nowMs= */ 0);
+        mReassembler.addPacket(secondPackets.get(0), /* nowMs= */ 0);
+
+        verify(mMockListener).onMessageDropped(eq(1), any());
+        verify(mMockListener, never()).onMessageDropped(eq(2), any());
+        assertThat(mReassembler.getPendingBytes()).isAtMost(MAX_PENDING_BYTES);
+    }
+
+    @Test(expected = BleMessageReassemblyException.class)
+    public void addPacket_throwsForMessageLargerThanMemoryLimit() throws Exception {
+        List<BlePacket> packets = BlePacketFactory.makeBlePackets(
+                ByteUtils.randomBytes(MAX_PENDING_BYTES * 2), /* messageId= */ 1,
+                MAX_PACKET_SIZE);
+        mReassembler.addPacket(packets.get(0), /* nowMs= */ 0);
+    }
+
+    @Test
+    public void addPacket_countsFinalPayloadAgainstMemoryLimit() throws Exception {
+        List<BlePacket> packets = BlePacketFactory.makeBlePackets(ByteUtils.randomBytes(500),
+                /* messageId= */ 1, MAX_PACKET_SIZE);
+        BlePacket lastPacket = packets.get(packets.size() - 1);
+
+        mReassembler.addPacket(lastPacket, /* nowMs= */ 0);
+        assertThat(mReassembler.getPendingBytes()).isEqualTo(lastPacket.getPayload().size());
+
+        mReassembler.addPacket(packets.get(0), /* nowMs= */ 0);
+        int chunkSize = packets.get(0).getPayload().size();
+        assertThat(mReassembler.getPendingBytes())
+                .isEqualTo(chunkSize * packets.size() + lastPacket.getPayload().size());
+    }
+
+    @Test
+    public void addPacket_finalPayloadEvictsOlderMessageWhenOverMemoryLimit() throws Exception {
+        List<BlePacket> firstPackets = BlePacketFactory.makeBlePackets(
+                ByteUtils.randomBytes(1980), /* messageId= */ 1, MAX_PACKET_SIZE);
+        List<BlePacket> secondPackets = BlePacketFactory.makeBlePackets(
+                ByteUtils.randomBytes(500), /* messageId= */ 2, MAX_PACKET_SIZE);
+        mReassembler.addPacket(firstPackets.get(0), /* nowMs= */ 0);
+
+        mReassembler.addPacket(secondPackets.get(secondPackets.size() - 1), /* nowMs= */ 0);
+
+        verify(mMockListener).onMessageDropped(eq(1), any());
+        assertThat(mReassembler.getPendingBytes()).isAtMost(MAX_PENDING_BYTES);
+    }
+
+    @Test
+    public void addPacket_singlePacketMessageClearsPartialMessageWithSameId() throws Exception {
+        List<BlePacket> packets = BlePacketFactory.makeBlePackets(ByteUtils.randomBytes(500),
+                /* messageId= */ 1, MAX_PACKET_SIZE);
+        mReassembler.addPacket(packets.get(0), /* nowMs= */ 0);
+        byte[] data = ByteUtils.randomBytes(10);
+        BlePacket singlePacket = BlePacketFactory.makeBlePackets(data, /* messageId= */ 1,
+                MAX_PACKET_SIZE).get(0);
+
+        ByteString message = mReassembler.addPacket(singlePacket, /* nowMs= */ 0);
+
+        assertThat(message.toByteArray()).isEqualTo(data);
+        assertThat(mReassembler.hasPendingMessages()).isFalse();
+        assertThat(mReassembler.getPendingBytes()).isEqualTo(0);
+    }
+}
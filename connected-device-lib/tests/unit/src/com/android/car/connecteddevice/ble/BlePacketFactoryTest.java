@@ -21,11 +21,15 @@ import static com.google.common.truth.Truth.assertThat;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 
 import com.android.car.connecteddevice.BleStreamProtos.BlePacketProto.BlePacket;
+import com.android.car.protobuf.ByteString;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
 
@@ -161,6 +165,72 @@ public class BlePacketFactoryTest {
         assertThat(reconstructedPayload.toByteArray()).isEqualTo(payload);
     }
 
+    @Test
+    public void testMakePackets_fromByteString_producesExpectedPacketBytes() throws Exception {
+        byte[] payload = makePayload(/* length= */ 10000);
+        int maxSize = 50;
+
+        // 5 bytes for the packet number, 3 bytes for the total packets, 2 bytes for the message id
+        // and 2 bytes for the payload length and field number leave 38 bytes of payload.
+        int chunkSize = 38;
+        int totalPackets = 264;
+
+        List<BlePacket> packets = BlePacketFactory.makeBlePackets(
+                ByteString.copyFrom(payload), /* mesageId= */ 1, maxSize);
+
+        assertThat(packets).hasSize(totalPackets);
+        for (int i = 0; i < totalPackets; i++) {
+            int start = i * chunkSize;
+            int length = Math.min(chunkSize, payload.length - start);
+            byte[] expectedBytes = BlePacket.newBuilder()
+                    .setPacketNumber(i + 1)
+                    .setTotalPackets(totalPackets)
+                    .setMessageId(1)
+                    .setPayload(ByteString.copyFrom(payload, start, length))
+                    .build()
+                    .toByteArray();
+            byte[] packetBytes = packets.get(i).toByteArray();
+            assertThat(packetBytes).isEqualTo(expectedBytes);
+            assertThat(packetBytes.length).isAtMost(maxSize);
+        }
+    }
+
+    @Test
+    public void testMakePackets_fromByteArray_unaffectedByLaterChangesToPayload()
+            throws Exception {
+        byte[] payload = makePayload(/* length= */ 10000);
+        byte[] expectedPayload = payload.clone();
+        int maxSize = 50;
+
+        List<BlePacket> packets =
+                BlePacketFactory.makeBlePackets(payload, /* mesageId= */ 1, maxSize);
+        Arrays.fill(payload, (byte) 0);
+
+        ByteArrayOutputStream reconstructedPayload = new ByteArrayOutputStream();
+        for (BlePacket packet : packets) {
+            reconstructedPayload.write(packet.getPayload().toByteArray());
+        }
+
+        assertThat(reconstructedPayload.toByteArray()).isEqualTo(expectedPayload);
+    }
+
+    @Test
+    public void testNewBlePacketIterator_lazilyProducesAllPackets() throws Exception {
+        byte[] payload = makePayload(/* length= */ 10000);
+        int maxSize = 50;
+
+        List<BlePacket> expectedPackets =
+                BlePacketFactory.makeBlePackets(payload, /* mesageId= */ 1, maxSize);
+        Iterator<BlePacket> iterator = BlePacketFactory.newBlePacketIterator(
+                ByteString.copyFrom(payload), /* mesageId= */ 1, maxSize);
+
+        List<BlePacket> packets = new ArrayList<>();
+        while (iterator.hasNext()) {
+            packets.add(iterator.next());
+        }
+        assertThat(packets).isEqualTo(expectedPackets);
+    }
+
     /** Creates a byte array of the given length, populated with random bytes. */
     private byte[] makePayload(int length) {
         byte[] payload = new byte[length];
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.connecteddevice.ble;
+
+import static com.android.car.connecteddevice.BleStreamProtos.BleOperationProto.OperationType;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.car.connecteddevice.BleStreamProtos.BlePacketProto.BlePacket;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+@RunWith(AndroidJUnit4.class)
+public class BlePacketSchedulerTest {
+
+    private final BlePacketScheduler mScheduler = new BlePacketScheduler();
+
+    @Test
+    public void poll_sendsControlMessagesBeforeClientMessages() {
+        mScheduler.enqueue(UUID.randomUUID(), OperationType.CLIENT_MESSAGE,
+                DeviceMessage.PRIORITY_HIGH, makePackets(/* messageId= */ 1, /* count= */ 3));
+        mScheduler.enqueue(/* recipient= */ null, OperationType.ENCRYPTION_HANDSHAKE,
+                DeviceMessage.PRIORITY_NORMAL, makePackets(/* messageId= */ 2, /* count= */ 1));
+
+        assertThat(mScheduler.poll().mPacket.getMessageId()).isEqualTo(2);
+    }
+
+    @Test
+    public void poll_sendsHigherPriorityFirst() {
+        UUID recipient = UUID.randomUUID();
+        mScheduler.enqueue(recipient, OperationType.CLIENT_MESSAGE, DeviceMessage.PRIORITY_LOW,
+                makePackets(/* messageId= */ 1, /* count= */ 100));
+        mScheduler.enqueue(recipient, OperationType.CLIENT_MESSAGE, DeviceMessage.PRIORITY_HIGH,
+                makePackets(/* messageId= */ 2, /* count= */ 2));
+
+        assertThat(mScheduler.poll().mPacket.getMessageId()).isEqualTo(2);
+        assertThat(mScheduler.poll().mPacket.getMessageId()).isEqualTo(2);
+        assertThat(mScheduler.poll().mPacket.getMessageId()).isEqualTo(1);
+    }
+
+    @Test
+    public void poll_interleavesRecipientsWithSamePriority() {
+        mScheduler.enqueue(UUID.randomUUID(), OperationType.CLIENT_MESSAGE,
+                DeviceMessage.PRIORITY_NORMAL, makePackets(/* messageId= */ 1, /* count= */ 3));
+        mScheduler.enqueue(UUID.randomUUID(), OperationType.CLIENT_MESSAGE,
+                DeviceMessage.PRIORITY_NORMAL, makePackets(/* messageId= */ 2, /* count= */ 3));
+
+        List<Integer> messageIds = new ArrayList<>();
+        while (!mScheduler.isEmpty()) {
+            messageIds.add(mScheduler.poll().mPacket.getMessageId());
+        }
+        assertThat(messageIds).containsExactly(1, 2, 1, 2, 1, 2).inOrder();
+    }
+
+    @Test
+    public void poll_sendsRequeuedPacketFirst() {
+        UUID recipient = UUID.randomUUID();
+        mScheduler.enqueue(recipient, OperationType.CLIENT_MESSAGE,
+                DeviceMessage.PRIORITY_NORMAL, makePackets(/* messageId= */ 1, /* count= */ 1));
+        BlePacketScheduler.QueuedPacket requeued = mScheduler.poll();
+        mScheduler.enqueue(/* recipient= */ null, OperationType.ENCRYPTION_HANDSHAKE,
+                DeviceMessage.PRIORITY_NORMAL, makePackets(/* messageId= */ 2, /* count= */ 1));
+
+        mScheduler.requeue(requeued);
+
+        assertThat(mScheduler.poll()).isSameAs(requeued);
+    }
+
+    @Test
+    public void poll_sendsRequeuedPacketsInRequeueOrder() {
+        mScheduler.enqueue(UUID.randomUUID(), OperationType.CLIENT_MESSAGE,
+                DeviceMessage.PRIORITY_NORMAL, makePackets(/* messageId= */ 1, /* count= */ 4));
+        List<BlePacketScheduler.QueuedPacket> polled = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            polled.add(mScheduler.poll());
+        }
+
+        for (BlePacketScheduler.QueuedPacket packet : polled) {
+            mScheduler.requeue(packet);
+        }
+
+        for (BlePacketScheduler.QueuedPacket packet : polled) {
+            assertThat(mScheduler.poll()).isSameAs(packet);
+        }
+        assertThat(mScheduler.poll().mPacket.getPacketNumber()).isEqualTo(4);
+    }
+
+    @Test
+    public void putBack_returnsPacketOnNextPollAheadOfRequeuedPackets() {
+        mScheduler.enqueue(UUID.randomUUID(), OperationType.CLIENT_MESSAGE,
+                DeviceMessage.PRIORITY_NORMAL, makePackets(/* messageId= */ 1, /* count= */ 2));
+        BlePacketScheduler.QueuedPacket first = mScheduler.poll();
+        BlePacketScheduler.QueuedPacket second = mScheduler.poll();
+        mScheduler.requeue(first);
+        mScheduler.requeue(second);
+        BlePacketScheduler.QueuedPacket polled = mScheduler.poll();
+
+        mScheduler.putBack(polled);
+
+        assertThat(mScheduler.poll()).isSameAs(first);
+        assertThat(mScheduler.poll()).isSameAs(second);
+    }
+
+    @Test
+    public void getQueueDepth_countsRequeuedPackets() {
+        UUID recipient = UUID.randomUUID();
+        mScheduler.enqueue(recipient, OperationType.CLIENT_MESSAGE,
+                DeviceMessage.PRIORITY_NORMAL, makePackets(/* messageId= */ 1, /* count= */ 2));
+        BlePacketScheduler.QueuedPacket packet = mScheduler.poll();
+        assertThat(mScheduler.getQueueDepth(recipient)).isEqualTo(1);
+
+        mScheduler.requeue(packet);
+        assertThat(mScheduler.getQueueDepth(recipient)).isEqualTo(2);
+
+        mScheduler.poll();
+        mScheduler.poll();
+        assertThat(mScheduler.getQueueDepth(recipient)).isEqualTo(0);
+        assertThat(mScheduler.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void poll_servesLowPriorityAfterMaxSkippedPolls() {
+        UUID recipient = UUID.randomUUID();
+        mScheduler.enqueue(recipient, OperationType.CLIENT_MESSAGE, DeviceMessage.PRIORITY_LOW,
+                makePackets(/* messageId= */ 1, /* count= */ 1));
+        mScheduler.enqueue(recipient, OperationType.CLIENT_MESSAGE, DeviceMessage.PRIORITY_HIGH,
+                makePackets(/* messageId= */ 2, BlePacketScheduler.MAX_SKIPPED_POLLS + 10));
+
+        for (int i = 0; i < BlePacketScheduler.MAX_SKIPPED_POLLS; i++) {
+            assertThat(mScheduler.poll().mPacket.getMessageId()).isEqualTo(2);
+        }
+        assertThat(mScheduler.poll().mPacket.getMessageId()).isEqualTo(1);
+        assertThat(mScheduler.poll().mPacket.getMessageId()).isEqualTo(2);
+    }
+
+    @Test
+    public void getQueueDepth_tracksPacketsPerRecipient() {
+        UUID recipient = UUID.randomUUID();
+        mScheduler.enqueue(recipient, OperationType.CLIENT_MESSAGE,
+                DeviceMessage.PRIORITY_NORMAL, makePackets(/* messageId= */ 1, /* count= */ 3));
+        assertThat(mScheduler.getQueueDepth(recipient)).isEqualTo(3);
+
+        mScheduler.poll();
+        assertThat(mScheduler.getQueueDepth(recipient)).isEqualTo(2);
+
+        mScheduler.poll();
+        mScheduler.poll();
+        assertThat(mScheduler.getQueueDepth(recipient)).isEqualTo(0);
+        assertThat(mScheduler.isEmpty()).isTrue();
+    }
+
+    private static List<BlePacket> makePackets(int messageId, int count) {
+        List<BlePacket> packets = new ArrayList<>(count);
+        for (int packetNumber = 1; packetNumber <= count; packetNumber++) {
+            packets.add(BlePacket.newBuilder()
+                    .setMessageId(messageId)
+                    .setPacketNumber(packetNumber)
+                    .setTotalPackets(count)
+                    .build());
+        }
+        return Collections.unmodifiableList(packets);
+    }
+}
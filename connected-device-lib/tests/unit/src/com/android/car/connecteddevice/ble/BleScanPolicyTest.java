@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.connecteddevice.ble;
+
+import static com.android.car.connecteddevice.ble.BleScanPolicy.INITIAL_LOW_LATENCY_MS;
+import static com.android.car.connecteddevice.ble.BleScanPolicy.LOW_LATENCY_BURST_MS;
+import static com.android.car.connecteddevice.ble.BleScanPolicy.LOW_POWER_PERIOD_MS;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanSettings;
+import android.os.ParcelUuid;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+import java.util.UUID;
+
+@RunWith(AndroidJUnit4.class)
+public class BleScanPolicyTest {
+
+    private static final UUID SERVICE_UUID = UUID.randomUUID();
+
+    private static final String SINGLE_BIT_MASK = "00000000000000000000000000200000";
+
+    private static final String NO_BIT_MASK = "00000000000000000000000000000000";
+
+    @Test
+    public void buildScanFilters_filtersOnServiceUuid() {
+        BleScanPolicy policy = new BleScanPolicy(SERVICE_UUID, NO_BIT_MASK);
+
+        List<ScanFilter> filters = policy.buildScanFilters();
+
+        assertThat(filters).hasSize(1);
+        assertThat(filters.get(0).getServiceUuid()).isEqualTo(new ParcelUuid(SERVICE_UUID));
+    }
+
+    @Test
+    public void buildScanFilters_addsFilterForOverflowBit() {
+        BleScanPolicy policy = new BleScanPolicy(SERVICE_UUID, SINGLE_BIT_MASK);
+
+        List<ScanFilter> filters = policy.buildScanFilters();
+
+        assertThat(filters).hasSize(2);
+        assertThat(filters.get(1).getManufacturerId()).isEqualTo(0x004C);
+        assertThat(filters.get(1).getDeviceAddress()).isNull();
+    }
+
+    @Test
+    public void getScanMode_startsWithLowLatency() {
+        BleScanPolicy policy = new BleScanPolicy(SERVICE_UUID, NO_BIT_MASK);
+
+        assertThat(policy.getScanMode(/* searchDurationMs= */ 0))
+                .isEqualTo(ScanSettings.SCAN_MODE_LOW_LATENCY);
+        assertThat(policy.getTimeUntilScanModeChangeMs(/* searchDurationMs= */ 0))
+                .isEqualTo(INITIAL_LOW_LATENCY_MS);
+    }
+
+    @Test
+    public void getScanMode_alternatesBetweenLowPowerAndLowLatencyBursts() {
+        BleScanPolicy policy = new BleScanPolicy(SERVICE_UUID, NO_BIT_MASK);
+        long lowPowerStart = INITIAL_LOW_LATENCY_MS;
+        long burstStart = lowPowerStart + LOW_POWER_PERIOD_MS;
+        long nextLowPowerStart = burstStart + LOW_LATENCY_BURST_MS;
+
+        assertThat(policy.getScanMode(lowPowerStart)).isEqualTo(ScanSettings.SCAN_MODE_LOW_POWER);
+        assertThat(policy.getTimeUntilScanModeChangeMs(lowPowerStart))
+                .isEqualTo(LOW_POWER_PERIOD_MS);
+        assertThat(policy.getScanMode(burstStart)).isEqualTo(ScanSettings.SCAN_MODE_LOW_LATENCY);
+        assertThat(policy.getTimeUntilScanModeChangeMs(burstStart))
+                .isEqualTo(LOW_LATENCY_BURST_MS);
+        assertThat(policy.getScanMode(nextLowPowerStart))
+                .isEqualTo(ScanSettings.SCAN_MODE_LOW_POWER);
+    }
+
+    @Test
+    public void buildScanSettings_batchesOnlyWhenLowPowerAndSupported() {
+        BleScanPolicy policy = new BleScanPolicy(SERVICE_UUID, NO_BIT_MASK);
+
+        assertThat(policy.buildScanSettings(INITIAL_LOW_LATENCY_MS,
+                /* isBatchingSupported= */ true).getReportDelayMillis()).isGreaterThan(0L);
+        assertThat(policy.buildScanSettings(INITIAL_LOW_LATENCY_MS,
+                /* isBatchingSupported= */ false).getReportDelayMillis()).isEqualTo(0L);
+        assertThat(policy.buildScanSettings(/* searchDurationMs= */ 0,
+                /* isBatchingSupported= */ true).getReportDelayMillis()).isEqualTo(0L);
+    }
+}
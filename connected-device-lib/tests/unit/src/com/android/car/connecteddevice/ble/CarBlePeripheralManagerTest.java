@@ -22,6 +22,7 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mockitoSession;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 
@@ -64,6 +65,7 @@ public class CarBlePeripheralManagerTest {
     private static final UUID READ_UUID = UUID.randomUUID();
     private static final int DEVICE_NAME_LENGTH_LIMIT = 8;
     private static final String TEST_REMOTE_DEVICE_ADDRESS = "00:11:22:33:AA:BB";
+    private static final String TEST_OTHER_REMOTE_DEVICE_ADDRESS = "00:11:22:33:AA:CC";
     private static final UUID TEST_REMOTE_DEVICE_ID = UUID.randomUUID();
     private static final String TEST_VERIFICATION_CODE = "000000";
     private static final byte[] TEST_KEY = "Key".getBytes();
@@ -209,6 +211,84 @@ public class CarBlePeripheralManagerTest {
                 .stopAdvertising(any(AdvertiseCallback.class));
     }
 
+    @Test
+    public void connectToDevice_keepsOtherDevicesConnected() {
+        mCarBlePeripheralManager = new CarBlePeripheralManager(mMockPeripheralManager, mMockStorage,
+                ASSOCIATION_SERVICE_UUID, WRITE_UUID, READ_UUID,
+                StreamThreadingModel.newSharedThreadModel(), /* maxConnectedDevices= */ 2);
+        BlePeripheralManager.Callback peripheralCallback =
+                connectToDevice(TEST_REMOTE_DEVICE_ID);
+        peripheralCallback.onRemoteDeviceConnected(BluetoothAdapter.getDefaultAdapter()
+                .getRemoteDevice(TEST_REMOTE_DEVICE_ADDRESS));
+        SecureBleChannel channel = mCarBlePeripheralManager.getConnectedDeviceChannel();
+        channel.getCallback().onDeviceIdReceived(TEST_REMOTE_DEVICE_ID.toString());
+
+        mCarBlePeripheralManager.connectToDevice(UUID.randomUUID(), /* timeoutSeconds= */ 10);
+
+        verify(mMockPeripheralManager).startAdvertisingAlongsideConnections(any(), any(), any(),
+                any());
+        verify(mMockPeripheralManager, times(1)).cleanup();
+        assertThat(mCarBlePeripheralManager.getConnectedDevice(TEST_REMOTE_DEVICE_ID.toString()))
+                .isNotNull();
+    }
+
+    @Test
+    public void connectToDevice_advertisesForNextDeviceOnceFirstDeviceConnects() {
+        mCarBlePeripheralManager = new CarBlePeripheralManager(mMockPeripheralManager, mMockStorage,
+                ASSOCIATION_SERVICE_UUID, WRITE_UUID, READ_UUID,
+                StreamThreadingModel.newSharedThreadModel(), /* maxConnectedDevices= */ 2);
+        UUID otherDeviceId = UUID.randomUUID();
+        BlePeripheralManager.Callback peripheralCallback =
+                connectToDevice(TEST_REMOTE_DEVICE_ID);
+        mCarBlePeripheralManager.connectToDevice(otherDeviceId, /* timeoutSeconds= */ 10);
+        verify(mMockPeripheralManager, times(1)).startAdvertising(any(), any(), any());
+
+        peripheralCallback.onRemoteDeviceConnected(BluetoothAdapter.getDefaultAdapter()
+                .getRemoteDevice(TEST_REMOTE_DEVICE_ADDRESS));
+
+        ArgumentCaptor<AdvertiseData> dataCaptor = ArgumentCaptor.forClass(AdvertiseData.class);
+        verify(mMockPeripheralManager).startAdvertisingAlongsideConnections(any(),
+                dataCaptor.capture(), any(), any());
+        assertThat(dataCaptor.getValue().getServiceUuids())
+                .containsExactly(new ParcelUuid(otherDeviceId));
+    }
+
+    @Test
+    public void connectToDevice_doesNotAdvertiseForNextDeviceAtLimit() {
+        UUID otherDeviceId = UUID.randomUUID();
+        BlePeripheralManager.Callback peripheralCallback =
+                connectToDevice(TEST_REMOTE_DEVICE_ID);
+        mCarBlePeripheralManager.connectToDevice(otherDeviceId, /* timeoutSeconds= */ 10);
+
+        peripheralCallback.onRemoteDeviceConnected(BluetoothAdapter.getDefaultAdapter()
+                .getRemoteDevice(TEST_REMOTE_DEVICE_ADDRESS));
+
+        verify(mMockPeripheralManager, times(0)).startAdvertisingAlongsideConnections(any(),
+                any(), any(), any());
+    }
+
+    @Test
+    public void onRemoteDeviceConnected_disconnectsDevicesBeyondLimit() {
+        BlePeripheralManager.Callback peripheralCallback =
+                connectToDevice(TEST_REMOTE_DEVICE_ID);
+        peripheralCallback.onRemoteDeviceConnected(BluetoothAdapter.getDefaultAdapter()
+                .getRemoteDevice(TEST_REMOTE_DEVICE_ADDRESS));
+        BluetoothDevice otherDevice = BluetoothAdapter.getDefaultAdapter()
+                .getRemoteDevice(TEST_OTHER_REMOTE_DEVICE_ADDRESS);
+
+        peripheralCallback.onRemoteDeviceConnected(otherDevice);
+
+        verify(mMockPeripheralManager).disconnectDevice(otherDevice);
+    }
+
+    private BlePeripheralManager.Callback connectToDevice(UUID deviceId) {
+        ArgumentCaptor<BlePeripheralManager.Callback> callbackCaptor =
+                ArgumentCaptor.forClass(BlePeripheralManager.Callback.class);
+        mCarBlePeripheralManager.connectToDevice(deviceId, /* timeoutSeconds= */ 10);
+        verify(mMockPeripheralManager).registerCallback(callbackCaptor.capture());
+        return callbackCaptor.getValue();
+    }
+
     private BlePeripheralManager.Callback startAssociation(AssociationCallback callback,
             String deviceName) {
         ArgumentCaptor<BlePeripheralManager.Callback> callbackCaptor =
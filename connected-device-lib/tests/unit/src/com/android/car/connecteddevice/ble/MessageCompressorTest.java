@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.connecteddevice.ble;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.car.connecteddevice.util.ByteUtils;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.zip.DataFormatException;
+
+@RunWith(AndroidJUnit4.class)
+public class MessageCompressorTest {
+
+    private static final int THRESHOLD_BYTES = 64;
+
+    private final MessageCompressor mCompressor = new MessageCompressor(THRESHOLD_BYTES);
+
+    @After
+    public void tearDown() {
+        mCompressor.release();
+    }
+
+    @Test
+    public void compress_decompress_restoresPayload() throws DataFormatException {
+        byte[] payload = new byte[1024];
+        Arrays.fill(payload, (byte) 0x0A);
+        DeviceMessage message = new DeviceMessage(UUID.randomUUID(), /* isMessageEncrypted= */
+                false, payload.clone());
+
+        assertThat(mCompressor.compress(message)).isTrue();
+        assertThat(message.getOriginalMessageSize()).isEqualTo(payload.length);
+        assertThat(message.getMessage().length).isLessThan(payload.length);
+        assertThat(mCompressor.getCompressionRatio()).isLessThan(1f);
+
+        mCompressor.decompress(message);
+        assertThat(message.getMessage()).isEqualTo(payload);
+        assertThat(message.getOriginalMessageSize()).isEqualTo(0);
+    }
+
+    @Test
+    public void compress_skipsPayloadBelowThreshold() {
+        byte[] payload = new byte[THRESHOLD_BYTES - 1];
+        DeviceMessage message = new DeviceMessage(UUID.randomUUID(), /* isMessageEncrypted= */
+                false, payload);
+
+        assertThat(mCompressor.compress(message)).isFalse();
+        assertThat(message.getMessage()).isSameInstanceAs(payload);
+        assertThat(message.getOriginalMessageSize()).isEqualTo(0);
+    }
+
+    @Test
+    public void compress_skipsIncompressiblePayload() {
+        byte[] payload = ByteUtils.randomBytes(1024);
+        DeviceMessage message = new DeviceMessage(UUID.randomUUID(), /* isMessageEncrypted= */
+                false, payload);
+
+        assertThat(mCompressor.compress(message)).isFalse();
+        assertThat(message.getMessage()).isSameInstanceAs(payload);
+        assertThat(message.getOriginalMessageSize()).isEqualTo(0);
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void decompress_throwsOnCorruptPayload() throws DataFormatException {
+        DeviceMessage message = new DeviceMessage(UUID.randomUUID(), /* isMessageEncrypted= */
+                false, ByteUtils.randomBytes(32));
+        message.setOriginalMessageSize(1024);
+
+        mCompressor.decompress(message);
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void decompress_throwsOnNegativeOriginalSize() throws DataFormatException {
+        DeviceMessage message = new DeviceMessage(UUID.randomUUID(), /* isMessageEncrypted= */
+                false, ByteUtils.randomBytes(32));
+        message.setOriginalMessageSize(-1);
+
+        mCompressor.decompress(message);
+    }
+
+    @Test
+    public void decompress_throwsOnOversizedOriginalSizeWithoutChangingMessage() {
+        byte[] payload = ByteUtils.randomBytes(32);
+        DeviceMessage message = new DeviceMessage(UUID.randomUUID(), /* isMessageEncrypted= */
+                false, payload);
+        message.setOriginalMessageSize(BleDeviceMessageStream.MAX_REASSEMBLY_BYTES + 1);
+
+        try {
+            mCompressor.decompress(message);
+            assertWithMessage("Expected DataFormatException.").fail();
+        } catch (DataFormatException expected) {
+            // Expected.
+        }
+        assertThat(message.getMessage()).isSameInstanceAs(payload);
+    }
+}
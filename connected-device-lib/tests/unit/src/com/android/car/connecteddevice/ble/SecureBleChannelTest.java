@@ -138,11 +138,68 @@ public final class SecureBleChannelTest {
         );
     }
 
+    @Test
+    public void testEncryptionHandshake_Reconnect_sendsServerAuthBeforeClientAuth()
+            throws InterruptedException {
+        Semaphore semaphore = new Semaphore(0);
+        ChannelCallback callbackSpy = spy(new ChannelCallback(semaphore));
+        when(mStorageMock.getEncryptionKey(CLIENT_DEVICE_ID.toString()))
+                .thenReturn("previousKey".getBytes());
+        when(mStreamMock.isEarlyServerAuthSupported()).thenReturn(true);
+        setUpSecureBleChannel(callbackSpy, /* isReconnect= */ true);
+
+        sendDeviceId();
+        assertThat(semaphore.tryAcquire(100, TimeUnit.MILLISECONDS)).isTrue();
+        initHandshakeMessage();
+        respondToContinueMessage();
+        // The server authentication goes out without waiting for the client's.
+        verify(mStreamMock, times(3)).writeMessage(any(), any());
+
+        sendHandshakeMessage("clientAuth".getBytes());
+        assertThat(semaphore.tryAcquire(100, TimeUnit.MILLISECONDS)).isTrue();
+        verify(callbackSpy).onSecureChannelEstablished();
+        verify(mStreamMock, times(3)).writeMessage(any(), any());
+
+        // A message sent right behind the client authentication is decrypted.
+        DeviceMessage message = new DeviceMessage(/* recipient = */ UUID.randomUUID(),
+                /* isMessageEncrypted = */ true, "message".getBytes());
+        mMessageReceivedListener.onMessageReceived(message, OperationType.CLIENT_MESSAGE);
+        assertThat(semaphore.tryAcquire(100, TimeUnit.MILLISECONDS)).isTrue();
+        verify(callbackSpy).onMessageReceived(message);
+    }
+
+    @Test
+    public void testEncryptionHandshake_Reconnect_legacyDevice_sendsServerAuthAfterClientAuth()
+            throws InterruptedException {
+        Semaphore semaphore = new Semaphore(0);
+        ChannelCallback callbackSpy = spy(new ChannelCallback(semaphore));
+        when(mStorageMock.getEncryptionKey(CLIENT_DEVICE_ID.toString()))
+                .thenReturn("previousKey".getBytes());
+        when(mStreamMock.isEarlyServerAuthSupported()).thenReturn(false);
+        setUpSecureBleChannel(callbackSpy, /* isReconnect= */ true);
+
+        sendDeviceId();
+        assertThat(semaphore.tryAcquire(100, TimeUnit.MILLISECONDS)).isTrue();
+        initHandshakeMessage();
+        respondToContinueMessage();
+        // The device id and the handshake response only; the car waits for the client's half.
+        verify(mStreamMock, times(2)).writeMessage(any(), any());
+
+        sendHandshakeMessage("clientAuth".getBytes());
+        assertThat(semaphore.tryAcquire(100, TimeUnit.MILLISECONDS)).isTrue();
+        verify(callbackSpy).onSecureChannelEstablished();
+        verify(mStreamMock, times(3)).writeMessage(any(), any());
+    }
+
     private void setUpSecureBleChannel_Association(ChannelCallback callback) {
+        setUpSecureBleChannel(callback, /* isReconnect= */ false);
+    }
+
+    private void setUpSecureBleChannel(ChannelCallback callback, boolean isReconnect) {
         mChannel = new SecureBleChannel(
                 mStreamMock,
                 mStorageMock,
-                /* isReconnect = */ false,
+                isReconnect,
                 EncryptionRunnerFactory.newDummyRunner()
         );
         mChannel.registerCallback(callback);
@@ -180,6 +237,15 @@ public final class SecureBleChannelTest {
         mMessageReceivedListener.onMessageReceived(message, OperationType.ENCRYPTION_HANDSHAKE);
     }
 
+    private void sendHandshakeMessage(byte[] payload) {
+        DeviceMessage message = new DeviceMessage(
+                /* recipient = */ null,
+                /* isMessageEncrypted = */ false,
+                payload
+        );
+        mMessageReceivedListener.onMessageReceived(message, OperationType.ENCRYPTION_HANDSHAKE);
+    }
+
     /**
      * Add the thread control logic into {@link SecureBleChannel.Callback} only for spy purpose.
      *
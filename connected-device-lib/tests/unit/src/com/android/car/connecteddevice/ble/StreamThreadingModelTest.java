@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.connecteddevice.ble;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class StreamThreadingModelTest {
+
+    private static final String DEVICE_ADDRESS = "00:11:22:33:AA:BB";
+
+    private static final long THREAD_EXIT_TIMEOUT_MS = 1000L;
+
+    private BluetoothDevice mMockBluetoothDevice;
+
+    @Before
+    public void setUp() {
+        mMockBluetoothDevice = mock(BluetoothDevice.class);
+        when(mMockBluetoothDevice.getAddress()).thenReturn(DEVICE_ADDRESS);
+    }
+
+    @Test
+    public void dedicatedThreadModel_givesEachStreamItsOwnThread() {
+        StreamThreadingModel model = StreamThreadingModel.newDedicatedThreadModel();
+
+        Handler first = model.acquireHandler(mMockBluetoothDevice);
+        Handler second = model.acquireHandler(mMockBluetoothDevice);
+
+        assertThat(first.getLooper().getThread()).isNotSameAs(second.getLooper().getThread());
+        model.releaseHandler(first);
+        model.releaseHandler(second);
+    }
+
+    @Test
+    public void dedicatedThreadModel_threadNameDoesNotContainDeviceAddress() {
+        StreamThreadingModel model = StreamThreadingModel.newDedicatedThreadModel();
+
+        Handler handler = model.acquireHandler(mMockBluetoothDevice);
+
+        assertThat(handler.getLooper().getThread().getName()).doesNotContain(DEVICE_ADDRESS);
+        model.releaseHandler(handler);
+    }
+
+    @Test
+    public void dedicatedThreadModel_releaseHandlerStopsThread() throws InterruptedException {
+        StreamThreadingModel model = StreamThreadingModel.newDedicatedThreadModel();
+        Handler handler = model.acquireHandler(mMockBluetoothDevice);
+        Thread thread = handler.getLooper().getThread();
+
+        model.releaseHandler(handler);
+        thread.join(THREAD_EXIT_TIMEOUT_MS);
+
+        assertThat(thread.isAlive()).isFalse();
+    }
+
+    @Test
+    public void sharedThreadModel_givesAllStreamsTheSameThread() {
+        StreamThreadingModel model = StreamThreadingModel.newSharedThreadModel();
+
+        Handler first = model.acquireHandler(mMockBluetoothDevice);
+        Handler second = model.acquireHandler(mMockBluetoothDevice);
+
+        assertThat(first.getLooper()).isSameAs(second.getLooper());
+        assertThat(first.getLooper().getThread().getName()).doesNotContain(DEVICE_ADDRESS);
+        model.releaseHandler(first);
+        model.releaseHandler(second);
+    }
+
+    @Test
+    public void sharedThreadModel_stopsThreadAfterLastRelease() throws InterruptedException {
+        StreamThreadingModel model = StreamThreadingModel.newSharedThreadModel();
+        Handler first = model.acquireHandler(mMockBluetoothDevice);
+        Handler second = model.acquireHandler(mMockBluetoothDevice);
+        Thread thread = first.getLooper().getThread();
+
+        model.releaseHandler(first);
+        thread.join(THREAD_EXIT_TIMEOUT_MS);
+        assertThat(thread.isAlive()).isTrue();
+
+        model.releaseHandler(second);
+        thread.join(THREAD_EXIT_TIMEOUT_MS);
+        assertThat(thread.isAlive()).isFalse();
+    }
+
+    @Test
+    public void sharedThreadModel_startsNewThreadAfterLastRelease() {
+        StreamThreadingModel model = StreamThreadingModel.newSharedThreadModel();
+        Handler first = model.acquireHandler(mMockBluetoothDevice);
+        model.releaseHandler(first);
+
+        Handler second = model.acquireHandler(mMockBluetoothDevice);
+
+        assertThat(second.getLooper()).isNotSameAs(first.getLooper());
+        model.releaseHandler(second);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.connecteddevice.ble;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class ThroughputCounterTest {
+
+    private static final long IDLE_THRESHOLD_MS = 1000L;
+
+    private ThroughputCounter mCounter;
+
+    @Before
+    public void setUp() {
+        mCounter = new ThroughputCounter(IDLE_THRESHOLD_MS);
+    }
+
+    @Test
+    public void getBytesPerSecond_zeroBeforeTwoTransfers() {
+        assertThat(mCounter.getBytesPerSecond()).isEqualTo(0);
+
+        mCounter.record(/* bytes= */ 100, /* nowMs= */ 0);
+
+        assertThat(mCounter.getBytesPerSecond()).isEqualTo(0);
+        assertThat(mCounter.getTotalBytes()).isEqualTo(100);
+    }
+
+    @Test
+    public void getBytesPerSecond_averagesOverActiveTime() {
+        mCounter.record(/* bytes= */ 100, /* nowMs= */ 0);
+        mCounter.record(/* bytes= */ 100, /* nowMs= */ 100);
+        mCounter.record(/* bytes= */ 100, /* nowMs= */ 300);
+
+        assertThat(mCounter.getTotalBytes()).isEqualTo(300);
+        assertThat(mCounter.getBytesPerSecond()).isEqualTo(1000);
+    }
+
+    @Test
+    public void getBytesPerSecond_ignoresIdleGaps() {
+        mCounter.record(/* bytes= */ 100, /* nowMs= */ 0);
+        mCounter.record(/* bytes= */ 100, /* nowMs= */ 100);
+        mCounter.record(/* bytes= */ 100, /* nowMs= */ 100 + IDLE_THRESHOLD_MS + 1);
+        mCounter.record(/* bytes= */ 100, /* nowMs= */ 200 + IDLE_THRESHOLD_MS + 1);
+
+        assertThat(mCounter.getTotalBytes()).isEqualTo(400);
+        assertThat(mCounter.getBytesPerSecond()).isEqualTo(2000);
+    }
+
+    @Test
+    public void getBytesPerSecond_countsGapEqualToIdleThreshold() {
+        mCounter.record(/* bytes= */ 500, /* nowMs= */ 0);
+        mCounter.record(/* bytes= */ 500, /* nowMs= */ IDLE_THRESHOLD_MS);
+
+        assertThat(mCounter.getBytesPerSecond()).isEqualTo(1000);
+    }
+}
@@ -35,6 +35,7 @@ import org.junit.runner.RunWith;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
 
 @RunWith(AndroidJUnit4.class)
 public final class ConnectedDeviceStorageTest {
@@ -48,7 +49,7 @@ public final class ConnectedDeviceStorageTest {
 
     @Before
     public void setUp() {
-        mConnectedDeviceStorage = new ConnectedDeviceStorage(mContext);
+        mConnectedDeviceStorage = new ConnectedDeviceStorage(mContext, Runnable::run);
         mAddedAssociatedDevices = new ArrayList<>();
     }
 
@@ -126,6 +127,71 @@ public final class ConnectedDeviceStorageTest {
         assertThat(mConnectedDeviceStorage.getEncryptionKey(UUID.randomUUID().toString())).isNull();
     }
 
+    @Test
+    public void getEncryptionKey_returnsLatestSavedKey() {
+        String deviceId = addRandomAssociatedDevice(mActiveUserId).getDeviceId();
+        mConnectedDeviceStorage.getEncryptionKey(deviceId);
+        byte[] newKey = ByteUtils.randomBytes(16);
+        mConnectedDeviceStorage.saveEncryptionKey(deviceId, newKey);
+        assertThat(mConnectedDeviceStorage.getEncryptionKey(deviceId)).isEqualTo(newKey);
+    }
+
+    @Test
+    public void getEncryptionKey_returnsCopyOfCachedKey() {
+        String deviceId = addRandomAssociatedDevice(mActiveUserId).getDeviceId();
+        byte[] key = mConnectedDeviceStorage.getEncryptionKey(deviceId);
+        byte[] expected = key.clone();
+        key[0]++;
+        assertThat(mConnectedDeviceStorage.getEncryptionKey(deviceId)).isEqualTo(expected);
+    }
+
+    @Test
+    public void getEncryptionKeyAsync_returnsSavedKey() {
+        String deviceId = addRandomAssociatedDevice(mActiveUserId).getDeviceId();
+        byte[] key = ByteUtils.randomBytes(16);
+        mConnectedDeviceStorage.saveEncryptionKeyAsync(deviceId, key);
+        AtomicReference<byte[]> result = new AtomicReference<>();
+        mConnectedDeviceStorage.getEncryptionKeyAsync(deviceId, Runnable::run, result::set);
+        assertThat(result.get()).isEqualTo(key);
+    }
+
+    @Test
+    public void addAssociatedDeviceForUser_otherUserClearsCachedKeys() {
+        AssociatedDevice device = addRandomAssociatedDevice(mActiveUserId);
+        String otherDeviceId = addRandomAssociatedDevice(mActiveUserId).getDeviceId();
+        byte[] key = mConnectedDeviceStorage.getEncryptionKey(device.getDeviceId());
+        assertThat(mConnectedDeviceStorage.hasCachedEncryptionKey(otherDeviceId)).isTrue();
+
+        mConnectedDeviceStorage.addAssociatedDeviceForUser(mActiveUserId + 1, device);
+        mAddedAssociatedDevices.add(new Pair<>(mActiveUserId + 1, device));
+
+        assertThat(mConnectedDeviceStorage.hasCachedEncryptionKey(device.getDeviceId()))
+                .isFalse();
+        assertThat(mConnectedDeviceStorage.hasCachedEncryptionKey(otherDeviceId)).isFalse();
+        assertThat(mConnectedDeviceStorage.getEncryptionKey(device.getDeviceId())).isEqualTo(key);
+    }
+
+    @Test
+    public void addAssociatedDeviceForUser_sameUserKeepsCachedKeys() {
+        AssociatedDevice device = addRandomAssociatedDevice(mActiveUserId);
+
+        mConnectedDeviceStorage.addAssociatedDeviceForUser(mActiveUserId, device);
+
+        assertThat(mConnectedDeviceStorage.hasCachedEncryptionKey(device.getDeviceId())).isTrue();
+    }
+
+    @Test
+    public void clearEncryptionKeyCache_keysAreReadFromStorageAgain() {
+        String deviceId = addRandomAssociatedDevice(mActiveUserId).getDeviceId();
+        byte[] key = mConnectedDeviceStorage.getEncryptionKey(deviceId);
+
+        mConnectedDeviceStorage.clearEncryptionKeyCache();
+
+        assertThat(mConnectedDeviceStorage.hasCachedEncryptionKey(deviceId)).isFalse();
+        assertThat(mConnectedDeviceStorage.getEncryptionKey(deviceId)).isEqualTo(key);
+        assertThat(mConnectedDeviceStorage.hasCachedEncryptionKey(deviceId)).isTrue();
+    }
+
     private AssociatedDevice addRandomAssociatedDevice(int userId) {
         AssociatedDevice device = new AssociatedDevice(UUID.randomUUID().toString(),
                 "00:00:00:00:00:00", "Test Device", true);
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.connecteddevice.util;
+
+import static com.android.car.connecteddevice.util.AdvertisementMatcher.MATCH_MANUFACTURER_DATA;
+import static com.android.car.connecteddevice.util.AdvertisementMatcher.MATCH_OVERFLOW;
+import static com.android.car.connecteddevice.util.AdvertisementMatcher.MATCH_SERVICE_UUID;
+import static com.android.car.connecteddevice.util.AdvertisementMatcher.NO_MANUFACTURER_ID;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+@RunWith(AndroidJUnit4.class)
+public class AdvertisementMatcherTest {
+
+    private static final UUID SERVICE_UUID =
+            UUID.fromString("00003ac5-0000-1000-8000-00805f9b34fb");
+
+    private static final String MASK = "00000000000000000000000000200000";
+
+    // Recorded from an iOS device advertising the service in the foreground.
+    private static final byte[] FOREGROUND_DATA = hexToBytes(
+            "02011A1107FB349B5F8000008000100000C53A000007095465737465720000000000000000"
+                    + "00000000000000000000000000000000000000000000000000");
+
+    // Recorded from the same iOS device advertising the service from the background.
+    private static final byte[] BACKGROUND_DATA = hexToBytes(
+            "02011A14FF4C000100000000000000000000000000200000000000000000000000000000"
+                    + "0000000000000000000000000000000000000000000000000000");
+
+    private final AdvertisementMatcher mMatcher =
+            new AdvertisementMatcher(SERVICE_UUID, MASK, NO_MANUFACTURER_ID);
+
+    @Test
+    public void match_foregroundAdvertisement_matchesServiceUuid() {
+        assertThat(mMatcher.match(FOREGROUND_DATA)).isEqualTo(MATCH_SERVICE_UUID);
+    }
+
+    @Test
+    public void match_backgroundAdvertisement_matchesOverflow() {
+        assertThat(mMatcher.match(BACKGROUND_DATA)).isEqualTo(MATCH_OVERFLOW);
+    }
+
+    @Test
+    public void match_differentServiceUuid_matchesNothing() {
+        AdvertisementMatcher matcher =
+                new AdvertisementMatcher(UUID.randomUUID(), MASK, NO_MANUFACTURER_ID);
+        assertThat(matcher.match(FOREGROUND_DATA)).isEqualTo(0);
+    }
+
+    @Test
+    public void match_manufacturerId_matchesManufacturerData() {
+        AdvertisementMatcher matcher = new AdvertisementMatcher(/* serviceUuid= */ null,
+                "00", /* manufacturerId= */ 0x004C);
+        assertThat(matcher.match(BACKGROUND_DATA)).isEqualTo(MATCH_MANUFACTURER_DATA);
+    }
+
+    @Test
+    public void match_16BitUuidList_matchesServiceUuid() {
+        // Flags, then a complete list of the 16-bit UUIDs 0x180F and 0x3AC5.
+        byte[] data = hexToBytes("02011A0503" + "0F18" + "C53A");
+        assertThat(mMatcher.match(data)).isEqualTo(MATCH_SERVICE_UUID);
+    }
+
+    @Test
+    public void match_incomplete16BitUuidList_matchesServiceUuid() {
+        byte[] data = hexToBytes("0302C53A");
+        assertThat(mMatcher.match(data)).isEqualTo(MATCH_SERVICE_UUID);
+    }
+
+    @Test
+    public void match_32BitUuidList_matchesServiceUuid() {
+        byte[] data = hexToBytes("0505" + "C53A0000");
+        assertThat(mMatcher.match(data)).isEqualTo(MATCH_SERVICE_UUID);
+    }
+
+    @Test
+    public void match_32BitUuidWithHighBits_matchesServiceUuid() {
+        AdvertisementMatcher matcher = new AdvertisementMatcher(
+                UUID.fromString("12343ac5-0000-1000-8000-00805f9b34fb"), MASK,
+                NO_MANUFACTURER_ID);
+        byte[] data = hexToBytes("0504" + "C53A3412");
+        assertThat(matcher.match(data)).isEqualTo(MATCH_SERVICE_UUID);
+        assertThat(mMatcher.match(data)).isEqualTo(0);
+    }
+
+    @Test
+    public void match_shortUuidOfNonBaseServiceUuid_matchesNothing() {
+        AdvertisementMatcher matcher = new AdvertisementMatcher(
+                UUID.fromString("00003ac5-0000-1000-8000-000000000000"), MASK,
+                NO_MANUFACTURER_ID);
+        assertThat(matcher.match(hexToBytes("0303C53A"))).isEqualTo(0);
+    }
+
+    @Test
+    public void match_truncatedData_matchesNothing() {
+        byte[] truncated = Arrays.copyOf(BACKGROUND_DATA, 20);
+        assertThat(mMatcher.match(truncated)).isEqualTo(0);
+    }
+
+    @Test
+    public void match_overflowBitNotSet_matchesNothing() {
+        AdvertisementMatcher matcher = new AdvertisementMatcher(SERVICE_UUID,
+                "00000000000000000000000000100000", NO_MANUFACTURER_ID);
+        assertThat(matcher.match(BACKGROUND_DATA)).isEqualTo(0);
+    }
+
+    @Test
+    public void match_respectsRange() {
+        byte[] data = new byte[BACKGROUND_DATA.length + 3];
+        System.arraycopy(BACKGROUND_DATA, 0, data, 3, BACKGROUND_DATA.length);
+        assertThat(mMatcher.match(data, 3, BACKGROUND_DATA.length)).isEqualTo(MATCH_OVERFLOW);
+    }
+
+    private static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
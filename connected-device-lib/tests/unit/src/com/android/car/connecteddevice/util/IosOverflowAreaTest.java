@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.connecteddevice.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class IosOverflowAreaTest {
+
+    @Test
+    public void parseMask_fullLengthMask() {
+        byte[] mask = IosOverflowArea.parseMask("0102030405060708090A0B0C0D0E0F10");
+
+        assertThat(mask).isEqualTo(new byte[] {
+                0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08,
+                0x09, 0x0A, 0x0B, 0x0C, 0x0D, 0x0E, 0x0F, 0x10 });
+    }
+
+    @Test
+    public void parseMask_shortMaskFillsLeastSignificantBytes() {
+        byte[] mask = IosOverflowArea.parseMask("A01");
+
+        byte[] expected = new byte[IosOverflowArea.MASK_LENGTH];
+        expected[IosOverflowArea.MASK_LENGTH - 2] = 0x0A;
+        expected[IosOverflowArea.MASK_LENGTH - 1] = 0x01;
+        assertThat(mask).isEqualTo(expected);
+    }
+
+    @Test
+    public void parseMask_longMaskKeepsLeastSignificantBytes() {
+        byte[] mask = IosOverflowArea.parseMask("FF" + "00000000000000000000000000000001");
+
+        byte[] expected = new byte[IosOverflowArea.MASK_LENGTH];
+        expected[IosOverflowArea.MASK_LENGTH - 1] = 0x01;
+        assertThat(mask).isEqualTo(expected);
+    }
+
+    @Test
+    public void parseMask_invalidMaskMatchesNothing() {
+        byte[] mask = IosOverflowArea.parseMask("0000000000000000000000000020000G");
+
+        assertThat(mask).isEqualTo(new byte[IosOverflowArea.MASK_LENGTH]);
+    }
+
+    @Test
+    public void readBigEndianLong_readsMostSignificantByteFirst() {
+        byte[] data = new byte[] { 0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08 };
+
+        assertThat(IosOverflowArea.readBigEndianLong(data, /* offset= */ 1))
+                .isEqualTo(0x0102030405060708L);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.connecteddevice.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+@RunWith(AndroidJUnit4.class)
+public class ThreadSafeCallbacksTest {
+
+    private final CountingExecutor mExecutor = new CountingExecutor();
+
+    private final List<Integer> mNotified = new ArrayList<>();
+
+    @Test
+    public void invoke_perCallback_postsOneTaskPerCallback() {
+        ThreadSafeCallbacks<Integer> callbacks = new ThreadSafeCallbacks<>();
+        callbacks.add(1, mExecutor);
+        callbacks.add(2, mExecutor);
+
+        callbacks.invoke(mNotified::add);
+
+        assertThat(mExecutor.mTaskCount).isEqualTo(2);
+        assertThat(mNotified).containsExactly(1, 2);
+    }
+
+    @Test
+    public void invoke_perExecutor_postsOneTaskPerExecutor() {
+        CountingExecutor otherExecutor = new CountingExecutor();
+        ThreadSafeCallbacks<Integer> callbacks =
+                new ThreadSafeCallbacks<>(ThreadSafeCallbacks.DISPATCH_PER_EXECUTOR);
+        callbacks.add(1, mExecutor);
+        callbacks.add(2, mExecutor);
+        callbacks.add(3, otherExecutor);
+
+        callbacks.invoke(mNotified::add);
+
+        assertThat(mExecutor.mTaskCount).isEqualTo(1);
+        assertThat(otherExecutor.mTaskCount).isEqualTo(1);
+        assertThat(mNotified).containsExactly(1, 2, 3);
+    }
+
+    @Test
+    public void invokeAll_groupsCallbacksAcrossCollections() {
+        ThreadSafeCallbacks<Integer> first =
+                new ThreadSafeCallbacks<>(ThreadSafeCallbacks.DISPATCH_PER_EXECUTOR);
+        first.add(1, mExecutor);
+        ThreadSafeCallbacks<Integer> second =
+                new ThreadSafeCallbacks<>(ThreadSafeCallbacks.DISPATCH_PER_EXECUTOR);
+        second.add(2, mExecutor);
+
+        ThreadSafeCallbacks.invokeAll(Arrays.asList(first, second), mNotified::add);
+
+        assertThat(mExecutor.mTaskCount).isEqualTo(1);
+        assertThat(mNotified).containsExactly(1, 2);
+    }
+
+    @Test
+    public void invoke_perExecutor_notifiesRemainingCallbacksAfterException() {
+        ThreadSafeCallbacks<Integer> callbacks =
+                new ThreadSafeCallbacks<>(ThreadSafeCallbacks.DISPATCH_PER_EXECUTOR);
+        callbacks.add(1, mExecutor);
+        callbacks.add(2, mExecutor);
+        callbacks.add(3, mExecutor);
+
+        callbacks.invoke(callback -> {
+            if (callback == 2) {
+                throw new IllegalStateException();
+            }
+            mNotified.add(callback);
+        });
+
+        assertThat(mExecutor.mTaskCount).isEqualTo(1);
+        assertThat(mNotified).containsExactly(1, 3);
+    }
+
+    @Test
+    public void invoke_perExecutor_rethrowsExceptionAfterRemainingCallbacks() {
+        ThreadSafeCallbacks<Integer> callbacks =
+                new ThreadSafeCallbacks<>(ThreadSafeCallbacks.DISPATCH_PER_EXECUTOR);
+        callbacks.add(1, mExecutor);
+        callbacks.add(2, mExecutor);
+        IllegalStateException exception = new IllegalStateException();
+
+        callbacks.invoke(callback -> {
+            mNotified.add(callback);
+            if (callback == 1) {
+                throw exception;
+            }
+        });
+
+        assertThat(mNotified).containsExactly(1, 2);
+        assertThat(mExecutor.mThrown).containsExactly(exception);
+    }
+
+    @Test
+    public void invokeAll_keepsPerCallbackDispatchOfCollection() {
+        ThreadSafeCallbacks<Integer> first = new ThreadSafeCallbacks<>();
+        first.add(1, mExecutor);
+        ThreadSafeCallbacks<Integer> second =
+                new ThreadSafeCallbacks<>(ThreadSafeCallbacks.DISPATCH_PER_EXECUTOR);
+        second.add(2, mExecutor);
+        second.add(3, mExecutor);
+
+        ThreadSafeCallbacks.invokeAll(Arrays.asList(first, second), mNotified::add);
+
+        assertThat(mExecutor.mTaskCount).isEqualTo(2);
+        assertThat(mNotified).containsExactly(1, 2, 3);
+    }
+
+    @Test
+    public void invokeAll_notifiesRemainingCallbacksAfterException() {
+        ThreadSafeCallbacks<Integer> first =
+                new ThreadSafeCallbacks<>(ThreadSafeCallbacks.DISPATCH_PER_EXECUTOR);
+        first.add(1, mExecutor);
+        ThreadSafeCallbacks<Integer> second =
+                new ThreadSafeCallbacks<>(ThreadSafeCallbacks.DISPATCH_PER_EXECUTOR);
+        second.add(2, mExecutor);
+
+        ThreadSafeCallbacks.invokeAll(Arrays.asList(first, second), callback -> {
+            mNotified.add(callback);
+            throw new IllegalStateException();
+        });
+
+        assertThat(mNotified).containsExactly(1, 2);
+        assertThat(mExecutor.mThrown).hasSize(1);
+    }
+
+    /** Runs tasks inline and records what they throw, like an executor's uncaught handler. */
+    private static class CountingExecutor implements Executor {
+        private final List<RuntimeException> mThrown = new ArrayList<>();
+        private int mTaskCount;
+
+        @Override
+        public void execute(Runnable command) {
+            mTaskCount++;
+            try {
+                command.run();
+            } catch (RuntimeException e) {
+                mThrown.add(e);
+            }
+        }
+    }
+}